@@ -536,30 +536,22 @@ public class AndroidBinaryGraphEnhancer {
         continue;
       }
 
-      // See whether the corresponding IntermediateDexRule has already been added to the
-      // ruleResolver.
+      // Create the IntermediateDexRule, unless another binary that dexes the same library already
+      // did, and add it to preDexDeps.
       BuildTarget originalTarget = javaLibrary.getBuildTarget();
       BuildTarget preDexTarget = BuildTarget.builder(originalTarget)
           .addFlavors(DEX_FLAVOR)
           .build();
-      Optional<BuildRule> preDexRule = ruleResolver.getRuleOptional(preDexTarget);
-      if (preDexRule.isPresent()) {
-        preDexDeps.put(
-            apkModuleGraph.findModuleForTarget(buildTarget),
-            (DexProducedFromJavaLibrary) preDexRule.get());
-        continue;
-      }
-
-      // Create the IntermediateDexRule and add it to both the ruleResolver and preDexDeps.
-      BuildRuleParams paramsForPreDex = buildRuleParams
-          .withBuildTarget(preDexTarget)
-          .copyReplacingDeclaredAndExtraDeps(
-              Suppliers.ofInstance(
-                  ImmutableSortedSet.of(ruleResolver.getRule(javaLibrary.getBuildTarget()))),
-              Suppliers.ofInstance(ImmutableSortedSet.of()));
-      DexProducedFromJavaLibrary preDex =
-          new DexProducedFromJavaLibrary(paramsForPreDex, javaLibrary);
-      ruleResolver.addToIndex(preDex);
+      DexProducedFromJavaLibrary preDex = ruleResolver.computeIfAbsent(
+          preDexTarget,
+          DexProducedFromJavaLibrary.class,
+          target -> new DexProducedFromJavaLibrary(
+              buildRuleParams
+                  .withBuildTarget(target)
+                  .copyReplacingDeclaredAndExtraDeps(
+                      Suppliers.ofInstance(ImmutableSortedSet.of(javaLibrary)),
+                      Suppliers.ofInstance(ImmutableSortedSet.of())),
+              javaLibrary));
       preDexDeps.put(apkModuleGraph.findModuleForTarget(buildTarget), preDex);
     }
     return preDexDeps.build();
@@ -116,26 +116,28 @@ public class AndroidLibraryGraphEnhancer {
       return Optional.empty();
     }
 
-    SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(ruleResolver);
-
-    CompileToJarStepFactory compileToJarStepFactory =
-        new JavacToJarStepFactory(javac, javacOptions, JavacOptionsAmender.IDENTITY);
-    BuildRuleParams dummyRDotJavaParams = compileToJarStepFactory
-        .addInputs(originalBuildRuleParams, ruleFinder)
-        .withBuildTarget(dummyRDotJavaBuildTarget);
-
-    DummyRDotJava dummyRDotJava = new DummyRDotJava(
-        dummyRDotJavaParams,
-        ruleFinder,
-        androidResourceDeps,
-        compileToJarStepFactory,
-        forceFinalResourceIds,
-        resourceUnionPackage,
-        finalRName,
-        useOldStyleableFormat);
-    ruleResolver.addToIndex(dummyRDotJava);
-
-    return Optional.of(dummyRDotJava);
+    return Optional.of(ruleResolver.computeIfAbsent(
+        dummyRDotJavaBuildTarget,
+        DummyRDotJava.class,
+        target -> {
+          SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(ruleResolver);
+
+          CompileToJarStepFactory compileToJarStepFactory =
+              new JavacToJarStepFactory(javac, javacOptions, JavacOptionsAmender.IDENTITY);
+          BuildRuleParams dummyRDotJavaParams = compileToJarStepFactory
+              .addInputs(originalBuildRuleParams, ruleFinder)
+              .withBuildTarget(target);
+
+          return new DummyRDotJava(
+              dummyRDotJavaParams,
+              ruleFinder,
+              androidResourceDeps,
+              compileToJarStepFactory,
+              forceFinalResourceIds,
+              resourceUnionPackage,
+              finalRName,
+              useOldStyleableFormat);
+        }));
   }
 
   public CalculateAbi getBuildableForAndroidResourcesAbi(
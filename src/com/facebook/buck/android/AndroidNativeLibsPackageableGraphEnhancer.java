@@ -364,28 +364,22 @@ public class AndroidNativeLibsPackageableGraphEnhancer {
           .addFlavors(InternalFlavor.of(Flavor.replaceInvalidCharacters(targetCpuType.name())))
           .build();
 
-      Optional<BuildRule> previouslyCreated = ruleResolver.getRuleOptional(targetForStripRule);
-      StripLinkable stripLinkable;
-      if (previouslyCreated.isPresent()) {
-        stripLinkable = (StripLinkable) previouslyCreated.get();
-      } else {
-        BuildRuleParams paramsForStripLinkable = buildRuleParams
-            .withBuildTarget(targetForStripRule)
-            .copyReplacingDeclaredAndExtraDeps(
-                Suppliers.ofInstance(
-                    ImmutableSortedSet.<BuildRule>naturalOrder()
-                        .addAll(ruleFinder.filterBuildRuleInputs(ImmutableList.of(sourcePath)))
-                        .build()),
-                Suppliers.ofInstance(ImmutableSortedSet.of()));
-
-        stripLinkable = new StripLinkable(
-            paramsForStripLinkable,
-            platform.getCxxPlatform().getStrip(),
-            sourcePath,
-            sharedLibrarySoName);
-
-        ruleResolver.addToIndex(stripLinkable);
-      }
+      StripLinkable stripLinkable = ruleResolver.computeIfAbsent(
+          targetForStripRule,
+          StripLinkable.class,
+          target -> new StripLinkable(
+              buildRuleParams
+                  .withBuildTarget(target)
+                  .copyReplacingDeclaredAndExtraDeps(
+                      Suppliers.ofInstance(
+                          ImmutableSortedSet.<BuildRule>naturalOrder()
+                              .addAll(
+                                  ruleFinder.filterBuildRuleInputs(ImmutableList.of(sourcePath)))
+                              .build()),
+                      Suppliers.ofInstance(ImmutableSortedSet.of())),
+              platform.getCxxPlatform().getStrip(),
+              sourcePath,
+              sharedLibrarySoName));
       result.put(
           stripLinkable,
           StrippedObjectDescription.builder()
@@ -774,38 +774,32 @@ class NativeLibraryMergeEnhancer {
       }
 
       String soname = getSoname(cxxPlatform);
-      BuildTarget target = getBuildTargetForPlatform(cxxPlatform);
-      Optional<BuildRule> ruleOptional = ruleResolver.getRuleOptional(target);
-      BuildRule rule = null;
-      if (ruleOptional.isPresent()) {
-        rule = ruleOptional.get();
-      } else {
-        rule = CxxLinkableEnhancer.createCxxLinkableBuildRule(
-            cxxBuckConfig,
-            cxxPlatform,
-            baseBuildRuleParams,
-            ruleResolver,
-            pathResolver,
-            ruleFinder,
-            target,
-            Linker.LinkType.SHARED,
-            Optional.of(soname),
-            BuildTargets.getGenPath(
-                baseBuildRuleParams.getProjectFilesystem(),
-                target,
-                "%s/" + getSoname(cxxPlatform)),
-            // Android Binaries will use share deps by default.
-            Linker.LinkableDepType.SHARED,
-            /* thinLto */ false,
-            Iterables.concat(
-                getNativeLinkableDepsForPlatform(cxxPlatform),
-                getNativeLinkableExportedDepsForPlatform(cxxPlatform)),
-            Optional.empty(),
-            Optional.empty(),
-            ImmutableSet.of(),
-            getImmediateNativeLinkableInput(cxxPlatform));
-        ruleResolver.addToIndex(rule);
-      }
+      BuildRule rule = ruleResolver.computeIfAbsentThrowing(
+          getBuildTargetForPlatform(cxxPlatform),
+          target -> CxxLinkableEnhancer.createCxxLinkableBuildRule(
+              cxxBuckConfig,
+              cxxPlatform,
+              baseBuildRuleParams,
+              ruleResolver,
+              pathResolver,
+              ruleFinder,
+              target,
+              Linker.LinkType.SHARED,
+              Optional.of(soname),
+              BuildTargets.getGenPath(
+                  baseBuildRuleParams.getProjectFilesystem(),
+                  target,
+                  "%s/" + getSoname(cxxPlatform)),
+              // Android Binaries will use share deps by default.
+              Linker.LinkableDepType.SHARED,
+              /* thinLto */ false,
+              Iterables.concat(
+                  getNativeLinkableDepsForPlatform(cxxPlatform),
+                  getNativeLinkableExportedDepsForPlatform(cxxPlatform)),
+              Optional.empty(),
+              Optional.empty(),
+              ImmutableSet.of(),
+              getImmediateNativeLinkableInput(cxxPlatform)));
       return ImmutableMap.of(soname, rule.getSourcePathToOutput());
     }
   }
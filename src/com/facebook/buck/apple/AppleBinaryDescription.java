@@ -340,19 +340,13 @@ public class AppleBinaryDescription
 
       ImmutableSortedSet.Builder<BuildRule> thinRules = ImmutableSortedSet.naturalOrder();
       for (BuildTarget thinTarget : fatBinaryInfo.get().getThinTargets()) {
-        Optional<BuildRule> existingThinRule = resolver.getRuleOptional(thinTarget);
-        if (existingThinRule.isPresent()) {
-          thinRules.add(existingThinRule.get());
-          continue;
-        }
-        BuildRule thinRule = requireThinBinary(
-            targetGraph,
-            params.withBuildTarget(thinTarget),
-            resolver,
-            cellRoots,
-            args);
-        resolver.addToIndex(thinRule);
-        thinRules.add(thinRule);
+        thinRules.add(
+            requireThinBinary(
+                targetGraph,
+                params.withBuildTarget(thinTarget),
+                resolver,
+                cellRoots,
+                args));
       }
       return MultiarchFileInfos.requireMultiarchRule(
           params,
@@ -370,11 +364,17 @@ public class AppleBinaryDescription
       BuildRuleResolver resolver,
       CellPathResolver cellRoots,
       A args) throws NoSuchBuildTargetException {
-    Optional<BuildRule> existingThinRule = resolver.getRuleOptional(params.getBuildTarget());
-    if (existingThinRule.isPresent()) {
-      return existingThinRule.get();
-    }
+    return resolver.computeIfAbsentThrowing(
+        params.getBuildTarget(),
+        target -> createThinBinary(targetGraph, params, resolver, cellRoots, args));
+  }
 
+  private <A extends Arg> BuildRule createThinBinary(
+      TargetGraph targetGraph,
+      BuildRuleParams params,
+      BuildRuleResolver resolver,
+      CellPathResolver cellRoots,
+      A args) throws NoSuchBuildTargetException {
     ImmutableSortedSet.Builder<BuildTarget> extraCxxDepsBuilder = ImmutableSortedSet.naturalOrder();
     Optional<BuildRule> swiftCompanionBuildRule = swiftDelegate.createCompanionBuildRule(
         targetGraph, params, resolver, cellRoots, args);
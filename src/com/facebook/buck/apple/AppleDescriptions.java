@@ -536,26 +536,21 @@ public class AppleDescriptions {
           .withoutFlavors(AppleDebugFormat.FLAVOR_DOMAIN.getFlavors())
           .withoutFlavors(LinkerMapMode.NO_LINKER_MAP.getFlavor())
           .withAppendedFlavors(AppleDsym.RULE_FLAVOR);
-      Optional<BuildRule> dsymRule = resolver.getRuleOptional(dsymBuildTarget);
-      if (!dsymRule.isPresent()) {
-        dsymRule = Optional.of(
-            createAppleDsym(
-                params.withBuildTarget(dsymBuildTarget),
-                resolver,
-                unstrippedBinaryRule,
-                cxxPlatformFlavorDomain,
-                defaultCxxPlatform,
-                appleCxxPlatforms));
-      }
-      Preconditions.checkArgument(dsymRule.get() instanceof AppleDsym);
-      return Optional.of((AppleDsym) dsymRule.get());
+      return Optional.of(resolver.computeIfAbsent(
+          dsymBuildTarget,
+          AppleDsym.class,
+          target -> createAppleDsym(
+              params.withBuildTarget(target),
+              unstrippedBinaryRule,
+              cxxPlatformFlavorDomain,
+              defaultCxxPlatform,
+              appleCxxPlatforms)));
     }
     return Optional.empty();
   }
 
   static AppleDsym createAppleDsym(
       BuildRuleParams params,
-      BuildRuleResolver resolver,
       ProvidesLinkedBinaryDeps unstrippedBinaryBuildRule,
       FlavorDomain<CxxPlatform> cxxPlatformFlavorDomain,
       CxxPlatform defaultCxxPlatform,
@@ -581,7 +576,6 @@ public class AppleDescriptions {
         appleCxxPlatform.getLldb(),
         unstrippedBinaryBuildRule.getSourcePathToOutput(),
         AppleDsym.getDsymOutputPath(params.getBuildTarget(), params.getProjectFilesystem()));
-    resolver.addToIndex(appleDsym);
     return appleDsym;
   }
 
@@ -423,22 +423,19 @@ public class AppleLibraryDescription implements
       unstrippedTarget = unstrippedTarget.withoutFlavors(LinkerMapMode.NO_LINKER_MAP.getFlavor());
     }
 
-    Optional<BuildRule> existingRule = resolver.getRuleOptional(unstrippedTarget);
-    if (existingRule.isPresent()) {
-      return existingRule.get();
-    } else {
-      BuildRule rule =
-          delegate.createBuildRule(
-              params.withBuildTarget(unstrippedTarget),
-              resolver,
-              cellRoots,
-              delegateArg,
-              linkableDepType,
-              bundleLoader,
-              blacklist,
-              extraCxxDeps);
-      return resolver.addToIndex(rule);
-    }
+    BuildRuleParams delegateParams = params;
+    ImmutableSortedSet<BuildTarget> delegateExtraCxxDeps = extraCxxDeps;
+    return resolver.computeIfAbsentThrowing(
+        unstrippedTarget,
+        target -> delegate.createBuildRule(
+            delegateParams.withBuildTarget(target),
+            resolver,
+            cellRoots,
+            delegateArg,
+            linkableDepType,
+            bundleLoader,
+            blacklist,
+            delegateExtraCxxDeps));
   }
 
   private boolean shouldWrapIntoDebuggableBinary(BuildTarget buildTarget, BuildRule buildRule) {
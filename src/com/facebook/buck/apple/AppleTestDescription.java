@@ -317,35 +317,33 @@ public class AppleTestDescription implements
               .build();
       final Path outputDirectory =
           BuildTargets.getGenPath(params.getProjectFilesystem(), unzipXctoolTarget, "%s/unzipped");
-      if (!resolver.getRuleOptional(unzipXctoolTarget).isPresent()) {
-        BuildRuleParams unzipXctoolParams =
-            params
-                .withBuildTarget(unzipXctoolTarget)
-                .copyReplacingDeclaredAndExtraDeps(
-                    Suppliers.ofInstance(ImmutableSortedSet.of(xctoolZipBuildRule)),
-                    Suppliers.ofInstance(ImmutableSortedSet.of()));
-        resolver.addToIndex(
-            new AbstractBuildRule(unzipXctoolParams) {
-              @Override
-              public ImmutableList<Step> getBuildSteps(
-                  BuildContext context,
-                  BuildableContext buildableContext) {
-                buildableContext.recordArtifact(outputDirectory);
-                return new ImmutableList.Builder<Step>()
-                    .addAll(MakeCleanDirectoryStep.of(getProjectFilesystem(), outputDirectory))
-                    .add(new UnzipStep(
-                        getProjectFilesystem(),
-                        context.getSourcePathResolver().getAbsolutePath(
-                            Preconditions.checkNotNull(xctoolZipBuildRule.getSourcePathToOutput())),
-                        outputDirectory))
-                    .build();
-              }
-              @Override
-              public SourcePath getSourcePathToOutput() {
-                return new ExplicitBuildTargetSourcePath(getBuildTarget(), outputDirectory);
-              }
-            });
-      }
+      resolver.computeIfAbsent(
+          unzipXctoolTarget,
+          target -> new AbstractBuildRule(
+              params
+                  .withBuildTarget(target)
+                  .copyReplacingDeclaredAndExtraDeps(
+                      Suppliers.ofInstance(ImmutableSortedSet.of(xctoolZipBuildRule)),
+                      Suppliers.ofInstance(ImmutableSortedSet.of()))) {
+            @Override
+            public ImmutableList<Step> getBuildSteps(
+                BuildContext context,
+                BuildableContext buildableContext) {
+              buildableContext.recordArtifact(outputDirectory);
+              return new ImmutableList.Builder<Step>()
+                  .addAll(MakeCleanDirectoryStep.of(getProjectFilesystem(), outputDirectory))
+                  .add(new UnzipStep(
+                      getProjectFilesystem(),
+                      context.getSourcePathResolver().getAbsolutePath(
+                          Preconditions.checkNotNull(xctoolZipBuildRule.getSourcePathToOutput())),
+                      outputDirectory))
+                  .build();
+            }
+            @Override
+            public SourcePath getSourcePathToOutput() {
+              return new ExplicitBuildTargetSourcePath(getBuildTarget(), outputDirectory);
+            }
+          });
       return Optional.of(
           new ExplicitBuildTargetSourcePath(
               unzipXctoolTarget,
@@ -130,32 +130,31 @@ public class MultiarchFileInfos {
       BuildRuleResolver resolver,
       MultiarchFileInfo info,
       ImmutableSortedSet<BuildRule> thinRules) {
-    Optional<BuildRule> existingRule = resolver.getRuleOptional(info.getFatTarget());
-    if (existingRule.isPresent()) {
-      return existingRule.get();
-    }
-
-    for (BuildRule rule : thinRules) {
-      if (rule.getSourcePathToOutput() == null) {
-        throw new HumanReadableException("%s: no output so it cannot be a multiarch input", rule);
-      }
-    }
-
-    ImmutableSortedSet<SourcePath> inputs = FluentIterable
-        .from(thinRules)
-        .transform(BuildRule::getSourcePathToOutput)
-        .toSortedSet(Ordering.natural());
-    SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(resolver);
-    MultiarchFile multiarchFile = new MultiarchFile(
-        params.copyReplacingDeclaredAndExtraDeps(
-            Suppliers.ofInstance(ImmutableSortedSet.of()),
-            Suppliers.ofInstance(thinRules)),
-        ruleFinder,
-        info.getRepresentativePlatform().getLipo(),
-        inputs,
-        BuildTargets.getGenPath(params.getProjectFilesystem(), params.getBuildTarget(), "%s"));
-    resolver.addToIndex(multiarchFile);
-    return multiarchFile;
+    return resolver.computeIfAbsent(
+        info.getFatTarget(),
+        fatTarget -> {
+          for (BuildRule rule : thinRules) {
+            if (rule.getSourcePathToOutput() == null) {
+              throw new HumanReadableException(
+                  "%s: no output so it cannot be a multiarch input",
+                  rule);
+            }
+          }
+
+          ImmutableSortedSet<SourcePath> inputs = FluentIterable
+              .from(thinRules)
+              .transform(BuildRule::getSourcePathToOutput)
+              .toSortedSet(Ordering.natural());
+          SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(resolver);
+          return new MultiarchFile(
+              params.copyReplacingDeclaredAndExtraDeps(
+                  Suppliers.ofInstance(ImmutableSortedSet.of()),
+                  Suppliers.ofInstance(thinRules)),
+              ruleFinder,
+              info.getRepresentativePlatform().getLipo(),
+              inputs,
+              BuildTargets.getGenPath(params.getProjectFilesystem(), fatTarget, "%s"));
+        });
   }
 
   private static final ImmutableSet<Flavor> FORBIDDEN_BUILD_ACTIONS =
@@ -24,13 +24,15 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.HttpService;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -47,7 +49,7 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
   private final boolean doStore;
   protected final ProjectFilesystem projectFilesystem;
   private final BuckEventBus buckEventBus;
-  private final ListeningExecutorService httpWriteExecutorService;
+  private final ArtifactUploadScheduler uploadScheduler;
   private final String errorTextTemplate;
   private final Optional<Long> maxStoreSize;
 
@@ -62,7 +64,9 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
     this.doStore = args.getDoStore();
     this.projectFilesystem = args.getProjectFilesystem();
     this.buckEventBus = args.getBuckEventBus();
-    this.httpWriteExecutorService = args.getHttpWriteExecutorService();
+    this.uploadScheduler = new ArtifactUploadScheduler(
+        args.getHttpWriteExecutorService(),
+        args.getMaxStoreQueueSizeBytes());
     this.errorTextTemplate = args.getErrorTextTemplate();
     this.maxStoreSize = args.getMaxStoreSizeBytes();
   }
@@ -72,6 +76,71 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       LazyPath output,
       final HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException;
 
+  /**
+   * Fetches an artifact and passes its payload to {@code consumer}. Caches that can stream
+   * payloads override this; the default implementation fetches the payload to a temporary file
+   * with {@link #fetchImpl} first.
+   */
+  protected CacheResult fetchStreamingImpl(
+      RuleKey ruleKey,
+      ArtifactPayloadConsumer consumer,
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+    projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
+    Path tmp = projectFilesystem.createTempFile(
+        projectFilesystem.getBuckPaths().getScratchDir(),
+        "buckcache_artifact",
+        ".tmp");
+    try {
+      CacheResult result = fetchImpl(ruleKey, LazyPath.ofInstance(tmp), eventBuilder);
+      if (result.getType() == CacheResultType.HIT) {
+        try (InputStream payload = projectFilesystem.newFileInputStream(tmp)) {
+          consumer.consume(payload);
+        }
+      }
+      return result;
+    } finally {
+      projectFilesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /**
+   * Implements {@link #fetchImpl} on top of {@link #fetchStreamingImpl}, for caches that override
+   * the latter.
+   */
+  protected final CacheResult fetchToFile(
+      RuleKey ruleKey,
+      LazyPath output,
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+    FileArtifactPayloadConsumer consumer =
+        new FileArtifactPayloadConsumer(projectFilesystem, output);
+    try {
+      return consumer.complete(fetchStreamingImpl(ruleKey, consumer, eventBuilder));
+    } finally {
+      consumer.cleanUp();
+    }
+  }
+
+  /**
+   * Fetches all the given artifacts, in a single request if the cache supports it. Only called with
+   * more than one artifact, and only if {@link #isMultiFetchSupported()} returns {@code true}.
+   */
+  protected ImmutableMap<RuleKey, CacheResult> multiFetchImpl(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      ImmutableMap<RuleKey, HttpArtifactCacheEvent.Finished.Builder> eventBuilders)
+      throws IOException {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      results.put(
+          entry.getKey(),
+          fetchImpl(entry.getKey(), entry.getValue(), eventBuilders.get(entry.getKey())));
+    }
+    return results.build();
+  }
+
+  protected boolean isMultiFetchSupported() {
+    return false;
+  }
+
   protected abstract void storeImpl(
       ArtifactInfo info,
       final Path file,
@@ -80,6 +149,19 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
 
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    return fetchWithEvents(
+        ruleKey,
+        eventBuilder -> fetchImpl(ruleKey, output, eventBuilder));
+  }
+
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactPayloadConsumer consumer) {
+    return fetchWithEvents(
+        ruleKey,
+        eventBuilder -> fetchStreamingImpl(ruleKey, consumer, eventBuilder));
+  }
+
+  private CacheResult fetchWithEvents(RuleKey ruleKey, FetchFunction fetchFunction) {
     HttpArtifactCacheEvent.Started startedEvent = HttpArtifactCacheEvent.newFetchStartedEvent(
         ruleKey);
     buckEventBus.post(startedEvent);
@@ -89,7 +171,7 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
         .setRequestedRuleKey(ruleKey);
 
     try {
-      CacheResult result = fetchImpl(ruleKey, output, eventBuilder);
+      CacheResult result = fetchFunction.fetch(eventBuilder);
       eventBuilder.getFetchBuilder().setFetchResult(result);
       buckEventBus.post(eventBuilder.build());
       return result;
@@ -106,6 +188,53 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
     }
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    if (outputs.size() <= 1 || !isMultiFetchSupported()) {
+      return ArtifactCache.super.multiFetch(outputs);
+    }
+
+    ImmutableMap.Builder<RuleKey, HttpArtifactCacheEvent.Finished.Builder> eventBuilders =
+        ImmutableMap.builder();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      HttpArtifactCacheEvent.Started startedEvent =
+          HttpArtifactCacheEvent.newFetchStartedEvent(ruleKey);
+      buckEventBus.post(startedEvent);
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder =
+          HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent);
+      eventBuilder.getFetchBuilder()
+          .setRequestedRuleKey(ruleKey);
+      eventBuilders.put(ruleKey, eventBuilder);
+    }
+    ImmutableMap<RuleKey, HttpArtifactCacheEvent.Finished.Builder> builders =
+        eventBuilders.build();
+
+    ImmutableMap<RuleKey, CacheResult> results;
+    String errorMessage = null;
+    try {
+      results = multiFetchImpl(outputs, builders);
+    } catch (IOException e) {
+      errorMessage = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+      reportFailure(e, "multiFetch(%s): %s", outputs.keySet(), errorMessage);
+      ImmutableMap.Builder<RuleKey, CacheResult> errors = ImmutableMap.builder();
+      for (RuleKey ruleKey : outputs.keySet()) {
+        errors.put(ruleKey, CacheResult.error(name, errorMessage));
+      }
+      results = errors.build();
+    }
+
+    for (Map.Entry<RuleKey, HttpArtifactCacheEvent.Finished.Builder> entry :
+        builders.entrySet()) {
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder = entry.getValue();
+      eventBuilder.getFetchBuilder().setFetchResult(results.get(entry.getKey()));
+      if (errorMessage != null) {
+        eventBuilder.getFetchBuilder().setErrorMessage(errorMessage);
+      }
+      buckEventBus.post(eventBuilder.build());
+    }
+    return results;
+  }
+
   @Override
   public ListenableFuture<Void> store(
       final ArtifactInfo info,
@@ -127,56 +256,98 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
+    final long artifactSizeBytes;
+    try {
+      artifactSizeBytes = projectFilesystem.getFileSize(tmp);
+    } catch (IOException e) {
+      reportFailure(
+          e,
+          "store(%s): %s: %s",
+          info.getRuleKeys(),
+          e.getClass().getName(),
+          e.getMessage());
+      HttpArtifactCacheEvent.Finished.Builder finishedEventBuilder =
+          postStoreStartedEvent(scheduled, info);
+      finishedEventBuilder
+          .getStoreBuilder()
+          .setWasStoreSuccessful(false)
+          .setErrorMessage(e.toString());
+      buckEventBus.post(finishedEventBuilder.build());
+      deleteTemporaryArtifact(tmp);
+      return Futures.immediateFuture(null);
+    }
+
     // HTTP Store operations are asynchronous.
-    return httpWriteExecutorService.submit(
-        () -> {
-          HttpArtifactCacheEvent.Started startedEvent =
-              HttpArtifactCacheEvent.newStoreStartedEvent(scheduled);
-          buckEventBus.post(startedEvent);
-          HttpArtifactCacheEvent.Finished.Builder finishedEventBuilder =
-              HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent);
-          finishedEventBuilder
-              .getStoreBuilder()
-              .setRuleKeys(info.getRuleKeys());
-
-          try {
-
-            long artifactSizeBytes = projectFilesystem.getFileSize(tmp);
-            finishedEventBuilder.getStoreBuilder()
-                .setArtifactSizeBytes(artifactSizeBytes)
-                .setRuleKeys(info.getRuleKeys());
-            if (!isArtefactTooBigToBeStored(artifactSizeBytes, maxStoreSize)) {
-              storeImpl(info, tmp, finishedEventBuilder);
-            } else {
-              LOG.info(
-                  "Artifact too big so not storing it in the distributed cache. " +
-                      "file=[%s] buildTarget=[%s]",
-                  tmp,
-                  info.getBuildTarget());
+    return uploadScheduler.schedule(
+        artifactSizeBytes,
+        new ArtifactUploadScheduler.Upload() {
+          @Override
+          public void run() {
+            HttpArtifactCacheEvent.Finished.Builder finishedEventBuilder =
+                postStoreStartedEvent(scheduled, info);
+            finishedEventBuilder.getStoreBuilder().setArtifactSizeBytes(artifactSizeBytes);
+            try {
+              if (!isArtefactTooBigToBeStored(artifactSizeBytes, maxStoreSize)) {
+                storeImpl(info, tmp, finishedEventBuilder);
+              } else {
+                LOG.info(
+                    "Artifact too big so not storing it in the distributed cache. " +
+                        "file=[%s] buildTarget=[%s]",
+                    tmp,
+                    info.getBuildTarget());
+              }
+              buckEventBus.post(finishedEventBuilder.build());
+
+            } catch (IOException e) {
+              reportFailure(
+                  e,
+                  "store(%s): %s: %s",
+                  info.getRuleKeys(),
+                  e.getClass().getName(),
+                  e.getMessage());
+              finishedEventBuilder
+                  .getStoreBuilder()
+                  .setWasStoreSuccessful(false)
+                  .setErrorMessage(e.toString());
+              buckEventBus.post(finishedEventBuilder.build());
             }
-            buckEventBus.post(finishedEventBuilder.build());
+            deleteTemporaryArtifact(tmp);
+          }
 
-          } catch (IOException e) {
-            reportFailure(
-                e,
-                "store(%s): %s: %s",
-                info.getRuleKeys(),
-                e.getClass().getName(),
-                e.getMessage());
+          @Override
+          public void drop() {
+            HttpArtifactCacheEvent.Finished.Builder finishedEventBuilder =
+                postStoreStartedEvent(scheduled, info);
             finishedEventBuilder
                 .getStoreBuilder()
+                .setArtifactSizeBytes(artifactSizeBytes)
                 .setWasStoreSuccessful(false)
-                .setErrorMessage(e.toString());
+                .setWasStoreDropped(true)
+                .setErrorMessage("Dropped because too many bytes were waiting to be uploaded.");
             buckEventBus.post(finishedEventBuilder.build());
+            deleteTemporaryArtifact(tmp);
           }
-          try {
-            projectFilesystem.deleteFileAtPathIfExists(tmp);
-          } catch (IOException e) {
-            LOG.warn(e, "Failed to delete file %s", tmp);
-          }
-        },
-        /* result */ null
-    );
+        });
+  }
+
+  private HttpArtifactCacheEvent.Finished.Builder postStoreStartedEvent(
+      HttpArtifactCacheEvent.Scheduled scheduled,
+      ArtifactInfo info) {
+    HttpArtifactCacheEvent.Started startedEvent =
+        HttpArtifactCacheEvent.newStoreStartedEvent(scheduled);
+    buckEventBus.post(startedEvent);
+    HttpArtifactCacheEvent.Finished.Builder finishedEventBuilder =
+        HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent);
+    finishedEventBuilder.getStoreBuilder().setRuleKeys(info.getRuleKeys());
+    return finishedEventBuilder;
+  }
+
+  private void deleteTemporaryArtifact(Path tmp) {
+    try {
+      projectFilesystem.deleteFileAtPathIfExists(tmp);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to delete file %s", tmp);
+    }
   }
 
   @Override
@@ -237,4 +408,8 @@ public abstract class AbstractNetworkCache implements ArtifactCache {
       Optional<Long> maxStoreSize) {
     return maxStoreSize.isPresent() && artifactSizeBytes > maxStoreSize.get();
   }
+
+  private interface FetchFunction {
+    CacheResult fetch(HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException;
+  }
 }
@@ -40,6 +40,7 @@ interface AbstractNetworkCacheArgs {
   ListeningExecutorService getHttpWriteExecutorService();
   String getErrorTextTemplate();
   Optional<Long> getMaxStoreSizeBytes();
+  Optional<Long> getMaxStoreQueueSizeBytes();
   Optional<String> getThriftEndpointPath();
   boolean distributedBuildModeEnabled();
 }
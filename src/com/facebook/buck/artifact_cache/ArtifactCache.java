@@ -19,8 +19,16 @@ package com.facebook.buck.artifact_cache;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
 public interface ArtifactCache extends AutoCloseable {
   /**
    * Fetch a cached artifact, keyed by ruleKey, save the artifact to path specified by output, and
@@ -34,6 +42,60 @@ public interface ArtifactCache extends AutoCloseable {
    */
   CacheResult fetch(RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Fetch a cached artifact, keyed by ruleKey, and pass its payload to {@code consumer} instead of
+   * saving it to a file. Caches that can, stream the payload to the consumer while it is being
+   * downloaded; the default implementation fetches it to a temporary file first.
+   *
+   * @return the result of the fetch. The consumer is only called for hits.
+   */
+  default CacheResult fetchStreaming(RuleKey ruleKey, ArtifactPayloadConsumer consumer) {
+    final AtomicReference<Path> tempFile = new AtomicReference<>();
+    LazyPath output = new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        tempFile.set(Files.createTempFile("buck_artifact_", ".tmp"));
+        return tempFile.get();
+      }
+    };
+    CacheResult result = fetch(ruleKey, output);
+    try {
+      if (result.getType() == CacheResultType.HIT) {
+        try (InputStream payload = Files.newInputStream(output.get())) {
+          consumer.consume(payload);
+        }
+      }
+    } catch (IOException e) {
+      result = CacheResult.error(
+          result.getCacheSource(),
+          String.format("%s: %s", e.getClass().getName(), e.getMessage()));
+    } finally {
+      if (tempFile.get() != null) {
+        try {
+          Files.deleteIfExists(tempFile.get());
+        } catch (IOException e) {
+          // Leaving a temporary file behind is harmless.
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Fetch several cached artifacts at once. This behaves like calling {@link #fetch} for every
+   * entry of {@code outputs}, but allows caches to look up all the artifacts in a single request.
+   *
+   * @param outputs the paths to store the artifacts to, keyed by the rule keys to fetch.
+   * @return the results of the fetches, keyed by rule key in the order of {@code outputs}.
+   */
+  default ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> output : outputs.entrySet()) {
+      results.put(output.getKey(), fetch(output.getKey(), output.getValue()));
+    }
+    return results.build();
+  }
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key.  If any internal errors occur, fail silently and continue
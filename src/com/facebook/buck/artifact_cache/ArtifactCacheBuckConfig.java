@@ -17,12 +17,14 @@
 package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.cli.BuckConfig;
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.slb.SlbBuckConfig;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.MoreCollectors;
 import com.facebook.buck.util.Optionals;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
 import com.facebook.buck.util.unit.SizeUnit;
+import com.facebook.buck.zip.ZipCompressionLevel;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
@@ -74,6 +76,7 @@ public class ArtifactCacheBuckConfig {
       HTTP_CACHE_ERROR_MESSAGE_NAME,
       HTTP_MAX_STORE_SIZE);
   private static final String HTTP_MAX_FETCH_RETRIES = "http_max_fetch_retries";
+  private static final String HTTP_MAX_STORE_QUEUE_SIZE = "http_max_store_queue_size";
 
   // List of names of cache-* sections that contain the fields above. This is used to emulate
   // dicts, essentially.
@@ -82,11 +85,13 @@ public class ArtifactCacheBuckConfig {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_DEDUP_FIELD = "dir_dedup";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS = ImmutableSet.of(
       DIR_FIELD,
       DIR_MODE_FIELD,
-      DIR_MAX_SIZE_FIELD);
+      DIR_MAX_SIZE_FIELD,
+      DIR_DEDUP_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.readwrite.name();
@@ -123,6 +128,9 @@ public class ArtifactCacheBuckConfig {
   private static final String SCHEDULE_TYPE = "schedule_type";
   private static final String DEFAULT_SCHEDULE_TYPE = "none";
 
+  private static final String ARTIFACT_COMPRESSION_LEVEL = "artifact_compression_level";
+  private static final String LOCAL_HASH_FUNCTION = "local_hash_function";
+
   public enum LoadBalancingType {
     SINGLE_SERVER,
     CLIENT_SLB,
@@ -165,6 +173,15 @@ public class ArtifactCacheBuckConfig {
             DEFAULT_HTTP_MAX_CONCURRENT_WRITES));
   }
 
+  /**
+   * @return the maximum number of bytes that may be waiting to be uploaded to each http cache.
+   *     Once reached, the largest pending uploads are dropped in favour of smaller ones.
+   */
+  public Optional<Long> getHttpMaxStoreQueueSize() {
+    return buckConfig.getValue(CACHE_SECTION_NAME, HTTP_MAX_STORE_QUEUE_SIZE)
+        .map(SizeUnit::parseBytes);
+  }
+
   public int getHttpWriterShutdownTimeout() {
     return Integer.valueOf(
         buckConfig.getValue(CACHE_SECTION_NAME, "http_writer_shutdown_timeout_seconds").orElse(
@@ -310,6 +327,48 @@ public class ArtifactCacheBuckConfig {
         DEFAULT_HTTP_THREAD_POOL_KEEP_ALIVE_DURATION_MILLIS);
   }
 
+  /**
+   * @return the deflate level, from 0 (stored, no compression) to 9, to compress artifacts with
+   *     before storing them in the cache.
+   */
+  public int getArtifactCompressionLevel() {
+    int level = buckConfig.getInteger(CACHE_SECTION_NAME, ARTIFACT_COMPRESSION_LEVEL)
+        .orElse(ZipCompressionLevel.DEFAULT_COMPRESSION_LEVEL.getValue());
+    if (level < ZipCompressionLevel.MIN_COMPRESSION_LEVEL.getValue() ||
+        level > ZipCompressionLevel.MAX_COMPRESSION_LEVEL.getValue()) {
+      throw new HumanReadableException(
+          "%s.%s must be between %d and %d, got %d",
+          CACHE_SECTION_NAME,
+          ARTIFACT_COMPRESSION_LEVEL,
+          ZipCompressionLevel.MIN_COMPRESSION_LEVEL.getValue(),
+          ZipCompressionLevel.MAX_COMPRESSION_LEVEL.getValue(),
+          level);
+    }
+    return level;
+  }
+
+  /**
+   * @return the hash function to hash files and compute rule keys with. Keys computed with anything
+   *     but SHA-1 never match those computed on other machines, so other hash functions may only be
+   *     configured while no cache is shared with other machines.
+   */
+  public HashFunctionType getLocalHashFunction() {
+    HashFunctionType hashFunction =
+        buckConfig.getEnum(CACHE_SECTION_NAME, LOCAL_HASH_FUNCTION, HashFunctionType.class)
+            .orElse(HashFunctionType.SHA1);
+    if (hashFunction != HashFunctionType.SHA1 &&
+        (getServingLocalCacheEnabled() ||
+            getArtifactCacheModes().stream().anyMatch(mode -> mode != ArtifactCacheMode.dir))) {
+      throw new HumanReadableException(
+          "%s.%s must be %s while artifacts are shared with other machines, " +
+              "as all machines must compute the same rule keys.",
+          CACHE_SECTION_NAME,
+          LOCAL_HASH_FUNCTION,
+          HashFunctionType.SHA1.name().toLowerCase());
+    }
+    return hashFunction;
+  }
+
   public boolean getTwoLevelCachingEnabled() {
     return buckConfig.getBooleanValue(
         CACHE_SECTION_NAME,
@@ -406,6 +465,7 @@ public class ArtifactCacheBuckConfig {
         .setCacheDir(pathToCacheDir)
         .setCacheReadMode(readMode)
         .setMaxSizeBytes(maxSizeBytes)
+        .setDeduplicationEnabled(buckConfig.getBooleanValue(section, DIR_DEDUP_FIELD, false))
         .build();
   }
 
@@ -513,6 +573,14 @@ public class ArtifactCacheBuckConfig {
     public abstract Path getCacheDir();
     public abstract Optional<Long> getMaxSizeBytes();
     public abstract CacheReadMode getCacheReadMode();
+
+    /**
+     * @return whether identical artifacts stored under different rule keys share a single copy.
+     */
+    @Value.Default
+    public boolean isDeduplicationEnabled() {
+      return false;
+    }
   }
 
   @Value.Immutable
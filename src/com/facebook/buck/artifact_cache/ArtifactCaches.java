@@ -334,7 +334,8 @@ public class ArtifactCaches implements ArtifactCacheFactory {
           projectFilesystem,
           cacheDir,
           dirCacheConfig.getCacheReadMode().isWritable(),
-          dirCacheConfig.getMaxSizeBytes());
+          dirCacheConfig.getMaxSizeBytes(),
+          dirCacheConfig.isDeduplicationEnabled());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -460,6 +461,7 @@ public class ArtifactCaches implements ArtifactCacheFactory {
             .setProjectFilesystem(projectFilesystem)
             .setBuckEventBus(buckEventBus)
             .setHttpWriteExecutorService(httpWriteExecutorService)
+            .setMaxStoreQueueSizeBytes(config.getHttpMaxStoreQueueSize())
             .setErrorTextTemplate(cacheDescription.getErrorMessageFormat())
             .setDistributedBuildModeEnabled(distributedBuildModeEnabled)
             .build());
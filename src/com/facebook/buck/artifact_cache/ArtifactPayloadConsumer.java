@@ -0,0 +1,35 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the payload of an artifact while it is being fetched from an {@link ArtifactCache}.
+ */
+@FunctionalInterface
+public interface ArtifactPayloadConsumer {
+  /**
+   * Reads the payload of a cache hit from {@code payload}, which must not be closed.
+   *
+   * <p>The payload may be consumed before the cache has verified its integrity. If the
+   * verification fails, the fetch returns a {@link CacheResultType#ERROR} and anything the
+   * consumer derived from the payload must be discarded.
+   */
+  void consume(InputStream payload) throws IOException;
+}
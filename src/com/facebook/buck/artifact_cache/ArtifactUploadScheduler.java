@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Runs artifact uploads on an executor while bounding the number of bytes waiting to be uploaded.
+ *
+ * <p>Pending uploads are started smallest first, so that many small artifacts are not held up
+ * behind a few large ones. When scheduling an upload would take the outstanding (pending and
+ * running) bytes over the budget, the largest pending uploads that are bigger than the new one are
+ * dropped to make room for it; if that is not enough, the new upload is dropped instead.
+ */
+class ArtifactUploadScheduler {
+
+  private static final Logger LOG = Logger.get(ArtifactUploadScheduler.class);
+
+  /** An upload waiting to be run. */
+  interface Upload {
+    void run();
+
+    /** Called instead of {@link #run()} when the upload is dropped to stay within budget. */
+    void drop();
+  }
+
+  private static final Comparator<PendingUpload> SMALLEST_FIRST =
+      Comparator.<PendingUpload>comparingLong(pending -> pending.sizeBytes)
+          .thenComparingLong(pending -> pending.sequenceNumber);
+
+  private final ListeningExecutorService executorService;
+  private final Optional<Long> maxOutstandingBytes;
+
+  @GuardedBy("this")
+  private final PriorityQueue<PendingUpload> pendingUploads =
+      new PriorityQueue<>(SMALLEST_FIRST);
+  @GuardedBy("this")
+  private long outstandingBytes = 0;
+  @GuardedBy("this")
+  private long nextSequenceNumber = 0;
+
+  ArtifactUploadScheduler(
+      ListeningExecutorService executorService,
+      Optional<Long> maxOutstandingBytes) {
+    this.executorService = executorService;
+    this.maxOutstandingBytes = maxOutstandingBytes;
+  }
+
+  /**
+   * Schedules {@code upload}, which will upload {@code sizeBytes} bytes.
+   *
+   * @return a future that completes once the upload has either run or been dropped.
+   */
+  ListenableFuture<Void> schedule(long sizeBytes, Upload upload) {
+    PendingUpload pending;
+    boolean accepted;
+    List<PendingUpload> dropped = new ArrayList<>();
+    synchronized (this) {
+      pending = new PendingUpload(sizeBytes, nextSequenceNumber++, upload);
+      accepted = makeRoomFor(sizeBytes, dropped);
+      if (accepted) {
+        pendingUploads.add(pending);
+        outstandingBytes += sizeBytes;
+      } else {
+        dropped.add(pending);
+      }
+    }
+
+    for (PendingUpload droppedUpload : dropped) {
+      LOG.info(
+          "Dropping upload of %d bytes to keep outstanding uploads within %d bytes.",
+          droppedUpload.sizeBytes,
+          maxOutstandingBytes.get());
+      droppedUpload.drop();
+    }
+
+    if (accepted) {
+      // Every scheduled upload submits one task, which runs whichever pending upload is smallest
+      // at the time it starts. Tasks that find the queue empty because of dropped uploads are
+      // no-ops.
+      executorService.submit(this::runNext);
+    }
+    return pending.future;
+  }
+
+  @VisibleForTesting
+  synchronized long getOutstandingBytes() {
+    return outstandingBytes;
+  }
+
+  /**
+   * Evicts pending uploads larger than {@code sizeBytes}, largest first, until {@code sizeBytes}
+   * more bytes fit in the budget.
+   *
+   * @return whether {@code sizeBytes} more bytes fit in the budget.
+   */
+  @GuardedBy("this")
+  private boolean makeRoomFor(long sizeBytes, List<PendingUpload> dropped) {
+    if (!maxOutstandingBytes.isPresent()) {
+      return true;
+    }
+    long budget = maxOutstandingBytes.get();
+    if (sizeBytes > budget) {
+      return false;
+    }
+    if (outstandingBytes + sizeBytes <= budget) {
+      return true;
+    }
+
+    // Only evict if that actually makes enough room, otherwise drop the new upload.
+    List<PendingUpload> largestFirst =
+        Ordering.from(SMALLEST_FIRST).reverse().sortedCopy(pendingUploads);
+    long reclaimable = 0;
+    int evictions = 0;
+    for (PendingUpload candidate : largestFirst) {
+      if (candidate.sizeBytes <= sizeBytes ||
+          outstandingBytes - reclaimable + sizeBytes <= budget) {
+        break;
+      }
+      reclaimable += candidate.sizeBytes;
+      evictions++;
+    }
+    if (outstandingBytes - reclaimable + sizeBytes > budget) {
+      return false;
+    }
+
+    for (PendingUpload evicted : largestFirst.subList(0, evictions)) {
+      pendingUploads.remove(evicted);
+      outstandingBytes -= evicted.sizeBytes;
+      dropped.add(evicted);
+    }
+    return true;
+  }
+
+  private void runNext() {
+    PendingUpload next;
+    synchronized (this) {
+      next = pendingUploads.poll();
+    }
+    if (next == null) {
+      return;
+    }
+    try {
+      next.run();
+    } finally {
+      synchronized (this) {
+        outstandingBytes -= next.sizeBytes;
+      }
+    }
+  }
+
+  private static class PendingUpload {
+    private final long sizeBytes;
+    private final long sequenceNumber;
+    private final Upload upload;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    private PendingUpload(long sizeBytes, long sequenceNumber, Upload upload) {
+      this.sizeBytes = sizeBytes;
+      this.sequenceNumber = sequenceNumber;
+      this.upload = upload;
+    }
+
+    private void run() {
+      complete(upload::run);
+    }
+
+    private void drop() {
+      complete(upload::drop);
+    }
+
+    private void complete(Runnable action) {
+      try {
+        action.run();
+        future.set(null);
+      } catch (RuntimeException | Error e) {
+        future.setException(e);
+        throw e;
+      }
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.DirectoryCleaner;
 import com.facebook.buck.util.DirectoryCleanerArgs;
+import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ComparisonChain;
@@ -36,6 +37,8 @@ import com.google.common.util.concurrent.ListenableFuture;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystemException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -44,10 +47,15 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
+import javax.annotation.Nullable;
+
 public class DirArtifactCache implements ArtifactCache {
 
   private static final Logger LOG = Logger.get(DirArtifactCache.class);
@@ -57,14 +65,25 @@ public class DirArtifactCache implements ArtifactCache {
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String METADATA_EXTENSION = ".metadata";
+  private static final String BLOBS_FOLDER = "blobs";
 
   private final String name;
   private final ProjectFilesystem filesystem;
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final boolean doStore;
+  private final boolean deduplicate;
   private long bytesSinceLastDeleteOldFiles;
 
+  /**
+   * Tracks entry sizes and access order so that old entries can be evicted without walking the
+   * cache directory. Only used when the cache size is bounded, and loaded lazily.
+   */
+  @Nullable
+  private DirArtifactCacheIndex index;
+  private boolean indexUnavailable;
+
   public DirArtifactCache(
       String name,
       ProjectFilesystem filesystem,
@@ -72,11 +91,27 @@ public class DirArtifactCache implements ArtifactCache {
       boolean doStore,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(name, filesystem, cacheDir, doStore, maxCacheSizeBytes, /* deduplicate */ false);
+  }
+
+  /**
+   * @param deduplicate if true, artifacts are stored once per distinct content in a
+   *     content-addressed blob folder, and each rule key's artifact is a hard link to its blob.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      boolean deduplicate)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.doStore = doStore;
+    this.deduplicate = deduplicate;
     this.bytesSinceLastDeleteOldFiles = 0L;
 
     // Check first, as mkdirs will fail if the path is a symlink.
@@ -87,6 +122,32 @@ public class DirArtifactCache implements ArtifactCache {
 
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    return fetch(
+        ruleKey,
+        output,
+        artifactPath -> {
+          filesystem.copyFile(artifactPath, output.get());
+          return filesystem.getFileSize(output.get());
+        });
+  }
+
+  /**
+   * Streams the artifact straight out of the cache directory, without copying it first.
+   */
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactPayloadConsumer consumer) {
+    return fetch(
+        ruleKey,
+        "<stream>",
+        artifactPath -> {
+          try (InputStream payload = filesystem.newFileInputStream(artifactPath)) {
+            consumer.consume(payload);
+          }
+          return filesystem.getFileSize(artifactPath);
+        });
+  }
+
+  private CacheResult fetch(RuleKey ruleKey, Object output, ArtifactReader artifactReader) {
     CacheResult result;
     try {
       // First, build up the metadata from the metadata file.
@@ -94,7 +155,7 @@ public class DirArtifactCache implements ArtifactCache {
       try (DataInputStream in =
                new DataInputStream(
                    filesystem.newFileInputStream(
-                       getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
+                       getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))))) {
         int sz = in.readInt();
         for (int i = 0; i < sz; i++) {
           String key = in.readUTF();
@@ -105,10 +166,15 @@ public class DirArtifactCache implements ArtifactCache {
         }
       }
 
-      // Now copy the artifact out.
-      filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.empty()), output.get());
+      // Now read the artifact out.
+      long artifactSize = artifactReader.read(getPathForRuleKey(ruleKey, Optional.empty()));
+
+      result = CacheResult.hit(name, metadata.build(), artifactSize);
 
-      result = CacheResult.hit(name, metadata.build(), filesystem.getFileSize(output.get()));
+      Optional<DirArtifactCacheIndex> index = getIndex();
+      if (index.isPresent()) {
+        index.get().recordAccess(getIndexKeyForRuleKey(ruleKey));
+      }
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -139,9 +205,11 @@ public class DirArtifactCache implements ArtifactCache {
 
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
+      Optional<Sha1HashCode> contentHash = Optional.empty();
+      boolean deduplicateStore = shouldDeduplicate();
       for (RuleKey ruleKey : info.getRuleKeys()) {
         Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
-        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
           continue;
@@ -149,6 +217,26 @@ public class DirArtifactCache implements ArtifactCache {
 
         filesystem.mkdirs(getParentDirForRuleKey(ruleKey));
 
+        if (deduplicateStore) {
+          // Hash the artifact once for all rule keys, and before any locks are taken.
+          if (!contentHash.isPresent()) {
+            contentHash = Optional.of(filesystem.computeSha1(output.getPath()));
+          }
+          storeMetadata(info, metadataPath);
+          storeDeduplicatedArtifact(
+              ruleKey,
+              borrowedAndStoredArtifactPath.orElse(output.getPath()),
+              output.canBorrow() && !borrowedAndStoredArtifactPath.isPresent(),
+              contentHash.get(),
+              filesystem.getFileSize(metadataPath));
+          if (output.canBorrow() && !borrowedAndStoredArtifactPath.isPresent()) {
+            // The output may have been moved into the blob, so link the remaining rule keys to
+            // the blob through this one.
+            borrowedAndStoredArtifactPath = Optional.of(artifactPath);
+          }
+          continue;
+        }
+
         if (!output.canBorrow()) {
           storeArtifactOutput(output.getPath(), artifactPath);
         } else {
@@ -164,22 +252,13 @@ public class DirArtifactCache implements ArtifactCache {
         }
         bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
 
-        // Now, write the meta data artifact.
-        Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
-        try {
-          try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
-            out.writeInt(info.getMetadata().size());
-            for (Map.Entry<String, String> ent : info.getMetadata().entrySet()) {
-              out.writeUTF(ent.getKey());
-              byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
-              out.writeInt(val.length);
-              out.write(val);
-            }
-          }
-          filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
-          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
-        } finally {
-          filesystem.deleteFileAtPathIfExists(tmp);
+        storeMetadata(info, metadataPath);
+
+        Optional<DirArtifactCacheIndex> index = getIndex();
+        if (index.isPresent()) {
+          index.get().recordStore(
+              getIndexKeyForRuleKey(ruleKey),
+              filesystem.getFileSize(artifactPath) + filesystem.getFileSize(metadataPath));
         }
       }
 
@@ -191,7 +270,11 @@ public class DirArtifactCache implements ArtifactCache {
           output);
     }
 
-    if (maxCacheSizeBytes.isPresent() &&
+    if (getIndex().isPresent()) {
+      // Evicting through the index only touches the evicted entries, so it is cheap enough to
+      // check after every store.
+      deleteOldFiles();
+    } else if (maxCacheSizeBytes.isPresent() &&
         bytesSinceLastDeleteOldFiles >
             (maxCacheSizeBytes.get() * STORED_TO_MAX_BYTES_RATIO_TRIM_TRIGGER)) {
       bytesSinceLastDeleteOldFiles = 0L;
@@ -213,6 +296,92 @@ public class DirArtifactCache implements ArtifactCache {
     return tmp;
   }
 
+  private void storeMetadata(ArtifactInfo info, Path metadataPath) throws IOException {
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
+    try {
+      try (DataOutputStream out = new DataOutputStream(filesystem.newFileOutputStream(tmp))) {
+        out.writeInt(info.getMetadata().size());
+        for (Map.Entry<String, String> ent : info.getMetadata().entrySet()) {
+          out.writeUTF(ent.getKey());
+          byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
+          out.writeInt(val.length);
+          out.write(val);
+        }
+      }
+      filesystem.move(tmp, metadataPath, StandardCopyOption.REPLACE_EXISTING);
+      bytesSinceLastDeleteOldFiles += filesystem.getFileSize(metadataPath);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  /**
+   * Blobs are deleted once the index no longer references them, so a bounded cache can only
+   * deduplicate through its index. Unbounded caches never delete blobs.
+   */
+  private boolean shouldDeduplicate() {
+    return deduplicate && (!maxCacheSizeBytes.isPresent() || getIndex().isPresent());
+  }
+
+  /**
+   * Loads the index on first use, building it from a single walk over the cache directory if no
+   * journal exists yet. If the index cannot be loaded, eviction falls back to walking the cache
+   * directory every time.
+   */
+  private synchronized Optional<DirArtifactCacheIndex> getIndex() {
+    if (index != null || indexUnavailable) {
+      return Optional.ofNullable(index);
+    }
+    if (!maxCacheSizeBytes.isPresent() || !doStore) {
+      indexUnavailable = true;
+      return Optional.empty();
+    }
+    Path journalPath =
+        filesystem.resolve(cacheDir).resolve(DirArtifactCacheIndex.JOURNAL_FILE_NAME);
+    try {
+      if (Files.exists(journalPath)) {
+        index = DirArtifactCacheIndex.load(journalPath);
+      } else {
+        LOG.info("Building index for dir cache [%s].", cacheDir);
+        index = DirArtifactCacheIndex.create(journalPath, getEntriesFromCacheDir());
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to load the index for dir cache [%s].", cacheDir);
+      indexUnavailable = true;
+    }
+    return Optional.ofNullable(index);
+  }
+
+  /**
+   * @return the sizes of all entries currently in the cache directory, keyed by the relative path
+   *     of the artifact and ordered by their last access time.
+   */
+  private Map<String, Long> getEntriesFromCacheDir() throws IOException {
+    Path cacheRoot = filesystem.resolve(cacheDir);
+    Map<String, Long> sizes = new HashMap<>();
+    Map<String, Long> lastAccessMillis = new HashMap<>();
+    for (Path file : getAllFilesInCache()) {
+      String key = cacheRoot.relativize(file).toString();
+      if (key.endsWith(METADATA_EXTENSION)) {
+        key = key.substring(0, key.length() - METADATA_EXTENSION.length());
+      }
+      BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      sizes.merge(key, attributes.size(), Long::sum);
+      lastAccessMillis.merge(key, attributes.lastAccessTime().toMillis(), Math::max);
+    }
+    List<String> keys = new ArrayList<>(sizes.keySet());
+    keys.sort(Comparator.comparing(lastAccessMillis::get));
+    LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+    for (String key : keys) {
+      entries.put(key, sizes.get(key));
+    }
+    return entries;
+  }
+
+  private String getIndexKeyForRuleKey(RuleKey ruleKey) {
+    return cacheDir.relativize(getPathForRuleKey(ruleKey, Optional.empty())).toString();
+  }
+
   private ImmutableList<String> subfolders(RuleKey ruleKey) {
     if (ruleKey.toString().length() < 4) {
       return ImmutableList.of();
@@ -237,6 +406,103 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
+  @VisibleForTesting
+  Path getPathForBlob(Sha1HashCode hash) {
+    String hashString = hash.getHash();
+    return cacheDir
+        .resolve(BLOBS_FOLDER)
+        .resolve(hashString.substring(0, 2))
+        .resolve(hashString.substring(2, 4))
+        .resolve(hashString);
+  }
+
+  /**
+   * Stores the artifact of {@code ruleKey} as a hard link to the content-addressed blob holding the
+   * contents of {@code source}, creating the blob if it does not exist yet. Any copying happens
+   * before the index is locked, which only guards checking for the blob and linking to it.
+   *
+   * @param canMoveSource whether {@code source} may be moved into the blob instead of copied.
+   */
+  private void storeDeduplicatedArtifact(
+      RuleKey ruleKey,
+      Path source,
+      boolean canMoveSource,
+      Sha1HashCode contentHash,
+      long metadataSizeBytes) throws IOException {
+    Path artifactPath = getPathForRuleKey(ruleKey, Optional.empty());
+    Path blobPath = getPathForBlob(contentHash);
+    long blobSizeBytes = filesystem.getFileSize(source);
+    Optional<Path> preparedBlob = Optional.empty();
+    if (!filesystem.exists(blobPath)) {
+      preparedBlob = Optional.of(
+          filesystem.createTempFile(getPreparedTempFolder(), "blob", TMP_EXTENSION));
+      if (canMoveSource) {
+        filesystem.move(source, preparedBlob.get(), StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        filesystem.copyFile(source, preparedBlob.get());
+      }
+    } else {
+      LOG.verbose("Artifact %s deduplicated against %s.", source, blobPath);
+    }
+
+    try {
+      Optional<Path> blobContents = preparedBlob;
+      DirArtifactCacheIndex.BlobLinker linker = () -> {
+        if (!filesystem.exists(blobPath)) {
+          filesystem.mkdirs(blobPath.getParent());
+          if (blobContents.isPresent()) {
+            filesystem.move(blobContents.get(), blobPath, StandardCopyOption.REPLACE_EXISTING);
+          } else {
+            // The blob was deleted after it was checked for.
+            storeArtifactOutput(source, blobPath);
+          }
+        }
+        return linkArtifactToBlob(blobPath, artifactPath);
+      };
+
+      Optional<DirArtifactCacheIndex> index = getIndex();
+      if (index.isPresent()) {
+        index.get().recordLinkedStore(
+            getIndexKeyForRuleKey(ruleKey),
+            metadataSizeBytes,
+            cacheDir.relativize(blobPath).toString(),
+            blobSizeBytes,
+            linker);
+      } else {
+        linker.link();
+      }
+    } finally {
+      if (preparedBlob.isPresent()) {
+        filesystem.deleteFileAtPathIfExists(preparedBlob.get());
+      }
+    }
+  }
+
+  /**
+   * @return whether the artifact was linked to the blob, rather than stored as a copy of it.
+   */
+  private boolean linkArtifactToBlob(Path blobPath, Path artifactPath) throws IOException {
+    // Create the link under a temporary name and move it into place, so that a partially written
+    // entry is never visible under the rule key's path.
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "link", TMP_EXTENSION);
+    try {
+      filesystem.deleteFileAtPathIfExists(tmp);
+      boolean linked = true;
+      try {
+        Files.createLink(filesystem.resolve(tmp), filesystem.resolve(blobPath));
+      } catch (UnsupportedOperationException | FileSystemException e) {
+        // Hard links are not supported here (or the link limit was reached), so store a copy.
+        LOG.debug(e, "Failed to link %s to %s, copying it instead.", artifactPath, blobPath);
+        filesystem.copyFile(blobPath, tmp);
+        linked = false;
+      }
+      filesystem.move(tmp, artifactPath, StandardCopyOption.REPLACE_EXISTING);
+      return linked;
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
   private void storeArtifactOutput(Path output, Path artifactPath) throws IOException {
     // Write to a temporary file and move the file to its final location atomically to protect
     // against partial artifacts (whether due to buck interruption or filesystem failure) posing
@@ -265,6 +531,16 @@ public class DirArtifactCache implements ArtifactCache {
     if (bytesSinceLastDeleteOldFiles > 0) {
       deleteOldFiles();
     }
+    synchronized (this) {
+      if (index != null) {
+        try {
+          index.close();
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to close the index for dir cache [%s].", cacheDir);
+        }
+        index = null;
+      }
+    }
   }
 
   /**
@@ -277,6 +553,16 @@ public class DirArtifactCache implements ArtifactCache {
     }
 
     Path cacheDirInFs = filesystem.resolve(cacheDir);
+    Optional<DirArtifactCacheIndex> index = getIndex();
+    if (index.isPresent()) {
+      try {
+        deleteOldFilesUsingIndex(index.get(), cacheDirInFs);
+        return;
+      } catch (IOException e) {
+        LOG.error(e, "Failed to evict entries of [%s] using its index.", cacheDirInFs);
+      }
+    }
+
     try {
       synchronized (this) {
         newDirectoryCleaner().clean(cacheDirInFs);
@@ -286,6 +572,24 @@ public class DirArtifactCache implements ArtifactCache {
     }
   }
 
+  private void deleteOldFilesUsingIndex(
+      DirArtifactCacheIndex index,
+      Path cacheDirInFs) throws IOException {
+    ImmutableList<String> evictedKeys = index.evict(
+        maxCacheSizeBytes.get(),
+        (long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO));
+    for (String key : evictedKeys) {
+      Path artifactPath = cacheDirInFs.resolve(key);
+      // Entries may already have been removed by another process sharing this cache.
+      Files.deleteIfExists(artifactPath);
+      Files.deleteIfExists(
+          artifactPath.resolveSibling(artifactPath.getFileName() + METADATA_EXTENSION));
+    }
+    if (!evictedKeys.isEmpty()) {
+      LOG.debug("Evicted %d entries from dir cache [%s].", evictedKeys.size(), cacheDirInFs);
+    }
+  }
+
   @VisibleForTesting
   List<Path> getAllFilesInCache() throws IOException {
     final List<Path> allFiles = new ArrayList<>();
@@ -302,6 +606,10 @@ public class DirArtifactCache implements ArtifactCache {
             if (dir.equals(getPathToTempFolder())) {
               return FileVisitResult.SKIP_SUBTREE;
             }
+            // blobs are only referenced through the rule key entries linked to them
+            if (dir.equals(filesystem.resolve(cacheDir).resolve(BLOBS_FOLDER))) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
             return super.preVisitDirectory(dir, attrs);
           }
 
@@ -309,6 +617,11 @@ public class DirArtifactCache implements ArtifactCache {
           public FileVisitResult visitFile(
               Path file,
               BasicFileAttributes attrs) throws IOException {
+            // The index journal and its lock are bookkeeping, not entries of the cache, so the
+            // directory cleaner must never delete them.
+            if (DirArtifactCacheIndex.isIndexFile(file)) {
+              return FileVisitResult.CONTINUE;
+            }
             allFiles.add(file);
             return super.visitFile(file, attrs);
           }
@@ -353,4 +666,13 @@ public class DirArtifactCache implements ArtifactCache {
   Path getCacheDir() {
     return cacheDir;
   }
+
+  private interface ArtifactReader {
+    /**
+     * Reads the artifact at {@code artifactPath}.
+     *
+     * @return the size of the artifact.
+     */
+    long read(Path artifactPath) throws IOException;
+  }
 }
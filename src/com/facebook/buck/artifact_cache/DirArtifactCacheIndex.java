@@ -0,0 +1,542 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * An append-only journal of the entries of a {@link DirArtifactCache}, used to evict the least
+ * recently used artifacts without walking the whole cache directory.
+ *
+ * <p>Each entry is keyed by the path of the artifact relative to the cache directory and records
+ * the combined size of the artifact and its metadata. Entries of deduplicated artifacts instead
+ * record the size of their metadata and the blob their artifact is linked to. Each blob is counted
+ * once towards the size of the cache, however many entries are linked to it, and is deleted once
+ * the last of them is removed. Stores, accesses and deletions are appended to the journal as
+ * single lines. The journal, not the in-memory state, is the source of truth:
+ * every operation first reads the records appended since the last one, including those of other
+ * Buck processes sharing the cache directory, so that each index sees their entries too.
+ *
+ * <p>Processes coordinate through a lock file next to the journal. Reads take it shared, while
+ * appends and compactions take it exclusively. Whenever the journal holds many more records than
+ * live entries, it is compacted by replacing it with one store record per entry, so replaying it
+ * stays proportional to the size of the cache. Other processes notice the replacement and reload.
+ */
+class DirArtifactCacheIndex implements Closeable {
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  static final String JOURNAL_FILE_NAME = "index.journal";
+
+  private static final String LOCK_FILE_SUFFIX = ".lock";
+  private static final String TMP_FILE_SUFFIX = ".tmp";
+
+  private static final String STORE = "S";
+  private static final String LINKED_STORE = "L";
+  private static final String ACCESS = "A";
+  private static final String DELETE = "D";
+  private static final char SEPARATOR = '\t';
+
+  // Compact the journal once it holds this many more records than live entries.
+  private static final int MIN_STALE_RECORDS_BEFORE_COMPACTION = 10000;
+
+  // File locks are held on behalf of the whole JVM, so indexes of the same journal in this process
+  // serialize on a shared monitor before taking them.
+  private static final ConcurrentMap<Path, Object> MONITORS = new ConcurrentHashMap<>();
+
+  private final Path journalPath;
+  private final Object monitor;
+  private final FileChannel lockChannel;
+
+  /** Entries, in access order (least recently used first). */
+  private final LinkedHashMap<String, Entry> entries = newEntriesMap();
+  /** Number of entries linked to each blob. Blobs without entries are absent. */
+  private final Map<String, Integer> blobReferences = new HashMap<>();
+  private long totalSizeBytes;
+
+  @Nullable
+  private FileChannel journal;
+  @Nullable
+  private Object journalFileKey;
+  /** Offset just past the last complete record of the journal that has been applied. */
+  private long readOffset;
+  /** Number of records in the journal up to {@link #readOffset}. */
+  private int journalRecords;
+  /** Whether the journal ends with a partial record left behind by a process that died. */
+  private boolean endsWithTornRecord;
+
+  private DirArtifactCacheIndex(Path journalPath) throws IOException {
+    this.journalPath = journalPath;
+    this.monitor = MONITORS.computeIfAbsent(
+        journalPath.toAbsolutePath().normalize(),
+        path -> new Object());
+    this.lockChannel = FileChannel.open(
+        journalPath.resolveSibling(journalPath.getFileName() + LOCK_FILE_SUFFIX),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * @return whether {@code file} belongs to the bookkeeping of the index rather than being an
+   *     entry of the cache.
+   */
+  static boolean isIndexFile(Path file) {
+    return file.getFileName().toString().startsWith(JOURNAL_FILE_NAME);
+  }
+
+  /**
+   * Loads the index from the journal at {@code journalPath}.
+   */
+  static DirArtifactCacheIndex load(Path journalPath) throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex(journalPath);
+    try {
+      synchronized (index.monitor) {
+        try (FileLock lock = index.lockJournal(/* shared */ false)) {
+          index.catchUp();
+          index.compactIfStale();
+        }
+      }
+    } catch (IOException e) {
+      index.close();
+      throw e;
+    }
+    return index;
+  }
+
+  /**
+   * Creates a new journal at {@code journalPath} holding {@code initialEntries}, which must be in
+   * access order (least recently used first). If another process created the journal in the
+   * meantime, that journal is loaded instead.
+   */
+  static DirArtifactCacheIndex create(
+      Path journalPath,
+      Map<String, Long> initialEntries) throws IOException {
+    DirArtifactCacheIndex index = new DirArtifactCacheIndex(journalPath);
+    try {
+      synchronized (index.monitor) {
+        try (FileLock lock = index.lockJournal(/* shared */ false)) {
+          if (Files.exists(journalPath) && Files.size(journalPath) > 0) {
+            index.catchUp();
+            index.compactIfStale();
+          } else {
+            for (Map.Entry<String, Long> entry : initialEntries.entrySet()) {
+              index.addEntry(entry.getKey(), new Entry(entry.getValue(), null, 0));
+            }
+            index.rewriteJournal();
+          }
+        }
+      }
+    } catch (IOException e) {
+      index.close();
+      throw e;
+    }
+    return index;
+  }
+
+  void recordStore(String key, long sizeBytes) throws IOException {
+    synchronized (monitor) {
+      try (FileLock lock = lockJournal(/* shared */ false)) {
+        catchUp();
+        Entry previous = entries.get(key);
+        append(formatStore(key, sizeBytes));
+        deleteBlobIfUnreferenced(previous);
+        compactIfStale();
+      }
+    }
+  }
+
+  /**
+   * Records a store of {@code key}, whose artifact is linked to {@code blob}, the path of a file
+   * relative to the cache directory. {@code linker} is run with the journal locked exclusively, so
+   * that no eviction can delete the blob until the store is recorded. It has to create the blob if
+   * it does not exist and link the artifact to it.
+   *
+   * @param sizeBytes the size of the metadata of the entry.
+   * @param blobSizeBytes the size of the blob.
+   */
+  void recordLinkedStore(
+      String key,
+      long sizeBytes,
+      String blob,
+      long blobSizeBytes,
+      BlobLinker linker) throws IOException {
+    synchronized (monitor) {
+      try (FileLock lock = lockJournal(/* shared */ false)) {
+        catchUp();
+        Entry previous = entries.get(key);
+        if (linker.link()) {
+          append(formatLinkedStore(key, new Entry(sizeBytes, blob, blobSizeBytes)));
+        } else {
+          // The artifact is a copy of the blob, so it does not keep the blob alive.
+          append(formatStore(key, sizeBytes + blobSizeBytes));
+          deleteBlobIfUnreferenced(blob);
+        }
+        deleteBlobIfUnreferenced(previous);
+        compactIfStale();
+      }
+    }
+  }
+
+  void recordAccess(String key) throws IOException {
+    synchronized (monitor) {
+      try (FileLock lock = lockJournal(/* shared */ false)) {
+        catchUp();
+        if (entries.containsKey(key)) {
+          append(ACCESS + SEPARATOR + key + '\n');
+          compactIfStale();
+        }
+      }
+    }
+  }
+
+  /**
+   * If the total size of all entries exceeds {@code maxSizeBytes}, removes the least recently used
+   * entries until it is at most {@code sizeAfterEvictionBytes}. Blobs that are no longer linked to
+   * by any entry are deleted.
+   *
+   * @return the keys of the removed entries, whose files should be deleted by the caller.
+   */
+  ImmutableList<String> evict(
+      long maxSizeBytes,
+      long sizeAfterEvictionBytes) throws IOException {
+    synchronized (monitor) {
+      try (FileLock lock = lockJournal(/* shared */ false)) {
+        catchUp();
+        if (totalSizeBytes <= maxSizeBytes) {
+          return ImmutableList.of();
+        }
+        ImmutableList.Builder<String> evicted = ImmutableList.builder();
+        List<Entry> evictedEntries = new ArrayList<>();
+        Map<String, Integer> releasedBlobReferences = new HashMap<>();
+        StringBuilder records = new StringBuilder();
+        long remainingSizeBytes = totalSizeBytes;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          if (remainingSizeBytes <= sizeAfterEvictionBytes) {
+            break;
+          }
+          Entry evictedEntry = entry.getValue();
+          remainingSizeBytes -= evictedEntry.sizeBytes;
+          if (evictedEntry.blob != null &&
+              releasedBlobReferences.merge(evictedEntry.blob, 1, Integer::sum).equals(
+                  blobReferences.get(evictedEntry.blob))) {
+            remainingSizeBytes -= evictedEntry.blobSizeBytes;
+          }
+          evicted.add(entry.getKey());
+          evictedEntries.add(evictedEntry);
+          records.append(DELETE).append(SEPARATOR).append(entry.getKey()).append('\n');
+        }
+        append(records.toString());
+        for (Entry evictedEntry : evictedEntries) {
+          deleteBlobIfUnreferenced(evictedEntry);
+        }
+        compactIfStale();
+        return evicted.build();
+      }
+    }
+  }
+
+  long getTotalSizeBytes() throws IOException {
+    synchronized (monitor) {
+      try (FileLock lock = lockJournal(/* shared */ true)) {
+        catchUp();
+        return totalSizeBytes;
+      }
+    }
+  }
+
+  @VisibleForTesting
+  ImmutableList<String> getKeysInAccessOrder() throws IOException {
+    synchronized (monitor) {
+      try (FileLock lock = lockJournal(/* shared */ true)) {
+        catchUp();
+        return ImmutableList.copyOf(entries.keySet());
+      }
+    }
+  }
+
+  @VisibleForTesting
+  int getJournalRecords() {
+    synchronized (monitor) {
+      return journalRecords;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (monitor) {
+      try {
+        if (journal != null) {
+          journal.close();
+          journal = null;
+        }
+      } finally {
+        lockChannel.close();
+      }
+    }
+  }
+
+  private FileLock lockJournal(boolean shared) throws IOException {
+    return lockChannel.lock(0, Long.MAX_VALUE, shared);
+  }
+
+  /**
+   * Applies the records appended to the journal since the last call, reloading it from scratch if
+   * it has been replaced by a compaction in another process. Must be called with the lock held.
+   */
+  private void catchUp() throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(journalPath, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      attributes = null;
+    }
+    if (attributes == null || !isCurrentJournal(attributes)) {
+      openJournal();
+      entries.clear();
+      blobReferences.clear();
+      totalSizeBytes = 0;
+      readOffset = 0;
+      journalRecords = 0;
+      endsWithTornRecord = false;
+    } else if (attributes.size() == readOffset) {
+      return;
+    }
+
+    try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.READ);
+         InputStream in = new BufferedInputStream(
+             Channels.newInputStream(channel.position(readOffset)))) {
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) != -1) {
+        if (b != '\n') {
+          record.write(b);
+          continue;
+        }
+        applyRecord(new String(record.toByteArray(), UTF_8));
+        readOffset += record.size() + 1;
+        journalRecords++;
+        record.reset();
+      }
+      // Appends happen with the lock held exclusively, so a partial record at the end of the
+      // journal can only come from a process that died while writing it.
+      endsWithTornRecord = record.size() > 0;
+    }
+  }
+
+  private boolean isCurrentJournal(BasicFileAttributes attributes) {
+    if (journal == null) {
+      return false;
+    }
+    if (journalFileKey == null) {
+      // Without file keys, only replacements with a shorter journal can be detected.
+      return attributes.size() >= readOffset;
+    }
+    return journalFileKey.equals(attributes.fileKey());
+  }
+
+  private void openJournal() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+    journal = FileChannel.open(
+        journalPath,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND,
+        StandardOpenOption.WRITE);
+    journalFileKey = Files.readAttributes(journalPath, BasicFileAttributes.class).fileKey();
+  }
+
+  /**
+   * Appends {@code records} as a single write and applies them. Must be called with the lock held
+   * exclusively, right after {@link #catchUp()}.
+   */
+  private void append(String records) throws IOException {
+    if (records.isEmpty() || journal == null) {
+      return;
+    }
+    ByteBuffer buffer = UTF_8.encode(endsWithTornRecord ? '\n' + records : records);
+    while (buffer.hasRemaining()) {
+      journal.write(buffer);
+    }
+    catchUp();
+  }
+
+  /**
+   * Must be called with the lock held exclusively, right after {@link #catchUp()}.
+   */
+  private void compactIfStale() throws IOException {
+    if (journalRecords > entries.size() * 2 + MIN_STALE_RECORDS_BEFORE_COMPACTION) {
+      LOG.debug(
+          "Compacting %s: %d records for %d entries.",
+          journalPath,
+          journalRecords,
+          entries.size());
+      rewriteJournal();
+    }
+  }
+
+  /**
+   * Replaces the journal with one holding a store record for each entry, in access order.
+   */
+  private void rewriteJournal() throws IOException {
+    Path tmp = journalPath.resolveSibling(journalPath.getFileName() + TMP_FILE_SUFFIX);
+    try (Writer writer = Files.newBufferedWriter(tmp, UTF_8)) {
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        writer.write(
+            entry.getValue().blob == null ?
+                formatStore(entry.getKey(), entry.getValue().sizeBytes) :
+                formatLinkedStore(entry.getKey(), entry.getValue()));
+      }
+    }
+    Files.move(tmp, journalPath, StandardCopyOption.REPLACE_EXISTING);
+    openJournal();
+    readOffset = Files.size(journalPath);
+    journalRecords = entries.size();
+    endsWithTornRecord = false;
+  }
+
+  /**
+   * Deletes {@code blob} if no entry is linked to it. Must be called with the lock held
+   * exclusively, right after {@link #catchUp()}.
+   */
+  private void deleteBlobIfUnreferenced(String blob) throws IOException {
+    if (!blobReferences.containsKey(blob)) {
+      // The blob may already have been deleted by the process that removed its last entry.
+      Files.deleteIfExists(journalPath.resolveSibling(blob));
+    }
+  }
+
+  private void deleteBlobIfUnreferenced(@Nullable Entry removedEntry) throws IOException {
+    if (removedEntry != null && removedEntry.blob != null) {
+      deleteBlobIfUnreferenced(removedEntry.blob);
+    }
+  }
+
+  private void applyRecord(String line) {
+    List<String> fields = Splitter.on(SEPARATOR).limit(5).splitToList(line);
+    try {
+      if (fields.size() == 3 && fields.get(0).equals(STORE)) {
+        removeEntry(fields.get(2));
+        addEntry(fields.get(2), new Entry(Long.parseLong(fields.get(1)), null, 0));
+      } else if (fields.size() == 5 && fields.get(0).equals(LINKED_STORE)) {
+        removeEntry(fields.get(4));
+        addEntry(
+            fields.get(4),
+            new Entry(Long.parseLong(fields.get(1)), fields.get(3), Long.parseLong(fields.get(2))));
+      } else if (fields.size() == 2 && fields.get(0).equals(ACCESS)) {
+        // Looking the key up moves it to the end of the access order.
+        entries.get(fields.get(1));
+      } else if (fields.size() == 2 && fields.get(0).equals(DELETE)) {
+        removeEntry(fields.get(1));
+      } else {
+        LOG.debug("Ignoring malformed journal record: %s", line);
+      }
+    } catch (NumberFormatException e) {
+      LOG.debug("Ignoring malformed journal record: %s", line);
+    }
+  }
+
+  private void addEntry(String key, Entry entry) {
+    entries.put(key, entry);
+    totalSizeBytes += entry.sizeBytes;
+    if (entry.blob != null && blobReferences.merge(entry.blob, 1, Integer::sum) == 1) {
+      totalSizeBytes += entry.blobSizeBytes;
+    }
+  }
+
+  private void removeEntry(String key) {
+    Entry entry = entries.remove(key);
+    if (entry == null) {
+      return;
+    }
+    totalSizeBytes -= entry.sizeBytes;
+    if (entry.blob != null &&
+        blobReferences.merge(entry.blob, -1, (count, delta) -> count == 1 ? null : count + delta) ==
+            null) {
+      totalSizeBytes -= entry.blobSizeBytes;
+    }
+  }
+
+  private static String formatStore(String key, long sizeBytes) {
+    return STORE + SEPARATOR + sizeBytes + SEPARATOR + key + '\n';
+  }
+
+  private static String formatLinkedStore(String key, Entry entry) {
+    return LINKED_STORE + SEPARATOR + entry.sizeBytes + SEPARATOR + entry.blobSizeBytes +
+        SEPARATOR + entry.blob + SEPARATOR + key + '\n';
+  }
+
+  private static LinkedHashMap<String, Entry> newEntriesMap() {
+    return new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+  }
+
+  /**
+   * Links the artifact of an entry to its blob, see {@link #recordLinkedStore}.
+   */
+  interface BlobLinker {
+    /**
+     * @return whether the artifact was linked to the blob, rather than stored as a copy of it.
+     */
+    boolean link() throws IOException;
+  }
+
+  private static class Entry {
+    /** Size of the files of the entry, not counting its blob. */
+    private final long sizeBytes;
+    @Nullable
+    private final String blob;
+    private final long blobSizeBytes;
+
+    private Entry(long sizeBytes, @Nullable String blob, long blobSizeBytes) {
+      this.sizeBytes = sizeBytes;
+      this.blob = blob;
+      this.blobSizeBytes = blobSizeBytes;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * Writes a fetched payload to a temporary file next to the requested output, which is only moved
+ * into place once the fetch has turned out to be a hit. This makes sure the output never holds a
+ * partial or corrupted download.
+ */
+class FileArtifactPayloadConsumer implements ArtifactPayloadConsumer {
+  private final ProjectFilesystem projectFilesystem;
+  private final LazyPath output;
+  private Optional<Path> tempFile = Optional.empty();
+
+  FileArtifactPayloadConsumer(ProjectFilesystem projectFilesystem, LazyPath output) {
+    this.projectFilesystem = projectFilesystem;
+    this.output = output;
+  }
+
+  @Override
+  public void consume(InputStream payload) throws IOException {
+    Path file = output.get();
+    projectFilesystem.createParentDirs(file);
+    Path temp = projectFilesystem.createTempFile(
+        file.getParent(),
+        file.getFileName().toString(),
+        ".tmp");
+    tempFile = Optional.of(temp);
+    try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
+      ByteStreams.copy(payload, tempFileOutputStream);
+    }
+  }
+
+  /**
+   * Moves the downloaded payload into place if {@code result} is a hit, and deletes it otherwise.
+   *
+   * @return {@code result}
+   */
+  CacheResult complete(CacheResult result) throws IOException {
+    if (result.getType() == CacheResultType.HIT && tempFile.isPresent()) {
+      projectFilesystem.move(tempFile.get(), output.get(), StandardCopyOption.REPLACE_EXISTING);
+      tempFile = Optional.empty();
+    }
+    cleanUp();
+    return result;
+  }
+
+  /**
+   * Deletes the downloaded payload, unless it has been moved into place.
+   */
+  void cleanUp() throws IOException {
+    if (tempFile.isPresent()) {
+      projectFilesystem.deleteFileAtPathIfExists(tempFile.get());
+      tempFile = Optional.empty();
+    }
+  }
+}
@@ -26,10 +26,8 @@ import com.google.common.io.ByteSource;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 
 import okhttp3.MediaType;
 import okhttp3.Request;
@@ -57,6 +55,14 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
       RuleKey ruleKey,
       LazyPath output,
       final Finished.Builder eventBuilder) throws IOException {
+    return fetchToFile(ruleKey, output, eventBuilder);
+  }
+
+  @Override
+  protected CacheResult fetchStreamingImpl(
+      RuleKey ruleKey,
+      ArtifactPayloadConsumer consumer,
+      final Finished.Builder eventBuilder) throws IOException {
 
     Request.Builder requestBuilder =
         new Request.Builder()
@@ -84,21 +90,8 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
           return CacheResult.error(name, msg);
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        projectFilesystem.createParentDirs(file);
-        Path temp = projectFilesystem.createTempFile(
-            file.getParent(),
-            file.getFileName().toString(),
-            ".tmp");
-
-        FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
-          fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(
-              input,
-              tempFileOutputStream);
-        }
+        FetchResponseReadResult fetchedData =
+            HttpArtifactCacheBinaryProtocol.readFetchResponse(input, consumer);
 
         eventBuilder
             .setTarget(ArtifactCacheEvent.getTarget(fetchedData.getMetadata()))
@@ -119,14 +112,10 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
         if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
           String msg = "artifact had invalid checksum";
           reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          projectFilesystem.deleteFileAtPath(temp);
           eventBuilder.getFetchBuilder().setErrorMessage(msg);
           return CacheResult.error(name, msg);
         }
 
-        // Finally, move the temp file into it's final place.
-        projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
-
         LOG.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
         return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
       }
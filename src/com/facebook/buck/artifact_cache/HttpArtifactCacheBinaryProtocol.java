@@ -30,6 +30,7 @@ import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 
 import org.immutables.value.Value;
 
@@ -58,10 +59,20 @@ public class HttpArtifactCacheBinaryProtocol {
   public static FetchResponseReadResult readFetchResponse(
       DataInputStream input,
       OutputStream payloadSink) throws IOException {
+    return readFetchResponse(input, payload -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  /**
+   * Reads a fetch response, passing the payload to {@code payloadConsumer} as it is read. The
+   * payload is only known to be intact once the returned result has been checked.
+   */
+  public static FetchResponseReadResult readFetchResponse(
+      DataInputStream input,
+      ArtifactPayloadConsumer payloadConsumer) throws IOException {
 
     MetadataAndPayloadReadResultInternal resultInternal = readMetadataAndPayload(
         input,
-        payloadSink);
+        payloadConsumer);
 
     FetchResponseReadResult.Builder result = FetchResponseReadResult.builder().from(resultInternal);
     return result.build();
@@ -89,6 +100,12 @@ public class HttpArtifactCacheBinaryProtocol {
   public static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
       DataInputStream input,
       OutputStream payloadSink) throws IOException {
+    return readMetadataAndPayload(input, payload -> ByteStreams.copy(payload, payloadSink));
+  }
+
+  private static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
+      DataInputStream input,
+      ArtifactPayloadConsumer payloadConsumer) throws IOException {
     // Read the size of a the metadata, and use that to build a input stream to read and
     // process the rest of it.
     int metadataSize = input.readInt();
@@ -134,12 +151,15 @@ public class HttpArtifactCacheBinaryProtocol {
       result.setExpectedHashCode(HashCode.fromBytes(hashCodeBytes));
     }
 
-    // The remaining data is the payload, which we write to the created file, and also include
+    // The remaining data is the payload, which we pass on to the consumer, and also include
     // in our verification checksum.
     Hasher artifactOnlyHasher = HASH_FUNCTION.newHasher();
-    try (InputStream payload = new HasherInputStream(artifactOnlyHasher,
-        new HasherInputStream(hasher, input))) {
-      result.setResponseSizeBytes(ByteStreams.copy(payload, payloadSink));
+    try (CountingInputStream payload = new CountingInputStream(
+        new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input)))) {
+      payloadConsumer.consume(payload);
+      // The consumer may stop reading early, but the checksums cover the whole payload.
+      ByteStreams.exhaust(payload);
+      result.setResponseSizeBytes(payload.getCount());
       result.setArtifactOnlyHashCode(artifactOnlyHasher.hash());
     }
 
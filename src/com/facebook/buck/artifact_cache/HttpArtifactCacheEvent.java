@@ -295,6 +295,9 @@ public abstract class HttpArtifactCacheEvent extends ArtifactCacheEvent {
 
     Optional<Boolean> wasStoreSuccessful();
 
+    /** Whether the store was dropped, without being attempted, to bound pending uploads. */
+    Optional<Boolean> wasStoreDropped();
+
     ImmutableSet<RuleKey> getRuleKeys();
 
     Optional<String> getArtifactContentHash();
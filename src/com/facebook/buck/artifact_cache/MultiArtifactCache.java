@@ -18,16 +18,30 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.TeeInputStream;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
@@ -35,6 +49,7 @@ import java.util.Optional;
  * ArtifactCaches.
  */
 public class MultiArtifactCache implements ArtifactCache {
+  private static final Logger LOG = Logger.get(MultiArtifactCache.class);
 
   private final ImmutableList<ArtifactCache> artifactCaches;
   private final ImmutableList<ArtifactCache> writableArtifactCaches;
@@ -79,6 +94,123 @@ public class MultiArtifactCache implements ArtifactCache {
     return cacheResult;
   }
 
+  /**
+   * Like {@link #fetch}, but streams the artifact to {@code consumer}. An artifact that has to be
+   * propagated to caches earlier in the search order is copied to a temporary file as it streams
+   * by, instead of being fetched to a file first.
+   */
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactPayloadConsumer consumer) {
+    CacheResult cacheResult = CacheResult.miss();
+    ImmutableList.Builder<ArtifactCache> priorCaches = ImmutableList.builder();
+    for (ArtifactCache artifactCache : artifactCaches) {
+      ImmutableList<ArtifactCache> cachesToPropagateTo = priorCaches.build();
+      if (cachesToPropagateTo.isEmpty()) {
+        cacheResult = artifactCache.fetchStreaming(ruleKey, consumer);
+      } else {
+        cacheResult = fetchStreamingAndPropagate(
+            artifactCache,
+            cachesToPropagateTo,
+            ruleKey,
+            consumer);
+      }
+      if (cacheResult.getType().isSuccess()) {
+        break;
+      }
+      if (artifactCache.isStoreSupported()) {
+        priorCaches.add(artifactCache);
+      }
+    }
+    return cacheResult;
+  }
+
+  private static CacheResult fetchStreamingAndPropagate(
+      ArtifactCache artifactCache,
+      ImmutableList<ArtifactCache> cachesToPropagateTo,
+      RuleKey ruleKey,
+      ArtifactPayloadConsumer consumer) {
+    AtomicReference<Path> copy = new AtomicReference<>();
+    CacheResult cacheResult = artifactCache.fetchStreaming(
+        ruleKey,
+        payload -> {
+          copy.set(Files.createTempFile("buck_artifact_", ".tmp"));
+          try (OutputStream copyStream = Files.newOutputStream(copy.get())) {
+            InputStream teeStream = new TeeInputStream(payload, copyStream);
+            consumer.consume(teeStream);
+            ByteStreams.exhaust(teeStream);
+          }
+        });
+    if (copy.get() == null) {
+      return cacheResult;
+    }
+
+    ListenableFuture<Void> storeFuture = Futures.immediateFuture(null);
+    if (cacheResult.getType().isSuccess()) {
+      storeFuture = storeToCaches(
+          cachesToPropagateTo,
+          ArtifactInfo.builder()
+              .addRuleKeys(ruleKey)
+              .setMetadata(cacheResult.getMetadata())
+              .build(),
+          BorrowablePath.borrowablePath(copy.get()));
+    }
+    // Caches may store asynchronously, so the copy is only deleted once they are done with it.
+    // This does nothing if a cache has taken the copy over.
+    storeFuture.addListener(
+        () -> {
+          try {
+            Files.deleteIfExists(copy.get());
+          } catch (IOException e) {
+            LOG.debug(e, "Failed to delete %s.", copy.get());
+          }
+        },
+        MoreExecutors.directExecutor());
+    return cacheResult;
+  }
+
+  /**
+   * Fetch the artifacts matching the given rule keys, asking each encapsulated ArtifactCache in
+   * turn for the artifacts that have not been found yet. Like {@link #fetch}, artifacts may be
+   * stored to the caches earlier in the search order as a side effect.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    Map<RuleKey, CacheResult> results = new HashMap<>();
+    Map<RuleKey, LazyPath> remainingOutputs = new LinkedHashMap<>(outputs);
+    ImmutableList.Builder<ArtifactCache> priorCaches = ImmutableList.builder();
+    for (ArtifactCache artifactCache : artifactCaches) {
+      if (remainingOutputs.isEmpty()) {
+        break;
+      }
+      ImmutableMap<RuleKey, CacheResult> cacheResults =
+          artifactCache.multiFetch(ImmutableMap.copyOf(remainingOutputs));
+      ImmutableList<ArtifactCache> cachesToPropagateTo = priorCaches.build();
+      for (Map.Entry<RuleKey, CacheResult> entry : cacheResults.entrySet()) {
+        RuleKey ruleKey = entry.getKey();
+        CacheResult cacheResult = entry.getValue();
+        results.put(ruleKey, cacheResult);
+        if (cacheResult.getType().isSuccess()) {
+          storeToCaches(
+              cachesToPropagateTo,
+              ArtifactInfo.builder()
+                  .addRuleKeys(ruleKey)
+                  .setMetadata(cacheResult.getMetadata())
+                  .build(),
+              BorrowablePath.notBorrowablePath(remainingOutputs.remove(ruleKey).getUnchecked()));
+        }
+      }
+      if (artifactCache.isStoreSupported()) {
+        priorCaches.add(artifactCache);
+      }
+    }
+
+    ImmutableMap.Builder<RuleKey, CacheResult> orderedResults = ImmutableMap.builder();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      orderedResults.put(ruleKey, results.getOrDefault(ruleKey, CacheResult.miss()));
+    }
+    return orderedResults.build();
+  }
+
   private static ListenableFuture<Void> storeToCaches(
       ImmutableList<ArtifactCache> caches,
       ArtifactInfo info,
@@ -21,8 +21,11 @@ import com.facebook.buck.io.LazyPath;
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Map;
+
 /**
  * A cache that wraps dir caches and remote caches. It allows to store only into remote cache,
  * and internally it stores artifacts fetched from remote cache into local cache. Thus, it never
@@ -66,6 +69,41 @@ public class RemoteArtifactsInLocalCacheArtifactCache implements ArtifactCache {
     return remoteResult;
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    ImmutableMap<RuleKey, CacheResult> localResults = localCache.multiFetch(outputs);
+
+    ImmutableMap.Builder<RuleKey, LazyPath> remoteOutputs = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, CacheResult> entry : localResults.entrySet()) {
+      CacheResultType type = entry.getValue().getType();
+      if (type != CacheResultType.ERROR && type != CacheResultType.HIT) {
+        remoteOutputs.put(entry.getKey(), outputs.get(entry.getKey()));
+      }
+    }
+    ImmutableMap<RuleKey, CacheResult> remoteResults =
+        remoteCache.multiFetch(remoteOutputs.build());
+
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, CacheResult> entry : localResults.entrySet()) {
+      RuleKey ruleKey = entry.getKey();
+      CacheResult remoteResult = remoteResults.get(ruleKey);
+      if (remoteResult == null) {
+        results.put(entry);
+        continue;
+      }
+      if (remoteResult.getType().isSuccess()) {
+        localCache.store(
+            ArtifactInfo.builder()
+                .addRuleKeys(ruleKey)
+                .setMetadata(remoteResult.getMetadata())
+                .build(),
+            BorrowablePath.notBorrowablePath(outputs.get(ruleKey).getUnchecked()));
+      }
+      results.put(ruleKey, remoteResult);
+    }
+    return results.build();
+  }
+
   @Override
   public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
     return remoteCache.store(info, output);
@@ -18,6 +18,8 @@ package com.facebook.buck.artifact_cache;
 import com.facebook.buck.artifact_cache.thrift.ArtifactMetadata;
 import com.facebook.buck.artifact_cache.thrift.BuckCacheFetchRequest;
 import com.facebook.buck.artifact_cache.thrift.BuckCacheFetchResponse;
+import com.facebook.buck.artifact_cache.thrift.BuckCacheMultiFetchRequest;
+import com.facebook.buck.artifact_cache.thrift.BuckCacheMultiFetchResponse;
 import com.facebook.buck.artifact_cache.thrift.BuckCacheRequest;
 import com.facebook.buck.artifact_cache.thrift.BuckCacheRequestType;
 import com.facebook.buck.artifact_cache.thrift.BuckCacheResponse;
@@ -38,10 +40,9 @@ import com.google.common.io.ByteSource;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import okhttp3.MediaType;
@@ -80,11 +81,17 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
       RuleKey ruleKey,
       LazyPath output,
       HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+    return fetchToFile(ruleKey, output, eventBuilder);
+  }
+
+  @Override
+  protected CacheResult fetchStreamingImpl(
+      RuleKey ruleKey,
+      ArtifactPayloadConsumer consumer,
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
 
     BuckCacheFetchRequest fetchRequest = new BuckCacheFetchRequest();
-    com.facebook.buck.artifact_cache.thrift.RuleKey thriftRuleKey =
-        new com.facebook.buck.artifact_cache.thrift.RuleKey();
-    thriftRuleKey.setHashString(ruleKey.getHashCode().toString());
+    com.facebook.buck.artifact_cache.thrift.RuleKey thriftRuleKey = toThriftRuleKey(ruleKey);
     fetchRequest.setRuleKey(thriftRuleKey);
     fetchRequest.setRepository(repository);
     fetchRequest.setScheduleType(scheduleType);
@@ -133,56 +140,169 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
               ThriftUtil.thriftToDebugJson(cacheResponse));
         }
 
-        if (!fetchResponse.isArtifactExists()) {
-          LOG.verbose("Artifact did not exist.");
-          return CacheResult.miss();
+        return readArtifact(ruleKey, consumer, response, fetchResponse, eventBuilder);
+      }
+    }
+  }
+
+  @Override
+  protected boolean isMultiFetchSupported() {
+    return true;
+  }
+
+  @Override
+  protected ImmutableMap<RuleKey, CacheResult> multiFetchImpl(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      ImmutableMap<RuleKey, HttpArtifactCacheEvent.Finished.Builder> eventBuilders)
+      throws IOException {
+
+    BuckCacheMultiFetchRequest multiFetchRequest = new BuckCacheMultiFetchRequest();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      multiFetchRequest.addToRuleKeys(toThriftRuleKey(ruleKey));
+    }
+    multiFetchRequest.setRepository(repository);
+    multiFetchRequest.setScheduleType(scheduleType);
+    multiFetchRequest.setDistributedBuildModeEnabled(distributedBuildModeEnabled);
+
+    BuckCacheRequest cacheRequest = new BuckCacheRequest();
+    cacheRequest.setType(BuckCacheRequestType.MULTI_FETCH);
+    cacheRequest.setMultiFetchRequest(multiFetchRequest);
+
+    LOG.verbose("Will fetch %d keys: %s", outputs.size(), outputs.keySet());
+
+    final ThriftArtifactCacheProtocol.Request request =
+        ThriftArtifactCacheProtocol.createRequest(PROTOCOL, cacheRequest);
+    Request.Builder builder = toOkHttpRequest(request);
+    try (HttpResponse httpResponse = fetchClient.makeRequest(hybridThriftEndpoint, builder)) {
+      if (httpResponse.statusCode() != 200) {
+        String message = String.format(
+            "Failed to fetch cache artifacts with HTTP status code [%d:%s] " +
+                " to url [%s] for rule keys [%s].",
+            httpResponse.statusCode(),
+            httpResponse.statusMessage(),
+            httpResponse.requestUrl(),
+            outputs.keySet());
+        LOG.error(message);
+        return toErrorResults(outputs, message);
+      }
+
+      try (ThriftArtifactCacheProtocol.Response response =
+               ThriftArtifactCacheProtocol.parseResponse(PROTOCOL, httpResponse.getBody())) {
+        BuckCacheResponse cacheResponse = response.getThriftData();
+        if (!cacheResponse.isWasSuccessful()) {
+          LOG.warn("Request was unsuccessful: %s", cacheResponse.getErrorMessage());
+          return toErrorResults(outputs, cacheResponse.getErrorMessage());
         }
 
-        LOG.verbose("Got artifact.  Attempting to read payload.");
-        Path tmp = createTempFileForDownload();
-        ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult;
-        try (OutputStream tmpFile = projectFilesystem.newFileOutputStream(tmp)) {
-          readResult = response.readPayload(tmpFile);
-          LOG.verbose("Successfully read payload: %d bytes.", readResult.getBytesRead());
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(
+              "Debug info for cache multi-fetch request: request=[%s] response=[%s]",
+              ThriftUtil.thriftToDebugJson(cacheRequest),
+              ThriftUtil.thriftToDebugJson(cacheResponse));
         }
 
-        ArtifactMetadata metadata = fetchResponse.getMetadata();
-        if (LOG.isVerboseEnabled()) {
-          LOG.verbose(String.format(
-              "Fetched artifact with rule key [%s] contains the following metadata: [%s]",
-              ruleKey,
-              ThriftUtil.thriftToDebugJson(metadata)));
+        BuckCacheMultiFetchResponse multiFetchResponse = cacheResponse.getMultiFetchResponse();
+        if (multiFetchResponse == null ||
+            multiFetchResponse.getResultsSize() != outputs.size()) {
+          throw new IOException(String.format(
+              "Expected [%d] results from multi-fetch request but got [%d].",
+              outputs.size(),
+              multiFetchResponse == null ? 0 : multiFetchResponse.getResultsSize()));
         }
 
-        eventBuilder
-            .setTarget(Optional.ofNullable(metadata.getBuildTarget()))
-            .getFetchBuilder()
-            .setAssociatedRuleKeys(toImmutableSet(metadata.getRuleKeys()))
-            .setArtifactSizeBytes(readResult.getBytesRead());
-        if (!metadata.isSetArtifactPayloadMd5()) {
-          String msg = "Fetched artifact is missing the MD5 hash.";
-          LOG.warn(msg);
-        } else {
-          eventBuilder.getFetchBuilder().setArtifactContentHash(metadata.getArtifactPayloadMd5());
-          if (!readResult.getMd5Hash()
-              .equals(fetchResponse.getMetadata().getArtifactPayloadMd5())) {
-            String msg = String.format(
-                "The artifact fetched from cache is corrupted. ExpectedMD5=[%s] ActualMD5=[%s]",
-                fetchResponse.getMetadata().getArtifactPayloadMd5(),
-                readResult.getMd5Hash());
-            LOG.error(msg);
-            return CacheResult.error(name, msg);
+        // Payloads are stored in the order of the results, so the artifacts have to be read
+        // in order as well.
+        ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+        int index = 0;
+        for (Map.Entry<RuleKey, LazyPath> output : outputs.entrySet()) {
+          RuleKey ruleKey = output.getKey();
+          FileArtifactPayloadConsumer consumer =
+              new FileArtifactPayloadConsumer(projectFilesystem, output.getValue());
+          try {
+            results.put(
+                ruleKey,
+                consumer.complete(
+                    readArtifact(
+                        ruleKey,
+                        consumer,
+                        response,
+                        multiFetchResponse.getResults().get(index++),
+                        eventBuilders.get(ruleKey))));
+          } finally {
+            consumer.cleanUp();
           }
         }
+        return results.build();
+      }
+    }
+  }
+
+  private CacheResult readArtifact(
+      RuleKey ruleKey,
+      ArtifactPayloadConsumer consumer,
+      ThriftArtifactCacheProtocol.Response response,
+      BuckCacheFetchResponse fetchResponse,
+      HttpArtifactCacheEvent.Finished.Builder eventBuilder) throws IOException {
+    if (!fetchResponse.isArtifactExists()) {
+      LOG.verbose("Artifact did not exist.");
+      return CacheResult.miss();
+    }
+
+    LOG.verbose("Got artifact.  Attempting to read payload.");
+    ThriftArtifactCacheProtocol.Response.ReadPayloadInfo readResult =
+        response.readPayload(consumer);
+    LOG.verbose("Successfully read payload: %d bytes.", readResult.getBytesRead());
 
-        // This makes sure we don't have 'half downloaded files' in the dir cache.
-        projectFilesystem.move(tmp, output.get(), StandardCopyOption.REPLACE_EXISTING);
-        return CacheResult.hit(
-            name,
-            ImmutableMap.copyOf(fetchResponse.getMetadata().getMetadata()),
-            readResult.getBytesRead());
+    ArtifactMetadata metadata = fetchResponse.getMetadata();
+    if (LOG.isVerboseEnabled()) {
+      LOG.verbose(String.format(
+          "Fetched artifact with rule key [%s] contains the following metadata: [%s]",
+          ruleKey,
+          ThriftUtil.thriftToDebugJson(metadata)));
+    }
+
+    eventBuilder
+        .setTarget(Optional.ofNullable(metadata.getBuildTarget()))
+        .getFetchBuilder()
+        .setAssociatedRuleKeys(toImmutableSet(metadata.getRuleKeys()))
+        .setArtifactSizeBytes(readResult.getBytesRead());
+    if (!metadata.isSetArtifactPayloadMd5()) {
+      String msg = "Fetched artifact is missing the MD5 hash.";
+      LOG.warn(msg);
+    } else {
+      eventBuilder.getFetchBuilder().setArtifactContentHash(metadata.getArtifactPayloadMd5());
+      if (!readResult.getMd5Hash()
+          .equals(fetchResponse.getMetadata().getArtifactPayloadMd5())) {
+        String msg = String.format(
+            "The artifact fetched from cache is corrupted. ExpectedMD5=[%s] ActualMD5=[%s]",
+            fetchResponse.getMetadata().getArtifactPayloadMd5(),
+            readResult.getMd5Hash());
+        LOG.error(msg);
+        return CacheResult.error(name, msg);
       }
     }
+
+    return CacheResult.hit(
+        name,
+        ImmutableMap.copyOf(fetchResponse.getMetadata().getMetadata()),
+        readResult.getBytesRead());
+  }
+
+  private ImmutableMap<RuleKey, CacheResult> toErrorResults(
+      ImmutableMap<RuleKey, LazyPath> outputs,
+      String message) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      results.put(ruleKey, CacheResult.error(name, message));
+    }
+    return results.build();
+  }
+
+  private static com.facebook.buck.artifact_cache.thrift.RuleKey toThriftRuleKey(RuleKey ruleKey) {
+    com.facebook.buck.artifact_cache.thrift.RuleKey thriftRuleKey =
+        new com.facebook.buck.artifact_cache.thrift.RuleKey();
+    thriftRuleKey.setHashString(ruleKey.getHashCode().toString());
+    return thriftRuleKey;
   }
 
   private static ImmutableSet<RuleKey> toImmutableSet(
@@ -271,14 +391,6 @@ public class ThriftArtifactCache extends AbstractNetworkCache {
     }
   }
 
-  private Path createTempFileForDownload() throws IOException {
-    projectFilesystem.mkdirs(projectFilesystem.getBuckPaths().getScratchDir());
-    return projectFilesystem.createTempFile(
-        projectFilesystem.getBuckPaths().getScratchDir(),
-        "buckcache_artifact",
-        ".tmp");
-  }
-
   private static ArtifactMetadata infoToMetadata(
       ArtifactInfo info,
       ByteSource file,
@@ -26,9 +26,11 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 
 import java.io.Closeable;
 import java.io.DataInputStream;
@@ -198,6 +200,39 @@ public class ThriftArtifactCacheProtocol {
       }
     }
 
+    /**
+     * Reads the next payload, passing it to {@code consumer} as it is read rather than copying it
+     * to a stream.
+     */
+    public ReadPayloadInfo readPayload(ArtifactPayloadConsumer consumer) throws IOException {
+      Preconditions.checkState(
+          nextPayloadToBeRead < thriftData.getPayloadsSize(),
+          "Trying to download payload index=[%s] but the thriftData only contains [%s] payloads.",
+          nextPayloadToBeRead,
+          thriftData.getPayloadsSize());
+
+      long payloadSizeBytes = Preconditions.checkNotNull(thriftData.getPayloads())
+          .get(nextPayloadToBeRead).getSizeBytes();
+      HashingInputStream payload = new HashingInputStream(
+          MD5_HASH_FUNCTION,
+          ByteStreams.limit(responseStream, payloadSizeBytes));
+      CountingInputStream countingPayload = new CountingInputStream(payload);
+      consumer.consume(countingPayload);
+      // The consumer may stop reading early, but the hash covers the whole payload, and the next
+      // payload starts right after this one.
+      ByteStreams.exhaust(countingPayload);
+      if (countingPayload.getCount() < payloadSizeBytes) {
+        String msg = String.format(
+            "InputStream was missing [%d] bytes. Expected to read a total of [%d] bytes.",
+            payloadSizeBytes - countingPayload.getCount(),
+            payloadSizeBytes);
+        LOG.error(msg);
+        throw new IOException(msg);
+      }
+      ++nextPayloadToBeRead;
+      return new ReadPayloadInfo(payloadSizeBytes, payload.hash().toString());
+    }
+
     @Override
     public void close() throws IOException {
       responseStream.close();
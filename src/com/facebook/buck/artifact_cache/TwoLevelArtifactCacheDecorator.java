@@ -37,6 +37,9 @@ import com.google.common.util.concurrent.ListenableFuture;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -136,6 +139,49 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
     CacheResult outputFileFetchResult = delegate.fetch(
         new RuleKey(fetchResult.getMetadata().get(METADATA_KEY)),
         output);
+    return combineFetchResults(fetchResult, outputFileFetchResult);
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    ImmutableMap<RuleKey, CacheResult> fetchResults = delegate.multiFetch(outputs);
+
+    // Look up the contents of all two-level entries with a single request. Entries that share
+    // their contents with an earlier one write to a different output, so they're fetched on their
+    // own.
+    Map<RuleKey, RuleKey> contentKeys = new HashMap<>();
+    Map<RuleKey, LazyPath> contentOutputs = new LinkedHashMap<>();
+    for (Map.Entry<RuleKey, CacheResult> entry : fetchResults.entrySet()) {
+      CacheResult fetchResult = entry.getValue();
+      if (fetchResult.getType().isSuccess() &&
+          fetchResult.getMetadata().containsKey(METADATA_KEY)) {
+        RuleKey contentKey = new RuleKey(fetchResult.getMetadata().get(METADATA_KEY));
+        contentKeys.put(entry.getKey(), contentKey);
+        contentOutputs.putIfAbsent(contentKey, outputs.get(entry.getKey()));
+      }
+    }
+    ImmutableMap<RuleKey, CacheResult> outputFileFetchResults =
+        delegate.multiFetch(ImmutableMap.copyOf(contentOutputs));
+
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, CacheResult> entry : fetchResults.entrySet()) {
+      RuleKey contentKey = contentKeys.get(entry.getKey());
+      if (contentKey == null) {
+        results.put(entry);
+        continue;
+      }
+      LazyPath output = outputs.get(entry.getKey());
+      CacheResult outputFileFetchResult = contentOutputs.get(contentKey) == output ?
+          outputFileFetchResults.get(contentKey) :
+          delegate.fetch(contentKey, output);
+      results.put(entry.getKey(), combineFetchResults(entry.getValue(), outputFileFetchResult));
+    }
+    return results.build();
+  }
+
+  private CacheResult combineFetchResults(
+      CacheResult fetchResult,
+      CacheResult outputFileFetchResult) {
     if (!outputFileFetchResult.getType().isSuccess()) {
       LOG.verbose("Missed second-level lookup.");
       secondLevelCacheMisses.inc();
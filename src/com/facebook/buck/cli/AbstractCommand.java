@@ -21,14 +21,18 @@ import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.LogConfigSetup;
+import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.parser.BuildTargetParser;
 import com.facebook.buck.parser.BuildTargetPatternParser;
 import com.facebook.buck.parser.BuildTargetPatternTargetNodeParser;
 import com.facebook.buck.parser.TargetNodeSpec;
+import com.facebook.buck.rules.ActionGraph;
+import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.CellPathResolver;
 import com.facebook.buck.rules.RelativeCellName;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetGraphAndBuildTargets;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.EventPostingRuleKeyCacheScope;
@@ -40,8 +44,13 @@ import com.facebook.buck.util.concurrent.ConcurrencyLimit;
 import com.facebook.buck.versions.VersionException;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import org.kohsuke.args4j.Option;
 
@@ -353,6 +362,49 @@ public abstract class AbstractCommand implements Command {
     return ImmutableList.of();
   }
 
+  /**
+   * @return the settings of a build of {@code actionGraph}, which the action graph cache created
+   *     from {@code targetGraph}, so that the daemon may persist the rule keys of its rules.
+   */
+  static RuleKeyCacheRecycler.SettingsAffectingCache getRuleKeyCacheSettings(
+      CommandRunnerParams params,
+      BuckConfig buckConfig,
+      ActionGraph actionGraph,
+      TargetGraph targetGraph) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putUnencodedChars(BuckVersion.getVersion());
+    putSortedEntries(hasher, buckConfig.getEnvironment());
+    putConfig(hasher, buckConfig);
+    Cell cell = params.getCell();
+    for (Path root : ImmutableSortedSet.copyOf(cell.getKnownRoots())) {
+      hasher.putUnencodedChars(root.toString());
+      putConfig(hasher, cell.getCell(root).getBuckConfig());
+    }
+    return new RuleKeyCacheRecycler.SettingsAffectingCache(
+        buckConfig.getKeySeed(),
+        actionGraph,
+        targetGraph,
+        hasher.hash());
+  }
+
+  private static void putConfig(Hasher hasher, BuckConfig buckConfig) {
+    for (Map.Entry<String, ImmutableMap<String, String>> section :
+         ImmutableSortedMap.copyOf(buckConfig.getConfig().getSectionToEntries()).entrySet()) {
+      hasher.putUnencodedChars(section.getKey());
+      putSortedEntries(hasher, section.getValue());
+    }
+  }
+
+  private static void putSortedEntries(Hasher hasher, Map<String, String> entries) {
+    for (Map.Entry<String, String> entry : ImmutableSortedMap.copyOf(entries).entrySet()) {
+      hasher.putUnencodedChars(entry.getKey());
+      hasher.putChar('\0');
+      hasher.putUnencodedChars(entry.getValue());
+      hasher.putChar('\0');
+    }
+    hasher.putInt(entries.size());
+  }
+
   RuleKeyCacheScope<RuleKey> getDefaultRuleKeyCacheScope(
       CommandRunnerParams params,
       RuleKeyCacheRecycler.SettingsAffectingCache settings) {
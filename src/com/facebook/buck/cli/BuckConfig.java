@@ -489,6 +489,10 @@ public class BuckConfig implements ConfigPathGetter {
         .orElse(RuleKeyDiagnosticsMode.NEVER);
   }
 
+  public boolean isRuleKeyProfilingEnabled() {
+    return getBooleanValue(LOG_SECTION, "rule_key_profiling", false);
+  }
+
   public boolean isMachineReadableLoggerEnabled() {
     return getBooleanValue(LOG_SECTION, "machine_readable_logger_enabled", true);
   }
@@ -581,6 +585,64 @@ public class BuckConfig implements ConfigPathGetter {
     return getBooleanValue("cache", "action_graph_cache_check_enabled", false);
   }
 
+  /**
+   * @return the maximum number of action graphs the daemon keeps in memory, keyed by the hash of
+   *     the target graph they were created from.
+   */
+  public int getMaxActionGraphCacheEntries() {
+    return getInteger("cache", "max_action_graph_cache_entries").orElse(1);
+  }
+
+  /**
+   * @return the upper bound on the estimated heap footprint of all cached action graphs. Defaults
+   *     to a quarter of the maximum heap size.
+   */
+  public long getMaxActionGraphCacheEstimatedBytes() {
+    return getLong("cache", "max_action_graph_cache_size_mb")
+        .map(megabytes -> megabytes * 1024 * 1024)
+        .orElse(Runtime.getRuntime().maxMemory() / 4);
+  }
+
+  /**
+   * @return whether the daemon should save the hashes of source files to disk, so that the next
+   *     daemon doesn't have to rehash files that didn't change in the meantime.
+   */
+  public boolean isPersistentFileHashCacheEnabled() {
+    return getBooleanValue("cache", "persistent_file_hash_cache", false);
+  }
+
+  /**
+   * @return whether the daemon should save rule keys to disk, so that the next daemon doesn't have
+   *     to recompute the rule keys of rules whose inputs didn't change in the meantime.
+   */
+  public boolean isPersistentRuleKeyCacheEnabled() {
+    return getBooleanValue("cache", "persistent_rule_key_cache", false);
+  }
+
+  /**
+   * @return whether a new action graph should reuse the build rules of the most recently cached
+   *     action graph for target nodes which did not change.
+   */
+  public boolean isIncrementalActionGraphEnabled() {
+    return getBooleanValue("cache", "incremental_action_graph", false);
+  }
+
+  /**
+   * @return the number of threads used to transform target nodes into build rules when creating
+   *     an action graph.
+   */
+  public int getActionGraphParallelism() {
+    return getInteger("build", "action_graph_parallelism").orElse(1);
+  }
+
+  /**
+   * @return whether build rules should be created while the target graph is still being parsed
+   *     when there is no cached action graph to start from.
+   */
+  public boolean isStreamingActionGraphEnabled() {
+    return getBooleanValue("build", "streaming_action_graph", false);
+  }
+
   public Optional<String> getRepository() {
     return config.get("cache", "repository");
   }
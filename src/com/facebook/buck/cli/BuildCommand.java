@@ -35,6 +35,7 @@ import com.facebook.buck.distributed.DistBuildTypeCoercerFactory;
 import com.facebook.buck.distributed.thrift.BuckVersion;
 import com.facebook.buck.distributed.thrift.BuildJobState;
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.jvm.java.JavaBuckConfig;
@@ -63,14 +64,18 @@ import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.StreamingActionGraphBuilder;
+import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetGraphAndBuildTargets;
+import com.facebook.buck.rules.TargetGraphListener;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.rules.TargetNodeFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyFactory;
-import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
+import com.facebook.buck.rules.keys.RuleKeyProfileEvent;
+import com.facebook.buck.rules.keys.RuleKeyProfiler;
 import com.facebook.buck.shell.WorkerProcessPool;
 import com.facebook.buck.step.AdbOptions;
 import com.facebook.buck.step.DefaultStepRunner;
@@ -78,6 +83,7 @@ import com.facebook.buck.step.ExecutorPool;
 import com.facebook.buck.step.TargetDevice;
 import com.facebook.buck.step.TargetDeviceOptions;
 import com.facebook.buck.timing.Clock;
+import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.MoreExceptions;
@@ -103,6 +109,10 @@ import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -442,24 +452,41 @@ public class BuildCommand extends AbstractCommand {
       CommandRunnerParams params,
       WeightedListeningExecutorService executorService)
       throws ActionGraphCreationException, IOException, InterruptedException {
-    TargetGraphAndBuildTargets unversionedTargetGraph =
-        createUnversionedTargetGraph(params, executorService);
+    // Without a cached action graph to start from, create build rules while still parsing. This is
+    // pointless for versioned builds, whose action graph is based on a different target graph.
+    Optional<StreamingActionGraphBuilder> streamingBuilder = Optional.empty();
+    if (params.getBuckConfig().isStreamingActionGraphEnabled() &&
+        !params.getBuckConfig().getBuildVersions() &&
+        params.getActionGraphCache().isCacheEmpty()) {
+      streamingBuilder = Optional.of(new StreamingActionGraphBuilder(params.getBuckEventBus()));
+    }
 
-    Optional<TargetGraphAndBuildTargets> versionedTargetGraph = Optional.empty();
     try {
-      if (params.getBuckConfig().getBuildVersions()) {
-        versionedTargetGraph = Optional.of(toVersionedTargetGraph(params, unversionedTargetGraph));
+      TargetGraphAndBuildTargets unversionedTargetGraph = createUnversionedTargetGraph(
+          params,
+          executorService,
+          streamingBuilder.isPresent() ? streamingBuilder.get() : TargetGraphListener.NOOP);
+
+      Optional<TargetGraphAndBuildTargets> versionedTargetGraph = Optional.empty();
+      try {
+        if (params.getBuckConfig().getBuildVersions()) {
+          versionedTargetGraph =
+              Optional.of(toVersionedTargetGraph(params, unversionedTargetGraph));
+        }
+      } catch (VersionException e) {
+        throw new ActionGraphCreationException(
+            MoreExceptions.getHumanReadableOrLocalizedMessage(e));
       }
-    } catch (VersionException e) {
-      throw new ActionGraphCreationException(MoreExceptions.getHumanReadableOrLocalizedMessage(e));
-    }
 
-    TargetGraphAndBuildTargets targetGraphForLocalBuild =
-        getTargetGraphForLocalBuild(unversionedTargetGraph, versionedTargetGraph);
-    checkSingleBuildTargetSpecifiedForOutBuildMode(targetGraphForLocalBuild);
-    ActionGraphAndResolver actionGraph = createActionGraphAndResolver(
-        params, targetGraphForLocalBuild);
-    return new ActionAndTargetGraphs(unversionedTargetGraph, versionedTargetGraph, actionGraph);
+      TargetGraphAndBuildTargets targetGraphForLocalBuild =
+          getTargetGraphForLocalBuild(unversionedTargetGraph, versionedTargetGraph);
+      checkSingleBuildTargetSpecifiedForOutBuildMode(targetGraphForLocalBuild);
+      ActionGraphAndResolver actionGraph = createActionGraphAndResolver(
+          params, targetGraphForLocalBuild, streamingBuilder);
+      return new ActionAndTargetGraphs(unversionedTargetGraph, versionedTargetGraph, actionGraph);
+    } finally {
+      streamingBuilder.ifPresent(StreamingActionGraphBuilder::close);
+    }
   }
 
   private void checkSingleBuildTargetSpecifiedForOutBuildMode(
@@ -485,6 +512,12 @@ public class BuildCommand extends AbstractCommand {
       throws IOException, InterruptedException {
     int exitCode;
     if (useDistributedBuild) {
+      if (new ArtifactCacheBuckConfig(params.getBuckConfig()).getLocalHashFunction() !=
+          HashFunctionType.SHA1) {
+        throw new HumanReadableException(
+            "Distributed builds hash files with sha1, so cache.local_hash_function must not be " +
+                "set when building remotely.");
+      }
       BuildJobState jobState = computeDistBuildState(
           params,
           graphs,
@@ -497,7 +530,7 @@ public class BuildCommand extends AbstractCommand {
           params.getFileHashCache(),
           jobState);
     } else {
-      exitCode = executeLocalBuild(params, graphs.actionGraph, executorService);
+      exitCode = executeLocalBuild(params, graphs, executorService);
     }
     if (exitCode == 0) {
       exitCode = processSuccessfulBuild(
@@ -658,7 +691,7 @@ public class BuildCommand extends AbstractCommand {
             LOG.error(errorMessage);
           }
 
-          return executeLocalBuild(params, graphs.actionGraph, executorService);
+          return executeLocalBuild(params, graphs, executorService);
         } else {
           return distBuildExitCode;
         }
@@ -700,7 +733,9 @@ public class BuildCommand extends AbstractCommand {
     SourcePathResolver pathResolver = new SourcePathResolver(ruleFinder);
     if (showRuleKey) {
       RuleKeyFieldLoader fieldLoader =
-          new RuleKeyFieldLoader(params.getBuckConfig().getKeySeed());
+          new RuleKeyFieldLoader(
+              params.getBuckConfig().getKeySeed(),
+              new ArtifactCacheBuckConfig(params.getBuckConfig()).getLocalHashFunction());
       ruleKeyFactory = Optional.of(
           new DefaultRuleKeyFactory(
               fieldLoader,
@@ -733,7 +768,8 @@ public class BuildCommand extends AbstractCommand {
 
   private TargetGraphAndBuildTargets createUnversionedTargetGraph(
       CommandRunnerParams params,
-      ListeningExecutorService executor)
+      ListeningExecutorService executor,
+      TargetGraphListener targetGraphListener)
       throws IOException, InterruptedException, ActionGraphCreationException {
     // Parse the build files to create a ActionGraph.
     ParserConfig parserConfig = params.getBuckConfig().getView(ParserConfig.class);
@@ -749,7 +785,8 @@ public class BuildCommand extends AbstractCommand {
                       params.getBuckConfig(),
                       getArguments()),
                   /* ignoreBuckAutodepsFiles */ false,
-                  parserConfig.getDefaultFlavorsMode());
+                  parserConfig.getDefaultFlavorsMode(),
+                  targetGraphListener);
     } catch (BuildTargetException | BuildFileParseException e) {
       throw new ActionGraphCreationException(MoreExceptions.getHumanReadableOrLocalizedMessage(e));
     }
@@ -757,7 +794,8 @@ public class BuildCommand extends AbstractCommand {
 
   private ActionGraphAndResolver createActionGraphAndResolver(
       CommandRunnerParams params,
-      TargetGraphAndBuildTargets targetGraphAndBuildTargets)
+      TargetGraphAndBuildTargets targetGraphAndBuildTargets,
+      Optional<StreamingActionGraphBuilder> streamingBuilder)
       throws ActionGraphCreationException {
     buildTargets = targetGraphAndBuildTargets.getBuildTargets();
     buildTargetsHaveBeenCalculated = true;
@@ -767,7 +805,8 @@ public class BuildCommand extends AbstractCommand {
             params.getBuckConfig().isActionGraphCheckingEnabled(),
             params.getBuckConfig().isSkipActionGraphCache(),
             targetGraphAndBuildTargets.getTargetGraph(),
-            params.getBuckConfig().getKeySeed()));
+            params.getBuckConfig().getKeySeed(),
+            streamingBuilder));
 
     // If the user specified an explicit build target, use that.
     if (justBuildTarget != null) {
@@ -792,7 +831,7 @@ public class BuildCommand extends AbstractCommand {
 
   protected int executeLocalBuild(
       CommandRunnerParams params,
-      ActionGraphAndResolver actionGraphAndResolver,
+      ActionAndTargetGraphs graphs,
       WeightedListeningExecutorService executor)
       throws IOException, InterruptedException {
 
@@ -803,7 +842,8 @@ public class BuildCommand extends AbstractCommand {
 
     return executeBuild(
         params,
-        actionGraphAndResolver,
+        graphs.actionGraph,
+        graphs.getTargetGraphForLocalBuild().getTargetGraph(),
         executor,
         artifactCache,
         new LocalCachingBuildEngineDelegate(params.getFileHashCache()),
@@ -814,6 +854,7 @@ public class BuildCommand extends AbstractCommand {
   private int executeBuild(
       CommandRunnerParams params,
       ActionGraphAndResolver actionGraphAndResolver,
+      TargetGraph targetGraph,
       WeightedListeningExecutorService executor,
       ArtifactCache artifactCache,
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
@@ -821,14 +862,20 @@ public class BuildCommand extends AbstractCommand {
       Iterable<BuildTarget> targetsToBuild) throws IOException, InterruptedException {
     CachingBuildEngineBuckConfig cachingBuildEngineBuckConfig =
         rootCellBuckConfig.getView(CachingBuildEngineBuckConfig.class);
+    Optional<RuleKeyProfiler> ruleKeyProfiler =
+        rootCellBuckConfig.isRuleKeyProfilingEnabled()
+            ? Optional.of(new RuleKeyProfiler())
+            : Optional.empty();
     try (CommandThreadManager artifactFetchService =
              getArtifactFetchService(params.getBuckConfig(), executor);
          RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
              getDefaultRuleKeyCacheScope(
                  params,
-                 new RuleKeyCacheRecycler.SettingsAffectingCache(
-                     rootCellBuckConfig.getKeySeed(),
-                     actionGraphAndResolver.getActionGraph()));
+                 getRuleKeyCacheSettings(
+                     params,
+                     rootCellBuckConfig,
+                     actionGraphAndResolver.getActionGraph(),
+                     targetGraph));
          CachingBuildEngine buildEngine = new CachingBuildEngine(
              cachingBuildEngineDelegate,
              executor,
@@ -839,14 +886,20 @@ public class BuildCommand extends AbstractCommand {
              cachingBuildEngineBuckConfig.getBuildDepFiles(),
              cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
              cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+             cachingBuildEngineBuckConfig.getBuildArtifactCacheFetchBatchSize(),
+             cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchConcurrency(),
+             cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchSizeLimit(),
+             cachingBuildEngineBuckConfig.getBuildArtifactCacheStreamingFetch(),
              actionGraphAndResolver.getResolver(),
              cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
              RuleKeyFactories.of(
                  rootCellBuckConfig.getKeySeed(),
+                 new ArtifactCacheBuckConfig(rootCellBuckConfig).getLocalHashFunction(),
                  cachingBuildEngineDelegate.getFileHashCache(),
                  actionGraphAndResolver.getResolver(),
                  cachingBuildEngineBuckConfig.getBuildInputRuleKeyFileSizeLimit(),
-                 ruleKeyCacheScope.getCache()));
+                 ruleKeyCacheScope.getCache(),
+                 ruleKeyProfiler));
          Build build =
              createBuild(
                rootCellBuckConfig,
@@ -873,6 +926,28 @@ public class BuildCommand extends AbstractCommand {
           params.getBuckEventBus(),
           params.getConsole(),
           getPathToBuildReport(rootCellBuckConfig));
+    } finally {
+      ruleKeyProfiler.ifPresent(profiler -> reportRuleKeyProfile(params, profiler));
+    }
+  }
+
+  private void reportRuleKeyProfile(CommandRunnerParams params, RuleKeyProfiler profiler) {
+    params.getBuckEventBus().post(RuleKeyProfileEvent.create(profiler.getProfile()));
+    if (!params.getInvocationInfo().isPresent()) {
+      return;
+    }
+    ProjectFilesystem filesystem = params.getCell().getFilesystem();
+    Path path = filesystem.resolve(params.getInvocationInfo().get().getLogDirectoryPath())
+        .resolve(BuckConstant.RULE_KEY_PROFILE_FILE_NAME);
+    try {
+      filesystem.createParentDirs(path);
+      try (OutputStream stream = filesystem.newFileOutputStream(path);
+           PrintWriter out =
+               new PrintWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+        profiler.writeReport(out);
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write the rule key profile to [%s].", path);
     }
   }
 
@@ -17,6 +17,7 @@
 package com.facebook.buck.cli;
 
 import com.facebook.buck.android.DefaultAndroidDirectoryResolver;
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.file.Downloader;
@@ -124,10 +125,15 @@ public class FetchCommand extends BuildCommand {
                cachingBuildEngineBuckConfig.getBuildDepFiles(),
                cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+               cachingBuildEngineBuckConfig.getBuildArtifactCacheFetchBatchSize(),
+               cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchConcurrency(),
+               cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchSizeLimit(),
+               cachingBuildEngineBuckConfig.getBuildArtifactCacheStreamingFetch(),
                actionGraphAndResolver.getResolver(),
                cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
                RuleKeyFactories.of(
                    params.getBuckConfig().getKeySeed(),
+                   new ArtifactCacheBuckConfig(params.getBuckConfig()).getLocalHashFunction(),
                    localCachingBuildEngineDelegate.getFileHashCache(),
                    actionGraphAndResolver.getResolver(),
                    cachingBuildEngineBuckConfig.getBuildInputRuleKeyFileSizeLimit(),
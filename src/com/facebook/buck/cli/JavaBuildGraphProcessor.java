@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.json.BuildFileParseException;
@@ -145,10 +146,15 @@ final class JavaBuildGraphProcessor {
               cachingBuildEngineBuckConfig.getBuildDepFiles(),
               cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
               cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+              cachingBuildEngineBuckConfig.getBuildArtifactCacheFetchBatchSize(),
+              cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchConcurrency(),
+              cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchSizeLimit(),
+              cachingBuildEngineBuckConfig.getBuildArtifactCacheStreamingFetch(),
               buildRuleResolver,
               cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
               RuleKeyFactories.of(
                   params.getBuckConfig().getKeySeed(),
+                  new ArtifactCacheBuckConfig(params.getBuckConfig()).getLocalHashFunction(),
                   cachingBuildEngineDelegate.getFileHashCache(),
                   buildRuleResolver,
                   cachingBuildEngineBuckConfig.getBuildInputRuleKeyFileSizeLimit(),
@@ -55,6 +55,7 @@ import com.facebook.buck.event.listener.RuleKeyLoggerListener;
 import com.facebook.buck.event.listener.SimpleConsoleEventBusListener;
 import com.facebook.buck.event.listener.SuperConsoleConfig;
 import com.facebook.buck.event.listener.SuperConsoleEventBusListener;
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.httpserver.WebServer;
 import com.facebook.buck.io.AsynchronousDirectoryContentsCleaner;
 import com.facebook.buck.io.BuckPaths;
@@ -89,6 +90,9 @@ import com.facebook.buck.rules.RuleKeyDiagnosticsMode;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistedRuleKeyCache;
+import com.facebook.buck.rules.keys.RocksDBRuleKeyStore;
+import com.facebook.buck.rules.keys.RuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.shell.WorkerProcessPool;
 import com.facebook.buck.step.ExecutorPool;
@@ -117,6 +121,7 @@ import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.WatchmanWatcher;
 import com.facebook.buck.util.WatchmanWatcherException;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
+import com.facebook.buck.util.cache.PersistentFileHashStore;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.StackedFileHashCache;
 import com.facebook.buck.util.cache.WatchedFileHashCache;
@@ -347,6 +352,7 @@ public final class Main {
     private final CoercedTypeCache coercedTypeCache;
     private final Parser parser;
     private final ImmutableList<ProjectFileHashCache> hashCaches;
+    private final ImmutableList<WatchedFileHashCache> watchedHashCaches;
     private final EventBus fileEventBus;
     private final Optional<WebServer> webServer;
     private final ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools;
@@ -354,6 +360,7 @@ public final class Main {
     private final ActionGraphCache actionGraphCache;
     private final BroadcastEventListener broadcastEventListener;
     private final RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler;
+    private final Optional<PersistedRuleKeyCache> persistedRuleKeyCache;
 
     private ImmutableMap<Path, WatchmanCursor> cursor;
 
@@ -368,21 +375,44 @@ public final class Main {
 
       // Setup the stacked file hash cache from all cells.
       ImmutableList.Builder<ProjectFileHashCache> hashCachesBuilder = ImmutableList.builder();
+      ImmutableList.Builder<WatchedFileHashCache> watchedHashCachesBuilder =
+          ImmutableList.builder();
+      boolean persistFileHashes = cell.getBuckConfig().isPersistentFileHashCacheEnabled();
+      HashFunctionType hashFunction =
+          new ArtifactCacheBuckConfig(cell.getBuckConfig()).getLocalHashFunction();
       cells.forEach(
           (Cell subCell) -> {
-            WatchedFileHashCache watchedCache = new WatchedFileHashCache(subCell.getFilesystem());
+            ProjectFilesystem subCellFilesystem = subCell.getFilesystem();
+            WatchedFileHashCache watchedCache = new WatchedFileHashCache(
+                subCellFilesystem,
+                hashFunction,
+                persistFileHashes ?
+                    Optional.of(
+                        PersistentFileHashStore.load(
+                            subCellFilesystem,
+                            subCellFilesystem.getBuckPaths().getFileHashCacheFile(),
+                            hashFunction)) :
+                    Optional.empty());
             fileEventBus.register(watchedCache);
             hashCachesBuilder.add(watchedCache);
+            watchedHashCachesBuilder.add(watchedCache);
           });
+      this.watchedHashCaches = watchedHashCachesBuilder.build();
       hashCachesBuilder.add(
           DefaultFileHashCache.createBuckOutFileHashCache(
               cell.getFilesystem().replaceBlacklistedPaths(ImmutableSet.of()),
-              cell.getFilesystem().getBuckPaths().getBuckOut()));
+              cell.getFilesystem().getBuckPaths().getBuckOut(),
+              hashFunction));
       this.hashCaches = hashCachesBuilder.build();
 
 
       this.broadcastEventListener = new BroadcastEventListener();
-      this.actionGraphCache = new ActionGraphCache(broadcastEventListener);
+      this.actionGraphCache = new ActionGraphCache(
+          broadcastEventListener,
+          cell.getBuckConfig().getMaxActionGraphCacheEntries(),
+          cell.getBuckConfig().getMaxActionGraphCacheEstimatedBytes(),
+          cell.getBuckConfig().isIncrementalActionGraphEnabled(),
+          cell.getBuckConfig().getActionGraphParallelism());
       this.versionedTargetGraphCache = new VersionedTargetGraphCache();
 
       TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory();
@@ -397,13 +427,20 @@ public final class Main {
       fileEventBus.register(actionGraphCache);
 
       // Build the the rule key cache recycler.
+      ImmutableSet<ProjectFilesystem> cellFilesystems = RichStream.from(cells)
+          .map(Cell::getFilesystem)
+          .toImmutableSet();
+      this.persistedRuleKeyCache = cell.getBuckConfig().isPersistentRuleKeyCacheEnabled() ?
+          createPersistedRuleKeyCache(cellFilesystems) :
+          Optional.empty();
+      RuleKeyCache<RuleKey> ruleKeyCache = persistedRuleKeyCache.isPresent() ?
+          persistedRuleKeyCache.get() :
+          new DefaultRuleKeyCache<>();
       this.defaultRuleKeyFactoryCacheRecycler =
           RuleKeyCacheRecycler.createAndRegister(
               fileEventBus,
-              new DefaultRuleKeyCache<>(),
-              RichStream.from(cells)
-                  .map(Cell::getFilesystem)
-                  .toImmutableSet());
+              ruleKeyCache,
+              cellFilesystems);
 
       if (webServerToReuse.isPresent()) {
         webServer = webServerToReuse;
@@ -435,6 +472,20 @@ public final class Main {
       JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(cell.getFilesystem());
     }
 
+    private Optional<PersistedRuleKeyCache> createPersistedRuleKeyCache(
+        ImmutableSet<ProjectFilesystem> cellFilesystems) {
+      try {
+        return Optional.of(
+            new PersistedRuleKeyCache(
+                new RocksDBRuleKeyStore(cell.getFilesystem()),
+                new StackedFileHashCache(hashCaches),
+                cellFilesystems));
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to open the rule key store, rule keys won't be persisted.");
+        return Optional.empty();
+      }
+    }
+
     private Optional<WebServer> createWebServer(
         BuckConfig config,
         ProjectFilesystem filesystem) {
@@ -505,6 +556,19 @@ public final class Main {
       return hashCaches;
     }
 
+    /**
+     * Saves the file hashes of each cell for the next daemon, if they are persisted.
+     */
+    private void persistFileHashCaches() {
+      for (WatchedFileHashCache watchedHashCache : watchedHashCaches) {
+        try {
+          watchedHashCache.persist();
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to persist file hashes of %s.", watchedHashCache.getFilesystem());
+        }
+      }
+    }
+
     private ConcurrentMap<String, WorkerProcessPool> getPersistentWorkerPools() {
       return persistentWorkerPools;
     }
@@ -584,6 +648,8 @@ public final class Main {
 
     @Override
     public void close() throws IOException {
+      persistFileHashCaches();
+      persistedRuleKeyCache.ifPresent(PersistedRuleKeyCache::close);
       shutdownPersistentWorkerPools();
       shutdownWebServer();
     }
@@ -1030,13 +1096,19 @@ public final class Main {
         if (isDaemon) {
           allCaches.addAll(getFileHashCachesFromDaemon(rootCell));
         } else {
+          HashFunctionType hashFunction =
+              new ArtifactCacheBuckConfig(buckConfig).getLocalHashFunction();
           getTransitiveCells(rootCell).stream()
-              .map(cell -> DefaultFileHashCache.createDefaultFileHashCache(cell.getFilesystem()))
+              .map(
+                  cell -> DefaultFileHashCache.createDefaultFileHashCache(
+                      cell.getFilesystem(),
+                      hashFunction))
               .forEach(allCaches::add);
           allCaches.add(
               DefaultFileHashCache.createBuckOutFileHashCache(
                   rootCellProjectFilesystem,
-                  rootCell.getFilesystem().getBuckPaths().getBuckOut()));
+                  rootCell.getFilesystem().getBuckPaths().getBuckOut(),
+                  hashFunction));
         }
 
         // A cache which caches hashes of cell-relative paths which may have been ignore by
@@ -1397,6 +1469,10 @@ public final class Main {
             commandSemaphore.release(); // Allow another command to execute while outputting traces.
             commandSemaphoreAcquired = false;
           }
+          if (isDaemon) {
+            // Save file hashes after every command, as the daemon may be killed without notice.
+            persistFileHashCachesOfDaemon();
+          }
           if (isDaemon && shouldCleanUpTrash) {
             // Clean up the trash in the background if this was a buckd
             // read-write command. (We don't bother waiting for it to
@@ -1669,6 +1745,13 @@ public final class Main {
     return daemon.getParser();
   }
 
+  private static void persistFileHashCachesOfDaemon() {
+    Daemon currentDaemon = daemon;
+    if (currentDaemon != null) {
+      currentDaemon.persistFileHashCaches();
+    }
+  }
+
   private ImmutableList<ProjectFileHashCache> getFileHashCachesFromDaemon(Cell cell)
       throws IOException {
     Daemon daemon = getDaemon(cell);
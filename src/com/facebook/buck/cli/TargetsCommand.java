@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.graph.AbstractBreadthFirstTraversal;
 import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal;
@@ -822,7 +823,9 @@ public class TargetsCommand extends AbstractCommand {
         SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(result.getResolver());
         ruleKeyFactory = Optional.of(
             new DefaultRuleKeyFactory(
-                new RuleKeyFieldLoader(params.getBuckConfig().getKeySeed()),
+                new RuleKeyFieldLoader(
+                    params.getBuckConfig().getKeySeed(),
+                    new ArtifactCacheBuckConfig(params.getBuckConfig()).getLocalHashFunction()),
                 params.getFileHashCache(),
                 new SourcePathResolver(ruleFinder),
                 ruleFinder));
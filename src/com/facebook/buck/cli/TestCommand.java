@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.command.Build;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.json.BuildFileParseException;
@@ -43,7 +44,6 @@ import com.facebook.buck.rules.TargetGraphAndBuildTargets;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.rules.TargetNodes;
 import com.facebook.buck.rules.TestRule;
-import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
 import com.facebook.buck.step.AdbOptions;
@@ -535,9 +535,11 @@ public class TestCommand extends BuildCommand {
            RuleKeyCacheScope<RuleKey> ruleKeyCacheScope =
                getDefaultRuleKeyCacheScope(
                    params,
-                   new RuleKeyCacheRecycler.SettingsAffectingCache(
-                       params.getBuckConfig().getKeySeed(),
-                       actionGraphAndResolver.getActionGraph()))) {
+                   getRuleKeyCacheSettings(
+                       params,
+                       params.getBuckConfig(),
+                       actionGraphAndResolver.getActionGraph(),
+                       targetGraphAndBuildTargets.getTargetGraph()))) {
         LocalCachingBuildEngineDelegate localCachingBuildEngineDelegate =
             new LocalCachingBuildEngineDelegate(params.getFileHashCache());
         try (
@@ -554,10 +556,15 @@ public class TestCommand extends BuildCommand {
                     cachingBuildEngineBuckConfig.getBuildDepFiles(),
                     cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                     cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                    cachingBuildEngineBuckConfig.getBuildArtifactCacheFetchBatchSize(),
+                    cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchConcurrency(),
+                    cachingBuildEngineBuckConfig.getBuildArtifactCachePrefetchSizeLimit(),
+                    cachingBuildEngineBuckConfig.getBuildArtifactCacheStreamingFetch(),
                     actionGraphAndResolver.getResolver(),
                     cachingBuildEngineBuckConfig.getResourceAwareSchedulingInfo(),
                     RuleKeyFactories.of(
                         params.getBuckConfig().getKeySeed(),
+                        new ArtifactCacheBuckConfig(params.getBuckConfig()).getLocalHashFunction(),
                         localCachingBuildEngineDelegate.getFileHashCache(),
                         actionGraphAndResolver.getResolver(),
                         cachingBuildEngineBuckConfig.getBuildInputRuleKeyFileSizeLimit(),
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
@@ -59,10 +61,11 @@ public class VerifyCachesCommand extends AbstractCommand {
   private boolean verifyRuleKeyCache(
       PrintStream stdOut,
       int ruleKeySeed,
+      HashFunctionType hashFunction,
       FileHashCache fileHashCache,
       RuleKeyCacheRecycler<RuleKey> recycler) {
     ImmutableList<Map.Entry<BuildRule, RuleKey>> contents = recycler.getCachedBuildRules();
-    RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(ruleKeySeed);
+    RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(ruleKeySeed, hashFunction);
     BuildRuleResolver resolver =
         new BuildRuleResolver(
             TargetGraph.EMPTY,
@@ -110,6 +113,7 @@ public class VerifyCachesCommand extends AbstractCommand {
                     verifyRuleKeyCache(
                         params.getConsole().getStdOut(),
                         params.getBuckConfig().getKeySeed(),
+                        new ArtifactCacheBuckConfig(params.getBuckConfig()).getLocalHashFunction(),
                         params.getFileHashCache(),
                         recycler))
             .orElse(true);
@@ -18,6 +18,7 @@ package com.facebook.buck.command;
 
 import com.facebook.buck.android.AndroidPlatformTarget;
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactCacheBuckConfig;
 import com.facebook.buck.cli.BuckConfig;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
@@ -37,6 +38,7 @@ import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.BuildResult;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.CachingBuildEngineBuckConfig;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.SourcePathRuleFinder;
@@ -236,6 +238,8 @@ public class Build implements Closeable {
         .setBuildId(buildId)
         .putAllEnvironment(executionContext.getEnvironment())
         .setKeepGoing(isKeepGoing)
+        .setArtifactCompressionLevel(
+            new ArtifactCacheBuckConfig(rootCell.getBuckConfig()).getArtifactCompressionLevel())
         .build();
 
     // It is important to use this logic to determine the set of rules to build rather than
@@ -268,6 +272,11 @@ public class Build implements Closeable {
             targetsToBuild,
             numRules));
 
+    if (rootCell.getBuckConfig().getView(CachingBuildEngineBuckConfig.class)
+        .getBuildParallelRuleKeyCalculation()) {
+      buildEngine.calculateRuleKeys(getExecutionContext().getBuckEventBus(), rulesToBuild);
+    }
+
     // Setup symlinks required when configuring the output path.
     createConfiguredBuckOutSymlinks();
 
@@ -715,7 +715,8 @@ abstract class AbstractCxxSourceRuleFactory {
    * This method will first try to determine whether a matching PCH was already created;
    * if so, it will be reused.  This is done by searching the cache in the {@link BuildRuleResolver}
    * owned by this class.  If this ends up building a new instance of {@link CxxPrecompiledHeader},
-   * it will be added to the resolver cache.
+   * it will be added to the resolver cache.  Both happen atomically, since libraries sharing a PCH
+   * may be transformed concurrently.
    * </p>
    */
   private CxxPrecompiledHeader buildPrecompiledHeader(
@@ -732,12 +733,25 @@ abstract class AbstractCxxSourceRuleFactory {
         .addAllFlavors(flavors)
         .build();
 
-    Optional<CxxPrecompiledHeader> existingRule =
-        getResolver().getRuleOptionalWithType(target, CxxPrecompiledHeader.class);
-    if (existingRule.isPresent()) {
-      return existingRule.get();
-    }
+    return getResolver().computeIfAbsent(
+        target,
+        CxxPrecompiledHeader.class,
+        pchTarget -> createPrecompiledHeader(
+            preprocessorDelegate,
+            sourceType,
+            compilerFlags,
+            headerPath,
+            depsBuilder,
+            pchTarget));
+  }
 
+  private CxxPrecompiledHeader createPrecompiledHeader(
+      PreprocessorDelegate preprocessorDelegate,
+      CxxSource.Type sourceType,
+      CxxToolFlags compilerFlags,
+      SourcePath headerPath,
+      DepsBuilder depsBuilder,
+      BuildTarget target) {
     // Give the PCH a filename that looks like a header file with .gch appended to it, GCC-style.
     // GCC accepts an "-include" flag with the .h file as its arg, and auto-appends ".gch" to
     // automagically use the precompiled header in place of the original header.  Of course in
@@ -764,7 +778,7 @@ abstract class AbstractCxxSourceRuleFactory {
                 Suppliers.ofInstance(depsBuilder.build()),
                 Suppliers.ofInstance(ImmutableSortedSet.of()));
 
-    CxxPrecompiledHeader rule = new CxxPrecompiledHeader(
+    return new CxxPrecompiledHeader(
         params,
         output,
         preprocessorDelegate,
@@ -774,10 +788,6 @@ abstract class AbstractCxxSourceRuleFactory {
         sourceType,
         getCxxPlatform().getCompilerDebugPathSanitizer(),
         getCxxPlatform().getAssemblerDebugPathSanitizer());
-
-    getResolver().addToIndex(rule);
-
-    return rule;
   }
 
   public ImmutableSet<CxxInferCapture> requireInferCaptureBuildRules(
@@ -196,24 +196,16 @@ public class CxxDescriptionEnhancer {
             headerVisibility,
             cxxPlatform.getFlavor());
 
-    // Check the cache...
-    Optional<BuildRule> rule = ruleResolver.getRuleOptional(headerSymlinkTreeTarget);
-    if (rule.isPresent()) {
-      Preconditions.checkState(rule.get() instanceof HeaderSymlinkTree);
-      return (HeaderSymlinkTree) rule.get();
-    }
-
-    HeaderSymlinkTree symlinkTree = createHeaderSymlinkTree(
-        untypedParams,
-        ruleResolver,
-        cxxPlatform,
-        headers,
-        headerVisibility,
-        shouldCreateHeadersSymlinks);
-
-    ruleResolver.addToIndex(symlinkTree);
-
-    return symlinkTree;
+    return ruleResolver.computeIfAbsent(
+        headerSymlinkTreeTarget,
+        HeaderSymlinkTree.class,
+        target -> createHeaderSymlinkTree(
+            untypedParams,
+            ruleResolver,
+            cxxPlatform,
+            headers,
+            headerVisibility,
+            shouldCreateHeadersSymlinks));
   }
 
   private static SymlinkTree requireSandboxSymlinkTree(
@@ -1091,40 +1083,33 @@ public class CxxDescriptionEnhancer {
       ImmutableList.Builder<Arg> argsBuilder,
       BuildTarget linkRuleTarget)
       throws NoSuchBuildTargetException {
-    CxxLink cxxLink;
-    Optional<BuildRule> existingCxxLinkRule = resolver.getRuleOptional(linkRuleTarget);
-    if (existingCxxLinkRule.isPresent()) {
-      Preconditions.checkArgument(existingCxxLinkRule.get() instanceof CxxLink);
-      cxxLink = (CxxLink) existingCxxLinkRule.get();
-    } else {
-      // Generate the final link rule.  We use the top-level target as the link rule's
-      // target, so that it corresponds to the actual binary we build.
-      cxxLink =
-          CxxLinkableEnhancer.createCxxLinkableBuildRule(
-              cxxBuckConfig,
-              cxxPlatform,
-              params,
-              resolver,
-              sourcePathResolver,
-              ruleFinder,
-              linkRuleTarget,
-              Linker.LinkType.EXECUTABLE,
-              Optional.empty(),
-              linkOutput,
-              linkStyle,
-              thinLto,
-              deps,
-              cxxRuntimeType,
-              Optional.empty(),
-              ImmutableSet.of(),
-              NativeLinkableInput.builder()
-                  .setArgs(argsBuilder.build())
-                  .setFrameworks(frameworks)
-                  .setLibraries(libraries)
-                  .build());
-      resolver.addToIndex(cxxLink);
-    }
-    return cxxLink;
+    // Generate the final link rule.  We use the top-level target as the link rule's
+    // target, so that it corresponds to the actual binary we build.
+    return resolver.computeIfAbsentThrowing(
+        linkRuleTarget,
+        CxxLink.class,
+        target -> CxxLinkableEnhancer.createCxxLinkableBuildRule(
+            cxxBuckConfig,
+            cxxPlatform,
+            params,
+            resolver,
+            sourcePathResolver,
+            ruleFinder,
+            target,
+            Linker.LinkType.EXECUTABLE,
+            Optional.empty(),
+            linkOutput,
+            linkStyle,
+            thinLto,
+            deps,
+            cxxRuntimeType,
+            Optional.empty(),
+            ImmutableSet.of(),
+            NativeLinkableInput.builder()
+                .setArgs(argsBuilder.build())
+                .setFrameworks(frameworks)
+                .setLibraries(libraries)
+                .build()));
   }
 
   public static CxxStrip createCxxStripRule(
@@ -1140,23 +1125,18 @@ public class CxxDescriptionEnhancer {
         .copyReplacingDeclaredAndExtraDeps(
             Suppliers.ofInstance(ImmutableSortedSet.of(unstrippedBinaryRule)),
             Suppliers.ofInstance(ImmutableSortedSet.of()));
-    Optional<BuildRule> exisitingRule = resolver.getRuleOptional(stripRuleParams.getBuildTarget());
-    if (exisitingRule.isPresent()) {
-      Preconditions.checkArgument(exisitingRule.get() instanceof CxxStrip);
-      return (CxxStrip) exisitingRule.get();
-    } else {
-      CxxStrip cxxStrip = new CxxStrip(
-          stripRuleParams,
-          stripStyle,
-          Preconditions.checkNotNull(unstrippedBinaryRule.getSourcePathToOutput()),
-          cxxPlatform.getStrip(),
-          CxxDescriptionEnhancer.getBinaryOutputPath(
-              stripRuleParams.getBuildTarget(),
-              params.getProjectFilesystem(),
-              cxxPlatform.getBinaryExtension()));
-      resolver.addToIndex(cxxStrip);
-      return cxxStrip;
-    }
+    return resolver.computeIfAbsent(
+        stripRuleParams.getBuildTarget(),
+        CxxStrip.class,
+        target -> new CxxStrip(
+            stripRuleParams,
+            stripStyle,
+            Preconditions.checkNotNull(unstrippedBinaryRule.getSourcePathToOutput()),
+            cxxPlatform.getStrip(),
+            CxxDescriptionEnhancer.getBinaryOutputPath(
+                target,
+                params.getProjectFilesystem(),
+                cxxPlatform.getBinaryExtension())));
   }
 
   public static BuildRule createUberCompilationDatabase(
@@ -1324,19 +1304,16 @@ public class CxxDescriptionEnhancer {
       throws NoSuchBuildTargetException {
     BuildTarget target =
         createSharedLibrarySymlinkTreeTarget(buildTarget, cxxPlatform.getFlavor());
-    SymlinkTree tree = resolver.getRuleOptionalWithType(target, SymlinkTree.class).orElse(null);
-    if (tree == null) {
-      tree =
-          resolver.addToIndex(
-              createSharedLibrarySymlinkTree(
-                  ruleFinder,
-                  buildTarget,
-                  filesystem,
-                  cxxPlatform,
-                  deps,
-                  traverse));
-    }
-    return tree;
+    return resolver.computeIfAbsentThrowing(
+        target,
+        SymlinkTree.class,
+        treeTarget -> createSharedLibrarySymlinkTree(
+            ruleFinder,
+            buildTarget,
+            filesystem,
+            cxxPlatform,
+            deps,
+            traverse));
   }
 
   public static Flavor flavorForLinkableDepType(Linker.LinkableDepType linkableDepType) {
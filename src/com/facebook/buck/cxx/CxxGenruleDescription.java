@@ -756,26 +756,22 @@ public class CxxGenruleDescription
           CxxDescriptionEnhancer.createSharedLibrarySymlinkTreeTarget(
               buildTarget,
               cxxPlatform.getFlavor());
-      SymlinkTree symlinkTree =
-          resolver.getRuleOptionalWithType(symlinkTreeTarget, SymlinkTree.class).orElse(null);
-      if (symlinkTree == null) {
-        try {
-          symlinkTree =
-              resolver.addToIndex(
-                  CxxDescriptionEnhancer.createSharedLibrarySymlinkTree(
-                      new SourcePathRuleFinder(resolver),
-                      buildTarget,
-                      filesystem,
-                      cxxPlatform,
-                      rules,
-                      NativeLinkable.class::isInstance));
-        } catch (NoSuchBuildTargetException e) {
-          throw new MacroException(
-              String.format("cannot create shared library symlink tree: %s: %s", e, e.getMessage()),
-              e);
-        }
+      try {
+        return resolver.computeIfAbsentThrowing(
+            symlinkTreeTarget,
+            SymlinkTree.class,
+            target -> CxxDescriptionEnhancer.createSharedLibrarySymlinkTree(
+                new SourcePathRuleFinder(resolver),
+                buildTarget,
+                filesystem,
+                cxxPlatform,
+                rules,
+                NativeLinkable.class::isInstance));
+      } catch (NoSuchBuildTargetException e) {
+        throw new MacroException(
+            String.format("cannot create shared library symlink tree: %s: %s", e, e.getMessage()),
+            e);
       }
-      return symlinkTree;
     }
 
     /**
@@ -147,24 +147,23 @@ public final class CxxInferEnhancer {
     BuildRuleParams paramsWithInferFlavor =
         cleanParams.withAppendedFlavor(InferFlavors.INFER.get());
 
-    Optional<CxxInferComputeReport> existingRule = resolver.getRuleOptionalWithType(
-        paramsWithInferFlavor.getBuildTarget(), CxxInferComputeReport.class);
-    if (existingRule.isPresent()) {
-      return existingRule.get();
-    }
-
-    CxxInferAnalyze analysisRule = requireInferAnalyzeBuildRuleForCxxDescriptionArg(
-        cleanParams,
-        resolver,
-        cxxBuckConfig,
-        cxxPlatform,
-        args,
-        inferConfig,
-        sourceFilter);
-    return createInferReportRule(
-        paramsWithInferFlavor,
-        resolver,
-        analysisRule);
+    return resolver.computeIfAbsentThrowing(
+        paramsWithInferFlavor.getBuildTarget(),
+        CxxInferComputeReport.class,
+        target -> {
+          CxxInferAnalyze analysisRule = requireInferAnalyzeBuildRuleForCxxDescriptionArg(
+              cleanParams,
+              resolver,
+              cxxBuckConfig,
+              cxxPlatform,
+              args,
+              inferConfig,
+              sourceFilter);
+          return createInferReportRule(
+              paramsWithInferFlavor,
+              resolver,
+              analysisRule);
+        });
   }
 
   private static <T extends BuildRule> CxxInferCaptureAndAggregatingRules<T>
@@ -225,29 +224,28 @@ public final class CxxInferEnhancer {
         .paramsWithoutAnyInferFlavor(params)
         .withAppendedFlavor(inferAnalyze);
 
-    Optional<CxxInferAnalyze> existingRule = resolver.getRuleOptionalWithType(
-        paramsWithInferAnalyzeFlavor.getBuildTarget(), CxxInferAnalyze.class);
-    if (existingRule.isPresent()) {
-      return existingRule.get();
-    }
-
-    CxxInferCaptureAndAggregatingRules<CxxInferAnalyze> cxxInferCaptureAndAnalyzeRules =
-        requireTransitiveCaptureAndAggregatingRules(
-            params,
-            resolver,
-            cxxBuckConfig,
-            cxxPlatform,
-            args,
-            inferConfig,
-            sourceFilter,
-            inferAnalyze,
-            CxxInferAnalyze.class);
-
-    return createInferAnalyzeRule(
-        paramsWithInferAnalyzeFlavor,
-        resolver,
-        inferConfig,
-        cxxInferCaptureAndAnalyzeRules);
+    return resolver.computeIfAbsentThrowing(
+        paramsWithInferAnalyzeFlavor.getBuildTarget(),
+        CxxInferAnalyze.class,
+        target -> {
+          CxxInferCaptureAndAggregatingRules<CxxInferAnalyze> cxxInferCaptureAndAnalyzeRules =
+              requireTransitiveCaptureAndAggregatingRules(
+                  params,
+                  resolver,
+                  cxxBuckConfig,
+                  cxxPlatform,
+                  args,
+                  inferConfig,
+                  sourceFilter,
+                  inferAnalyze,
+                  CxxInferAnalyze.class);
+
+          return createInferAnalyzeRule(
+              paramsWithInferAnalyzeFlavor,
+              resolver,
+              inferConfig,
+              cxxInferCaptureAndAnalyzeRules);
+        });
   }
 
   public static CxxInferCaptureRulesAggregator
@@ -266,28 +264,27 @@ public final class CxxInferEnhancer {
         .paramsWithoutAnyInferFlavor(params)
         .withAppendedFlavor(inferCaptureOnly);
 
-    Optional<CxxInferCaptureRulesAggregator> existingRule = resolver.getRuleOptionalWithType(
-        paramsWithInferCaptureOnlyFlavor.getBuildTarget(), CxxInferCaptureRulesAggregator.class);
-    if (existingRule.isPresent()) {
-      return existingRule.get();
-    }
-
-    CxxInferCaptureAndAggregatingRules<CxxInferCaptureRulesAggregator>
-        cxxInferCaptureAndAnalyzeRules = requireTransitiveCaptureAndAggregatingRules(
-            params,
-            resolver,
-            cxxBuckConfig,
-            cxxPlatform,
-            args,
-            inferConfig,
-            sourceFilter,
-            inferCaptureOnly,
-            CxxInferCaptureRulesAggregator.class);
-
-    return createInferCaptureAggregatorRule(
-        paramsWithInferCaptureOnlyFlavor,
-        resolver,
-        cxxInferCaptureAndAnalyzeRules);
+    return resolver.computeIfAbsentThrowing(
+        paramsWithInferCaptureOnlyFlavor.getBuildTarget(),
+        CxxInferCaptureRulesAggregator.class,
+        target -> {
+          CxxInferCaptureAndAggregatingRules<CxxInferCaptureRulesAggregator>
+              cxxInferCaptureAndAnalyzeRules = requireTransitiveCaptureAndAggregatingRules(
+                  params,
+                  resolver,
+                  cxxBuckConfig,
+                  cxxPlatform,
+                  args,
+                  inferConfig,
+                  sourceFilter,
+                  inferCaptureOnly,
+                  CxxInferCaptureRulesAggregator.class);
+
+          return createInferCaptureAggregatorRule(
+              paramsWithInferCaptureOnlyFlavor,
+              resolver,
+              cxxInferCaptureAndAnalyzeRules);
+        });
   }
 
   private static <T extends BuildRule> ImmutableSet<T> requireTransitiveDependentLibraries(
@@ -208,23 +208,16 @@ public class CxxPrecompiledHeaderTemplate
   }
 
   public DependencyAggregation requireAggregatedDepsRule(CxxPlatform cxxPlatform) {
-    BuildTarget depAggTarget = createAggregatedDepsTarget(cxxPlatform);
-
-    Optional<DependencyAggregation> existingRule =
-        ruleResolver.getRuleOptionalWithType(depAggTarget, DependencyAggregation.class);
-    if (existingRule.isPresent()) {
-      return existingRule.get();
-    }
-
-    BuildRuleParams depAggParams = params
-        .withBuildTarget(depAggTarget)
-        .copyReplacingDeclaredAndExtraDeps(
-            Suppliers.ofInstance(getPreprocessDeps(cxxPlatform)),
-            Suppliers.ofInstance(ImmutableSortedSet.of()));
-
-    DependencyAggregation depAgg = new DependencyAggregation(depAggParams);
-    ruleResolver.addToIndex(depAgg);
-    return depAgg;
+    // Several libraries may share this template, and their rules may be created concurrently.
+    return ruleResolver.computeIfAbsent(
+        createAggregatedDepsTarget(cxxPlatform),
+        DependencyAggregation.class,
+        depAggTarget -> new DependencyAggregation(
+            params
+                .withBuildTarget(depAggTarget)
+                .copyReplacingDeclaredAndExtraDeps(
+                    Suppliers.ofInstance(getPreprocessDeps(cxxPlatform)),
+                    Suppliers.ofInstance(ImmutableSortedSet.of()))));
   }
 
   public PreprocessorDelegate buildPreprocessorDelegate(
@@ -239,31 +239,30 @@ abstract class DDescriptionUtils {
       SourcePath src,
       DIncludes includes)
       throws NoSuchBuildTargetException {
-    Optional<BuildRule> existingRule = buildRuleResolver.getRuleOptional(compileTarget);
-    if (existingRule.isPresent()) {
-      return (DCompileBuildRule) existingRule.get();
-    } else {
-      Tool compiler = dBuckConfig.getDCompiler();
+    return buildRuleResolver.computeIfAbsentThrowing(
+        compileTarget,
+        DCompileBuildRule.class,
+        target -> {
+          Tool compiler = dBuckConfig.getDCompiler();
 
-      Map<BuildTarget, DIncludes> transitiveIncludes = new TreeMap<>();
-      transitiveIncludes.put(baseParams.getBuildTarget(), includes);
-      for (Map.Entry<BuildTarget, DLibrary> library :
-           getTransitiveDLibraryRules(baseParams.getBuildDeps()).entrySet()) {
-        transitiveIncludes.put(library.getKey(), library.getValue().getIncludes());
-      }
+          Map<BuildTarget, DIncludes> transitiveIncludes = new TreeMap<>();
+          transitiveIncludes.put(baseParams.getBuildTarget(), includes);
+          for (Map.Entry<BuildTarget, DLibrary> library :
+               getTransitiveDLibraryRules(baseParams.getBuildDeps()).entrySet()) {
+            transitiveIncludes.put(library.getKey(), library.getValue().getIncludes());
+          }
 
-      ImmutableSortedSet.Builder<BuildRule> depsBuilder = ImmutableSortedSet.naturalOrder();
-      depsBuilder.addAll(compiler.getDeps(ruleFinder));
-      depsBuilder.addAll(ruleFinder.filterBuildRuleInputs(src));
-      for (DIncludes dIncludes : transitiveIncludes.values()) {
-        depsBuilder.addAll(dIncludes.getDeps(ruleFinder));
-      }
-      ImmutableSortedSet<BuildRule> deps = depsBuilder.build();
+          ImmutableSortedSet.Builder<BuildRule> depsBuilder = ImmutableSortedSet.naturalOrder();
+          depsBuilder.addAll(compiler.getDeps(ruleFinder));
+          depsBuilder.addAll(ruleFinder.filterBuildRuleInputs(src));
+          for (DIncludes dIncludes : transitiveIncludes.values()) {
+            depsBuilder.addAll(dIncludes.getDeps(ruleFinder));
+          }
+          ImmutableSortedSet<BuildRule> deps = depsBuilder.build();
 
-      return buildRuleResolver.addToIndex(
-          new DCompileBuildRule(
+          return new DCompileBuildRule(
               baseParams
-                  .withBuildTarget(compileTarget)
+                  .withBuildTarget(target)
                   .copyReplacingDeclaredAndExtraDeps(
                       Suppliers.ofInstance(deps),
                       Suppliers.ofInstance(ImmutableSortedSet.of())),
@@ -274,8 +273,8 @@ abstract class DDescriptionUtils {
                   .build(),
               name,
               ImmutableSortedSet.of(src),
-              ImmutableList.copyOf(transitiveIncludes.values())));
-    }
+              ImmutableList.copyOf(transitiveIncludes.values()));
+        });
   }
 
   /**
@@ -293,6 +293,10 @@ public class DistBuildSlaveExecutor {
               engineConfig.getBuildDepFiles(),
               engineConfig.getBuildMaxDepFileCacheEntries(),
               engineConfig.getBuildArtifactCacheSizeLimit(),
+              engineConfig.getBuildArtifactCacheFetchBatchSize(),
+              engineConfig.getBuildArtifactCachePrefetchConcurrency(),
+              engineConfig.getBuildArtifactCachePrefetchSizeLimit(),
+              engineConfig.getBuildArtifactCacheStreamingFetch(),
               Preconditions.checkNotNull(actionGraphAndResolver).getResolver(),
               engineConfig.getResourceAwareSchedulingInfo(),
               RuleKeyFactories.of(
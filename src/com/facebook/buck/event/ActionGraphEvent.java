@@ -90,6 +90,10 @@ public abstract class ActionGraphEvent
       return new MissWithTargetGraphHashMatch();
     }
 
+    public static Eviction eviction(int evictedEntries, long evictedEstimatedBytes) {
+      return new Eviction(evictedEntries, evictedEstimatedBytes);
+    }
+
     public static class Hit extends Cache {
       public Hit() {
         super("ActionGraphCacheHit");
@@ -110,6 +114,16 @@ public abstract class ActionGraphEvent
       }
     }
 
+    public static class Eviction extends Cache {
+      public final int evictedEntries;
+      public final long evictedEstimatedBytes;
+      public Eviction(int evictedEntries, long evictedEstimatedBytes) {
+        super("ActionGraphCacheEviction");
+        this.evictedEntries = evictedEntries;
+        this.evictedEstimatedBytes = evictedEstimatedBytes;
+      }
+    }
+
     @Override
     public String getEventName() {
       return eventName;
@@ -22,6 +22,8 @@ import com.google.common.base.CaseFormat;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableSet;
 
+import java.util.Optional;
+
 public abstract class ArtifactCompressionEvent
     extends AbstractBuckEvent
     implements LeafEvent, WorkAdvanceEvent {
@@ -69,7 +71,21 @@ public abstract class ArtifactCompressionEvent
   }
 
   public static Finished finished(Started started) {
-    return new Finished(started);
+    return new Finished(started, Optional.empty(), Optional.empty());
+  }
+
+  /**
+   * @param uncompressedSizeBytes the combined size of the files in the artifact.
+   * @param compressedSizeBytes the size of the artifact itself.
+   */
+  public static Finished finished(
+      Started started,
+      long uncompressedSizeBytes,
+      long compressedSizeBytes) {
+    return new Finished(
+        started,
+        Optional.of(uncompressedSizeBytes),
+        Optional.of(compressedSizeBytes));
   }
 
   public static class Started extends ArtifactCompressionEvent {
@@ -85,9 +101,40 @@ public abstract class ArtifactCompressionEvent
   }
 
   public static class Finished extends ArtifactCompressionEvent {
+    @JsonIgnore
+    private final Started started;
+    private final Optional<Long> uncompressedSizeBytes;
+    private final Optional<Long> compressedSizeBytes;
+
     protected Finished(
-        Started started) {
+        Started started,
+        Optional<Long> uncompressedSizeBytes,
+        Optional<Long> compressedSizeBytes) {
       super(started.getEventKey(), started.getOperation(), started.getRuleKeys());
+      this.started = started;
+      this.uncompressedSizeBytes = uncompressedSizeBytes;
+      this.compressedSizeBytes = compressedSizeBytes;
+    }
+
+    public Optional<Long> getUncompressedSizeBytes() {
+      return uncompressedSizeBytes;
+    }
+
+    public Optional<Long> getCompressedSizeBytes() {
+      return compressedSizeBytes;
+    }
+
+    /**
+     * @return the user CPU time spent on the operation, if it was measured and the operation
+     *     started and finished on the same thread.
+     */
+    public Optional<Long> getCpuTimeNanos() {
+      if (!isConfigured() || !started.isConfigured() ||
+          getThreadId() != started.getThreadId() ||
+          getThreadUserNanoTime() < 0 || started.getThreadUserNanoTime() < 0) {
+        return Optional.empty();
+      }
+      return Optional.of(getThreadUserNanoTime() - started.getThreadUserNanoTime());
     }
 
     @Override
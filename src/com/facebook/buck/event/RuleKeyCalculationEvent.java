@@ -34,6 +34,7 @@ public interface RuleKeyCalculationEvent extends LeafEvent, WorkAdvanceEvent {
     INPUT("input_rule_key_calc"),
     DEP_FILE("dep_file_rule_key_calc"),
     MANIFEST("manifest_rule_key_calc"),
+    PARALLEL("parallel_rule_key_calc"),
 
     ;
 
@@ -44,6 +44,8 @@ import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleEvent;
 import com.facebook.buck.rules.TestSummaryEvent;
+import com.facebook.buck.rules.keys.RuleKeyProfileEvent;
+import com.facebook.buck.rules.keys.RuleKeyTypeProfile;
 import com.facebook.buck.step.StepEvent;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.BestCompressionGZIPOutputStream;
@@ -474,6 +476,18 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         miss);
   }
 
+  @Subscribe
+  public void actionGraphCacheEviction(ActionGraphEvent.Cache.Eviction eviction) {
+    writeChromeTraceEvent(
+        "buck",
+        "action_graph_cache",
+        ChromeTraceEvent.Phase.IMMEDIATE,
+        ImmutableMap.of(
+            "evictedEntries", String.valueOf(eviction.evictedEntries),
+            "evictedEstimatedBytes", String.valueOf(eviction.evictedEstimatedBytes)),
+        eviction);
+  }
+
   @Subscribe
   public void installStarted(InstallEvent.Started started) {
     writeChromeTraceEvent(
@@ -575,7 +589,20 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   @Subscribe
   public void artifactCompressionFinished(ArtifactCompressionEvent.Finished finished) {
-    writeArtifactCompressionEvent(finished, ChromeTraceEvent.Phase.END);
+    ImmutableMap.Builder<String, String> args = ImmutableMap.builder();
+    args.put("rule_key", Joiner.on(", ").join(finished.getRuleKeys()));
+    finished.getUncompressedSizeBytes().ifPresent(
+        size -> args.put("uncompressed_size_bytes", String.valueOf(size)));
+    finished.getCompressedSizeBytes().ifPresent(
+        size -> args.put("compressed_size_bytes", String.valueOf(size)));
+    finished.getCpuTimeNanos().ifPresent(
+        nanos -> args.put("cpu_time_ms", String.valueOf(TimeUnit.NANOSECONDS.toMillis(nanos))));
+    writeChromeTraceEvent(
+        "buck",
+        finished.getCategory(),
+        ChromeTraceEvent.Phase.END,
+        args.build(),
+        finished);
   }
 
   public void writeArtifactCompressionEvent(
@@ -776,6 +803,28 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         finished);
   }
 
+  @Subscribe
+  public void ruleKeyProfile(RuleKeyProfileEvent event) {
+    ImmutableMap.Builder<String, String> timeMs = ImmutableMap.builder();
+    ImmutableMap.Builder<String, String> hashedKb = ImmutableMap.builder();
+    for (RuleKeyTypeProfile type : event.getProfile()) {
+      timeMs.put(type.getRuleType(), Long.toString(TimeUnit.NANOSECONDS.toMillis(type.getNanos())));
+      hashedKb.put(type.getRuleType(), Long.toString(SizeUnit.BYTES.toKilobytes(type.getBytes())));
+    }
+    writeChromeTraceEvent(
+        "perf",
+        "rule_key_time_ms",
+        ChromeTraceEvent.Phase.COUNTER,
+        timeMs.build(),
+        event);
+    writeChromeTraceEvent(
+        "perf",
+        "rule_key_hashed_kb",
+        ChromeTraceEvent.Phase.COUNTER,
+        hashedKb.build(),
+        event);
+  }
+
   private void writeChromeTraceEvent(String category,
       String name,
       ChromeTraceEvent.Phase phase,
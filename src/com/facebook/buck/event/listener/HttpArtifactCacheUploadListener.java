@@ -47,6 +47,8 @@ public class HttpArtifactCacheUploadListener implements BuckEventListener {
   private int artifactCount;
   private long totalUploadedBytes;
   private long totalNetworkTimeMillis;
+  private int droppedArtifactCount;
+  private long totalDroppedBytes;
 
   public HttpArtifactCacheUploadListener (BuckEventBus eventBus, int uploadThreadCount) {
     this.eventBus = eventBus;
@@ -60,6 +62,8 @@ public class HttpArtifactCacheUploadListener implements BuckEventListener {
     this.artifactCount = 0;
     this.totalUploadedBytes = 0;
     this.totalNetworkTimeMillis = -1;
+    this.droppedArtifactCount = 0;
+    this.totalDroppedBytes = 0;
   }
 
   @Subscribe
@@ -84,9 +88,13 @@ public class HttpArtifactCacheUploadListener implements BuckEventListener {
     }
 
     --outstandingUploads;
-    ++artifactCount;
-    if (event.getStoreData().getArtifactSizeBytes().isPresent()) {
-      totalUploadedBytes += event.getStoreData().getArtifactSizeBytes().get();
+    long artifactSizeBytes = event.getStoreData().getArtifactSizeBytes().orElse(0L);
+    if (event.getStoreData().wasStoreDropped().orElse(false)) {
+      ++droppedArtifactCount;
+      totalDroppedBytes += artifactSizeBytes;
+    } else {
+      ++artifactCount;
+      totalUploadedBytes += artifactSizeBytes;
     }
     lastUploadFinishMillis = event.getTimestamp();
     if (outstandingUploads == 0) {
@@ -103,7 +111,8 @@ public class HttpArtifactCacheUploadListener implements BuckEventListener {
   }
 
   private synchronized void sendCounterSnapshotIfFinished() {
-    if (!hasCounterBeenSent  && artifactCount > 0 && outstandingUploads == 0 &&
+    if (!hasCounterBeenSent && artifactCount + droppedArtifactCount > 0 &&
+        outstandingUploads == 0 &&
         buildFinishMillis != -1) {
       hasCounterBeenSent = true;
       CounterSnapshot snapshot = generateCounterSnapshot().build();
@@ -117,7 +126,9 @@ public class HttpArtifactCacheUploadListener implements BuckEventListener {
         .setCategory("buck_http_cache_upload_stats")
         .putValues("upload_thread_count", uploadThreadCount)
         .putValues("artifact_count", artifactCount)
-        .putValues("total_uploaded_bytes", totalUploadedBytes);
+        .putValues("total_uploaded_bytes", totalUploadedBytes)
+        .putValues("dropped_artifact_count", droppedArtifactCount)
+        .putValues("total_dropped_bytes", totalDroppedBytes);
 
     if (totalNetworkTimeMillis != -1) {
       builder.putValues("total_network_time_millis", totalNetworkTimeMillis);
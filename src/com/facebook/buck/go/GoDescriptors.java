@@ -25,7 +25,6 @@ import com.facebook.buck.model.BuildTargets;
 import com.facebook.buck.model.Flavor;
 import com.facebook.buck.model.InternalFlavor;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
-import com.facebook.buck.rules.BinaryBuildRule;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleParams;
 import com.facebook.buck.rules.BuildRuleResolver;
@@ -263,44 +262,42 @@ abstract class GoDescriptors {
     // doesn't vary per test.
     BuildTarget generatorTarget = sourceParams.getBuildTarget()
         .withFlavors(InternalFlavor.of("make-test-main-gen"));
-    Optional<BuildRule> generator = resolver.getRuleOptional(generatorTarget);
-    if (generator.isPresent()) {
-      return ((BinaryBuildRule) generator.get()).getExecutableCommand();
-    }
-
-    BuildTarget generatorSourceTarget =
-        sourceParams.getBuildTarget()
-            .withAppendedFlavors(InternalFlavor.of("test-main-gen-source"));
-    WriteFile writeFile =
-        resolver.addToIndex(
-            new WriteFile(
-                sourceParams
-                    .withBuildTarget(generatorSourceTarget)
-                    .copyReplacingDeclaredAndExtraDeps(
-                        Suppliers.ofInstance(ImmutableSortedSet.of()),
-                        Suppliers.ofInstance(ImmutableSortedSet.of())),
-                extractTestMainGenerator(),
-                BuildTargets.getGenPath(
-                    sourceParams.getProjectFilesystem(),
-                    generatorSourceTarget,
-                    "%s/main.go"),
-                /* executable */ false));
-
-    GoBinary binary =
-        resolver.addToIndex(
-            createGoBinaryRule(
-                sourceParams
-                    .withBuildTarget(generatorTarget)
-                    .copyReplacingDeclaredAndExtraDeps(
-                        Suppliers.ofInstance(ImmutableSortedSet.of()),
-                        Suppliers.ofInstance(ImmutableSortedSet.of(writeFile))),
-                resolver,
-                goBuckConfig,
-                ImmutableSet.of(writeFile.getSourcePathToOutput()),
-                ImmutableList.of(),
-                ImmutableList.of(),
-                ImmutableList.of(),
-                goBuckConfig.getDefaultPlatform()));
+    GoBinary binary = resolver.computeIfAbsentThrowing(
+        generatorTarget,
+        GoBinary.class,
+        target -> {
+          BuildTarget generatorSourceTarget =
+              sourceParams.getBuildTarget()
+                  .withAppendedFlavors(InternalFlavor.of("test-main-gen-source"));
+          WriteFile writeFile =
+              resolver.addToIndex(
+                  new WriteFile(
+                      sourceParams
+                          .withBuildTarget(generatorSourceTarget)
+                          .copyReplacingDeclaredAndExtraDeps(
+                              Suppliers.ofInstance(ImmutableSortedSet.of()),
+                              Suppliers.ofInstance(ImmutableSortedSet.of())),
+                      extractTestMainGenerator(),
+                      BuildTargets.getGenPath(
+                          sourceParams.getProjectFilesystem(),
+                          generatorSourceTarget,
+                          "%s/main.go"),
+                      /* executable */ false));
+
+          return createGoBinaryRule(
+              sourceParams
+                  .withBuildTarget(target)
+                  .copyReplacingDeclaredAndExtraDeps(
+                      Suppliers.ofInstance(ImmutableSortedSet.of()),
+                      Suppliers.ofInstance(ImmutableSortedSet.of(writeFile))),
+              resolver,
+              goBuckConfig,
+              ImmutableSet.of(writeFile.getSourcePathToOutput()),
+              ImmutableList.of(),
+              ImmutableList.of(),
+              ImmutableList.of(),
+              goBuckConfig.getDefaultPlatform());
+        });
     return binary.getExecutableCommand();
   }
 
@@ -104,24 +104,27 @@ public class GwtBinaryDescription implements Description<GwtBinaryDescription.Ar
             JavaLibrary.GWT_MODULE_FLAVOR);
         Optional<BuildRule> gwtModule = resolver.getRuleOptional(gwtModuleTarget);
         if (!gwtModule.isPresent() && javaLibrary.getSourcePathToOutput() != null) {
-          ImmutableSortedSet<SourcePath> filesForGwtModule =
-              ImmutableSortedSet.<SourcePath>naturalOrder()
-                  .addAll(javaLibrary.getSources())
-                  .addAll(javaLibrary.getResources())
-                  .build();
-          ImmutableSortedSet<BuildRule> deps =
-              ImmutableSortedSet.copyOf(ruleFinder.filterBuildRuleInputs(filesForGwtModule));
-
-          BuildRule module = resolver.addToIndex(
-              new GwtModule(
-                  params
-                      .withBuildTarget(gwtModuleTarget)
-                      .copyReplacingDeclaredAndExtraDeps(
-                          Suppliers.ofInstance(deps),
-                          Suppliers.ofInstance(ImmutableSortedSet.of())),
-                  ruleFinder,
-                  filesForGwtModule));
-          gwtModule = Optional.of(module);
+          // Other gwt_binary rules may depend on the same library, so the module is shared.
+          gwtModule = Optional.of(resolver.computeIfAbsent(
+              gwtModuleTarget,
+              moduleTarget -> {
+                ImmutableSortedSet<SourcePath> filesForGwtModule =
+                    ImmutableSortedSet.<SourcePath>naturalOrder()
+                        .addAll(javaLibrary.getSources())
+                        .addAll(javaLibrary.getResources())
+                        .build();
+                ImmutableSortedSet<BuildRule> deps =
+                    ImmutableSortedSet.copyOf(ruleFinder.filterBuildRuleInputs(filesForGwtModule));
+
+                return new GwtModule(
+                    params
+                        .withBuildTarget(moduleTarget)
+                        .copyReplacingDeclaredAndExtraDeps(
+                            Suppliers.ofInstance(deps),
+                            Suppliers.ofInstance(ImmutableSortedSet.of())),
+                    ruleFinder,
+                    filesForGwtModule);
+              }));
         }
 
         // Note that gwtModule could be absent if javaLibrary is a rule with no srcs of its own,
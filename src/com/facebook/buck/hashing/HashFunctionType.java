@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.hashing;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * The hash functions files can be hashed and rule keys computed with.
+ */
+public enum HashFunctionType {
+  /**
+   * The default, which every machine sharing artifacts or taking part in a distributed build must
+   * use.
+   */
+  SHA1(Hashing.sha1()),
+
+  /**
+   * A much faster, non-cryptographic 128-bit hash. Only suitable for keys that never leave the
+   * machine, since other machines compute theirs with {@link #SHA1}.
+   */
+  MURMUR3_128(Hashing.murmur3_128()),
+  ;
+
+  private final HashFunction hashFunction;
+
+  HashFunctionType(HashFunction hashFunction) {
+    this.hashFunction = hashFunction;
+  }
+
+  public HashFunction getHashFunction() {
+    return hashFunction;
+  }
+}
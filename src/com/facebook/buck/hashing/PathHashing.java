@@ -38,12 +38,28 @@ public class PathHashing {
       ProjectFileHashLoader fileHashLoader,
       ProjectFilesystem projectFilesystem,
       Path root) throws IOException {
+    return hashPath(
+        hasher,
+        fileHashLoader,
+        root,
+        ImmutableSortedSet.copyOf(projectFilesystem.getFilesUnderPath(root)));
+  }
+
+  /**
+   * Like {@link #hashPath(Hasher, ProjectFileHashLoader, ProjectFilesystem, Path)}, for callers
+   * that already listed the files under {@code root}.
+   */
+  public static ImmutableSet<Path> hashPath(
+      Hasher hasher,
+      ProjectFileHashLoader fileHashLoader,
+      Path root,
+      ImmutableSortedSet<Path> filesUnderRoot) throws IOException {
     Preconditions.checkArgument(
         !root.equals(EMPTY_PATH),
         "Path to hash (%s) must not be empty",
         root);
     ImmutableSet.Builder<Path> children = ImmutableSet.builder();
-    for (Path path : ImmutableSortedSet.copyOf(projectFilesystem.getFilesUnderPath(root))) {
+    for (Path path : filesUnderRoot) {
       StringHashing.hashStringAndLength(hasher, MorePaths.pathWithUnixSeparators(path));
       if (!root.equals(path)) {
         children.add(root.relativize(path));
@@ -190,16 +190,12 @@ public class HaskellDescriptionUtils {
 
     BuildTarget target = getCompileBuildTarget(params.getBuildTarget(), cxxPlatform, depType);
 
-    // If this rule has already been generated, return it.
-    Optional<HaskellCompileRule> existing =
-        resolver.getRuleOptionalWithType(target, HaskellCompileRule.class);
-    if (existing.isPresent()) {
-      return existing.get();
-    }
-
-    return resolver.addToIndex(
-        HaskellDescriptionUtils.createCompileRule(
-            target,
+    // Create the rule unless it has already been generated.
+    return resolver.computeIfAbsentThrowing(
+        target,
+        HaskellCompileRule.class,
+        compileTarget -> HaskellDescriptionUtils.createCompileRule(
+            compileTarget,
             params,
             resolver,
             ruleFinder,
@@ -184,13 +184,11 @@ public class HaskellLibraryDescription implements
                 Type.STATIC.getFlavor() :
                 Type.STATIC_PIC.getFlavor(),
             cxxPlatform.getFlavor());
-    Optional<Archive> archive = resolver.getRuleOptionalWithType(target, Archive.class);
-    if (archive.isPresent()) {
-      return archive.get();
-    }
-    return resolver.addToIndex(
-        createStaticLibrary(
-            target,
+    return resolver.computeIfAbsentThrowing(
+        target,
+        Archive.class,
+        archiveTarget -> createStaticLibrary(
+            archiveTarget,
             baseParams,
             resolver,
             pathResolver,
@@ -299,13 +297,18 @@ public class HaskellLibraryDescription implements
       default:
         throw new IllegalStateException();
     }
-    Optional<HaskellPackageRule> packageRule =
-        resolver.getRuleOptionalWithType(target, HaskellPackageRule.class);
-    if (packageRule.isPresent()) {
-      return packageRule.get();
-    }
-    return resolver.addToIndex(createPackage(
-        target, baseParams, resolver, pathResolver, ruleFinder, cxxPlatform, args, depType));
+    return resolver.computeIfAbsentThrowing(
+        target,
+        HaskellPackageRule.class,
+        packageTarget -> createPackage(
+            packageTarget,
+            baseParams,
+            resolver,
+            pathResolver,
+            ruleFinder,
+            cxxPlatform,
+            args,
+            depType));
   }
 
   private HaskellLinkRule createSharedLibrary(
@@ -356,13 +359,17 @@ public class HaskellLibraryDescription implements
             .isEmpty());
     BuildTarget target =
         baseTarget.withAppendedFlavors(Type.SHARED.getFlavor(), cxxPlatform.getFlavor());
-    Optional<HaskellLinkRule> linkRule =
-        resolver.getRuleOptionalWithType(target, HaskellLinkRule.class);
-    if (linkRule.isPresent()) {
-      return linkRule.get();
-    }
-    return resolver.addToIndex(createSharedLibrary(
-        target, baseParams, resolver, pathResolver, ruleFinder, cxxPlatform, args));
+    return resolver.computeIfAbsentThrowing(
+        target,
+        HaskellLinkRule.class,
+        linkTarget -> createSharedLibrary(
+            linkTarget,
+            baseParams,
+            resolver,
+            pathResolver,
+            ruleFinder,
+            cxxPlatform,
+            args));
   }
 
   @Override
@@ -86,6 +86,30 @@ abstract class AbstractBuckPaths {
     return getBuckOut().resolve("cache");
   }
 
+  /**
+   * The file the daemon persists file hashes to, so they survive daemon restarts.
+   */
+  @Value.Derived
+  public Path getFileHashCacheFile() {
+    return getBuckOut().resolve(".filehashes");
+  }
+
+  /**
+   * The database the daemon persists rule keys to, so they survive daemon restarts.
+   */
+  @Value.Derived
+  public Path getRuleKeyCacheDir() {
+    return getBuckOut().resolve(".rulekeys");
+  }
+
+  /**
+   * The raw output of parsing build files, persisted so that it survives across invocations.
+   */
+  @Value.Derived
+  public Path getParseCacheDir() {
+    return getBuckOut().resolve(".parsecache");
+  }
+
   @Value.Derived
   public Path getTmpDir() {
     return getBuckOut().resolve("tmp");
@@ -25,6 +25,7 @@ import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.facebook.buck.zip.CustomZipEntry;
 import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.ZipCompressionLevel;
 import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
@@ -43,6 +44,7 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.UnmodifiableIterator;
 import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
 import java.io.BufferedInputStream;
@@ -88,6 +90,7 @@ import java.util.Set;
 import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
 
 import javax.annotation.Nullable;
 
@@ -987,10 +990,37 @@ public class ProjectFilesystem {
    * with the contents and structure that matches that of the specified paths.
    */
   public void createZip(Collection<Path> pathsToIncludeInZip, Path out) throws IOException {
+    createZip(pathsToIncludeInZip, out, ZipCompressionLevel.DEFAULT_COMPRESSION_LEVEL.getValue());
+  }
+
+  /**
+   * Like {@link #createZip(Collection, Path)}, but compresses files with the given deflate
+   * {@code compressionLevel}. A level of 0 stores files uncompressed.
+   */
+  public void createZip(
+      Collection<Path> pathsToIncludeInZip,
+      Path out,
+      int compressionLevel) throws IOException {
     try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(out)) {
       for (Path path : pathsToIncludeInZip) {
         boolean isDirectory = isDirectory(path);
         CustomZipEntry entry = new CustomZipEntry(path, isDirectory);
+        if (!isDirectory) {
+          entry.setCompressionLevel(compressionLevel);
+          // Stored entries have no data descriptor, so their size and CRC must be known upfront.
+          if (entry.getMethod() == ZipEntry.STORED) {
+            long size = getFileSize(path);
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(
+                new ByteSource() {
+                  @Override
+                  public InputStream openStream() throws IOException {
+                    return newFileInputStream(path);
+                  }
+                }.hash(Hashing.crc32()).padToLong());
+          }
+        }
 
         // We want deterministic ZIPs, so avoid mtimes.
         entry.setFakeTime();
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.json;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * Evaluates the {@code glob()} calls of build files on behalf of the build file parser, so that
+ * results can be shared between build files and parser processes.
+ */
+public interface GlobService {
+
+  /**
+   * @param searchBase absolute path of the directory the patterns are relative to.
+   * @return the matching files relative to {@code searchBase}, or {@link Optional#empty()} if the
+   *     glob has to be evaluated by the build file parser itself.
+   */
+  Optional<ImmutableSortedSet<String>> glob(
+      Path searchBase,
+      ImmutableList<String> includes,
+      ImmutableList<String> excludes,
+      boolean includeDotfiles) throws IOException;
+}
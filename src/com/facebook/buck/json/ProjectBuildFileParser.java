@@ -45,6 +45,7 @@ import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Maps;
 
 import org.immutables.value.Value;
@@ -97,6 +98,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
   private boolean isClosed;
 
   private boolean enableProfiling;
+  private Optional<GlobService> globService = Optional.empty();
   @Nullable private FutureTask<Void> stderrConsumerTerminationFuture;
   @Nullable private Thread stderrConsumerThread;
   @Nullable private ProjectBuildFileParseEvents.Started projectBuildFileParseEventStarted;
@@ -161,6 +163,15 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.enableProfiling = enableProfiling;
   }
 
+  /**
+   * Has the build file parser hand its globs to {@code globService} instead of evaluating them.
+   */
+  public void setGlobService(GlobService globService) {
+    ensureNotClosed();
+    ensureNotInitialized();
+    this.globService = Optional.of(globService);
+  }
+
   @VisibleForTesting
   public boolean isClosed() {
     return isClosed;
@@ -295,6 +306,10 @@ public class ProjectBuildFileParser implements AutoCloseable {
       argBuilder.add("--use_mercurial_glob");
     }
 
+    if (globService.isPresent()) {
+      argBuilder.add("--use_java_glob");
+    }
+
     // Add the --build_file_import_whitelist flags.
     for (String module : options.getBuildFileImportWhitelist()) {
       argBuilder.add("--build_file_import_whitelist");
@@ -340,8 +355,8 @@ public class ProjectBuildFileParser implements AutoCloseable {
       throws BuildFileParseException, InterruptedException {
     ImmutableList<Map<String, Object>> result = getAllRulesAndMetaRules(buildFile);
 
-    // Strip out the __includes, __configs, and __env meta rules, which are the last rules.
-    return Collections.unmodifiableList(result.subList(0, result.size() - 3));
+    // Strip out the __includes, __configs, __env and __globs meta rules, which are the last rules.
+    return Collections.unmodifiableList(result.subList(0, result.size() - 4));
   }
 
   /**
@@ -395,13 +410,14 @@ public class ProjectBuildFileParser implements AutoCloseable {
       buckPyStdinWriter.flush();
 
       LOG.verbose("Parsing output of process %s...", buckPyProcess);
-      Object deserializedValue;
-      try {
-        deserializedValue = bserDeserializer.deserializeBserValue(
-            buckPyProcess.getInputStream());
-      } catch (BserDeserializer.BserEofException e) {
-        LOG.warn(e, "Parser exited while decoding BSER data");
-        throw new IOException("Parser exited unexpectedly", e);
+      Object deserializedValue = readValue(buckPyProcess);
+      // The parser asks us to evaluate its globs before sending the result.
+      while (isGlobRequest(deserializedValue)) {
+        bserSerializer.serializeToStream(
+            handleGlobRequest((Map<?, ?>) deserializedValue),
+            buckPyStdinWriter);
+        buckPyStdinWriter.flush();
+        deserializedValue = readValue(buckPyProcess);
       }
       BuildFilePythonResult resultObject = handleDeserializedValue(deserializedValue);
       Path buckPyPath = getPathToBuckPy(options.getDescriptions());
@@ -424,6 +440,42 @@ public class ProjectBuildFileParser implements AutoCloseable {
     }
   }
 
+  @Nullable
+  private Object readValue(ProcessExecutor.LaunchedProcess process) throws IOException {
+    try {
+      return bserDeserializer.deserializeBserValue(process.getInputStream());
+    } catch (BserDeserializer.BserEofException e) {
+      LOG.warn(e, "Parser exited while decoding BSER data");
+      throw new IOException("Parser exited unexpectedly", e);
+    }
+  }
+
+  private static boolean isGlobRequest(@Nullable Object deserializedValue) {
+    return deserializedValue instanceof Map<?, ?> &&
+        "glob".equals(((Map<?, ?>) deserializedValue).get("type"));
+  }
+
+  /**
+   * @return the matching paths, or an empty map if the parser should evaluate the glob itself.
+   */
+  @SuppressWarnings("unchecked")
+  private ImmutableMap<String, Object> handleGlobRequest(Map<?, ?> request) throws IOException {
+    Preconditions.checkState(globService.isPresent());
+    Optional<ImmutableSortedSet<String>> results;
+    try {
+      results = globService.get().glob(
+          Paths.get((String) request.get("searchBase")),
+          ImmutableList.copyOf((List<String>) request.get("includes")),
+          ImmutableList.copyOf((List<String>) request.get("excludes")),
+          (Boolean) request.get("includeDotfiles"));
+    } catch (ClassCastException | NullPointerException e) {
+      throw new IOException("Invalid glob request", e);
+    }
+    return results.isPresent() ?
+        ImmutableMap.of("results", results.get().asList()) :
+        ImmutableMap.of();
+  }
+
   @SuppressWarnings("unchecked")
   private static BuildFilePythonResult handleDeserializedValue(@Nullable Object deserializedValue)
       throws IOException {
@@ -11,6 +11,7 @@ from pathlib import Path, PurePath
 from pywatchman import bser, WatchmanError
 from contextlib import contextmanager, nested
 from .glob_internal import glob_internal
+from .glob_java import JavaGlobClient
 from .glob_mercurial import glob_mercurial_manifest, load_mercurial_repo_info
 from .glob_watchman import SyncCookieState, glob_watchman
 from .util import Diagnostic, cygwin_adjusted_path, get_caller_frame, is_special, is_in_dir
@@ -112,13 +113,14 @@ class BuildFileContext(AbstractContext):
     def __init__(self, project_root, base_path, dirname, autodeps, allow_empty_globs, ignore_paths,
                  watchman_client, watchman_watch_root, watchman_project_prefix,
                  sync_cookie_state, watchman_glob_stat_results,
-                 watchman_use_glob_generator, use_mercurial_glob):
+                 watchman_use_glob_generator, use_mercurial_glob, glob_client=None):
         self.globals = {}
         self._includes = set()
         self._used_configs = {}
         self._used_env_vars = {}
         self._diagnostics = []
         self.rules = {}
+        self.globs = []
 
         self.project_root = project_root
         self.base_path = base_path
@@ -133,6 +135,7 @@ class BuildFileContext(AbstractContext):
         self.watchman_glob_stat_results = watchman_glob_stat_results
         self.watchman_use_glob_generator = watchman_use_glob_generator
         self.use_mercurial_glob = use_mercurial_glob
+        self.glob_client = glob_client
 
     @property
     def includes(self):
@@ -343,6 +346,9 @@ def glob(includes, excludes=None, include_dotfiles=False, build_env=None, search
 
     if search_base is None:
         search_base = Path(build_env.dirname)
+    # Record the glob, so that cached parse results can be checked against the directories it
+    # searched.
+    build_env.globs.append({'search_base': str(search_base), 'includes': list(includes)})
     mercurial_repo_info = load_mercurial_repo_info(build_env, search_base, allow_safe_import)
 
     results = None
@@ -352,19 +358,22 @@ def glob(includes, excludes=None, include_dotfiles=False, build_env=None, search
         results = glob_mercurial_manifest(
             includes, excludes, build_env.ignore_paths, include_dotfiles, search_base,
             build_env.project_root, mercurial_repo_info)
-    elif build_env.watchman_client:
-        results = glob_watchman(
-            includes,
-            excludes,
-            include_dotfiles,
-            build_env.base_path,
-            build_env.watchman_watch_root,
-            build_env.watchman_project_prefix,
-            build_env.sync_cookie_state,
-            build_env.watchman_client,
-            build_env.diagnostics,
-            build_env.watchman_glob_stat_results,
-            build_env.watchman_use_glob_generator)
+    else:
+        if build_env.glob_client:
+            results = build_env.glob_client.glob(includes, excludes, include_dotfiles, search_base)
+        if results is None and build_env.watchman_client:
+            results = glob_watchman(
+                includes,
+                excludes,
+                include_dotfiles,
+                build_env.base_path,
+                build_env.watchman_watch_root,
+                build_env.watchman_project_prefix,
+                build_env.sync_cookie_state,
+                build_env.watchman_client,
+                build_env.diagnostics,
+                build_env.watchman_glob_stat_results,
+                build_env.watchman_use_glob_generator)
 
     if results is None:
         results = glob_internal(
@@ -518,7 +527,7 @@ class BuildFileProcessor(object):
                  watchman_use_glob_generator, use_mercurial_glob,
                  project_import_whitelist=None, implicit_includes=None,
                  extra_funcs=None, configs=None, env_vars=None,
-                 ignore_paths=None):
+                 ignore_paths=None, glob_client=None):
         if project_import_whitelist is None:
             project_import_whitelist = []
         if implicit_includes is None:
@@ -549,6 +558,7 @@ class BuildFileProcessor(object):
         self._configs = configs
         self._env_vars = env_vars
         self._ignore_paths = ignore_paths
+        self._glob_client = glob_client
 
         lazy_functions = {}
         for func in BUILD_FUNCTIONS + extra_funcs:
@@ -995,7 +1005,8 @@ class BuildFileProcessor(object):
             self._sync_cookie_state,
             self._watchman_glob_stat_results,
             self._watchman_use_glob_generator,
-            self._use_mercurial_glob)
+            self._use_mercurial_glob,
+            self._glob_client)
 
         # If the .autodeps file has been successfully parsed, then treat it as if it were
         # a file loaded via include_defs() in that a change to the .autodeps file should
@@ -1093,6 +1104,9 @@ class BuildFileProcessor(object):
         # Add in used environment variables as a special meta rule.
         values.append({"__env": build_env.used_env_vars})
 
+        # Add in the globs evaluated as a special meta rule.
+        values.append({"__globs": build_env.globs})
+
         diagnostics.extend(build_env.diagnostics)
 
         return values
@@ -1327,6 +1341,11 @@ def main():
         action='store_true',
         dest='use_mercurial_glob',
         help='Use the mercurial manifest to get lists of files instead of globbing from disk.')
+    parser.add_option(
+        '--use_java_glob',
+        action='store_true',
+        dest='use_java_glob',
+        help='Have the parent process, which memoizes results across build files, evaluate globs.')
     parser.add_option(
         '--include',
         action='append',
@@ -1403,6 +1422,10 @@ def main():
             to_parent.flush()
             raise
 
+    glob_client = None
+    if options.use_java_glob:
+        glob_client = JavaGlobClient(to_parent, sys.stdin)
+
     configs = {}
     if options.config is not None:
         with open(options.config, 'rb') as f:
@@ -1429,7 +1452,8 @@ def main():
         project_import_whitelist=options.build_file_import_whitelist or [],
         implicit_includes=options.include or [],
         configs=configs,
-        ignore_paths=ignore_paths)
+        ignore_paths=ignore_paths,
+        glob_client=glob_client)
 
     # While processing, we'll write exceptions as diagnostic messages
     # to the parent then re-raise them to crash the process. While
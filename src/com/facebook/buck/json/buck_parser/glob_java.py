@@ -0,0 +1,27 @@
+"""Glob implementation delegating to the Buck process, which memoizes results."""
+from pywatchman import bser
+
+
+class JavaGlobClient(object):
+    """Sends globs to the Buck process over the same BSER channel used for build file queries."""
+
+    def __init__(self, to_parent, from_parent):
+        self._to_parent = to_parent
+        self._from_parent = from_parent
+
+    def glob(self, includes, excludes, include_dotfiles, search_base):
+        """Returns the sorted matches relative to search_base, or None if Buck declined the glob
+        and it has to be evaluated here."""
+        self._to_parent.write(bser.dumps({
+            'type': 'glob',
+            'searchBase': str(search_base),
+            'includes': list(includes),
+            'excludes': list(excludes),
+            'includeDotfiles': bool(include_dotfiles),
+        }))
+        self._to_parent.flush()
+        reply = bser.load(self._from_parent)
+        return reply.get('results')
+
+
+__all__ = [JavaGlobClient]
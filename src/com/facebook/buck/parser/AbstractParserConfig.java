@@ -45,6 +45,8 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
   public static final String INCLUDES_PROPERTY_NAME = "includes";
 
   private static final long NUM_PARSING_THREADS_DEFAULT = 1L;
+  private static final long PARSER_MEMORY_MB_DEFAULT = 200L;
+  private static final long PARSER_IDLE_TIMEOUT_MS_DEFAULT = 10000L;
 
   public enum GlobHandler {
     PYTHON,
@@ -180,6 +182,34 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
     return getDelegate().getBooleanValue("project", "parallel_parsing", true);
   }
 
+  /**
+   * Whether the raw output of parsing build files is persisted to {@code buck-out}, so that later
+   * invocations can reuse it without running the build file parser.
+   */
+  @Value.Lazy
+  public boolean getEnablePersistentParseCache() {
+    return getDelegate().getBooleanValue("project", "persistent_parse_cache", false);
+  }
+
+  /**
+   * Whether build file globs are evaluated by Buck, which memoizes the results across build files,
+   * instead of by each build file parser process.
+   */
+  @Value.Lazy
+  public boolean getEnableGlobCache() {
+    return getDelegate().getBooleanValue("project", "glob_cache", false) &&
+        getGlobHandler() != GlobHandler.MERCURIAL;
+  }
+
+  /**
+   * Whether the daemon keeps the target nodes of a re-parsed build file whose raw rules did not
+   * change, and only re-parses build files for added or removed files their globs could match.
+   */
+  @Value.Lazy
+  public boolean getEnableFineGrainedInvalidation() {
+    return getDelegate().getBooleanValue("project", "fine_grained_invalidation", false);
+  }
+
   @Value.Lazy
   public boolean getTrackCellAgnosticTarget() {
     return getDelegate().getBooleanValue("project", "track_cell_agnostic_target", true);
@@ -198,6 +228,44 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
     return Math.min(value, getDelegate().getNumThreads());
   }
 
+  /**
+   * Whether the number of build file parsers follows the parsing load, up to a limit shared by all
+   * cells, instead of being fixed per cell.
+   */
+  @Value.Lazy
+  public boolean getEnableAdaptiveParserPool() {
+    return getDelegate().getBooleanValue("project", "adaptive_parser_pool", false);
+  }
+
+  /**
+   * @param totalMemoryBytes the machine's physical memory, if the JVM can tell.
+   * @return how many parsers an adaptive parser pool may run at once: {@code project.max_parsers}
+   *     if set, otherwise one per build thread, as long as they fit in half of the memory.
+   */
+  public int getMaxAdaptiveParsers(Optional<Long> totalMemoryBytes) {
+    if (!getEnableParallelParsing()) {
+      return 1;
+    }
+    Optional<Long> maxParsers = getDelegate().getLong("project", "max_parsers");
+    if (maxParsers.isPresent()) {
+      return (int) Math.max(1, maxParsers.get());
+    }
+    if (!totalMemoryBytes.isPresent()) {
+      return getDelegate().getNumThreads();
+    }
+    long parserMemoryBytes = getDelegate()
+        .getLong("project", "parser_memory_mb").orElse(PARSER_MEMORY_MB_DEFAULT) * 1024 * 1024;
+    long parsersInMemory = totalMemoryBytes.get() / 2 / Math.max(1, parserMemoryBytes);
+    return (int) Math.max(1, Math.min(getDelegate().getNumThreads(), parsersInMemory));
+  }
+
+  @Value.Lazy
+  public long getParserIdleTimeoutMs() {
+    return getDelegate()
+        .getLong("project", "parser_idle_timeout_ms")
+        .orElse(PARSER_IDLE_TIMEOUT_MS_DEFAULT);
+  }
+
   @Value.Lazy
   public ApplyDefaultFlavorsMode getDefaultFlavorsMode() {
     return getDelegate().getEnum(
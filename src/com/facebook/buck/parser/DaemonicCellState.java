@@ -16,6 +16,7 @@
 
 package com.facebook.buck.parser;
 
+import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
@@ -27,6 +28,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
@@ -78,6 +80,25 @@ class DaemonicCellState {
     }
   }
 
+  /**
+   * What an invalidated build file defined for one of its targets, kept until the build file is
+   * parsed again so that the computed nodes can be restored if the target's raw node is unchanged.
+   */
+  private static class StaleTarget {
+    private final Map<String, Object> rawNode;
+    private final ImmutableSet<BuildTarget> targets;
+    private final ImmutableMap<Class<?>, ImmutableMap<BuildTarget, Object>> computedNodes;
+
+    private StaleTarget(
+        Map<String, Object> rawNode,
+        ImmutableSet<BuildTarget> targets,
+        ImmutableMap<Class<?>, ImmutableMap<BuildTarget, Object>> computedNodes) {
+      this.rawNode = rawNode;
+      this.targets = targets;
+      this.computedNodes = computedNodes;
+    }
+  }
+
   private final Path cellRoot;
   private AtomicReference<Cell> cell;
 
@@ -94,6 +115,14 @@ class DaemonicCellState {
   private final ConcurrentMapCache<Path, ImmutableSet<Map<String, Object>>> allRawNodes;
   @GuardedBy("rawAndComputedNodesLock")
   private final ConcurrentMap<Class<?>, CacheImpl<?>> typedNodeCaches;
+  /** The globs each build file evaluated, as include patterns keyed by search base. */
+  @GuardedBy("rawAndComputedNodesLock")
+  private final Map<Path, ImmutableSetMultimap<Path, String>> buildFileGlobs;
+  @GuardedBy("rawAndComputedNodesLock")
+  private final Map<Path, ImmutableMap<UnflavoredBuildTarget, StaleTarget>> staleTargets;
+
+  private final DaemonicGlobCache globCache;
+  private final boolean fineGrainedInvalidation;
 
   private final AutoCloseableReadWriteUpdateLock rawAndComputedNodesLock;
   private final int parsingThreads;
@@ -108,6 +137,11 @@ class DaemonicCellState {
     this.buildFileEnv = new HashMap<>();
     this.allRawNodes = new ConcurrentMapCache<>(parsingThreads);
     this.typedNodeCaches = Maps.newConcurrentMap();
+    this.buildFileGlobs = new HashMap<>();
+    this.staleTargets = new HashMap<>();
+    this.globCache = new DaemonicGlobCache(cell.getFilesystem());
+    this.fineGrainedInvalidation =
+        cell.getBuckConfig().getView(ParserConfig.class).getEnableFineGrainedInvalidation();
     this.rawAndComputedNodesLock = new AutoCloseableReadWriteUpdateLock();
   }
 
@@ -120,6 +154,10 @@ class DaemonicCellState {
     return cellRoot;
   }
 
+  DaemonicGlobCache getGlobCache() {
+    return globCache;
+  }
+
   @SuppressWarnings("unchecked")
   public <T> CacheImpl<T> getOrCreateCache(Class<T> type) {
     try (AutoCloseableLock updateLock = rawAndComputedNodesLock.updateLock()) {
@@ -152,40 +190,196 @@ class DaemonicCellState {
       final ImmutableSet<Map<String, Object>> withoutMetaIncludes,
       final ImmutableSet<Path> dependentsOfEveryNode,
       ImmutableMap<String, ImmutableMap<String, Optional<String>>> configs,
-      ImmutableMap<String, Optional<String>> env) {
+      ImmutableMap<String, Optional<String>> env,
+      Optional<ImmutableSetMultimap<Path, String>> globs) {
     try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
       ImmutableSet<Map<String, Object>> updated =
           allRawNodes.putIfAbsentAndGet(buildFile, withoutMetaIncludes);
       buildFileConfigs.put(buildFile, configs);
       buildFileEnv.put(buildFile, env);
+      if (globs.isPresent()) {
+        buildFileGlobs.put(buildFile, globs.get());
+      } else {
+        buildFileGlobs.remove(buildFile);
+      }
       if (updated == withoutMetaIncludes) {
         // We now know all the nodes. They all implicitly depend on everything in
         // the "dependentsOfEveryNode" set.
         for (Path dependent : dependentsOfEveryNode) {
           buildFileDependents.put(dependent, buildFile);
         }
+        restoreUnchangedTargets(buildFile, withoutMetaIncludes);
       }
       return updated;
     }
   }
 
-  int invalidatePath(Path path) {
+  /**
+   * Puts back the computed nodes of targets whose raw node came out of re-parsing
+   * {@code buildFile} unchanged.
+   */
+  @GuardedBy("rawAndComputedNodesLock")
+  @SuppressWarnings("unchecked")
+  private void restoreUnchangedTargets(Path buildFile, ImmutableSet<Map<String, Object>> rawNodes) {
+    ImmutableMap<UnflavoredBuildTarget, StaleTarget> stale = staleTargets.remove(buildFile);
+    if (stale == null) {
+      return;
+    }
+    int restoredTargets = 0;
+    for (Map<String, Object> rawNode : rawNodes) {
+      UnflavoredBuildTarget target =
+          RawNodeParsePipeline.parseBuildTargetFromRawRule(cellRoot, rawNode, buildFile);
+      StaleTarget staleTarget = stale.get(target);
+      if (staleTarget == null || !staleTarget.rawNode.equals(rawNode)) {
+        continue;
+      }
+      for (Map.Entry<Class<?>, ImmutableMap<BuildTarget, Object>> entry :
+          staleTarget.computedNodes.entrySet()) {
+        CacheImpl<Object> cache = (CacheImpl<Object>) typedNodeCaches.get(entry.getKey());
+        if (cache == null) {
+          continue;
+        }
+        for (Map.Entry<BuildTarget, Object> node : entry.getValue().entrySet()) {
+          cache.allComputedNodes.putIfAbsentAndGet(node.getKey(), node.getValue());
+        }
+      }
+      targetsCornucopia.putAll(target, staleTarget.targets);
+      restoredTargets++;
+    }
+    LOG.debug(
+        "Kept the nodes of %d of %d targets unchanged by re-parsing %s.",
+        restoredTargets,
+        rawNodes.size(),
+        buildFile);
+  }
+
+  @GuardedBy("rawAndComputedNodesLock")
+  private ImmutableMap<Class<?>, ImmutableMap<BuildTarget, Object>> getComputedNodes(
+      ImmutableSet<BuildTarget> targets) {
+    ImmutableMap.Builder<Class<?>, ImmutableMap<BuildTarget, Object>> computedNodes =
+        ImmutableMap.builder();
+    for (Map.Entry<Class<?>, CacheImpl<?>> cache : typedNodeCaches.entrySet()) {
+      ImmutableMap.Builder<BuildTarget, Object> nodes = ImmutableMap.builder();
+      for (BuildTarget target : targets) {
+        Object node = cache.getValue().allComputedNodes.getIfPresent(target);
+        if (node != null) {
+          nodes.put(target, node);
+        }
+      }
+      computedNodes.put(cache.getKey(), nodes.build());
+    }
+    return computedNodes.build();
+  }
+
+  /**
+   * Returns whether adding or removing {@code path}, relative to the cell root, may change the
+   * rules {@code buildFile} defines, i.e. whether one of its globs may match it or one of its
+   * rules names it literally. Without fine-grained invalidation, or if it is not known what
+   * {@code buildFile} globbed, this is always the case.
+   */
+  boolean isAffectedByAddingOrRemoving(Path buildFile, Path path) {
+    if (!fineGrainedInvalidation) {
+      return true;
+    }
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      ImmutableSetMultimap<Path, String> globs = buildFileGlobs.get(buildFile);
+      if (globs == null || namesPath(buildFile, path)) {
+        return true;
+      }
+      for (Map.Entry<Path, String> glob : globs.entries()) {
+        if (globCache.mayMatch(glob.getKey(), glob.getValue(), path)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Returns whether an attribute of a raw node of {@code buildFile}, such as an entry of its
+   * {@code srcs}, names {@code path}, relative to the cell root. Coercing such an attribute checks
+   * that the file exists, so when the file is added or removed the rule's node has to be computed
+   * again even though its raw node stays the same.
+   */
+  boolean isNamedByRawNodes(Path buildFile, Path path) {
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      return namesPath(buildFile, path);
+    }
+  }
+
+  @GuardedBy("rawAndComputedNodesLock")
+  private boolean namesPath(Path buildFile, Path path) {
+    ImmutableSet<Map<String, Object>> rawNodes = allRawNodes.getIfPresent(buildFile);
+    if (rawNodes == null) {
+      return true;
+    }
+    Path packagePath = cellRoot.relativize(buildFile.getParent());
+    if (packagePath.toString().isEmpty()) {
+      return containsString(rawNodes, MorePaths.pathWithUnixSeparators(path));
+    }
+    if (!path.startsWith(packagePath)) {
+      // Without package boundary checks, rules may name files outside their package.
+      return true;
+    }
+    return containsString(
+        rawNodes,
+        MorePaths.pathWithUnixSeparators(packagePath.relativize(path)));
+  }
+
+  private static boolean containsString(Object value, String string) {
+    if (value instanceof String) {
+      return value.equals(string);
+    } else if (value instanceof Map) {
+      return containsString(((Map<?, ?>) value).values(), string);
+    } else if (value instanceof Iterable) {
+      for (Object element : (Iterable<?>) value) {
+        if (containsString(element, string)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Drops the raw and computed nodes of the build file at {@code path} and of all build files
+   * depending on it.
+   *
+   * @param keepUnchangedTargets if fine-grained invalidation is enabled, hold on to the computed
+   *     nodes, so that they can be restored for targets whose raw node does not change when the
+   *     build file is parsed again. This must be false if the change could affect nodes in ways
+   *     their raw nodes do not reflect, such as a build file being added or removed.
+   * @return the number of raw nodes that were invalidated.
+   */
+  int invalidatePath(Path path, boolean keepUnchangedTargets) {
     try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
+      boolean keepStaleTargets = keepUnchangedTargets && fineGrainedInvalidation;
+      if (!keepStaleTargets) {
+        staleTargets.remove(path);
+      }
       int invalidatedRawNodes = 0;
       ImmutableSet<Map<String, Object>> rawNodes = allRawNodes.getIfPresent(path);
       if (rawNodes != null) {
         // Increment the counter
         invalidatedRawNodes = rawNodes.size();
+        Map<UnflavoredBuildTarget, StaleTarget> stale = new HashMap<>();
         for (Map<String, Object> rawNode : rawNodes) {
           UnflavoredBuildTarget target =
               RawNodeParsePipeline.parseBuildTargetFromRawRule(cellRoot, rawNode, path);
           LOG.debug("Invalidating target for path %s: %s", path, target);
+          ImmutableSet<BuildTarget> targets = ImmutableSet.copyOf(targetsCornucopia.get(target));
+          if (keepStaleTargets) {
+            stale.put(target, new StaleTarget(rawNode, targets, getComputedNodes(targets)));
+          }
           for (CacheImpl<?> cache : typedNodeCaches.values()) {
-            cache.allComputedNodes.invalidateAll(targetsCornucopia.get(target));
+            cache.allComputedNodes.invalidateAll(targets);
           }
           targetsCornucopia.removeAll(target);
         }
         allRawNodes.invalidate(path);
+        if (keepStaleTargets) {
+          staleTargets.put(path, ImmutableMap.copyOf(stale));
+        }
       }
 
       // We may have been given a file that other build files depend on. Iteratively remove those.
@@ -195,11 +389,12 @@ class DaemonicCellState {
         if (dependent.equals(path)) {
           continue;
         }
-        invalidatedRawNodes += invalidatePath(dependent);
+        invalidatedRawNodes += invalidatePath(dependent, keepUnchangedTargets);
       }
       buildFileDependents.removeAll(path);
       buildFileConfigs.remove(path);
       buildFileEnv.remove(path);
+      buildFileGlobs.remove(path);
 
       return invalidatedRawNodes;
     }
@@ -226,7 +421,7 @@ class DaemonicCellState {
         Optional<String> value =
             cell.getBuckConfig().getRawValue(keyEnt.getKey(), valueEnt.getKey());
         if (!value.equals(valueEnt.getValue())) {
-          invalidatePath(buildFile);
+          invalidatePath(buildFile, /* keepUnchangedTargets */ true);
           this.cell.set(cell);
           return;
         }
@@ -248,7 +443,7 @@ class DaemonicCellState {
       Optional<String> value =
           Optional.ofNullable(cell.getBuckConfig().getEnvironment().get(ent.getKey()));
       if (!value.equals(ent.getValue())) {
-        invalidatePath(buildFile);
+        invalidatePath(buildFile, /* keepUnchangedTargets */ true);
         this.cell.set(cell);
         return Optional.of(
             Maps.difference(
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.json.GlobService;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Splitter;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.SetMultimap;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Memoizes the results of build file globs for a cell, along with the directory listings they were
+ * evaluated from, so that globs are shared between build files and parser processes. Entries are
+ * invalidated per directory as files are added to or removed from the cell.
+ */
+class DaemonicGlobCache implements GlobService {
+
+  private static final Logger LOG = Logger.get(DaemonicGlobCache.class);
+
+  private static final Splitter PATH_SPLITTER = Splitter.on('/').omitEmptyStrings();
+  private static final String RECURSIVE_WILDCARD = "**";
+
+  private enum EntryType {
+    FILE,
+    DIRECTORY,
+    SYMLINKED_DIRECTORY,
+  }
+
+  private final ProjectFilesystem filesystem;
+
+  private final ConcurrentMap<Path, ImmutableSortedMap<String, EntryType>> listings =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Glob, ImmutableSortedSet<String>> globs = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Pattern> namePatterns = new ConcurrentHashMap<>();
+
+  /** The globs to drop when the listing of a directory changes. */
+  @GuardedBy("this")
+  private final SetMultimap<Path, Glob> globsByDirectory = HashMultimap.create();
+
+  /**
+   * Bumped on every invalidation, so that results computed from listings that were invalidated in
+   * the meantime are not cached.
+   */
+  @GuardedBy("this")
+  private long generation;
+
+  DaemonicGlobCache(ProjectFilesystem filesystem) {
+    this.filesystem = filesystem;
+  }
+
+  @Override
+  public Optional<ImmutableSortedSet<String>> glob(
+      Path searchBase,
+      ImmutableList<String> includes,
+      ImmutableList<String> excludes,
+      boolean includeDotfiles) throws IOException {
+    Optional<Path> base = filesystem.getPathRelativeToProjectRoot(searchBase);
+    if (!base.isPresent()) {
+      return Optional.empty();
+    }
+    Glob glob = new Glob(base.get(), includes, excludes, includeDotfiles);
+    ImmutableSortedSet<String> cached = globs.get(glob);
+    if (cached != null) {
+      return Optional.of(cached);
+    }
+
+    long startGeneration = getGeneration();
+    Set<Path> visited = new HashSet<>();
+    Set<String> matches = new TreeSet<>();
+    for (String include : includes) {
+      Optional<ImmutableList<String>> pattern = parsePattern(include);
+      if (!pattern.isPresent() ||
+          !collect(base.get(), "", pattern.get(), 0, includeDotfiles, visited, matches)) {
+        LOG.verbose("Leaving glob %s to the build file parser.", glob);
+        return Optional.empty();
+      }
+    }
+
+    Set<String> literalExcludes = new HashSet<>();
+    ImmutableList.Builder<ImmutableList<String>> patternExcludes = ImmutableList.builder();
+    for (String exclude : excludes) {
+      if (isSpecial(exclude)) {
+        Optional<ImmutableList<String>> pattern = parsePattern(exclude);
+        if (!pattern.isPresent()) {
+          return Optional.empty();
+        }
+        patternExcludes.add(pattern.get());
+      } else {
+        literalExcludes.add(exclude);
+      }
+    }
+    ImmutableSortedSet.Builder<String> results = ImmutableSortedSet.naturalOrder();
+    for (String match : matches) {
+      if (!isExcluded(match, literalExcludes, patternExcludes.build())) {
+        results.add(match);
+      }
+    }
+    ImmutableSortedSet<String> result = results.build();
+
+    synchronized (this) {
+      if (generation == startGeneration) {
+        globs.put(glob, result);
+        for (Path directory : visited) {
+          globsByDirectory.put(directory, glob);
+        }
+      }
+    }
+    return Optional.of(result);
+  }
+
+  /**
+   * Drops the listings and globs affected by {@code path} being added or removed.
+   *
+   * @param path path relative to the cell root.
+   */
+  synchronized void invalidatePath(Path path) {
+    generation++;
+    Path parent = path.getParent() == null ? Paths.get("") : path.getParent();
+    invalidateDirectory(parent);
+
+    // A new file may also have created the directories above it, which are missing from the
+    // listings of their own parents.
+    Path child = parent;
+    while (child.getFileName() != null && !child.toString().isEmpty()) {
+      Path directory = child.getParent() == null ? Paths.get("") : child.getParent();
+      ImmutableSortedMap<String, EntryType> listing = listings.get(directory);
+      if (listing != null && !listing.containsKey(child.getFileName().toString())) {
+        invalidateDirectory(directory);
+      }
+      child = directory;
+    }
+  }
+
+  @GuardedBy("this")
+  private void invalidateDirectory(Path directory) {
+    listings.remove(directory);
+    Set<Glob> dependents = globsByDirectory.removeAll(directory);
+    for (Glob glob : dependents) {
+      globs.remove(glob);
+    }
+    if (!dependents.isEmpty()) {
+      LOG.verbose("Invalidated %d globs listing %s", dependents.size(), directory);
+    }
+  }
+
+  /**
+   * Returns whether adding or removing {@code path} may change the results of a glob for
+   * {@code include} under {@code searchBase}, both relative to the cell root. Excludes and dotfiles
+   * are not taken into account, so this errs on the side of reporting a match.
+   */
+  boolean mayMatch(Path searchBase, String include, Path path) {
+    Optional<ImmutableList<String>> pattern = parsePattern(include);
+    if (!pattern.isPresent()) {
+      return true;
+    }
+    if (!path.startsWith(searchBase)) {
+      return false;
+    }
+    ImmutableList<String> segments = ImmutableList.copyOf(
+        PATH_SPLITTER.split(MorePaths.pathWithUnixSeparators(searchBase.relativize(path))));
+    // Watchman only reports changes to files, but a new symlink may point to a directory holding
+    // files that match.
+    return matchesSegments(pattern.get(), 0, segments, 0) ||
+        (filesystem.isDirectory(path) && mayMatchBelow(pattern.get(), 0, segments, 0));
+  }
+
+  private boolean mayMatchBelow(
+      ImmutableList<String> pattern,
+      int patternIndex,
+      ImmutableList<String> segments,
+      int segmentIndex) {
+    if (patternIndex == pattern.size()) {
+      return false;
+    }
+    String segment = pattern.get(patternIndex);
+    if (segment.equals(RECURSIVE_WILDCARD) || segmentIndex == segments.size()) {
+      return true;
+    }
+    return matchesName(segment, segments.get(segmentIndex)) &&
+        mayMatchBelow(pattern, patternIndex + 1, segments, segmentIndex + 1);
+  }
+
+  private synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Adds the files under {@code directory} matching the pattern segments from {@code index} on.
+   *
+   * @return false if the glob can't be evaluated here.
+   */
+  private boolean collect(
+      Path directory,
+      String relativePath,
+      ImmutableList<String> pattern,
+      int index,
+      boolean includeDotfiles,
+      Set<Path> visited,
+      Set<String> matches) throws IOException {
+    String segment = pattern.get(index);
+    boolean isLastSegment = index == pattern.size() - 1;
+    if (segment.equals(RECURSIVE_WILDCARD)) {
+      // A trailing recursive wildcard only matches directories.
+      if (isLastSegment) {
+        return true;
+      }
+      if (!collect(
+          directory,
+          relativePath,
+          pattern,
+          index + 1,
+          includeDotfiles,
+          visited,
+          matches)) {
+        return false;
+      }
+    }
+
+    for (Map.Entry<String, EntryType> entry : getListing(directory, visited).entrySet()) {
+      String name = entry.getKey();
+      if (!includeDotfiles && name.startsWith(".")) {
+        continue;
+      }
+      boolean recursive = segment.equals(RECURSIVE_WILDCARD);
+      if (!recursive && !matchesName(segment, name)) {
+        continue;
+      }
+      String childPath = relativePath.isEmpty() ? name : relativePath + "/" + name;
+      switch (entry.getValue()) {
+        case FILE:
+          if (isLastSegment && !recursive) {
+            matches.add(childPath);
+          }
+          break;
+        case DIRECTORY:
+          if (!isLastSegment &&
+              !collect(
+                  directory.resolve(name),
+                  childPath,
+                  pattern,
+                  recursive ? index : index + 1,
+                  includeDotfiles,
+                  visited,
+                  matches)) {
+            return false;
+          }
+          break;
+        case SYMLINKED_DIRECTORY:
+          // Changes under the link target aren't reported against this path, so results found
+          // through it couldn't be invalidated.
+          if (!isLastSegment) {
+            return false;
+          }
+          break;
+      }
+    }
+    return true;
+  }
+
+  private ImmutableSortedMap<String, EntryType> getListing(
+      Path directory,
+      Set<Path> visited) throws IOException {
+    visited.add(directory);
+    ImmutableSortedMap<String, EntryType> listing = listings.get(directory);
+    if (listing != null) {
+      return listing;
+    }
+
+    long startGeneration = getGeneration();
+    ImmutableSortedMap.Builder<String, EntryType> builder = ImmutableSortedMap.naturalOrder();
+    try {
+      for (Path child : filesystem.getDirectoryContents(directory)) {
+        String name = child.getFileName().toString();
+        if (filesystem.isDirectory(child)) {
+          builder.put(
+              name,
+              filesystem.isSymLink(child) ?
+                  EntryType.SYMLINKED_DIRECTORY :
+                  EntryType.DIRECTORY);
+        } else if (filesystem.isFile(child)) {
+          builder.put(name, EntryType.FILE);
+        }
+      }
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      // Globs over missing directories match nothing.
+    }
+    listing = builder.build();
+
+    synchronized (this) {
+      if (generation == startGeneration) {
+        listings.put(directory, listing);
+      }
+    }
+    return listing;
+  }
+
+  private boolean isExcluded(
+      String match,
+      Set<String> literalExcludes,
+      ImmutableList<ImmutableList<String>> patternExcludes) {
+    if (literalExcludes.contains(match)) {
+      return true;
+    }
+    ImmutableList<String> segments = ImmutableList.copyOf(PATH_SPLITTER.split(match));
+    for (ImmutableList<String> pattern : patternExcludes) {
+      if (matchesSegments(pattern, 0, segments, 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matchesSegments(
+      ImmutableList<String> pattern,
+      int patternIndex,
+      ImmutableList<String> segments,
+      int segmentIndex) {
+    if (patternIndex == pattern.size()) {
+      return segmentIndex == segments.size();
+    }
+    String segment = pattern.get(patternIndex);
+    if (segment.equals(RECURSIVE_WILDCARD)) {
+      for (int i = segmentIndex; i <= segments.size(); i++) {
+        if (matchesSegments(pattern, patternIndex + 1, segments, i)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return segmentIndex < segments.size() &&
+        matchesName(segment, segments.get(segmentIndex)) &&
+        matchesSegments(pattern, patternIndex + 1, segments, segmentIndex + 1);
+  }
+
+  private boolean matchesName(String segment, String name) {
+    if (!isSpecial(segment)) {
+      return segment.equals(name);
+    }
+    return namePatterns
+        .computeIfAbsent(segment, DaemonicGlobCache::translateSegment)
+        .matcher(name)
+        .matches();
+  }
+
+  /**
+   * Splits a glob pattern into path segments, or returns {@link Optional#empty()} for patterns
+   * that reach outside of the search base.
+   */
+  private static Optional<ImmutableList<String>> parsePattern(String pattern) {
+    if (pattern.startsWith("/")) {
+      return Optional.empty();
+    }
+    ImmutableList.Builder<String> segments = ImmutableList.builder();
+    for (String segment : PATH_SPLITTER.split(pattern)) {
+      if (segment.equals("..")) {
+        return Optional.empty();
+      }
+      if (!segment.equals(".")) {
+        segments.add(segment);
+      }
+    }
+    ImmutableList<String> result = segments.build();
+    return result.isEmpty() ? Optional.empty() : Optional.of(result);
+  }
+
+  private static boolean isSpecial(String pattern) {
+    return pattern.contains("*") || pattern.contains("?") || pattern.contains("[");
+  }
+
+  /**
+   * Translates a single path segment of a glob into a regular expression, following python's
+   * {@code fnmatch}.
+   */
+  private static Pattern translateSegment(String segment) {
+    StringBuilder regex = new StringBuilder();
+    int i = 0;
+    while (i < segment.length()) {
+      char c = segment.charAt(i++);
+      if (c == '*') {
+        regex.append(".*");
+      } else if (c == '?') {
+        regex.append('.');
+      } else if (c == '[') {
+        int j = i;
+        if (j < segment.length() && segment.charAt(j) == '!') {
+          j++;
+        }
+        if (j < segment.length() && segment.charAt(j) == ']') {
+          j++;
+        }
+        while (j < segment.length() && segment.charAt(j) != ']') {
+          j++;
+        }
+        if (j >= segment.length()) {
+          regex.append("\\[");
+        } else {
+          String set = segment.substring(i, j).replace("\\", "\\\\");
+          i = j + 1;
+          if (set.startsWith("!")) {
+            set = "^" + set.substring(1);
+          } else if (set.startsWith("^")) {
+            set = "\\" + set;
+          }
+          regex.append('[').append(set).append(']');
+        }
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  /**
+   * The arguments of a glob, relative to the cell root.
+   */
+  private static class Glob {
+    private final Path searchBase;
+    private final ImmutableList<String> includes;
+    private final ImmutableSet<String> excludes;
+    private final boolean includeDotfiles;
+
+    private Glob(
+        Path searchBase,
+        List<String> includes,
+        List<String> excludes,
+        boolean includeDotfiles) {
+      this.searchBase = searchBase;
+      this.includes = ImmutableList.copyOf(includes);
+      this.excludes = ImmutableSet.copyOf(excludes);
+      this.includeDotfiles = includeDotfiles;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Glob)) {
+        return false;
+      }
+      Glob that = (Glob) other;
+      return includeDotfiles == that.includeDotfiles &&
+          searchBase.equals(that.searchBase) &&
+          includes.equals(that.includes) &&
+          excludes.equals(that.excludes);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(searchBase, includes, excludes, includeDotfiles);
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "glob(%s, excludes=%s, include_dotfiles=%s) in %s",
+          includes,
+          excludes,
+          includeDotfiles,
+          searchBase);
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.facebook.buck.event.ParsingEvent;
 import com.facebook.buck.event.listener.BroadcastEventListener;
 import com.facebook.buck.io.WatchEvents;
 import com.facebook.buck.json.BuildFileParseException;
+import com.facebook.buck.json.GlobService;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildFileTree;
 import com.facebook.buck.model.BuildTarget;
@@ -43,6 +44,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.MapDifference;
@@ -50,6 +52,7 @@ import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.util.HashSet;
@@ -80,9 +83,10 @@ class DaemonicParserState {
    * The value is a list of strings with the root build file as the head and included
    * build files as the tail, for example: {"__includes":["/foo/BUCK", "/foo/buck_includes"]}
    */
-  private static final String INCLUDES_META_RULE = "__includes";
-  private static final String CONFIGS_META_RULE = "__configs";
-  private static final String ENV_META_RULE = "__env";
+  static final String INCLUDES_META_RULE = "__includes";
+  static final String CONFIGS_META_RULE = "__configs";
+  static final String ENV_META_RULE = "__env";
+  static final String GLOBS_META_RULE = "__globs";
 
   private static final String COUNTER_CATEGORY = "buck_parser_state";
   private static final String INVALIDATED_BY_ENV_VARS_COUNTER_NAME = "invalidated_by_env_vars";
@@ -205,6 +209,7 @@ class DaemonicParserState {
       ImmutableMap<String, ImmutableMap<String, Optional<String>>> configs =
           ImmutableMap.of();
       ImmutableMap<String, Optional<String>> env = ImmutableMap.of();
+      Optional<ImmutableSetMultimap<Path, String>> globs = Optional.empty();
       for (Map<String, Object> rawNode : rawNodes) {
         if (rawNode.containsKey(INCLUDES_META_RULE)) {
           for (String path :
@@ -233,6 +238,11 @@ class DaemonicParserState {
                       Preconditions.<Map<String, String>>checkNotNull(
                           (Map<String, String>) rawNode.get(ENV_META_RULE)),
                       Optional::ofNullable));
+        } else if (rawNode.containsKey(GLOBS_META_RULE)) {
+          globs = getGlobs(
+              cell,
+              Preconditions.checkNotNull(
+                  (List<Map<String, Object>>) rawNode.get(GLOBS_META_RULE)));
         } else {
           withoutMetaIncludesBuilder.add(rawNode);
         }
@@ -259,7 +269,28 @@ class DaemonicParserState {
           withoutMetaIncludes,
           dependentsOfEveryNode.build(),
           configs,
-          env);
+          env,
+          globs);
+    }
+
+    /**
+     * Returns the include patterns of {@code globs} keyed by their search base relative to the
+     * cell root, or {@link Optional#empty()} if a search base lies outside of the cell.
+     */
+    @SuppressWarnings("unchecked")
+    private Optional<ImmutableSetMultimap<Path, String>> getGlobs(
+        Cell cell,
+        List<Map<String, Object>> globs) {
+      ImmutableSetMultimap.Builder<Path, String> builder = ImmutableSetMultimap.builder();
+      for (Map<String, Object> glob : globs) {
+        Optional<Path> searchBase = cell.getFilesystem()
+            .getPathRelativeToProjectRoot(Paths.get((String) glob.get("search_base")));
+        if (!searchBase.isPresent()) {
+          return Optional.empty();
+        }
+        builder.putAll(searchBase.get(), (List<String>) glob.get("includes"));
+      }
+      return Optional.of(builder.build());
     }
   }
 
@@ -383,6 +414,20 @@ class DaemonicParserState {
     return rawNodeCache;
   }
 
+  /**
+   * @return a {@link GlobService} memoizing the globs of {@code cell} until the files they list
+   *     are added or removed.
+   */
+  public GlobService getGlobService(Cell cell) {
+    // Look the cache up on each call, as the cell state is replaced when it is invalidated.
+    return (searchBase, includes, excludes, includeDotfiles) ->
+        getOrCreateCellState(cell).getGlobCache().glob(
+            searchBase,
+            includes,
+            excludes,
+            includeDotfiles);
+  }
+
   @Nullable
   private DaemonicCellState getCellState(Cell cell) {
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
@@ -426,6 +471,8 @@ class DaemonicParserState {
             Cell cell = state.getCell();
             BuildFileTree buildFiles = buildFileTrees.get(cell);
 
+            state.getGlobCache().invalidatePath(path);
+
             if (path.endsWith(cell.getBuildFileName())) {
               LOG.debug(
                   "Build file %s changed, invalidating build file tree for cell %s",
@@ -438,7 +485,7 @@ class DaemonicParserState {
             // Added or removed files can affect globs, so invalidate the package build file
             // "containing" {@code path} unless its filename matches a temp file pattern.
             if (!isTempFile(cell, path)) {
-              invalidateContainingBuildFile(cell, buildFiles, path);
+              invalidateContainingBuildFile(state, buildFiles, path);
             } else {
               LOG.debug(
                   "Not invalidating the owning build file of %s because it is a temporary file.",
@@ -457,7 +504,13 @@ class DaemonicParserState {
       }
     }
 
-    invalidatePath(path);
+    // The paths from watchman are not absolute. Because of this, we adopt a conservative approach
+    // to invalidating the caches.
+    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+      for (DaemonicCellState state : cellPathToDaemonicState.values()) {
+        invalidatePath(state, path, !isBuildFileCreateOrDelete(state.getCell(), event));
+      }
+    }
   }
 
   public void invalidatePath(Path path) {
@@ -466,7 +519,7 @@ class DaemonicParserState {
     // to invalidating the caches.
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (DaemonicCellState state : cellPathToDaemonicState.values()) {
-        invalidatePath(state, path);
+        invalidatePath(state, path, /* keepUnchangedTargets */ false);
       }
     }
   }
@@ -478,9 +531,10 @@ class DaemonicParserState {
    *             within the build file to find and invalidate.
    */
   private synchronized void invalidateContainingBuildFile(
-      Cell cell,
+      DaemonicCellState state,
       BuildFileTree buildFiles,
       Path path) {
+    Cell cell = state.getCell();
     LOG.debug("Invalidating rules dependent on change to %s in cell %s", path, cell);
     Set<Path> packageBuildFiles = new HashSet<>();
 
@@ -500,9 +554,20 @@ class DaemonicParserState {
       }
     }
 
+    // Unless a build file itself was added or removed, which changes package boundaries, only
+    // packages with a glob that may match the path or a rule naming it need to be parsed again.
+    boolean isBuildFile = path.endsWith(cell.getBuildFileName());
+    if (!isBuildFile) {
+      packageBuildFiles.removeIf(
+          packageRoot -> !state.isAffectedByAddingOrRemoving(
+              cell.getFilesystem().resolve(packageRoot).resolve(cell.getBuildFileName()),
+              path));
+    }
+
     if (packageBuildFiles.isEmpty()) {
       LOG.debug(
-          "%s is not owned by any build file.  Not invalidating anything.",
+          "%s is not owned by any build file whose rules it may affect. " +
+              "Not invalidating anything.",
           cell.getFilesystem().resolve(path).toAbsolutePath().toString());
       return;
     }
@@ -510,12 +575,14 @@ class DaemonicParserState {
     buildFilesInvalidatedByFileAddOrRemoveCounter.inc(packageBuildFiles.size());
     pathsAddedOrRemovedInvalidatingBuildFiles.add(path.toString());
 
-    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
-      DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
-      // Invalidate all the packages we found.
-      for (Path buildFile : packageBuildFiles) {
-        invalidatePath(state, buildFile.resolve(cell.getBuildFileName()));
-      }
+    // Invalidate all the packages we found. Rules naming the path literally come out of parsing
+    // unchanged, so their nodes must not be kept.
+    for (Path packageRoot : packageBuildFiles) {
+      Path buildFile = cell.getFilesystem().resolve(packageRoot).resolve(cell.getBuildFileName());
+      invalidatePath(
+          state,
+          buildFile,
+          !isBuildFile && !state.isNamedByRawNodes(buildFile, path));
     }
   }
 
@@ -523,16 +590,23 @@ class DaemonicParserState {
    * Remove the targets and rules defined by {@code path} from the cache and recursively remove
    * the targets and rules defined by files that transitively include {@code path} from the cache.
    * @param path The File that has changed.
+   * @param keepUnchangedTargets whether targets whose raw nodes do not change when the build files
+   *     are parsed again may keep their nodes, see {@link DaemonicCellState#invalidatePath}.
    */
-  private void invalidatePath(DaemonicCellState state, Path path) {
+  private void invalidatePath(DaemonicCellState state, Path path, boolean keepUnchangedTargets) {
     LOG.debug("Invalidating path %s for cell %s", path, state.getCellRoot());
 
     // Paths from Watchman are not absolute.
     path = state.getCellRoot().resolve(path);
-    int invalidatedNodes = state.invalidatePath(path);
+    int invalidatedNodes = state.invalidatePath(path, keepUnchangedTargets);
     rulesInvalidatedByWatchEventsCounter.inc(invalidatedNodes);
   }
 
+  private static boolean isBuildFileCreateOrDelete(Cell cell, WatchEvent<?> event) {
+    return isPathCreateOrDeleteEvent(event) &&
+        ((Path) event.context()).endsWith(cell.getBuildFileName());
+  }
+
   public static boolean isPathCreateOrDeleteEvent(WatchEvent<?> event) {
     return event.kind() == StandardWatchEventKinds.ENTRY_CREATE ||
         event.kind() == StandardWatchEventKinds.ENTRY_DELETE;
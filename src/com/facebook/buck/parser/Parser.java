@@ -38,6 +38,7 @@ import com.facebook.buck.rules.ConstructorArgMarshaller;
 import com.facebook.buck.rules.ImplicitFlavorsInferringDescription;
 import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetGraphAndBuildTargets;
+import com.facebook.buck.rules.TargetGraphListener;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.util.HumanReadableException;
@@ -265,7 +266,8 @@ public class Parser {
           state,
           eventBus,
           toExplore,
-          /* ignoreBuckAutodepsFiles */ false);
+          /* ignoreBuckAutodepsFiles */ false,
+          TargetGraphListener.NOOP);
     }
   }
 
@@ -274,7 +276,8 @@ public class Parser {
       final PerBuildState state,
       final BuckEventBus eventBus,
       final Iterable<BuildTarget> toExplore,
-      final boolean ignoreBuckAutodepsFiles)
+      final boolean ignoreBuckAutodepsFiles,
+      final TargetGraphListener targetGraphListener)
       throws IOException, InterruptedException, BuildFileParseException, BuildTargetException {
 
     if (Iterables.isEmpty(toExplore)) {
@@ -332,14 +335,14 @@ public class Parser {
         MoreMaps.putCheckEquals(index, target, targetNode);
         if (target.isFlavored()) {
           BuildTarget unflavoredTarget = BuildTarget.of(target.getUnflavoredBuildTarget());
-          MoreMaps.putCheckEquals(
-              index,
-              unflavoredTarget,
-              state.getTargetNode(unflavoredTarget));
+          TargetNode<?, ?> unflavoredNode = state.getTargetNode(unflavoredTarget);
+          MoreMaps.putCheckEquals(index, unflavoredTarget, unflavoredNode);
+          targetGraphListener.onUnflavoredTargetNode(unflavoredNode);
         }
         for (BuildTarget dep : targetNode.getParseDeps()) {
           graph.addEdge(targetNode, state.getTargetNode(dep));
         }
+        targetGraphListener.onTargetNode(targetNode);
       }
 
       targetGraph = new TargetGraph(
@@ -397,6 +400,36 @@ public class Parser {
       boolean ignoreBuckAutodepsFiles,
       ParserConfig.ApplyDefaultFlavorsMode applyDefaultFlavorsMode)
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    return buildTargetGraphForTargetNodeSpecs(
+        eventBus,
+        rootCell,
+        enableProfiling,
+        executor,
+        targetNodeSpecs,
+        ignoreBuckAutodepsFiles,
+        applyDefaultFlavorsMode,
+        TargetGraphListener.NOOP);
+  }
+
+  /**
+   * @param eventBus used to log events while parsing.
+   * @param targetNodeSpecs the specs representing the build targets to generate a target graph for.
+   * @param ignoreBuckAutodepsFiles If true, do not load deps from {@code BUCK.autodeps} files.
+   * @param targetGraphListener notified of every node of the target graph as soon as it and all of
+   *     its dependencies have been parsed.
+   * @return the target graph containing the build targets and their related targets.
+   */
+  public synchronized TargetGraphAndBuildTargets
+  buildTargetGraphForTargetNodeSpecs(
+      BuckEventBus eventBus,
+      Cell rootCell,
+      boolean enableProfiling,
+      ListeningExecutorService executor,
+      Iterable<? extends TargetNodeSpec> targetNodeSpecs,
+      boolean ignoreBuckAutodepsFiles,
+      ParserConfig.ApplyDefaultFlavorsMode applyDefaultFlavorsMode,
+      TargetGraphListener targetGraphListener)
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
     try (PerBuildState state =
              new PerBuildState(
@@ -418,7 +451,12 @@ public class Parser {
                       rootCell,
                       targetNodeSpecs,
                       applyDefaultFlavorsMode)));
-      TargetGraph graph = buildTargetGraph(state, eventBus, buildTargets, ignoreBuckAutodepsFiles);
+      TargetGraph graph = buildTargetGraph(
+          state,
+          eventBus,
+          buildTargets,
+          ignoreBuckAutodepsFiles,
+          targetGraphListener);
 
       return TargetGraphAndBuildTargets.builder()
           .setBuildTargets(buildTargets)
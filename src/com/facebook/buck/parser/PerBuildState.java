@@ -28,6 +28,7 @@ import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.CoercedTypeCache;
 import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TargetGraphListener;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.rules.TargetNodeFactory;
 import com.facebook.buck.util.Ansi;
@@ -45,11 +46,13 @@ import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.sun.management.OperatingSystemMXBean;
 
 import org.immutables.value.Value;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
 import java.util.Collection;
 import java.util.HashSet;
@@ -118,14 +121,27 @@ public class PerBuildState implements AutoCloseable {
         this::registerInputsUnderSymlinks;
     ParserConfig parserConfig = rootCell.getBuckConfig().getView(ParserConfig.class);
     int numParsingThreads = parserConfig.getNumParsingThreads();
-    this.projectBuildFileParserPool = new ProjectBuildFileParserPool(
-        numParsingThreads, // Max parsers to create per cell.
-        input -> createBuildFileParser(input, PerBuildState.this.ignoreBuckAutodepsFiles));
+    if (parserConfig.getEnableAdaptiveParserPool()) {
+      this.projectBuildFileParserPool = ProjectBuildFileParserPool.createAdaptive(
+          parserConfig.getMaxAdaptiveParsers(getTotalMemoryBytes()),
+          input -> createBuildFileParser(input, PerBuildState.this.ignoreBuckAutodepsFiles),
+          parserConfig.getParserIdleTimeoutMs());
+    } else {
+      this.projectBuildFileParserPool = new ProjectBuildFileParserPool(
+          numParsingThreads, // Max parsers to create per cell.
+          input -> createBuildFileParser(input, PerBuildState.this.ignoreBuckAutodepsFiles));
+    }
 
+    // Profiling output comes from actually running the build file parser, so don't bypass it.
+    Optional<PersistedRawNodeCache> persistedRawNodeCache =
+        parserConfig.getEnablePersistentParseCache() && !enableProfiling ?
+            Optional.of(new PersistedRawNodeCache(ignoreBuckAutodepsFiles)) :
+            Optional.empty();
     this.rawNodeParsePipeline = new RawNodeParsePipeline(
         parser.getPermState().getRawNodeCache(),
         projectBuildFileParserPool,
-        executorService);
+        executorService,
+        persistedRawNodeCache);
     this.targetNodeParsePipeline = new TargetNodeParsePipeline(
         parser.getPermState().getOrCreateNodeCache(TargetNode.class),
         DefaultParserTargetNodeFactory.createForParser(
@@ -173,6 +189,16 @@ public class PerBuildState implements AutoCloseable {
     return rawNodeParsePipeline.getAllNodes(cell, buildFile);
   }
 
+  private static Optional<Long> getTotalMemoryBytes() {
+    java.lang.management.OperatingSystemMXBean osBean =
+        ManagementFactory.getOperatingSystemMXBean();
+    // Only HotSpot-derived JVMs report the physical memory.
+    if (!(osBean instanceof OperatingSystemMXBean)) {
+      return Optional.empty();
+    }
+    return Optional.of(((OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize());
+  }
+
   private ProjectBuildFileParser createBuildFileParser(Cell cell, boolean ignoreBuckAutodepsFiles) {
     ProjectBuildFileParser parser = cell.createBuildFileParser(
         coercedTypeCache,
@@ -180,6 +206,9 @@ public class PerBuildState implements AutoCloseable {
         eventBus,
         ignoreBuckAutodepsFiles);
     parser.setEnableProfiling(enableProfiling);
+    if (cell.getBuckConfig().getView(ParserConfig.class).getEnableGlobCache()) {
+      parser.setGlobService(this.parser.getPermState().getGlobService(cell));
+    }
     return parser;
   }
 
@@ -314,7 +343,8 @@ public class PerBuildState implements AutoCloseable {
         this,
         eventBus,
         toExplore,
-        ignoreBuckAutodepsFiles);
+        ignoreBuckAutodepsFiles,
+        TargetGraphListener.NOOP);
   }
 
   public void ensureConcreteFilesExist(BuckEventBus eventBus) {
@@ -0,0 +1,594 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.bser.BserDeserializer;
+import com.facebook.buck.bser.BserSerializer;
+import com.facebook.buck.io.ExecutableFinder;
+import com.facebook.buck.io.MorePaths;
+import com.facebook.buck.io.PathOrGlobMatcher;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuckVersion;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.Description;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the raw output of parsing build files to {@code buck-out}, so that invocations without
+ * a daemon and freshly started daemons don't have to run every build file through the build file
+ * parser again.
+ *
+ * A persisted parse is only reused if nothing that could have affected it has changed:
+ * <ul>
+ *   <li>the contents of the build file, the files it included and the cell's default includes,
+ *   <li>the build file's {@code .autodeps} file, including whether it exists,
+ *   <li>the config values and environment variables the build file read,
+ *   <li>the listings of the directories searched by its globs, and
+ *   <li>the Buck version and the settings the build file parser is started with.
+ * </ul>
+ *
+ * The inputs known up front are hashed before the build file is parsed. The includes and glob
+ * directories the parse reports are only known afterwards, so a parse is only persisted if none
+ * of its inputs were modified after it started, or after their hash was taken.
+ *
+ * Entries are grouped by a hash of the parser settings, which changes with every Buck version, so
+ * groups that haven't been used for a while are pruned.
+ *
+ * Instances memoize file and directory hashes, so they must not outlive a single parse.
+ */
+class PersistedRawNodeCache {
+
+  private static final Logger LOG = Logger.get(PersistedRawNodeCache.class);
+
+  /**
+   * Bump whenever the format of the persisted entries changes.
+   */
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * How far apart modification times must be to be told apart, on any file system we run on.
+   */
+  private static final long MODIFICATION_TIME_GRANULARITY_MILLIS = 2000;
+
+  /**
+   * How long entries for other parser settings, usually other Buck versions, are kept around.
+   */
+  private static final long UNUSED_SETTINGS_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+  private static final String NODES = "nodes";
+  private static final String FILES = "files";
+  private static final String GLOBS = "globs";
+  private static final String GLOB_BASE = "base";
+  private static final String GLOB_DEPTH = "depth";
+  private static final String GLOB_HASH = "hash";
+
+  private static final String MISSING_FILE_HASH = "";
+  private static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+
+  private final boolean ignoreBuckAutodepsFiles;
+
+  private final ConcurrentMap<Path, HashCode> parserSettingsHashes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Path, InputHash> fileHashes = new ConcurrentHashMap<>();
+  private final ConcurrentMap<DirectoryListing, Optional<InputHash>> directoryHashes =
+      new ConcurrentHashMap<>();
+
+  PersistedRawNodeCache(boolean ignoreBuckAutodepsFiles) {
+    this.ignoreBuckAutodepsFiles = ignoreBuckAutodepsFiles;
+  }
+
+  /**
+   * @return the persisted raw nodes of {@code buildFile}, including meta rules, if they are still
+   *     up to date.
+   */
+  @SuppressWarnings("unchecked")
+  Optional<ImmutableSet<Map<String, Object>>> lookup(Cell cell, Path buildFile) {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    Path entryPath = getEntryPath(cell, buildFile);
+    if (!filesystem.isFile(entryPath)) {
+      return Optional.empty();
+    }
+    try {
+      Map<String, Object> entry;
+      try (InputStream input = filesystem.newFileInputStream(entryPath)) {
+        entry = (Map<String, Object>)
+            new BserDeserializer(BserDeserializer.KeyOrdering.SORTED).deserializeBserValue(input);
+      }
+      List<Map<String, Object>> rawNodes = (List<Map<String, Object>>) entry.get(NODES);
+      if (!filesAreUnchanged(cell, (Map<String, String>) entry.get(FILES)) ||
+          !globsAreUnchanged(cell, (List<Map<String, Object>>) entry.get(GLOBS)) ||
+          !configAndEnvAreUnchanged(cell, rawNodes)) {
+        return Optional.empty();
+      }
+      return Optional.of(ImmutableSet.copyOf(rawNodes));
+    } catch (IOException | RuntimeException e) {
+      // A corrupt entry is no worse than a missing one.
+      LOG.warn(e, "Failed to read the persisted parse of [%s].", buildFile);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Hashes the inputs of {@code buildFile} that are known before it is parsed.
+   *
+   * @return the time the parse starts at, to pass to {@link #store}.
+   */
+  long prepareToParse(Cell cell, Path buildFile) {
+    try {
+      for (Path input : getFixedInputs(cell, buildFile)) {
+        hashFile(input);
+      }
+    } catch (IOException e) {
+      // Whatever failed will fail again when storing the parse.
+      LOG.verbose(e, "Failed to hash the inputs of [%s].", buildFile);
+    }
+    return System.currentTimeMillis();
+  }
+
+  /**
+   * Persists the raw nodes of {@code buildFile}, as returned by the build file parser including
+   * its meta rules.
+   *
+   * @param parseStartMillis the time the parse started at, as returned by
+   *     {@link #prepareToParse}.
+   */
+  void store(
+      Cell cell,
+      Path buildFile,
+      long parseStartMillis,
+      ImmutableSet<Map<String, Object>> rawNodes) {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    Path entryPath = getEntryPath(cell, buildFile);
+    try {
+      Optional<ImmutableMap<String, Object>> entry =
+          createEntry(cell, buildFile, parseStartMillis, rawNodes);
+      if (!entry.isPresent()) {
+        LOG.verbose("Not persisting the parse of [%s].", buildFile);
+        return;
+      }
+      filesystem.mkdirs(entryPath.getParent());
+      // Write to a temporary file first, so that concurrent readers never see partial entries.
+      Path tempPath = filesystem.createTempFile(entryPath.getParent(), "entry", ".tmp");
+      try (OutputStream output = filesystem.newFileOutputStream(tempPath)) {
+        new BserSerializer().serializeToStream(entry.get(), output);
+      }
+      filesystem.move(
+          tempPath,
+          entryPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to persist the parse of [%s].", buildFile);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Optional<ImmutableMap<String, Object>> createEntry(
+      Cell cell,
+      Path buildFile,
+      long parseStartMillis,
+      ImmutableSet<Map<String, Object>> rawNodes) throws IOException {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+
+    // Hashed before the parse, unless this is the first time they were seen.
+    Map<Path, InputHash> inputs = new HashMap<>();
+    for (Path input : getFixedInputs(cell, buildFile)) {
+      inputs.put(input, hashFile(input));
+    }
+
+    Map<String, String> files = new TreeMap<>();
+    ImmutableList.Builder<Map<String, Object>> globs = ImmutableList.builder();
+    boolean sawGlobs = false;
+    for (Map<String, Object> rawNode : rawNodes) {
+      if (rawNode.containsKey(DaemonicParserState.INCLUDES_META_RULE)) {
+        for (String include : (List<String>) rawNode.get(DaemonicParserState.INCLUDES_META_RULE)) {
+          Path path = filesystem.resolve(include);
+          InputHash hash = hashFile(path);
+          if (!isUnmodifiedSince(hash, parseStartMillis)) {
+            return Optional.empty();
+          }
+          files.put(path.toString(), hash.hash);
+        }
+      } else if (rawNode.containsKey(DaemonicParserState.GLOBS_META_RULE)) {
+        sawGlobs = true;
+        for (Map<String, Object> glob :
+            (List<Map<String, Object>>) rawNode.get(DaemonicParserState.GLOBS_META_RULE)) {
+          Optional<Path> base =
+              filesystem.getPathRelativeToProjectRoot(Paths.get((String) glob.get("search_base")));
+          Optional<Integer> depth = getSearchDepth((List<String>) glob.get("includes"));
+          if (!base.isPresent() || !depth.isPresent()) {
+            return Optional.empty();
+          }
+          Optional<InputHash> hash = hashDirectory(filesystem, base.get(), depth.get());
+          if (!hash.isPresent() || !isUnmodifiedSince(hash.get(), parseStartMillis)) {
+            return Optional.empty();
+          }
+          globs.add(
+              ImmutableMap.of(
+                  GLOB_BASE, base.get().toString(),
+                  GLOB_DEPTH, depth.get(),
+                  GLOB_HASH, hash.get().hash));
+        }
+      }
+    }
+    if (!sawGlobs) {
+      // Without the globs we can't tell when the results would change.
+      return Optional.empty();
+    }
+
+    for (Map.Entry<Path, InputHash> input : inputs.entrySet()) {
+      if (!isUnmodifiedSince(input.getValue(), parseStartMillis)) {
+        return Optional.empty();
+      }
+      files.put(input.getKey().toString(), input.getValue().hash);
+    }
+
+    return Optional.of(
+        ImmutableMap.of(
+            FILES, ImmutableSortedMap.copyOf(files),
+            GLOBS, globs.build(),
+            NODES, rawNodes));
+  }
+
+  private boolean filesAreUnchanged(Cell cell, Map<String, String> files) throws IOException {
+    for (Map.Entry<String, String> file : files.entrySet()) {
+      if (!hashFile(cell.getFilesystem().resolve(file.getKey())).hash.equals(file.getValue())) {
+        LOG.verbose("Persisted parse is stale, [%s] changed.", file.getKey());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean globsAreUnchanged(Cell cell, List<Map<String, Object>> globs)
+      throws IOException {
+    for (Map<String, Object> glob : globs) {
+      Optional<InputHash> hash = hashDirectory(
+          cell.getFilesystem(),
+          Paths.get((String) glob.get(GLOB_BASE)),
+          ((Number) glob.get(GLOB_DEPTH)).intValue());
+      if (!hash.isPresent() || !hash.get().hash.equals(glob.get(GLOB_HASH))) {
+        LOG.verbose("Persisted parse is stale, contents of [%s] changed.", glob.get(GLOB_BASE));
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static boolean configAndEnvAreUnchanged(Cell cell, List<Map<String, Object>> rawNodes) {
+    for (Map<String, Object> rawNode : rawNodes) {
+      if (rawNode.containsKey(DaemonicParserState.CONFIGS_META_RULE)) {
+        Map<String, Map<String, String>> configs =
+            (Map<String, Map<String, String>>) rawNode.get(DaemonicParserState.CONFIGS_META_RULE);
+        for (Map.Entry<String, Map<String, String>> section : configs.entrySet()) {
+          for (Map.Entry<String, String> field : section.getValue().entrySet()) {
+            // Compare raw values, as that's what the build file parser was given.
+            Optional<String> value =
+                cell.getBuckConfig().getRawValue(section.getKey(), field.getKey());
+            if (!value.equals(Optional.ofNullable(field.getValue()))) {
+              return false;
+            }
+          }
+        }
+      } else if (rawNode.containsKey(DaemonicParserState.ENV_META_RULE)) {
+        Map<String, String> env =
+            (Map<String, String>) rawNode.get(DaemonicParserState.ENV_META_RULE);
+        for (Map.Entry<String, String> variable : env.entrySet()) {
+          String value = cell.getBuckConfig().getEnvironment().get(variable.getKey());
+          if (!Optional.ofNullable(value).equals(Optional.ofNullable(variable.getValue()))) {
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return how many directory levels below the search base a glob can match files in, or
+   *     nothing if it can match outside of the search base.
+   */
+  private static Optional<Integer> getSearchDepth(List<String> includes) {
+    int depth = 1;
+    for (String include : includes) {
+      if (include.startsWith("/") || include.contains("..")) {
+        return Optional.empty();
+      }
+      if (include.contains("**")) {
+        return Optional.of(UNLIMITED_DEPTH);
+      }
+      depth = Math.max(depth, include.split("/", -1).length);
+    }
+    return Optional.of(depth);
+  }
+
+  /**
+   * @return the inputs of {@code buildFile} that are known without parsing it: the build file
+   *     itself, its {@code .autodeps} file and the cell's default includes.
+   */
+  private ImmutableList<Path> getFixedInputs(Cell cell, Path buildFile) {
+    ImmutableList.Builder<Path> inputs = ImmutableList.builder();
+    inputs.add(buildFile);
+    if (!ignoreBuckAutodepsFiles) {
+      inputs.add(buildFile.resolveSibling(cell.getBuildFileName() + ".autodeps"));
+    }
+    inputs.addAll(getDefaultIncludes(cell));
+    return inputs.build();
+  }
+
+  /**
+   * @return whether none of the paths {@code hash} was taken from were modified after it was
+   *     taken, or after {@code parseStartMillis} if that was earlier, so that the hash matches
+   *     what the parse saw.
+   */
+  private static boolean isUnmodifiedSince(InputHash hash, long parseStartMillis)
+      throws IOException {
+    long cutoffMillis =
+        Math.min(hash.hashedAtMillis, parseStartMillis) - MODIFICATION_TIME_GRANULARITY_MILLIS;
+    for (Path path : hash.paths) {
+      try {
+        if (Files.getLastModifiedTime(path).toMillis() >= cutoffMillis) {
+          LOG.verbose("[%s] was modified while being parsed.", path);
+          return false;
+        }
+      } catch (NoSuchFileException e) {
+        // Missing files are hashed as such, so a deletion shows up as a changed hash.
+      }
+    }
+    return true;
+  }
+
+  private InputHash hashFile(Path path) throws IOException {
+    InputHash hash = fileHashes.get(path);
+    if (hash == null) {
+      long hashedAtMillis = System.currentTimeMillis();
+      hash = new InputHash(
+          Files.isRegularFile(path) ?
+              MorePaths.asByteSource(path).hash(Hashing.sha1()).toString() :
+              MISSING_FILE_HASH,
+          hashedAtMillis,
+          ImmutableList.of(path));
+      fileHashes.put(path, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Hashes the names of the files a glob searching {@code depth} levels below {@code directory}
+   * could match.
+   *
+   * @return the hash, or nothing if a symlinked directory is in the way, as the files in it can
+   *     change without changing anything below {@code directory}.
+   */
+  private Optional<InputHash> hashDirectory(
+      ProjectFilesystem filesystem,
+      Path directory,
+      int depth) throws IOException {
+    DirectoryListing listing = new DirectoryListing(filesystem.getRootPath(), directory, depth);
+    Optional<InputHash> hash = directoryHashes.get(listing);
+    if (hash != null) {
+      return hash;
+    }
+    long hashedAtMillis = System.currentTimeMillis();
+    ImmutableList.Builder<Path> listedDirectories = ImmutableList.builder();
+    listedDirectories.add(filesystem.resolve(directory));
+    Hasher hasher = Hashing.sha1().newHasher();
+    if (filesystem.isDirectory(directory)) {
+      for (Path child : filesystem.getDirectoryContents(directory)) {
+        String name = child.getFileName().toString();
+        if (!filesystem.isDirectory(child)) {
+          hasher.putByte((byte) 'f').putString(name, StandardCharsets.UTF_8);
+        } else if (depth > 1) {
+          if (filesystem.isSymLink(child)) {
+            directoryHashes.put(listing, Optional.empty());
+            return Optional.empty();
+          }
+          Optional<InputHash> childHash = hashDirectory(
+              filesystem,
+              child,
+              depth == UNLIMITED_DEPTH ? depth : depth - 1);
+          if (!childHash.isPresent()) {
+            directoryHashes.put(listing, childHash);
+            return childHash;
+          }
+          hasher
+              .putByte((byte) 'd')
+              .putString(name, StandardCharsets.UTF_8)
+              .putString(childHash.get().hash, StandardCharsets.UTF_8);
+          listedDirectories.addAll(childHash.get().paths);
+          hashedAtMillis = Math.min(hashedAtMillis, childHash.get().hashedAtMillis);
+        }
+      }
+    }
+    hash = Optional.of(
+        new InputHash(hasher.hash().toString(), hashedAtMillis, listedDirectories.build()));
+    directoryHashes.put(listing, hash);
+    return hash;
+  }
+
+  private static ImmutableList<Path> getDefaultIncludes(Cell cell) {
+    ImmutableList.Builder<Path> includes = ImmutableList.builder();
+    for (String include : cell.getBuckConfig().getView(ParserConfig.class).getDefaultIncludes()) {
+      // Default includes are given as "//path/to/file", see DaemonicParserState.
+      Preconditions.checkState(include.startsWith("//"));
+      includes.add(cell.getFilesystem().resolve(include.substring(2)));
+    }
+    return includes.build();
+  }
+
+  private Path getEntryPath(Cell cell, Path buildFile) {
+    ProjectFilesystem filesystem = cell.getFilesystem();
+    String key = Hashing.sha1()
+        .hashString(filesystem.relativize(buildFile).toString(), StandardCharsets.UTF_8)
+        .toString();
+    return filesystem.getBuckPaths().getParseCacheDir()
+        .resolve(getParserSettingsHash(cell).toString())
+        .resolve(key);
+  }
+
+  /**
+   * Marks the entries for {@code settingsHash} as used, and deletes those for other settings that
+   * haven't been used for {@link #UNUSED_SETTINGS_MAX_AGE_MILLIS}, along with anything else that
+   * isn't a group of entries.
+   */
+  private static void pruneParseCache(ProjectFilesystem filesystem, HashCode settingsHash) {
+    Path parseCacheDir = filesystem.getBuckPaths().getParseCacheDir();
+    Path settingsDir = parseCacheDir.resolve(settingsHash.toString());
+    long nowMillis = System.currentTimeMillis();
+    try {
+      filesystem.mkdirs(settingsDir);
+      filesystem.setLastModifiedTime(settingsDir, FileTime.fromMillis(nowMillis));
+      for (Path child : filesystem.getDirectoryContents(parseCacheDir)) {
+        if (child.equals(settingsDir)) {
+          continue;
+        }
+        if (!filesystem.isDirectory(child) ||
+            filesystem.getLastModifiedTime(child).toMillis() <
+                nowMillis - UNUSED_SETTINGS_MAX_AGE_MILLIS) {
+          LOG.debug("Pruning persisted parses in [%s].", child);
+          filesystem.deleteRecursivelyIfExists(child);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to prune the persisted parses in [%s].", parseCacheDir);
+    }
+  }
+
+  /**
+   * @return a hash of everything the build file parser of {@code cell} is started with, apart
+   *     from the raw config, as the config values build files read are checked individually.
+   */
+  private HashCode getParserSettingsHash(Cell cell) {
+    return parserSettingsHashes.computeIfAbsent(
+        cell.getRoot(),
+        root -> {
+          ParserConfig parserConfig = cell.getBuckConfig().getView(ParserConfig.class);
+          Hasher hasher = Hashing.sha1().newHasher()
+              .putInt(FORMAT_VERSION)
+              .putString(BuckVersion.getVersion(), StandardCharsets.UTF_8)
+              .putBoolean(ignoreBuckAutodepsFiles)
+              .putBoolean(cell.getBuckConfig().getIncludeAutodepsSignature())
+              .putString(cell.getBuildFileName(), StandardCharsets.UTF_8)
+              .putString(
+                  parserConfig.getPythonInterpreter(new ExecutableFinder()),
+                  StandardCharsets.UTF_8)
+              .putString(
+                  parserConfig.getPythonModuleSearchPath().orElse(""),
+                  StandardCharsets.UTF_8)
+              .putBoolean(parserConfig.getAllowEmptyGlobs())
+              .putString(parserConfig.getGlobHandler().toString(), StandardCharsets.UTF_8);
+          for (String include : parserConfig.getDefaultIncludes()) {
+            hasher.putString(include, StandardCharsets.UTF_8);
+          }
+          for (String module : parserConfig.getBuildFileImportWhitelist()) {
+            hasher.putString(module, StandardCharsets.UTF_8);
+          }
+          for (PathOrGlobMatcher ignore : cell.getFilesystem().getIgnorePaths()) {
+            hasher.putString(ignore.toString(), StandardCharsets.UTF_8);
+          }
+          for (Map.Entry<String, Path> cellPath :
+              ImmutableSortedMap.copyOf(cell.getCellPathResolver().getCellPaths()).entrySet()) {
+            hasher
+                .putString(cellPath.getKey(), StandardCharsets.UTF_8)
+                .putString(cellPath.getValue().toString(), StandardCharsets.UTF_8);
+          }
+          cell.getAllDescriptions().stream()
+              .map(description -> Description.getBuildRuleType(description).getName())
+              .sorted()
+              .forEach(type -> hasher.putString(type, StandardCharsets.UTF_8));
+          HashCode settingsHash = hasher.hash();
+          pruneParseCache(cell.getFilesystem(), settingsHash);
+          return settingsHash;
+        });
+  }
+
+  /**
+   * The hash of a file or of a directory listing.
+   */
+  private static class InputHash {
+    private final String hash;
+    /** When the earliest part of the hash was taken. */
+    private final long hashedAtMillis;
+    /** The file, or the directories that were listed. */
+    private final ImmutableList<Path> paths;
+
+    private InputHash(String hash, long hashedAtMillis, ImmutableList<Path> paths) {
+      this.hash = hash;
+      this.hashedAtMillis = hashedAtMillis;
+      this.paths = paths;
+    }
+  }
+
+  /**
+   * A directory listed to a given depth.
+   */
+  private static class DirectoryListing {
+    private final Path root;
+    private final Path directory;
+    private final int depth;
+
+    private DirectoryListing(Path root, Path directory, int depth) {
+      this.root = root;
+      this.directory = directory;
+      this.depth = depth;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof DirectoryListing)) {
+        return false;
+      }
+      DirectoryListing that = (DirectoryListing) other;
+      return root.equals(that.root) && directory.equals(that.directory) && depth == that.depth;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(root, directory, depth);
+    }
+  }
+
+}
@@ -18,7 +18,9 @@ package com.facebook.buck.parser;
 
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.rules.Cell;
+import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.concurrent.ResourcePool;
+import com.facebook.buck.util.concurrent.SharedResourceLimit;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
@@ -28,6 +30,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -38,9 +41,15 @@ import javax.annotation.concurrent.GuardedBy;
  * Parser instances are lazily created up till a fixed maximum. If more than max parser are
  * requested the associated 'requests' are queued up. As soon as a parser is returned it will
  * be used to satisfy the first pending request, otherwise it is "parked".
+ *
+ * When sized adaptively, the maximum is shared by the parsers of all cells, and each cell only
+ * starts additional parsers while its queued build files would keep the running ones busy for
+ * longer than a parser takes to start. Parsers left idle are shut down.
  */
 class ProjectBuildFileParserPool implements AutoCloseable {
   private final int maxParsersPerCell;
+  private final Optional<SharedResourceLimit> sharedLimit;
+  private final Optional<Long> idleTimeoutMillis;
   @GuardedBy("this")
   private final Map<Cell, ResourcePool<ProjectBuildFileParser>> parserResourcePools;
   private final Function<Cell, ProjectBuildFileParser> parserFactory;
@@ -53,9 +62,37 @@ class ProjectBuildFileParserPool implements AutoCloseable {
   public ProjectBuildFileParserPool(
       int maxParsersPerCell,
       Function<Cell, ProjectBuildFileParser> parserFactory) {
+    this(maxParsersPerCell, parserFactory, Optional.empty(), Optional.empty());
+  }
+
+  /**
+   * Creates a pool whose parsers are sized to the load.
+   *
+   * @param maxParsers maximum number of parsers to create across all cells.
+   * @param parserFactory function used to create a new parser.
+   * @param idleTimeoutMillis how long a parser may stay idle before it is shut down.
+   */
+  public static ProjectBuildFileParserPool createAdaptive(
+      int maxParsers,
+      Function<Cell, ProjectBuildFileParser> parserFactory,
+      long idleTimeoutMillis) {
+    return new ProjectBuildFileParserPool(
+        maxParsers,
+        parserFactory,
+        Optional.of(new SharedResourceLimit(maxParsers)),
+        Optional.of(idleTimeoutMillis));
+  }
+
+  private ProjectBuildFileParserPool(
+      int maxParsersPerCell,
+      Function<Cell, ProjectBuildFileParser> parserFactory,
+      Optional<SharedResourceLimit> sharedLimit,
+      Optional<Long> idleTimeoutMillis) {
     Preconditions.checkArgument(maxParsersPerCell > 0);
 
     this.maxParsersPerCell = maxParsersPerCell;
+    this.sharedLimit = sharedLimit;
+    this.idleTimeoutMillis = idleTimeoutMillis;
     this.parserResourcePools = new HashMap<>();
     this.parserFactory = parserFactory;
     this.closing = new AtomicBoolean(false);
@@ -87,7 +124,11 @@ class ProjectBuildFileParserPool implements AutoCloseable {
           // If the Python process garbles the output stream then the bser codec doesn't always
           // recover and subsequent attempts at invoking the parser will fail.
           ResourcePool.ResourceUsageErrorPolicy.RETIRE,
-          () -> parserFactory.apply(cell));
+          () -> parserFactory.apply(cell),
+          sharedLimit,
+          /* adaptiveGrowth */ sharedLimit.isPresent(),
+          idleTimeoutMillis,
+          new DefaultClock());
       parserResourcePools.put(cell, pool);
     }
     return pool;
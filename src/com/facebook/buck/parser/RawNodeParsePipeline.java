@@ -21,6 +21,7 @@ import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.parser.PipelineNodeCache.Cache;
 import com.facebook.buck.rules.Cell;
+import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
@@ -29,6 +30,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 
 
 public class RawNodeParsePipeline extends ParsePipeline<Map<String, Object>> {
@@ -36,15 +38,29 @@ public class RawNodeParsePipeline extends ParsePipeline<Map<String, Object>> {
   private final PipelineNodeCache<Path, ImmutableSet<Map<String, Object>>> cache;
   private final ListeningExecutorService executorService;
   private final ProjectBuildFileParserPool projectBuildFileParserPool;
+  private final Optional<PersistedRawNodeCache> persistedCache;
 
   public RawNodeParsePipeline(
       Cache<Path, ImmutableSet<Map<String, Object>>> cache,
       ProjectBuildFileParserPool projectBuildFileParserPool,
       ListeningExecutorService executorService) {
+    this(cache, projectBuildFileParserPool, executorService, Optional.empty());
+  }
+
+  /**
+   * @param persistedCache if present, consulted before running the build file parser, and
+   *     updated with what it returns.
+   */
+  RawNodeParsePipeline(
+      Cache<Path, ImmutableSet<Map<String, Object>>> cache,
+      ProjectBuildFileParserPool projectBuildFileParserPool,
+      ListeningExecutorService executorService,
+      Optional<PersistedRawNodeCache> persistedCache) {
     super();
     this.executorService = executorService;
     this.cache = new PipelineNodeCache<>(cache);
     this.projectBuildFileParserPool = projectBuildFileParserPool;
+    this.persistedCache = persistedCache;
   }
 
   /**
@@ -96,13 +112,39 @@ public class RawNodeParsePipeline extends ParsePipeline<Map<String, Object>> {
             return Futures.immediateCancelledFuture();
           }
 
-          return projectBuildFileParserPool.getAllRulesAndMetaRules(
-              cell,
-              buildFile,
-              executorService);
+          if (!persistedCache.isPresent()) {
+            return projectBuildFileParserPool.getAllRulesAndMetaRules(
+                cell,
+                buildFile,
+                executorService);
+          }
+          return getAllNodesWithPersistedCache(cell, buildFile, persistedCache.get());
         });
   }
 
+  private ListenableFuture<ImmutableSet<Map<String, Object>>> getAllNodesWithPersistedCache(
+      Cell cell,
+      Path buildFile,
+      PersistedRawNodeCache persistedCache) {
+    return Futures.transformAsync(
+        executorService.submit(() -> persistedCache.lookup(cell, buildFile)),
+        persisted -> {
+          if (persisted.isPresent()) {
+            return Futures.immediateFuture(persisted.get());
+          }
+          long parseStartMillis = persistedCache.prepareToParse(cell, buildFile);
+          return Futures.transform(
+              projectBuildFileParserPool.getAllRulesAndMetaRules(cell, buildFile, executorService),
+              (Function<ImmutableSet<Map<String, Object>>, ImmutableSet<Map<String, Object>>>)
+                  rawNodes -> {
+                    persistedCache.store(cell, buildFile, parseStartMillis, rawNodes);
+                    return rawNodes;
+                  },
+              executorService);
+        },
+        executorService);
+  }
+
   @Override
   public ListenableFuture<Map<String, Object>> getNodeJob(
       final Cell cell,
@@ -22,6 +22,7 @@ import com.facebook.buck.model.BuildId;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
+import com.facebook.buck.zip.ZipCompressionLevel;
 import com.google.common.collect.ImmutableMap;
 
 import org.immutables.value.Value;
@@ -47,6 +48,15 @@ abstract class AbstractBuildEngineBuildContext {
     return false;
   }
 
+  /**
+   * The deflate level, from 0 (no compression) to 9, to compress artifacts with before storing
+   * them in the artifact cache.
+   */
+  @Value.Default
+  public int getArtifactCompressionLevel() {
+    return ZipCompressionLevel.DEFAULT_COMPRESSION_LEVEL.getValue();
+  }
+
   /**
    * Creates an {@link OnDiskBuildInfo}.
    * <p>
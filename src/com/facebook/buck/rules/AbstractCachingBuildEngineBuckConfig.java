@@ -68,6 +68,43 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return the maximum number of artifacts the build engine will fetch from the cache with a
+   *     single request.
+   */
+  public int getBuildArtifactCacheFetchBatchSize() {
+    return getDelegate().getInteger("build", "artifact_cache_fetch_batch_size").orElse(1);
+  }
+
+  /**
+   * @return the number of artifacts the build engine may prefetch from the cache concurrently, or
+   *     zero if prefetching is disabled. Prefetching is always disabled without a remote cache, as
+   *     fetching from the local dir cache is no slower when the build gets to a rule.
+   */
+  public int getBuildArtifactCachePrefetchConcurrency() {
+    boolean hasRemoteCache = getDelegate().getListWithoutComments("cache", "mode").stream()
+        .anyMatch(mode -> !mode.equals("dir"));
+    if (!hasRemoteCache) {
+      return 0;
+    }
+    return getDelegate().getInteger("build", "artifact_cache_prefetch_concurrency").orElse(0);
+  }
+
+  /**
+   * @return the number of bytes after which the build engine stops prefetching artifacts.
+   */
+  public Optional<Long> getBuildArtifactCachePrefetchSizeLimit() {
+    return getDelegate().getLong("build", "artifact_cache_prefetch_size_limit");
+  }
+
+  /**
+   * @return whether the build engine unzips artifacts while they are being downloaded from the
+   *     cache, instead of downloading them to temporary files first.
+   */
+  public boolean getBuildArtifactCacheStreamingFetch() {
+    return getDelegate().getBooleanValue("build", "artifact_cache_streaming_fetch", false);
+  }
+
   /**
    * @return the maximum size of files input based rule keys will be willing to hash.
    */
@@ -76,6 +113,14 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
         .orElse(Long.MAX_VALUE);
   }
 
+  /**
+   * @return whether the rule keys of all the rules to build are calculated in parallel before the
+   *     build starts, rather than as the build gets to each rule.
+   */
+  public boolean getBuildParallelRuleKeyCalculation() {
+    return getDelegate().getBooleanValue("build", "parallel_rule_key_calculation", false);
+  }
+
   public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo() {
     return ResourceAwareSchedulingInfo.of(
         getDelegate().isResourceAwareSchedulingEnabled(),
@@ -30,8 +30,11 @@ import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
@@ -42,28 +45,79 @@ import com.google.common.hash.Hashing;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nullable;
 
 /**
- * Class that transforms {@link TargetGraph} to {@link ActionGraph}. It also holds a cache for the
- * last ActionGraph it generated.
+ * Class that transforms {@link TargetGraph} to {@link ActionGraph}. It also holds a cache of the
+ * most recently used ActionGraphs it generated, keyed by the hash of the {@link TargetGraph} they
+ * were generated from. Entries are evicted in least-recently-used order once either the maximum
+ * number of entries or the estimated heap budget is exceeded.
  */
 public class ActionGraphCache {
   private static final Logger LOG = Logger.get(ActionGraphCache.class);
 
-  @Nullable
-  private Pair<TargetGraph, ActionGraphAndResolver> lastActionGraph;
+  /**
+   * Rough estimate of the retained heap size of a single {@link BuildRule} together with its
+   * params, resolver bookkeeping and the {@link TargetNode} it was created from.
+   */
+  @VisibleForTesting
+  static final long ESTIMATED_BYTES_PER_BUILD_RULE = 4 * 1024;
 
-  @Nullable
-  private HashCode lastTargetGraphHash;
+  /**
+   * Taking rules from a cached action graph removes it from the cache. When several graphs are
+   * cached, only do so if the new graph can reuse at least this share of the cached graph's rules.
+   */
+  @VisibleForTesting
+  static final double MIN_REUSED_RULE_FRACTION = 0.5;
+
+  private final int maxEntries;
+  private final long maxEstimatedBytes;
+  private final boolean incrementalActionGraph;
+  private final int parallelism;
+
+  /** Cached action graphs, in access order (least recently used first). */
+  private final LinkedHashMap<HashCode, CacheEntry> cachedActionGraphs =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+
+  private long totalEstimatedBytes = 0;
 
   private BroadcastEventListener broadcastEventListener;
 
   public ActionGraphCache(BroadcastEventListener broadcastEventListener) {
+    this(broadcastEventListener, 1, Long.MAX_VALUE, false, 1);
+  }
+
+  /**
+   * @param maxEntries the maximum number of action graphs kept in memory at once.
+   * @param maxEstimatedBytes the upper bound on the estimated heap footprint of all cached action
+   *     graphs. The most recently used graph is always kept, even if it exceeds the budget.
+   * @param incrementalActionGraph if true, on a cache miss the new action graph reuses the build
+   *     rules of the most recently used cached graph whose target nodes did not change.
+   * @param parallelism the number of threads used to transform target nodes into build rules. A
+   *     value of 1 constructs the action graph on the calling thread.
+   */
+  public ActionGraphCache(
+      BroadcastEventListener broadcastEventListener,
+      int maxEntries,
+      long maxEstimatedBytes,
+      boolean incrementalActionGraph,
+      int parallelism) {
+    Preconditions.checkArgument(maxEntries > 0, "maxEntries must be positive.");
+    Preconditions.checkArgument(maxEstimatedBytes > 0, "maxEstimatedBytes must be positive.");
+    Preconditions.checkArgument(parallelism > 0, "parallelism must be positive.");
     this.broadcastEventListener = broadcastEventListener;
+    this.maxEntries = maxEntries;
+    this.maxEstimatedBytes = maxEstimatedBytes;
+    this.incrementalActionGraph = incrementalActionGraph;
+    this.parallelism = parallelism;
   }
 
   /**
@@ -83,42 +137,88 @@ public class ActionGraphCache {
       final boolean skipActionGraphCache,
       final TargetGraph targetGraph,
       int keySeed) {
+    return getActionGraph(
+        eventBus,
+        checkActionGraphs,
+        skipActionGraphCache,
+        targetGraph,
+        keySeed,
+        Optional.empty());
+  }
+
+  /**
+   * Like {@link #getActionGraph(BuckEventBus, boolean, boolean, TargetGraph, int)}, but on a cache
+   * miss the new action graph starts out with the build rules that {@code streamingBuilder}
+   * created while {@code targetGraph} was being parsed.
+   */
+  public ActionGraphAndResolver getActionGraph(
+      final BuckEventBus eventBus,
+      final boolean checkActionGraphs,
+      final boolean skipActionGraphCache,
+      final TargetGraph targetGraph,
+      int keySeed,
+      Optional<StreamingActionGraphBuilder> streamingBuilder) {
     ActionGraphEvent.Started started = ActionGraphEvent.started();
     eventBus.post(started);
     ActionGraphAndResolver out;
     try {
       RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(keySeed);
-      if (lastActionGraph != null && lastActionGraph.getFirst().equals(targetGraph)) {
+      @Nullable CacheEntry cachedEntry = findEntryWithoutHashing(targetGraph);
+      HashCode targetGraphHash;
+      if (cachedEntry != null) {
+        targetGraphHash = cachedEntry.getTargetGraphHash();
+      } else {
+        LOG.debug("Computing TargetGraph HashCode...");
+        targetGraphHash = getTargetGraphHash(targetGraph);
+        cachedEntry = cachedActionGraphs.get(targetGraphHash);
+      }
+      if (cachedEntry != null && cachedEntry.getTargetGraph().equals(targetGraph)) {
         eventBus.post(ActionGraphEvent.Cache.hit());
         LOG.info("ActionGraph cache hit.");
         if (checkActionGraphs) {
-          compareActionGraphs(eventBus, lastActionGraph.getSecond(), targetGraph, fieldLoader);
+          compareActionGraphs(
+              eventBus,
+              cachedEntry.getActionGraphAndResolver(),
+              targetGraph,
+              fieldLoader);
         }
-        out = lastActionGraph.getSecond();
+        out = cachedEntry.getActionGraphAndResolver();
       } else {
-        eventBus.post(ActionGraphEvent.Cache.miss(lastActionGraph == null));
-        LOG.debug("Computing TargetGraph HashCode...");
-        HashCode targetGraphHash = getTargetGraphHash(targetGraph);
-        if (lastActionGraph == null) {
+        eventBus.post(ActionGraphEvent.Cache.miss(cachedActionGraphs.isEmpty()));
+        if (cachedActionGraphs.isEmpty()) {
           LOG.info("ActionGraph cache miss. Cache was empty.");
-        } else if (Objects.equals(lastTargetGraphHash, targetGraphHash)) {
+        } else if (cachedEntry != null) {
           LOG.info("ActionGraph cache miss. TargetGraphs mismatched but hashes are the same.");
           eventBus.post(ActionGraphEvent.Cache.missWithTargetGraphHashMatch());
         } else {
           LOG.info("ActionGraph cache miss. TargetGraphs mismatched.");
         }
-        lastTargetGraphHash = targetGraphHash;
-        Pair<TargetGraph, ActionGraphAndResolver> freshActionGraph =
-            new Pair<TargetGraph, ActionGraphAndResolver>(
-                targetGraph,
-                createActionGraph(
-                    eventBus,
-                    new DefaultTargetNodeToBuildRuleTransformer(),
-                    targetGraph));
-        out = freshActionGraph.getSecond();
+        // Reusing rules hands them over to the new action graph, so only do it when the new action
+        // graph is going to replace the old one in the cache.
+        Optional<CacheEntry> lastEntry = incrementalActionGraph && !skipActionGraphCache ?
+            getMostRecentlyUsedEntry() :
+            Optional.empty();
+        try {
+          out = createActionGraph(
+              eventBus,
+              new DefaultTargetNodeToBuildRuleTransformer(),
+              targetGraph,
+              lastEntry,
+              // With a single entry the last graph is evicted anyway, so reuse whatever we can.
+              maxEntries == 1 ? 0 : MIN_REUSED_RULE_FRACTION,
+              streamingBuilder,
+              parallelism);
+        } finally {
+          // Once its rules were handed over, the last entry's resolver answers from the new one.
+          // Drop the entry even if construction failed, since that resolver is now abandoned.
+          if (lastEntry.isPresent() &&
+              lastEntry.get().getActionGraphAndResolver().getResolver().isForwarded()) {
+            removeEntry(lastEntry.get());
+          }
+        }
         if (!skipActionGraphCache) {
           LOG.info("ActionGraph cache assignment. skipActionGraphCache? %s", skipActionGraphCache);
-          lastActionGraph = freshActionGraph;
+          putEntry(eventBus, new CacheEntry(targetGraph, targetGraphHash, out));
         }
       }
     } finally {
@@ -157,31 +257,140 @@ public class ActionGraphCache {
     ActionGraphEvent.Started started = ActionGraphEvent.started();
     eventBus.post(started);
 
-    ActionGraphAndResolver actionGraph = createActionGraph(eventBus, transformer, targetGraph);
+    ActionGraphAndResolver actionGraph =
+        createActionGraph(
+            eventBus,
+            transformer,
+            targetGraph,
+            Optional.empty(),
+            0,
+            Optional.empty(),
+            1);
 
     eventBus.post(ActionGraphEvent.finished(started));
     return actionGraph;
   }
 
+  private void putEntry(BuckEventBus eventBus, CacheEntry entry) {
+    CacheEntry previous = cachedActionGraphs.put(entry.getTargetGraphHash(), entry);
+    if (previous != null) {
+      totalEstimatedBytes -= previous.getEstimatedBytes();
+    }
+    totalEstimatedBytes += entry.getEstimatedBytes();
+
+    int evictedEntries = 0;
+    long evictedBytes = 0;
+    Iterator<CacheEntry> leastRecentlyUsed = cachedActionGraphs.values().iterator();
+    while (cachedActionGraphs.size() > 1 &&
+        (cachedActionGraphs.size() > maxEntries || totalEstimatedBytes > maxEstimatedBytes)) {
+      CacheEntry evicted = leastRecentlyUsed.next();
+      leastRecentlyUsed.remove();
+      totalEstimatedBytes -= evicted.getEstimatedBytes();
+      evictedEntries++;
+      evictedBytes += evicted.getEstimatedBytes();
+    }
+
+    if (evictedEntries > 0) {
+      LOG.info(
+          "ActionGraph cache evicted %d entries (~%d bytes). %d entries remain (~%d bytes).",
+          evictedEntries,
+          evictedBytes,
+          cachedActionGraphs.size(),
+          totalEstimatedBytes);
+      eventBus.post(ActionGraphEvent.Cache.eviction(evictedEntries, evictedBytes));
+    }
+  }
+
+  private void removeEntry(CacheEntry entry) {
+    if (cachedActionGraphs.remove(entry.getTargetGraphHash(), entry)) {
+      totalEstimatedBytes -= entry.getEstimatedBytes();
+    }
+  }
+
+  /**
+   * Finds the entry built from {@code targetGraph} without hashing it. The daemon usually hands
+   * back the very same graph instance, and graphs with different node counts are never equal, so
+   * this is much cheaper than {@link #getTargetGraphHash(TargetGraph)}.
+   */
+  @Nullable
+  private CacheEntry findEntryWithoutHashing(TargetGraph targetGraph) {
+    @Nullable CacheEntry match = null;
+    for (CacheEntry entry : cachedActionGraphs.values()) {
+      if (entry.getTargetGraph() == targetGraph) {
+        match = entry;
+        break;
+      }
+    }
+    if (match == null) {
+      int nodeCount = targetGraph.getNodes().size();
+      for (CacheEntry entry : cachedActionGraphs.values()) {
+        if (entry.getTargetGraph().getNodes().size() == nodeCount &&
+            entry.getTargetGraph().equals(targetGraph)) {
+          match = entry;
+          break;
+        }
+      }
+    }
+    if (match != null) {
+      // Mark the entry as most recently used.
+      cachedActionGraphs.get(match.getTargetGraphHash());
+    }
+    return match;
+  }
+
+  private Optional<CacheEntry> getMostRecentlyUsedEntry() {
+    return cachedActionGraphs.values().stream().reduce((first, second) -> second);
+  }
+
   private static ActionGraphAndResolver createActionGraph(
       final BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
-      TargetGraph targetGraph) {
+      TargetGraph targetGraph,
+      Optional<CacheEntry> lastEntry,
+      double minReusedRuleFraction,
+      Optional<StreamingActionGraphBuilder> streamingBuilder,
+      int parallelism) {
     final BuildRuleResolver resolver = new BuildRuleResolver(targetGraph, transformer, eventBus);
 
-    AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException> bottomUpTraversal =
-        new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
+    int streamedRules = 0;
+    if (streamingBuilder.isPresent()) {
+      try (SimplePerfEvent.Scope scope = SimplePerfEvent.scope(
+          eventBus,
+          PerfEventId.of("StreamedActionGraphReuse"))) {
+        streamedRules = streamingBuilder.get().populateResolver(targetGraph, resolver);
+        scope.appendFinishedInfo("streamedRules", streamedRules);
+        LOG.info(
+            "ActionGraph construction reused %d build rules streamed during parsing.",
+            streamedRules);
+      }
+    }
 
-          @Override
-          public void visit(TargetNode<?, ?> node) {
-            try {
-              resolver.requireRule(node.getBuildTarget());
-            } catch (NoSuchBuildTargetException e) {
-              throw new HumanReadableException(e);
+    if (streamedRules == 0 && lastEntry.isPresent()) {
+      try (SimplePerfEvent.Scope scope = SimplePerfEvent.scope(
+          eventBus,
+          PerfEventId.of("IncrementalActionGraphReuse"))) {
+        int reusedRules = new IncrementalActionGraphGenerator(
+            lastEntry.get().getTargetGraph(),
+            lastEntry.get().getActionGraphAndResolver().getResolver())
+            .populateResolverWithReusableRules(targetGraph, resolver, minReusedRuleFraction);
+        scope.appendFinishedInfo("reusedRules", reusedRules);
+        LOG.info("Incremental ActionGraph construction reused %d build rules.", reusedRules);
+      }
+    }
+
+    if (parallelism > 1) {
+      requireAllRulesInParallel(targetGraph, resolver, parallelism);
+    } else {
+      AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException> bottomUpTraversal =
+          new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
+
+            @Override
+            public void visit(TargetNode<?, ?> node) {
+              requireRule(resolver, node);
             }
-          }
-        };
-    bottomUpTraversal.traverse();
+          };
+      bottomUpTraversal.traverse();
+    }
 
     return ActionGraphAndResolver.builder()
         .setActionGraph(new ActionGraph(resolver.getBuildRules()))
@@ -189,6 +398,47 @@ public class ActionGraphCache {
         .build();
   }
 
+  /**
+   * Transforms every node of {@code targetGraph} on a fork-join pool. A node is only scheduled once
+   * the rules of all of its dependencies have been created, so that independent subgraphs are
+   * transformed concurrently while descriptions still find the rules of their deps in the resolver.
+   */
+  private static void requireAllRulesInParallel(
+      final TargetGraph targetGraph,
+      final BuildRuleResolver resolver,
+      int parallelism) {
+    final ForkJoinPool pool = new ForkJoinPool(parallelism);
+    final Map<TargetNode<?, ?>, CompletableFuture<Void>> futures = new HashMap<>();
+    try {
+      new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
+        @Override
+        public void visit(final TargetNode<?, ?> node) {
+          CompletableFuture<?>[] depFutures = targetGraph.getOutgoingNodesFor(node).stream()
+              .map(futures::get)
+              .toArray(CompletableFuture<?>[]::new);
+          futures.put(
+              node,
+              CompletableFuture.allOf(depFutures)
+                  .thenRunAsync(() -> requireRule(resolver, node), pool));
+        }
+      }.traverse();
+      CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).join();
+    } catch (CompletionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void requireRule(BuildRuleResolver resolver, TargetNode<?, ?> node) {
+    try {
+      resolver.requireRule(node.getBuildTarget());
+    } catch (NoSuchBuildTargetException e) {
+      throw new HumanReadableException(e);
+    }
+  }
+
   private static HashCode getTargetGraphHash(TargetGraph targetGraph) {
     Hasher hasher = Hashing.sha1().newHasher();
     ImmutableSet<TargetNode<?, ?>> nodes = targetGraph.getNodes();
@@ -231,8 +481,6 @@ public class ActionGraphCache {
     try (SimplePerfEvent.Scope scope = SimplePerfEvent.scope(
         eventBus,
         PerfEventId.of("ActionGraphCacheCheck"))) {
-      // We check that the lastActionGraph is not null because it's possible we had a
-      // invalidateCache() between the scheduling and the execution of this task.
       LOG.info("ActionGraph integrity check spawned.");
       Pair<TargetGraph, ActionGraphAndResolver> newActionGraph =
           new Pair<TargetGraph, ActionGraphAndResolver>(
@@ -240,7 +488,11 @@ public class ActionGraphCache {
               createActionGraph(
                   eventBus,
                   new DefaultTargetNodeToBuildRuleTransformer(),
-                  targetGraph));
+                  targetGraph,
+                  Optional.empty(),
+                  0,
+                  Optional.empty(),
+                  parallelism));
 
       Map<BuildRule, RuleKey> lastActionGraphRuleKeys = getRuleKeysFromBuildRules(
           lastActionGraphAndResolver.getActionGraph().getNodes(),
@@ -292,12 +544,50 @@ public class ActionGraphCache {
   }
 
   private void invalidateCache() {
-    lastActionGraph = null;
-    lastTargetGraphHash = null;
+    cachedActionGraphs.clear();
+    totalEstimatedBytes = 0;
+  }
+
+  public boolean isCacheEmpty() {
+    return cachedActionGraphs.isEmpty();
   }
 
   @VisibleForTesting
-  boolean isCacheEmpty() {
-    return lastActionGraph == null;
+  int getNumberOfCachedEntries() {
+    return cachedActionGraphs.size();
+  }
+
+  private static class CacheEntry {
+    private final TargetGraph targetGraph;
+    private final HashCode targetGraphHash;
+    private final ActionGraphAndResolver actionGraphAndResolver;
+    private final long estimatedBytes;
+
+    CacheEntry(
+        TargetGraph targetGraph,
+        HashCode targetGraphHash,
+        ActionGraphAndResolver actionGraphAndResolver) {
+      this.targetGraph = targetGraph;
+      this.targetGraphHash = targetGraphHash;
+      this.actionGraphAndResolver = actionGraphAndResolver;
+      this.estimatedBytes = ESTIMATED_BYTES_PER_BUILD_RULE *
+          Math.max(1, Iterables.size(actionGraphAndResolver.getActionGraph().getNodes()));
+    }
+
+    TargetGraph getTargetGraph() {
+      return targetGraph;
+    }
+
+    HashCode getTargetGraphHash() {
+      return targetGraphHash;
+    }
+
+    ActionGraphAndResolver getActionGraphAndResolver() {
+      return actionGraphAndResolver;
+    }
+
+    long getEstimatedBytes() {
+      return estimatedBytes;
+    }
   }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Speculatively downloads artifacts from an {@link ArtifactCache} before the build engine asks for
+ * them, so that downloads overlap with the rest of the build.
+ *
+ * <p>Prefetches are started in the order they were requested, with at most
+ * {@code maxConcurrentFetches} of them running at a time. Once the downloaded artifacts add up to
+ * more than {@code maxBytes}, no further prefetches are started. Prefetched artifacts are only
+ * downloaded; it is up to the caller to {@link #take} them and unpack them.
+ */
+class ArtifactCachePrefetcher implements Closeable {
+  private static final Logger LOG = Logger.get(ArtifactCachePrefetcher.class);
+
+  private final ListeningExecutorService executorService;
+  private final int maxConcurrentFetches;
+  private final Optional<Long> maxBytes;
+
+  private final Queue<Prefetch> queuedPrefetches = new ArrayDeque<>();
+  private final Map<RuleKey, Prefetch> prefetches = new HashMap<>();
+  private final Set<RuleKey> takenRuleKeys = new HashSet<>();
+  private int runningFetches = 0;
+  private long fetchedBytes = 0;
+  private boolean closed = false;
+
+  ArtifactCachePrefetcher(
+      ListeningExecutorService executorService,
+      int maxConcurrentFetches,
+      Optional<Long> maxBytes) {
+    Preconditions.checkArgument(maxConcurrentFetches > 0);
+    this.executorService = executorService;
+    this.maxConcurrentFetches = maxConcurrentFetches;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Queues a prefetch of the artifact for {@code ruleKey}, unless it has already been requested or
+   * taken.
+   */
+  synchronized void prefetch(ArtifactCache artifactCache, RuleKey ruleKey, LazyPath output) {
+    if (closed || isOverBudget() ||
+        prefetches.containsKey(ruleKey) || takenRuleKeys.contains(ruleKey)) {
+      return;
+    }
+    Prefetch prefetch = new Prefetch(artifactCache, ruleKey, output);
+    prefetches.put(ruleKey, prefetch);
+    queuedPrefetches.add(prefetch);
+    startQueuedPrefetches();
+  }
+
+  /**
+   * Hands the prefetch of the artifact for {@code ruleKey} over to the caller, who becomes
+   * responsible for the downloaded file. Prefetches that have not started yet are dropped, as the
+   * caller is going to fetch the artifact right away anyway.
+   *
+   * @return the prefetch, if it has been started.
+   */
+  synchronized Optional<Prefetch> take(RuleKey ruleKey) {
+    takenRuleKeys.add(ruleKey);
+    Prefetch prefetch = prefetches.remove(ruleKey);
+    if (prefetch == null) {
+      return Optional.empty();
+    }
+    if (!prefetch.started) {
+      queuedPrefetches.remove(prefetch);
+      return Optional.empty();
+    }
+    return Optional.of(prefetch);
+  }
+
+  /**
+   * Stops starting prefetches and deletes the artifacts that were prefetched but never taken.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    queuedPrefetches.clear();
+    for (Prefetch prefetch : prefetches.values()) {
+      if (prefetch.result.isDone()) {
+        deleteOutput(prefetch);
+      } else {
+        prefetch.result.addListener(() -> deleteOutput(prefetch), MoreExecutors.directExecutor());
+      }
+    }
+    prefetches.clear();
+  }
+
+  private boolean isOverBudget() {
+    return maxBytes.isPresent() && fetchedBytes >= maxBytes.get();
+  }
+
+  private void startQueuedPrefetches() {
+    while (runningFetches < maxConcurrentFetches && !isOverBudget()) {
+      Prefetch prefetch = queuedPrefetches.poll();
+      if (prefetch == null) {
+        return;
+      }
+      prefetch.started = true;
+      runningFetches++;
+      executorService.submit(() -> runPrefetch(prefetch));
+    }
+  }
+
+  private void runPrefetch(Prefetch prefetch) {
+    CacheResult result;
+    long size = 0;
+    try {
+      result = prefetch.artifactCache.fetch(prefetch.ruleKey, prefetch.output);
+      if (result.getType().isSuccess()) {
+        size = Files.size(prefetch.output.get());
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Failed to prefetch artifact for %s.", prefetch.ruleKey);
+      result = CacheResult.error("unknown", e.getMessage());
+    }
+
+    synchronized (this) {
+      runningFetches--;
+      fetchedBytes += size;
+      if (isOverBudget() && !queuedPrefetches.isEmpty()) {
+        LOG.debug(
+            "Prefetched %d bytes, dropping %d queued prefetches.",
+            fetchedBytes,
+            queuedPrefetches.size());
+        for (Prefetch dropped : queuedPrefetches) {
+          prefetches.remove(dropped.ruleKey);
+        }
+        queuedPrefetches.clear();
+      }
+      if (!closed) {
+        startQueuedPrefetches();
+      }
+    }
+    prefetch.result.set(result);
+  }
+
+  private static void deleteOutput(Prefetch prefetch) {
+    try {
+      Path path = prefetch.output.get();
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      LOG.debug(e, "Failed to delete unused prefetched artifact for %s.", prefetch.ruleKey);
+    }
+  }
+
+  static class Prefetch {
+    private final ArtifactCache artifactCache;
+    private final RuleKey ruleKey;
+    private final LazyPath output;
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+    private boolean started = false;
+
+    private Prefetch(ArtifactCache artifactCache, RuleKey ruleKey, LazyPath output) {
+      this.artifactCache = artifactCache;
+      this.ruleKey = ruleKey;
+      this.output = output;
+    }
+
+    LazyPath getOutput() {
+      return output;
+    }
+
+    ListenableFuture<CacheResult> getResult() {
+      return result;
+    }
+  }
+}
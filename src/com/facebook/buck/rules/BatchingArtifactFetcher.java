@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Fetches artifacts from an {@link ArtifactCache}, combining fetches that are waiting to run into
+ * {@link ArtifactCache#multiFetch} calls.
+ *
+ * <p>Every fetch is queued, and a task that drains the queue is submitted to the executor. Each
+ * drain task fetches up to {@code maxBatchSize} of the queued artifacts with a single call. Fetches
+ * are thus only combined while they would otherwise be waiting for a free executor thread, so no
+ * fetch is ever delayed to fill up a batch.
+ */
+class BatchingArtifactFetcher {
+  private static final Logger LOG = Logger.get(BatchingArtifactFetcher.class);
+
+  private final ListeningExecutorService executorService;
+  private final int maxBatchSize;
+
+  private final Queue<PendingFetch> pendingFetches = new ArrayDeque<>();
+
+  BatchingArtifactFetcher(ListeningExecutorService executorService, int maxBatchSize) {
+    Preconditions.checkArgument(maxBatchSize > 0);
+    this.executorService = executorService;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  ListenableFuture<CacheResult> fetch(
+      ArtifactCache artifactCache,
+      RuleKey ruleKey,
+      LazyPath output) {
+    PendingFetch fetch = new PendingFetch(artifactCache, ruleKey, output);
+    synchronized (pendingFetches) {
+      pendingFetches.add(fetch);
+    }
+    executorService.submit(this::fetchPendingBatch);
+    return fetch.result;
+  }
+
+  private void fetchPendingBatch() {
+    List<PendingFetch> batch = pollBatch();
+    if (batch.isEmpty()) {
+      // The fetch this task was submitted for was already handled by an earlier task.
+      return;
+    }
+
+    ArtifactCache artifactCache = batch.get(0).artifactCache;
+    try {
+      if (batch.size() == 1) {
+        PendingFetch fetch = batch.get(0);
+        fetch.result.set(artifactCache.fetch(fetch.ruleKey, fetch.output));
+        return;
+      }
+
+      ImmutableMap.Builder<RuleKey, LazyPath> outputs = ImmutableMap.builder();
+      for (PendingFetch fetch : batch) {
+        outputs.put(fetch.ruleKey, fetch.output);
+      }
+      LOG.verbose("Fetching %d artifacts in one batch.", batch.size());
+      ImmutableMap<RuleKey, CacheResult> results = artifactCache.multiFetch(outputs.build());
+      for (PendingFetch fetch : batch) {
+        fetch.result.set(Preconditions.checkNotNull(results.get(fetch.ruleKey)));
+      }
+    } catch (RuntimeException e) {
+      LOG.error(e, "Buck internal error when downloading from the cache, will build locally.");
+      for (PendingFetch fetch : batch) {
+        fetch.result.set(CacheResult.error("unknown", e.getMessage()));
+      }
+    }
+  }
+
+  /**
+   * Takes the longest prefix of the queue with at most {@code maxBatchSize} fetches that can be
+   * performed with a single {@link ArtifactCache#multiFetch} call, i.e. from the same cache and with
+   * distinct rule keys.
+   */
+  private List<PendingFetch> pollBatch() {
+    List<PendingFetch> batch = new ArrayList<>();
+    synchronized (pendingFetches) {
+      PendingFetch first = pendingFetches.poll();
+      if (first == null) {
+        return batch;
+      }
+      batch.add(first);
+      while (batch.size() < maxBatchSize) {
+        PendingFetch next = pendingFetches.peek();
+        if (next == null ||
+            next.artifactCache != first.artifactCache ||
+            containsRuleKey(batch, next.ruleKey)) {
+          break;
+        }
+        batch.add(pendingFetches.remove());
+      }
+    }
+    return batch;
+  }
+
+  private static boolean containsRuleKey(List<PendingFetch> batch, RuleKey ruleKey) {
+    for (PendingFetch fetch : batch) {
+      if (fetch.ruleKey.equals(ruleKey)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static class PendingFetch {
+    private final ArtifactCache artifactCache;
+    private final RuleKey ruleKey;
+    private final LazyPath output;
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+
+    private PendingFetch(ArtifactCache artifactCache, RuleKey ruleKey, LazyPath output) {
+      this.artifactCache = artifactCache;
+      this.ruleKey = ruleKey;
+      this.output = output;
+    }
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.step.ExecutionContext;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -35,6 +36,15 @@ public interface BuildEngine {
    */
   int getNumRulesToBuild(Iterable<BuildRule> rule);
 
+  /**
+   * Calculate the rule keys of the given roots and their transitive deps ahead of building them,
+   * so that the build doesn't wait on rule key calculation.  Engines may skip this.
+   */
+  @SuppressWarnings("unused") // Only engines which calculate rule keys need the arguments.
+  default void calculateRuleKeys(BuckEventBus eventBus, Iterable<BuildRule> rules)
+      throws InterruptedException {
+  }
+
   /**
    * Build the given build rule and return a future to the build rule success.
    */
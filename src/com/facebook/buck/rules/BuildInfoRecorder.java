@@ -281,11 +281,15 @@ public class BuildInfoRecorder {
 
   /**
    * Creates a zip file of the metadata and recorded artifacts and stores it in the artifact cache.
+   *
+   * @param compressionLevel the deflate level to compress the files in the zip with, from 0 (no
+   *     compression) to 9.
    */
   public void performUploadToArtifactCache(
       final ImmutableSet<RuleKey> ruleKeys,
       ArtifactCache artifactCache,
-      final BuckEventBus eventBus) {
+      final BuckEventBus eventBus,
+      int compressionLevel) {
 
     // Skip all of this if caching is disabled. Although artifactCache.store() will be a noop,
     // building up the zip is wasted I/O.
@@ -301,13 +305,15 @@ public class BuildInfoRecorder {
     final Path zip;
     ImmutableSet<Path> pathsToIncludeInZip = ImmutableSet.of();
     ImmutableMap<String, String> buildMetadata;
+    ArtifactCompressionEvent.Finished finished = ArtifactCompressionEvent.finished(started);
     try {
       pathsToIncludeInZip = getRecordedDirsAndFiles();
       zip = Files.createTempFile(
           "buck_artifact_" + MoreFiles.sanitize(buildTarget.getShortName()),
           ".zip");
       buildMetadata = getBuildMetadata();
-      projectFilesystem.createZip(pathsToIncludeInZip, zip);
+      projectFilesystem.createZip(pathsToIncludeInZip, zip, compressionLevel);
+      finished = ArtifactCompressionEvent.finished(started, getOutputSize(), Files.size(zip));
     } catch (IOException e) {
       eventBus.post(ConsoleEvent.info("Failed to create zip for %s containing:\n%s",
           buildTarget,
@@ -315,7 +321,7 @@ public class BuildInfoRecorder {
       e.printStackTrace();
       return;
     } finally {
-      eventBus.post(ArtifactCompressionEvent.finished(started));
+      eventBus.post(finished);
     }
 
     // Store the artifact, including any additional metadata.
@@ -19,6 +19,7 @@ package com.facebook.buck.rules;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.Pair;
+import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
@@ -33,6 +34,7 @@ import com.google.common.collect.Iterables;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 import javax.annotation.Nullable;
 
@@ -53,8 +55,15 @@ public class BuildRuleResolver {
   private final BuckEventBus eventBus;
 
   private final ConcurrentHashMap<BuildTarget, BuildRule> buildRuleIndex;
+  private final ConcurrentHashMap<UnflavoredBuildTarget, Object> ruleCreationLocks;
   private final LoadingCache<Pair<BuildTarget, Class<?>>, Optional<?>> metadataCache;
 
+  /**
+   * Once set, every lookup is answered by this resolver instead. See {@link #forwardTo}.
+   */
+  @Nullable
+  private volatile BuildRuleResolver successor;
+
   public BuildRuleResolver(
       TargetGraph targetGraph,
       TargetNodeToBuildRuleTransformer buildRuleGenerator) {
@@ -73,6 +82,7 @@ public class BuildRuleResolver {
     final int initialCapacity = (int) (targetGraph.getNodes().size() * 5 * 1.1);
 
     this.buildRuleIndex = new ConcurrentHashMap<>(initialCapacity);
+    this.ruleCreationLocks = new ConcurrentHashMap<>(initialCapacity);
     this.metadataCache = CacheBuilder.newBuilder()
         .initialCapacity(initialCapacity)
         .build(
@@ -112,6 +122,10 @@ public class BuildRuleResolver {
    * @return an unmodifiable view of the rules in the index
    */
   public Iterable<BuildRule> getBuildRules() {
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.getBuildRules();
+    }
     return Iterables.unmodifiableIterable(buildRuleIndex.values());
   }
 
@@ -126,38 +140,138 @@ public class BuildRuleResolver {
    * Returns the {@link BuildRule} with the {@code buildTarget}.
    */
   public BuildRule getRule(BuildTarget buildTarget) {
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.getRule(buildTarget);
+    }
     return fromNullable(buildTarget, buildRuleIndex.get(buildTarget));
   }
 
   public Optional<BuildRule> getRuleOptional(BuildTarget buildTarget) {
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.getRuleOptional(buildTarget);
+    }
     return Optional.ofNullable(buildRuleIndex.get(buildTarget));
   }
 
+  /**
+   * Returns the {@link BuildRule} for {@code target}, creating it from its {@link TargetNode} if it
+   * does not exist yet. This may be called concurrently from multiple threads.
+   */
   public BuildRule requireRule(BuildTarget target) throws NoSuchBuildTargetException {
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.requireRule(target);
+    }
     BuildRule rule = buildRuleIndex.get(target);
     if (rule != null) {
       return rule;
     }
-    TargetNode<?, ?> node = targetGraph.get(target);
-    rule = buildRuleGenerator.transform(targetGraph, this, node);
-    Preconditions.checkState(
-        // TODO(jakubzika): This should hold for flavored build targets as well.
-        rule.getBuildTarget().getUnflavoredBuildTarget().equals(target.getUnflavoredBuildTarget()),
-        "Description returned rule for '%s' instead of '%s'.",
-        rule.getBuildTarget(),
-        target);
-    BuildRule oldRule = buildRuleIndex.put(target, rule);
-    Preconditions.checkState(
-        // TODO(jakubzika): Eventually we should be able to remove the oldRule == rule part.
-        // For now we need it to handle cases where a description adds a rule to the index before
-        // returning it.
-        oldRule == null || oldRule == rule,
-        "Multiple rules created for target '%s':\n" +
-            "new rule '%s' does not match existing rule '%s'.",
-        target,
-        rule,
-        oldRule);
-    return rule;
+    // Descriptions commonly create rules for other flavors of their own target while being
+    // transformed, so all flavors of a target are created under a single (reentrant) lock.
+    synchronized (getRuleCreationLock(target)) {
+      rule = buildRuleIndex.get(target);
+      if (rule != null) {
+        return rule;
+      }
+      TargetNode<?, ?> node = targetGraph.get(target);
+      rule = buildRuleGenerator.transform(targetGraph, this, node);
+      Preconditions.checkState(
+          // TODO(jakubzika): This should hold for flavored build targets as well.
+          rule.getBuildTarget().getUnflavoredBuildTarget()
+              .equals(target.getUnflavoredBuildTarget()),
+          "Description returned rule for '%s' instead of '%s'.",
+          rule.getBuildTarget(),
+          target);
+      BuildRule oldRule = buildRuleIndex.put(target, rule);
+      Preconditions.checkState(
+          // TODO(jakubzika): Eventually we should be able to remove the oldRule == rule part.
+          // For now we need it to handle cases where a description adds a rule to the index before
+          // returning it.
+          oldRule == null || oldRule == rule,
+          "Multiple rules created for target '%s':\n" +
+              "new rule '%s' does not match existing rule '%s'.",
+          target,
+          rule,
+          oldRule);
+      return rule;
+    }
+  }
+
+  /**
+   * Returns the {@link BuildRule} for {@code target}, creating it with {@code creator} and adding
+   * it to the index if it does not exist yet.
+   *
+   * <p>Unlike looking the rule up with {@link #getRuleOptional} and adding it with
+   * {@link #addToIndex}, this may be called concurrently for the same target. Use it for every rule
+   * that is not created by {@link #requireRule}, in particular for rules flavored on the targets of
+   * dependencies, which several targets may create at once. {@code creator} is called while holding
+   * the same lock that {@link #requireRule} holds for {@code target}, and must return a rule for
+   * {@code target}.
+   */
+  public BuildRule computeIfAbsent(BuildTarget target, Function<BuildTarget, BuildRule> creator) {
+    return computeIfAbsent(target, BuildRule.class, creator);
+  }
+
+  /**
+   * Like {@link #computeIfAbsent(BuildTarget, Function)}, but returns a rule of type {@code cls}.
+   */
+  public <T extends BuildRule> T computeIfAbsent(
+      BuildTarget target,
+      Class<T> cls,
+      Function<BuildTarget, T> creator) {
+    try {
+      return computeIfAbsentThrowing(target, cls, creator::apply);
+    } catch (NoSuchBuildTargetException e) {
+      // Function cannot throw checked exceptions.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Like {@link #computeIfAbsent(BuildTarget, Function)}, for creators that require other rules.
+   */
+  public BuildRule computeIfAbsentThrowing(BuildTarget target, RuleCreator<BuildRule> creator)
+      throws NoSuchBuildTargetException {
+    return computeIfAbsentThrowing(target, BuildRule.class, creator);
+  }
+
+  /**
+   * Like {@link #computeIfAbsent(BuildTarget, Class, Function)}, for creators that require other
+   * rules.
+   */
+  public <T extends BuildRule> T computeIfAbsentThrowing(
+      BuildTarget target,
+      Class<T> cls,
+      RuleCreator<T> creator) throws NoSuchBuildTargetException {
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.computeIfAbsentThrowing(target, cls, creator);
+    }
+    Optional<T> rule = getRuleOptionalWithType(target, cls);
+    if (rule.isPresent()) {
+      return rule.get();
+    }
+    synchronized (getRuleCreationLock(target)) {
+      rule = getRuleOptionalWithType(target, cls);
+      if (rule.isPresent()) {
+        return rule.get();
+      }
+      T newRule = creator.create(target);
+      Preconditions.checkState(
+          newRule.getBuildTarget().equals(target),
+          "Created rule for '%s' instead of '%s'.",
+          newRule.getBuildTarget(),
+          target);
+      return addToIndex(newRule);
+    }
+  }
+
+  private Object getRuleCreationLock(BuildTarget target) {
+    return ruleCreationLocks.computeIfAbsent(
+        target.getUnflavoredBuildTarget(),
+        unflavoredTarget -> new Object());
   }
 
   public ImmutableSortedSet<BuildRule> requireAllRules(Iterable<BuildTarget> buildTargets)
@@ -172,6 +286,10 @@ public class BuildRuleResolver {
   @SuppressWarnings("unchecked")
   public <T> Optional<T> requireMetadata(BuildTarget target, Class<T> metadataClass)
       throws NoSuchBuildTargetException {
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.requireMetadata(target, metadataClass);
+    }
     try {
       return (Optional<T>) metadataCache.get(
           new Pair<BuildTarget, Class<?>>(target, metadataClass));
@@ -185,6 +303,10 @@ public class BuildRuleResolver {
   public <T> Optional<T> getRuleOptionalWithType(
       BuildTarget buildTarget,
       Class<T> cls) {
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.getRuleOptionalWithType(buildTarget, cls);
+    }
     BuildRule rule = buildRuleIndex.get(buildTarget);
     if (rule != null) {
       if (cls.isInstance(rule)) {
@@ -218,7 +340,11 @@ public class BuildRuleResolver {
    */
   @VisibleForTesting
   public <T extends BuildRule> T addToIndex(T buildRule) {
-    BuildRule oldValue = buildRuleIndex.put(buildRule.getBuildTarget(), buildRule);
+    BuildRuleResolver successor = this.successor;
+    if (successor != null) {
+      return successor.addToIndex(buildRule);
+    }
+    BuildRule oldValue = buildRuleIndex.putIfAbsent(buildRule.getBuildTarget(), buildRule);
     // Yuck! This is here to make it possible for a rule to depend on a flavor of itself but it
     // would be much much better if we just got rid of the BuildRuleResolver entirely.
     if (oldValue != null && oldValue != buildRule) {
@@ -238,8 +364,37 @@ public class BuildRuleResolver {
     return buildRules;
   }
 
+  /**
+   * Makes this resolver answer every lookup from {@code successor} from now on, and drops its own
+   * index.
+   *
+   * <p>Rules, {@link SourcePathResolver}s and {@link SourcePathRuleFinder}s keep a reference to the
+   * resolver that created them. When such rules are carried over into a new action graph, this
+   * re-points all of them at once: rules they look up or lazily require end up in the new action
+   * graph, and this resolver no longer keeps the rest of the old one alive.
+   */
+  void forwardTo(BuildRuleResolver successor) {
+    Preconditions.checkArgument(successor != this, "A resolver cannot forward to itself.");
+    Preconditions.checkState(this.successor == null, "Resolver already forwards lookups.");
+    this.successor = successor;
+    buildRuleIndex.clear();
+    ruleCreationLocks.clear();
+    metadataCache.invalidateAll();
+  }
+
+  boolean isForwarded() {
+    return successor != null;
+  }
+
   @Nullable
   public BuckEventBus getEventBus() {
     return eventBus;
   }
+
+  /**
+   * Creates the rule for a build target. See {@link #computeIfAbsentThrowing}.
+   */
+  public interface RuleCreator<T extends BuildRule> {
+    T create(BuildTarget target) throws NoSuchBuildTargetException;
+  }
 }
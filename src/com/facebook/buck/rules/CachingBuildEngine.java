@@ -32,7 +32,9 @@ import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.keys.CombinedRuleKeyFactory;
 import com.facebook.buck.rules.keys.DependencyFileEntry;
+import com.facebook.buck.rules.keys.ParallelRuleKeyCalculator;
 import com.facebook.buck.rules.keys.RuleKeyAndInputs;
 import com.facebook.buck.rules.keys.RuleKeyDiagnostics;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
@@ -56,6 +58,7 @@ import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.concurrent.MoreFutures;
 import com.facebook.buck.util.concurrent.ResourceAmounts;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
+import com.facebook.buck.zip.StagedZip;
 import com.facebook.buck.zip.Unzip;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.annotations.VisibleForTesting;
@@ -71,6 +74,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Atomics;
 import com.google.common.util.concurrent.FutureCallback;
@@ -83,6 +87,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -90,11 +95,13 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
@@ -130,6 +137,52 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     ;
   };
 
+  /**
+   * Remembers whether reading the underlying stream failed, to tell failures of a fetch apart from
+   * failures of processing its payload.
+   */
+  private static class FailureRecordingInputStream extends FilterInputStream {
+    private boolean failed = false;
+
+    FailureRecordingInputStream(InputStream in) {
+      super(in);
+    }
+
+    boolean hasFailed() {
+      return failed;
+    }
+
+    @Override
+    public int read() throws IOException {
+      try {
+        return super.read();
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      try {
+        return super.read(b, off, len);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      try {
+        return super.skip(n);
+      } catch (IOException e) {
+        failed = true;
+        throw e;
+      }
+    }
+  }
+
   /**
    * These are the values returned by {@link BuildEngine#build(BuildEngineBuildContext, ExecutionContext, BuildRule)}.
    * This must always return the same value for the build of each target.
@@ -147,6 +200,10 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private final WeightedListeningExecutorService service;
   private final WeightedListeningExecutorService cacheActivityService;
+  private final BatchingArtifactFetcher artifactFetcher;
+  private final Optional<ArtifactCachePrefetcher> artifactPrefetcher;
+  private final Set<BuildRule> prefetchVisitedRules = Sets.newConcurrentHashSet();
+  private final boolean artifactCacheStreamingFetch;
   private final StepRunner stepRunner;
   private final BuildMode buildMode;
   private final MetadataStorage metadataStorage;
@@ -177,6 +234,10 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int artifactCacheFetchBatchSize,
+      int artifactCachePrefetchConcurrency,
+      Optional<Long> artifactCachePrefetchSizeLimit,
+      boolean artifactCacheStreamingFetch,
       final BuildRuleResolver resolver,
       ResourceAwareSchedulingInfo resourceAwareSchedulingInfo,
       RuleKeyFactories ruleKeyFactories) {
@@ -184,6 +245,19 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
     this.service = service;
     this.cacheActivityService = artifactFetchService;
+    this.artifactFetcher = new BatchingArtifactFetcher(
+        cacheActivityService.withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS),
+        artifactCacheFetchBatchSize);
+    this.artifactPrefetcher = artifactCachePrefetchConcurrency > 0 ?
+        Optional.of(
+            new ArtifactCachePrefetcher(
+                cacheActivityService.withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS),
+                artifactCachePrefetchConcurrency,
+                artifactCachePrefetchSizeLimit)) :
+        Optional.empty();
+    // Batched fetches always download to files, so streaming only applies without batching.
+    this.artifactCacheStreamingFetch =
+        artifactCacheStreamingFetch && artifactCacheFetchBatchSize == 1;
     this.stepRunner = stepRunner;
     this.buildMode = buildMode;
     this.metadataStorage = metadataStorage;
@@ -230,6 +304,11 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
     this.service = service;
     this.cacheActivityService = service;
+    this.artifactFetcher = new BatchingArtifactFetcher(
+        cacheActivityService.withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS),
+        /* maxBatchSize */ 1);
+    this.artifactPrefetcher = Optional.empty();
+    this.artifactCacheStreamingFetch = false;
     this.stepRunner = stepRunner;
     this.buildMode = buildMode;
     this.metadataStorage = metadataStorage;
@@ -252,6 +331,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   @Override
   public void close() {
+    artifactPrefetcher.ifPresent(ArtifactCachePrefetcher::close);
     for (BuildInfoStore store : buildInfoStores.values()) {
       store.close();
     }
@@ -533,16 +613,15 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
       // 2. Rule key cache lookup.
       ListenableFuture<CacheResult> rulekeyCacheResult =
-          cacheActivityService.submit(
-              () -> {
-                CacheResult cacheResult =
-                    tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
-                        rule,
-                        defaultRuleKey,
-                        buildContext.getArtifactCache(),
-                        // TODO(simons): This should be a shared between all tests, not one per cell
-                        rule.getProjectFilesystem(),
-                        buildContext);
+          Futures.transform(
+              fetchArtifactInBatchAndOverlayOnTopOfProjectFilesystem(
+                  rule,
+                  defaultRuleKey,
+                  buildContext.getArtifactCache(),
+                  // TODO(simons): This should be a shared between all tests, not one per cell
+                  rule.getProjectFilesystem(),
+                  buildContext),
+              (CacheResult cacheResult) -> {
                 if (cacheResult.getType().isSuccess()) {
                   fillMissingBuildMetadataFromCache(
                       cacheResult,
@@ -552,8 +631,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                       BuildInfo.MetadataKey.DEP_FILE);
                 }
                 return cacheResult;
-              },
-              CACHE_CHECK_RESOURCE_AMOUNTS);
+              });
 
       return Futures.transformAsync(
           rulekeyCacheResult,
@@ -816,13 +894,16 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                 BuildInfo.MetadataKey.DEP_FILE,
                 inputStrings);
 
-            // Re-calculate and store the depfile rule key for next time.
-            Optional<RuleKeyAndInputs> depFileRuleKeyAndInputs =
-                calculateDepFileRuleKey(
+            // Re-calculate and store the depfile rule key for next time, along with the manifest
+            // key if we're going to push an updated manifest.
+            CombinedRuleKeyFactory.Keys depFileRuleKeys =
+                calculateDepFileAndManifestKeys(
                     rule,
-                    buildContext,
-                    Optional.of(inputStrings),
-                    /* allowMissingInputs */ false);
+                    buildContext.getEventBus(),
+                    inputStrings,
+                    useManifestCaching(rule));
+            Optional<RuleKeyAndInputs> depFileRuleKeyAndInputs =
+                getDepFileRuleKey(depFileRuleKeys);
             if (depFileRuleKeyAndInputs.isPresent()) {
               RuleKey depFileRuleKey = depFileRuleKeyAndInputs.get().getRuleKey();
               buildInfoRecorder.addBuildMetadata(
@@ -831,8 +912,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
               // Push an updated manifest to the cache.
               if (useManifestCaching(rule)) {
-                Optional<RuleKeyAndInputs> manifestKey =
-                  calculateManifestKey(rule, buildContext.getEventBus());
+                Optional<RuleKeyAndInputs> manifestKey = getManifestKey(depFileRuleKeys);
                 if (manifestKey.isPresent()) {
                   buildInfoRecorder.addBuildMetadata(
                       BuildInfo.MetadataKey.MANIFEST_KEY,
@@ -1036,7 +1116,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
                   buildInfoRecorder.performUploadToArtifactCache(
                       ImmutableSet.copyOf(ruleKeys),
                       buildContext.getArtifactCache(),
-                      buildContext.getEventBus());
+                      buildContext.getEventBus(),
+                      buildContext.getArtifactCompressionLevel());
 
                 } catch (Throwable t) {
                   buildContext.getEventBus().post(
@@ -1327,6 +1408,19 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return seen.size();
   }
 
+  @Override
+  public void calculateRuleKeys(BuckEventBus eventBus, Iterable<BuildRule> rules)
+      throws InterruptedException {
+    try (BuckEvent.Scope scope =
+             RuleKeyCalculationEvent.scope(eventBus, RuleKeyCalculationEvent.Type.PARALLEL)) {
+      int count = new ParallelRuleKeyCalculator<>(
+          ruleKeyFactories.getDefaultRuleKeyFactory(),
+          serviceByAdjustingDefaultWeightsTo(RULE_KEY_COMPUTATION_RESOURCE_AMOUNTS))
+          .calculate(rules);
+      LOG.debug("Calculated the rule keys of %d rules ahead of the build.", count);
+    }
+  }
+
   private synchronized ListenableFuture<RuleKey> calculateRuleKey(
       final BuildRule rule,
       final BuildEngineBuildContext context) {
@@ -1379,6 +1473,23 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // to make sure we wait for these before calling yielding the final build result.
     final ConcurrentLinkedQueue<ListenableFuture<Void>> asyncCallbacks =
         new ConcurrentLinkedQueue<>();
+    if (artifactPrefetcher.isPresent()) {
+      Futures.addCallback(
+          calculateRuleKey(rule, buildContext),
+          new FutureCallback<RuleKey>() {
+            @Override
+            public void onSuccess(RuleKey result) {
+              prefetchArtifactsOfDeps(artifactPrefetcher.get(), rule, buildContext);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              // The build of the rule itself reports the failure.
+            }
+          },
+          // The walk is speculative work, so keep it off the executor that schedules the build.
+          cacheActivityService.withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS));
+    }
     ListenableFuture<BuildResult> resultFuture = MoreFutures.chainExceptions(
         registerTopLevelRule(rule, buildContext.getEventBus()),
         getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext, asyncCallbacks),
@@ -1391,6 +1502,49 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS));
   }
 
+  /**
+   * Starts downloading the artifacts of all the transitive deps of {@code rule} in the background,
+   * so that the downloads don't have to wait until the build reaches each dep. Must only be called
+   * once the rule keys of all the deps have been calculated.
+   */
+  private void prefetchArtifactsOfDeps(
+      ArtifactCachePrefetcher prefetcher,
+      BuildRule rule,
+      BuildEngineBuildContext buildContext) {
+    // Walk the graph breadth first, so that the rules closest to the top, whose caches are checked
+    // first, are also prefetched first. Rules already visited by the walk of another top-level
+    // rule are skipped, along with their deps.
+    prefetchVisitedRules.add(rule);
+    Queue<BuildRule> queue = new ArrayDeque<>();
+    for (BuildRule dep : ruleDeps.getComputed(rule)) {
+      if (prefetchVisitedRules.add(dep)) {
+        queue.add(dep);
+      }
+    }
+    while (!queue.isEmpty()) {
+      BuildRule dep = queue.remove();
+      for (BuildRule next : ruleDeps.getComputed(dep)) {
+        if (prefetchVisitedRules.add(next)) {
+          queue.add(next);
+        }
+      }
+
+      if (!dep.isCacheable() || results.containsKey(dep.getBuildTarget())) {
+        continue;
+      }
+      RuleKey ruleKey = ruleKeyFactories.getDefaultRuleKeyFactory().build(dep);
+      OnDiskBuildInfo onDiskBuildInfo =
+          buildContext.createOnDiskBuildInfoFor(
+              dep.getBuildTarget(),
+              dep.getProjectFilesystem(),
+              getOrCreateBuildInfoStore(dep.getProjectFilesystem()));
+      if (ruleKey.equals(onDiskBuildInfo.getRuleKey(BuildInfo.MetadataKey.RULE_KEY).orElse(null))) {
+        continue;
+      }
+      prefetcher.prefetch(buildContext.getArtifactCache(), ruleKey, createLazyZipPath(dep));
+    }
+  }
+
   private CacheResult tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
       final BuildRule rule,
       final RuleKey ruleKey,
@@ -1402,16 +1556,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       return CacheResult.ignored();
     }
 
-    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    final LazyPath lazyZipPath = new LazyPath() {
-      @Override
-      protected Path create() throws IOException {
-        return Files.createTempFile(
-            "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
-            ".zip");
-      }
-    };
+    final LazyPath lazyZipPath = createLazyZipPath(rule);
 
     // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
     // Then we could download directly from the remote cache into the on-disk cache and unzip it
@@ -1427,6 +1572,190 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         cacheResult);
   }
 
+  /**
+   * Like {@link #tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem}, but lets the
+   * fetch be combined with the fetches of other rules that are waiting to be fetched.
+   */
+  private ListenableFuture<CacheResult> fetchArtifactInBatchAndOverlayOnTopOfProjectFilesystem(
+      final BuildRule rule,
+      final RuleKey ruleKey,
+      final ArtifactCache artifactCache,
+      final ProjectFilesystem filesystem,
+      final BuildEngineBuildContext buildContext) {
+
+    if (!rule.isCacheable()) {
+      return Futures.immediateFuture(CacheResult.ignored());
+    }
+
+    // Use the artifact if it has already been prefetched.
+    Optional<ArtifactCachePrefetcher.Prefetch> prefetch =
+        artifactPrefetcher.flatMap(prefetcher -> prefetcher.take(ruleKey));
+    final LazyPath lazyZipPath;
+    ListenableFuture<CacheResult> fetchResult;
+    if (!prefetch.isPresent() && artifactCacheStreamingFetch) {
+      return cacheActivityService.withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS).submit(
+          () -> fetchArtifactStreamingAndOverlayOnTopOfProjectFilesystem(
+              rule,
+              ruleKey,
+              artifactCache,
+              filesystem,
+              buildContext));
+    } else if (prefetch.isPresent()) {
+      lazyZipPath = prefetch.get().getOutput();
+      fetchResult = prefetch.get().getResult();
+    } else {
+      lazyZipPath = createLazyZipPath(rule);
+      fetchResult = artifactFetcher.fetch(artifactCache, ruleKey, lazyZipPath);
+    }
+    return Futures.transform(
+        fetchResult,
+        (CacheResult cacheResult) -> unzipArtifactFromCacheResult(
+            rule,
+            ruleKey,
+            lazyZipPath,
+            buildContext,
+            filesystem,
+            cacheResult),
+        cacheActivityService.withDefaultAmounts(CACHE_CHECK_RESOURCE_AMOUNTS));
+  }
+
+  /**
+   * Like {@link #tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem}, but unzips
+   * the artifact while it is being downloaded instead of downloading it to a temporary file first.
+   * The artifact is unzipped into a staging directory and only moved into place once the cache has
+   * verified it.
+   */
+  private CacheResult fetchArtifactStreamingAndOverlayOnTopOfProjectFilesystem(
+      BuildRule rule,
+      RuleKey ruleKey,
+      ArtifactCache artifactCache,
+      ProjectFilesystem filesystem,
+      BuildEngineBuildContext buildContext) {
+    BuildInfoStore buildInfoStore = buildInfoStores.get(rule.getProjectFilesystem().getRootPath());
+    AtomicReference<Path> stagingDirectory = new AtomicReference<>();
+    AtomicReference<StagedZip> stagedZip = new AtomicReference<>();
+    AtomicReference<IOException> unzipFailure = new AtomicReference<>();
+
+    try {
+      CacheResult cacheResult;
+      try {
+        cacheResult = artifactCache.fetchStreaming(
+            ruleKey,
+            payload -> {
+              ArtifactCompressionEvent.Started started = ArtifactCompressionEvent.started(
+                  ArtifactCompressionEvent.Operation.DECOMPRESS,
+                  ImmutableSet.of(ruleKey));
+              buildContext.getEventBus().post(started);
+              ArtifactCompressionEvent.Finished finished =
+                  ArtifactCompressionEvent.finished(started);
+              FailureRecordingInputStream recordingPayload =
+                  new FailureRecordingInputStream(payload);
+              try {
+                Path tmpDir = filesystem.getBuckPaths().getTmpDir();
+                filesystem.mkdirs(tmpDir);
+                stagingDirectory.set(
+                    Files.createTempDirectory(
+                        filesystem.resolve(tmpDir),
+                        "buck_artifact_" +
+                            MoreFiles.sanitize(rule.getBuildTarget().getShortName())));
+                CountingInputStream countingPayload = new CountingInputStream(recordingPayload);
+                StagedZip staged = Unzip.stageZipStream(countingPayload, stagingDirectory.get());
+                stagedZip.set(staged);
+                finished = ArtifactCompressionEvent.finished(
+                    started,
+                    getTotalFileSize(staged.getStagingFilesystem(), staged.getFiles()),
+                    countingPayload.getCount());
+              } catch (IOException e) {
+                // Failing to read the payload is an error of the fetch, which the cache reports.
+                if (!recordingPayload.hasFailed()) {
+                  unzipFailure.set(e);
+                }
+                throw e;
+              } finally {
+                buildContext.getEventBus().post(finished);
+              }
+            });
+      } catch (RuntimeException e) {
+        LOG.error(e, "Buck internal error when downloading from the cache, will build locally.");
+        return CacheResult.error("unknown", e.getMessage());
+      }
+
+      if (unzipFailure.get() != null) {
+        warnAboutFailedUnzip(rule, buildContext, unzipFailure.get());
+        return CacheResult.miss();
+      }
+      if (!cacheResult.getType().isSuccess()) {
+        LOG.debug("Cache miss for '%s' with rulekey '%s'", rule, ruleKey);
+        return cacheResult;
+      }
+      LOG.debug("Fetched '%s' from cache with rulekey '%s'", rule, ruleKey);
+
+      try {
+        // As the artifact includes files that are stored in the metadata directory, the metadata
+        // has to be cleared out before moving it into place.
+        buildInfoStore.deleteMetadata(rule.getBuildTarget());
+        Preconditions.checkNotNull(stagedZip.get()).moveInto(
+            filesystem,
+            Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      } catch (IOException e) {
+        warnAboutFailedUnzip(rule, buildContext, e);
+        return CacheResult.miss();
+      }
+
+      try {
+        buildInfoStore.updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to write the metadata of %s, will build locally.", rule);
+        return CacheResult.miss();
+      }
+      return cacheResult;
+    } finally {
+      if (stagingDirectory.get() != null) {
+        try {
+          MoreFiles.deleteRecursivelyIfExists(stagingDirectory.get());
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to delete the staging directory %s.", stagingDirectory.get());
+        }
+      }
+    }
+  }
+
+  private static void warnAboutFailedUnzip(
+      BuildRule rule,
+      BuildEngineBuildContext buildContext,
+      IOException e) {
+    buildContext.getEventBus().post(ConsoleEvent.warning(
+        "Failed to unzip the artifact for %s.\n" +
+            "The rule will be built locally, " +
+            "but here is the stacktrace of the failed unzip call:\n%s",
+        rule.getBuildTarget(),
+        Throwables.getStackTraceAsString(e)));
+  }
+
+  private static long getTotalFileSize(ProjectFilesystem filesystem, Iterable<Path> paths)
+      throws IOException {
+    long size = 0;
+    for (Path path : paths) {
+      if (filesystem.isFile(path)) {
+        size += filesystem.getFileSize(path);
+      }
+    }
+    return size;
+  }
+
+  private static LazyPath createLazyZipPath(final BuildRule rule) {
+    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
+    // that we are creating a zip-based FileSystem.
+    return new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        return Files.createTempFile(
+            "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
+            ".zip");
+      }
+    };
+  }
+
   private CacheResult unzipArtifactFromCacheResult(
       BuildRule rule,
       RuleKey ruleKey,
@@ -1460,6 +1789,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         ArtifactCompressionEvent.Operation.DECOMPRESS,
         ImmutableSet.of(ruleKey));
     buildContext.getEventBus().post(started);
+    ArtifactCompressionEvent.Finished finished = ArtifactCompressionEvent.finished(started);
     try {
 
       // First, clear out the pre-existing metadata directory.  We have to do this *before*
@@ -1469,10 +1799,14 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
           rule.getProjectFilesystem().getRootPath());
       buildInfoStore.deleteMetadata(rule.getBuildTarget());
 
-      Unzip.extractZipFile(
+      ImmutableList<Path> extractedFiles = Unzip.extractZipFile(
           zipPath.toAbsolutePath(),
           filesystem,
           Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      finished = ArtifactCompressionEvent.finished(
+          started,
+          getTotalFileSize(filesystem, extractedFiles),
+          Files.size(zipPath));
 
       // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
       // around for debugging purposes.
@@ -1493,7 +1827,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
               Throwables.getStackTraceAsString(e)));
       return CacheResult.miss();
     } finally {
-      buildContext.getEventBus().post(ArtifactCompressionEvent.finished(started));
+      buildContext.getEventBus().post(finished);
     }
 
     return cacheResult;
@@ -1661,9 +1995,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
     // Build the dep-file rule key.  If any inputs are no longer on disk, this means something
     // changed and a dep-file based rule key can't be calculated.
-    ImmutableList<DependencyFileEntry> inputs = depFile.get().stream()
-        .map(MoreFunctions.fromJsonFunction(DependencyFileEntry.class))
-        .collect(MoreCollectors.toImmutableList());
+    ImmutableList<DependencyFileEntry> inputs = parseDepFile(depFile.get());
 
     try (BuckEvent.Scope scope =
              RuleKeyCalculationEvent.scope(
@@ -1682,6 +2014,51 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     }
   }
 
+  /**
+   * Calculates the dep-file key of a rule that was just built, along with its manifest key if
+   * asked, in one pass over the rule. Both keys are needed at this point, so nothing is wasted,
+   * and the time is reported as dep-file key calculation.
+   */
+  private CombinedRuleKeyFactory.Keys calculateDepFileAndManifestKeys(
+      BuildRule rule,
+      BuckEventBus eventBus,
+      ImmutableList<String> depFile,
+      boolean manifest) {
+    Preconditions.checkState(useDependencyFileRuleKey(rule));
+    try (BuckEvent.Scope scope =
+             RuleKeyCalculationEvent.scope(eventBus, RuleKeyCalculationEvent.Type.DEP_FILE)) {
+      return ruleKeyFactories.getCombinedRuleKeyFactory().build(
+          rule,
+          /* inputBased */ false,
+          Optional.of(parseDepFile(depFile)),
+          manifest);
+    }
+  }
+
+  private static ImmutableList<DependencyFileEntry> parseDepFile(ImmutableList<String> depFile) {
+    return depFile.stream()
+        .map(MoreFunctions.fromJsonFunction(DependencyFileEntry.class))
+        .collect(MoreCollectors.toImmutableList());
+  }
+
+  private Optional<RuleKeyAndInputs> getDepFileRuleKey(CombinedRuleKeyFactory.Keys keys)
+      throws IOException {
+    try {
+      return keys.getDepFileRuleKey();
+    } catch (SizeLimiter.SizeLimitException ex) {
+      return Optional.empty();
+    }
+  }
+
+  private Optional<RuleKeyAndInputs> getManifestKey(CombinedRuleKeyFactory.Keys keys)
+      throws IOException {
+    try {
+      return keys.getManifestKey();
+    } catch (SizeLimiter.SizeLimitException ex) {
+      return Optional.empty();
+    }
+  }
+
   @VisibleForTesting
   protected Path getManifestPath(BuildRule rule) {
     return BuildInfo.getPathToMetadataDirectory(rule.getBuildTarget(), rule.getProjectFilesystem())
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.graph.AbstractBottomUpTraversal;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.UnflavoredBuildTarget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Seeds a fresh {@link BuildRuleResolver} with the {@link BuildRule}s of a previously created
+ * action graph whose {@link TargetNode}s are unchanged in the new {@link TargetGraph}.
+ *
+ * <p>A node is considered unchanged if the previous target graph holds the very same
+ * {@link TargetNode} instance for its build target (the daemon's parser hands out identical
+ * instances for build files that have not been invalidated) and all of its dependencies are
+ * unchanged as well. Since descriptions may create several rules per node, which are all flavors of
+ * the node's target, reuse is decided per unflavored build target: rules are only carried over when
+ * every node sharing that unflavored target is unchanged.
+ *
+ * <p>Reused rules still reference the previous resolver, so once they have been carried over the
+ * previous resolver forwards all lookups to the new one (see
+ * {@link BuildRuleResolver#forwardTo(BuildRuleResolver)}). The previous action graph can no longer
+ * be used after that.
+ */
+class IncrementalActionGraphGenerator {
+  private static final Logger LOG = Logger.get(IncrementalActionGraphGenerator.class);
+
+  private final TargetGraph lastTargetGraph;
+  private final BuildRuleResolver lastResolver;
+
+  IncrementalActionGraphGenerator(TargetGraph lastTargetGraph, BuildRuleResolver lastResolver) {
+    this.lastTargetGraph = lastTargetGraph;
+    this.lastResolver = lastResolver;
+  }
+
+  /**
+   * Adds all reusable rules from the previous action graph to {@code resolver}, which must have
+   * been created for {@code targetGraph} and not have been populated yet. If any rule was reused,
+   * the previous resolver forwards to {@code resolver} afterwards.
+   *
+   * @param minReusedFraction the share of the previous action graph's rules that must be reusable.
+   *     If fewer rules can be reused, none are, and the previous action graph stays usable.
+   * @return the number of rules that were reused.
+   */
+  int populateResolverWithReusableRules(
+      TargetGraph targetGraph,
+      BuildRuleResolver resolver,
+      double minReusedFraction) {
+    Set<UnflavoredBuildTarget> reusableTargets = getReusableTargets(targetGraph);
+    List<BuildRule> reusableRules = new ArrayList<>();
+    int lastRules = 0;
+    for (BuildRule rule : lastResolver.getBuildRules()) {
+      lastRules++;
+      if (reusableTargets.contains(rule.getBuildTarget().getUnflavoredBuildTarget())) {
+        reusableRules.add(rule);
+      }
+    }
+    if (reusableRules.isEmpty() || reusableRules.size() < minReusedFraction * lastRules) {
+      LOG.debug(
+          "Not reusing %d of %d build rules from %d unchanged targets.",
+          reusableRules.size(),
+          lastRules,
+          reusableTargets.size());
+      return 0;
+    }
+    resolver.addAllToIndex(reusableRules);
+    lastResolver.forwardTo(resolver);
+    LOG.debug(
+        "Reused %d of %d build rules from %d unchanged targets.",
+        reusableRules.size(),
+        lastRules,
+        reusableTargets.size());
+    return reusableRules.size();
+  }
+
+  private Set<UnflavoredBuildTarget> getReusableTargets(final TargetGraph targetGraph) {
+    final Set<TargetNode<?, ?>> unchangedNodes = new HashSet<>();
+    new AbstractBottomUpTraversal<TargetNode<?, ?>, RuntimeException>(targetGraph) {
+      @Override
+      public void visit(TargetNode<?, ?> node) {
+        Optional<TargetNode<?, ?>> lastNode = lastTargetGraph.getOptional(node.getBuildTarget());
+        if (!lastNode.isPresent() || lastNode.get() != node) {
+          return;
+        }
+        for (TargetNode<?, ?> dep : targetGraph.getOutgoingNodesFor(node)) {
+          if (!unchangedNodes.contains(dep)) {
+            return;
+          }
+        }
+        unchangedNodes.add(node);
+      }
+    }.traverse();
+
+    // Count how many nodes share each unflavored target in both graphs. A target is reusable only
+    // if all of its nodes are unchanged and no node with that target was added or removed.
+    Map<UnflavoredBuildTarget, Integer> lastNodeCounts = countNodesByTarget(lastTargetGraph);
+    Map<UnflavoredBuildTarget, Integer> unchangedNodeCounts = new HashMap<>();
+    for (TargetNode<?, ?> node : unchangedNodes) {
+      unchangedNodeCounts.merge(node.getBuildTarget().getUnflavoredBuildTarget(), 1, Integer::sum);
+    }
+    Map<UnflavoredBuildTarget, Integer> newNodeCounts = countNodesByTarget(targetGraph);
+
+    Set<UnflavoredBuildTarget> reusableTargets = new HashSet<>();
+    for (Map.Entry<UnflavoredBuildTarget, Integer> entry : unchangedNodeCounts.entrySet()) {
+      if (entry.getValue().equals(newNodeCounts.get(entry.getKey())) &&
+          entry.getValue().equals(lastNodeCounts.get(entry.getKey()))) {
+        reusableTargets.add(entry.getKey());
+      }
+    }
+    return reusableTargets;
+  }
+
+  private static Map<UnflavoredBuildTarget, Integer> countNodesByTarget(TargetGraph targetGraph) {
+    Map<UnflavoredBuildTarget, Integer> counts = new HashMap<>();
+    for (TargetNode<?, ?> node : targetGraph.getNodes()) {
+      counts.merge(node.getBuildTarget().getUnflavoredBuildTarget(), 1, Integer::sum);
+    }
+    return counts;
+  }
+}
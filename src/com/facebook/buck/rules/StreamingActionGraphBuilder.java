@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.parser.NoSuchBuildTargetException;
+import com.facebook.buck.util.concurrent.MostExecutors;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+/**
+ * Creates {@link BuildRule}s for {@link TargetNode}s while the target graph is still being parsed,
+ * so that action graph construction overlaps with parsing instead of starting after it.
+ *
+ * <p>Nodes arrive in post-order from the parser (see {@link TargetGraphListener}) and are
+ * transformed in batches on a background thread. A batch is transformed against a snapshot of the
+ * target graph parsed so far, which already holds all transitive dependencies of its nodes, by a
+ * resolver seeded with the rules of all previous batches. Batches grow with the graph, so taking
+ * the snapshots costs linear time overall. Each batch's resolver forwards to the next one, so rules
+ * holding on to an earlier resolver still see every rule created later.
+ *
+ * <p>Once the final target graph is known, {@link #populateResolver} hands the rules over to the
+ * resolver of the action graph, to which the last batch's resolver then forwards. As with {@link IncrementalActionGraphGenerator}, this only happens
+ * if every streamed node is the very same instance in the final graph. If a batch fails, e.g.
+ * because a description looks beyond the dependencies of its node, streaming stops and all work,
+ * including reporting the error, is left to regular action graph construction.
+ */
+public class StreamingActionGraphBuilder implements TargetGraphListener, AutoCloseable {
+  private static final Logger LOG = Logger.get(StreamingActionGraphBuilder.class);
+
+  @VisibleForTesting
+  static final int DEFAULT_MIN_BATCH_SIZE = 256;
+
+  private final BuckEventBus eventBus;
+  private final TargetNodeToBuildRuleTransformer transformer;
+  private final int minBatchSize;
+  private final ExecutorService executor;
+
+  /** The target graph parsed so far. Guarded by {@code this}. */
+  private final MutableDirectedGraph<TargetNode<?, ?>> graph = new MutableDirectedGraph<>();
+  private final Map<BuildTarget, TargetNode<?, ?>> index = new HashMap<>();
+
+  /** Nodes not handed to a batch yet, and the submitted batches. Only used by the parser. */
+  private final List<TargetNode<?, ?>> pendingNodes = new ArrayList<>();
+  private final List<Future<?>> batches = new ArrayList<>();
+  private boolean stopped = false;
+
+  /** The result of all finished batches. Only used by the background thread until stopped. */
+  private final List<TargetNode<?, ?>> streamedNodes = new ArrayList<>();
+  private ImmutableList<BuildRule> streamedRules = ImmutableList.of();
+  @Nullable
+  private BuildRuleResolver lastResolver = null;
+  private volatile boolean failed = false;
+
+  public StreamingActionGraphBuilder(BuckEventBus eventBus) {
+    this(eventBus, new DefaultTargetNodeToBuildRuleTransformer(), DEFAULT_MIN_BATCH_SIZE);
+  }
+
+  @VisibleForTesting
+  StreamingActionGraphBuilder(
+      BuckEventBus eventBus,
+      TargetNodeToBuildRuleTransformer transformer,
+      int minBatchSize) {
+    this.eventBus = eventBus;
+    this.transformer = transformer;
+    this.minBatchSize = minBatchSize;
+    this.executor = MostExecutors.newSingleThreadExecutor("StreamingActionGraph");
+  }
+
+  @Override
+  public void onTargetNode(TargetNode<?, ?> node) {
+    if (stopped || failed) {
+      return;
+    }
+    synchronized (this) {
+      graph.addNode(node);
+      index.put(node.getBuildTarget(), node);
+      for (BuildTarget dep : node.getParseDeps()) {
+        TargetNode<?, ?> depNode = index.get(dep);
+        if (depNode == null) {
+          LOG.debug("%s was reported before its dependency %s, not streaming.", node, dep);
+          failed = true;
+          return;
+        }
+        graph.addEdge(node, depNode);
+      }
+    }
+    pendingNodes.add(node);
+    if (pendingNodes.size() >= Math.max(minBatchSize, graph.getNodeCount() / 4)) {
+      final ImmutableList<TargetNode<?, ?>> batch = ImmutableList.copyOf(pendingNodes);
+      pendingNodes.clear();
+      batches.add(executor.submit(() -> transformBatch(batch)));
+    }
+  }
+
+  @Override
+  public void onUnflavoredTargetNode(TargetNode<?, ?> node) {
+    if (stopped || failed) {
+      return;
+    }
+    // Descriptions of flavored targets may look up their unflavored node, so index it as the
+    // parser does for the final target graph.
+    synchronized (this) {
+      index.putIfAbsent(node.getBuildTarget(), node);
+    }
+  }
+
+  private void transformBatch(ImmutableList<TargetNode<?, ?>> batch) {
+    if (failed) {
+      return;
+    }
+    try {
+      TargetGraph snapshot;
+      synchronized (this) {
+        snapshot = new TargetGraph(graph, ImmutableMap.copyOf(index));
+      }
+      BuildRuleResolver resolver = new BuildRuleResolver(snapshot, transformer, eventBus);
+      resolver.addAllToIndex(streamedRules);
+      if (lastResolver != null) {
+        lastResolver.forwardTo(resolver);
+      }
+      lastResolver = resolver;
+      for (TargetNode<?, ?> node : batch) {
+        resolver.requireRule(node.getBuildTarget());
+      }
+      streamedRules = ImmutableList.copyOf(resolver.getBuildRules());
+      streamedNodes.addAll(batch);
+    } catch (NoSuchBuildTargetException | RuntimeException e) {
+      LOG.debug(e, "Failed to create build rules while parsing, not streaming any further.");
+      failed = true;
+    }
+  }
+
+  /**
+   * Stops accepting nodes, waits for the outstanding batches and adds the rules they created to
+   * {@code resolver}, which must have been created for {@code targetGraph} and not have been
+   * populated yet. Nodes that were not transformed yet are left to the caller.
+   *
+   * @return the number of rules added to {@code resolver}.
+   */
+  int populateResolver(TargetGraph targetGraph, BuildRuleResolver resolver) {
+    stopped = true;
+    try {
+      for (Future<?> batch : batches) {
+        batch.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return 0;
+    } catch (ExecutionException e) {
+      LOG.debug(e, "Streaming build rules failed.");
+      return 0;
+    }
+    if (failed) {
+      return 0;
+    }
+    for (TargetNode<?, ?> node : streamedNodes) {
+      if (targetGraph.getOptional(node.getBuildTarget()).orElse(null) != node) {
+        LOG.debug("%s changed after its build rules were streamed, discarding them.", node);
+        return 0;
+      }
+    }
+    resolver.addAllToIndex(streamedRules);
+    if (lastResolver != null) {
+      lastResolver.forwardTo(resolver);
+    }
+    LOG.debug(
+        "Streamed %d build rules for %d of %d target nodes.",
+        streamedRules.size(),
+        streamedNodes.size(),
+        targetGraph.getNodes().size());
+    return streamedRules.size();
+  }
+
+  @Override
+  public void close() {
+    stopped = true;
+    executor.shutdownNow();
+  }
+}
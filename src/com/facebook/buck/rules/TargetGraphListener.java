@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+/**
+ * Receives {@link TargetNode}s while a {@link TargetGraph} is being built.
+ */
+public interface TargetGraphListener {
+
+  TargetGraphListener NOOP = node -> { };
+
+  /**
+   * Called once for every node added to the target graph, on the thread building the graph. Nodes
+   * are reported in post-order: every node reachable through {@link TargetNode#getParseDeps()} has
+   * been reported before the node itself.
+   */
+  void onTargetNode(TargetNode<?, ?> node);
+
+  /**
+   * Called for the unflavored node of a flavored target, which the target graph indexes without
+   * necessarily containing it, before the flavored node itself is reported.
+   */
+  @SuppressWarnings("unused") // Only listeners which index unflavored targets need the node.
+  default void onUnflavoredTargetNode(TargetNode<?, ?> node) {
+  }
+}
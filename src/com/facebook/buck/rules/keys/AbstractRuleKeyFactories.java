@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules.keys;
 
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePathResolver;
@@ -25,6 +26,8 @@ import com.facebook.buck.util.immutables.BuckStyleTuple;
 
 import org.immutables.value.Value;
 
+import java.util.Optional;
+
 /**
  * The various rule key factories used by the build engine.
  */
@@ -47,6 +50,14 @@ abstract class AbstractRuleKeyFactories {
    */
   public abstract DependencyFileRuleKeyFactory getDepFileRuleKeyFactory();
 
+  /**
+   * @return a {@link CombinedRuleKeyFactory} that produces input-based, dep-file and manifest
+   *     {@link RuleKey}s together.
+   */
+  @Value.Lazy
+  public CombinedRuleKeyFactory getCombinedRuleKeyFactory() {
+    return new CombinedRuleKeyFactory(getInputBasedRuleKeyFactory(), getDepFileRuleKeyFactory());
+  }
 
   public static RuleKeyFactories of(
       int keySeed,
@@ -54,7 +65,48 @@ abstract class AbstractRuleKeyFactories {
       BuildRuleResolver resolver,
       long inputRuleKeyFileSizeLimit,
       RuleKeyCache<RuleKey> defaultRuleKeyFactoryCache) {
-    RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(keySeed);
+    return of(
+        keySeed,
+        HashFunctionType.SHA1,
+        fileHashCache,
+        resolver,
+        inputRuleKeyFileSizeLimit,
+        defaultRuleKeyFactoryCache);
+  }
+
+  /**
+   * @param hashFunction the hash function rule keys are computed with, which must be
+   *     {@link HashFunctionType#SHA1} if the keys are shared with other machines.
+   */
+  public static RuleKeyFactories of(
+      int keySeed,
+      HashFunctionType hashFunction,
+      FileHashCache fileHashCache,
+      BuildRuleResolver resolver,
+      long inputRuleKeyFileSizeLimit,
+      RuleKeyCache<RuleKey> defaultRuleKeyFactoryCache) {
+    return of(
+        keySeed,
+        hashFunction,
+        fileHashCache,
+        resolver,
+        inputRuleKeyFileSizeLimit,
+        defaultRuleKeyFactoryCache,
+        Optional.empty());
+  }
+
+  /**
+   * @param profiler if present, records the cost of the default rule keys the factories build.
+   */
+  public static RuleKeyFactories of(
+      int keySeed,
+      HashFunctionType hashFunction,
+      FileHashCache fileHashCache,
+      BuildRuleResolver resolver,
+      long inputRuleKeyFileSizeLimit,
+      RuleKeyCache<RuleKey> defaultRuleKeyFactoryCache,
+      Optional<RuleKeyProfiler> profiler) {
+    RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(keySeed, hashFunction, profiler);
     SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(resolver);
     SourcePathResolver pathResolver = new SourcePathResolver(ruleFinder);
     return RuleKeyFactories.of(
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.util.immutables.BuckStyleImmutable;
+
+import org.immutables.value.Value;
+
+/**
+ * The time spent and bytes hashed adding one field to the rule keys of one rule type.
+ */
+@Value.Immutable
+@BuckStyleImmutable
+abstract class AbstractRuleKeyFieldProfile {
+
+  public abstract String getField();
+
+  /**
+   * @return the number of times the field was added to a rule key.
+   */
+  public abstract long getCount();
+
+  /**
+   * @return the time spent adding the field, excluding computing the keys of other rules.
+   */
+  public abstract long getNanos();
+
+  /**
+   * @return the bytes fed to the hash function for the field, excluding the keys of other rules.
+   */
+  public abstract long getBytes();
+
+}
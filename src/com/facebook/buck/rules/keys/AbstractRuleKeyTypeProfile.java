@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.util.immutables.BuckStyleImmutable;
+import com.google.common.collect.ImmutableList;
+
+import org.immutables.value.Value;
+
+/**
+ * The cost of computing the default rule keys of one rule type, as recorded by a
+ * {@link RuleKeyProfiler}.
+ */
+@Value.Immutable
+@BuckStyleImmutable
+abstract class AbstractRuleKeyTypeProfile {
+
+  public abstract String getRuleType();
+
+  /**
+   * @return the number of rule keys that were looked up in the rule key cache.
+   */
+  public abstract long getLookups();
+
+  /**
+   * @return the number of lookups that found an already computed rule key.
+   */
+  public abstract long getCacheHits();
+
+  /**
+   * @return the number of rule keys actually computed.
+   */
+  public abstract long getKeysComputed();
+
+  /**
+   * @return the time spent computing rule keys, excluding computing the keys of their deps.
+   */
+  public abstract long getNanos();
+
+  /**
+   * @return the bytes fed to the hash function, excluding the keys of deps.
+   */
+  public abstract long getBytes();
+
+  /**
+   * @return the per-field breakdown, most expensive first.
+   */
+  public abstract ImmutableList<RuleKeyFieldProfile> getFields();
+
+  public double getCacheHitRate() {
+    return getLookups() == 0 ? 0 : (double) getCacheHits() / getLookups();
+  }
+
+}
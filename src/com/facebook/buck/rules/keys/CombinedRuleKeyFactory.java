@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyFieldCategory;
+import com.facebook.buck.rules.RuleKeyObjectSink;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import javax.annotation.Nullable;
+
+/**
+ * Computes the input-based, dependency-file and manifest keys of a rule together.
+ *
+ * All three keys are made from the same fields of the rule. Rather than extracting every field, and
+ * running the rule's {@code appendToRuleKey}, once per key, the fields are extracted once and each
+ * value is handed to the builders of all the requested keys.
+ *
+ * A failure computing one key (an input over the size limit, or a dep-file entry that no longer
+ * exists) doesn't affect the others. It is rethrown when that key is asked for, so callers handle
+ * it as they would have with the individual factories.
+ */
+public class CombinedRuleKeyFactory {
+
+  private final RuleKeyFactory<RuleKey> inputBasedRuleKeyFactory;
+  private final DependencyFileRuleKeyFactory depFileRuleKeyFactory;
+
+  public CombinedRuleKeyFactory(
+      RuleKeyFactory<RuleKey> inputBasedRuleKeyFactory,
+      DependencyFileRuleKeyFactory depFileRuleKeyFactory) {
+    this.inputBasedRuleKeyFactory = inputBasedRuleKeyFactory;
+    this.depFileRuleKeyFactory = depFileRuleKeyFactory;
+  }
+
+  /**
+   * @param inputBased whether to compute the rule's input-based key.
+   * @param depFileEntries the entries of the rule's last dep file, if its dep-file key is wanted.
+   * @param manifest whether to compute the rule's manifest key.
+   */
+  public Keys build(
+      BuildRule rule,
+      boolean inputBased,
+      Optional<ImmutableList<DependencyFileEntry>> depFileEntries,
+      boolean manifest) {
+    Preconditions.checkArgument(
+        !(depFileEntries.isPresent() || manifest) || rule instanceof SupportsDependencyFileRuleKey,
+        "%s does not support dep-file rule keys",
+        rule.getBuildTarget());
+    Optional<RuleKeyFieldLoader> fieldLoader = getSharedRuleKeyFieldLoader();
+    if (!fieldLoader.isPresent() || !(inputBased || depFileEntries.isPresent() || manifest)) {
+      return buildSeparately(rule, inputBased, depFileEntries, manifest);
+    }
+    InputBasedRuleKeyFactory inputBasedFactory =
+        (InputBasedRuleKeyFactory) inputBasedRuleKeyFactory;
+    DefaultDependencyFileRuleKeyFactory depFileFactory =
+        (DefaultDependencyFileRuleKeyFactory) depFileRuleKeyFactory;
+
+    TeeSink sink = new TeeSink();
+    InputBasedRuleKeyFactory.Builder<HashCode> inputBasedBuilder = null;
+    DefaultDependencyFileRuleKeyFactory.Builder<HashCode> depFileBuilder = null;
+    DefaultDependencyFileRuleKeyFactory.Builder<HashCode> manifestBuilder = null;
+    if (inputBased) {
+      inputBasedBuilder = sink.add(inputBasedFactory.newRuleKeyBuilder(rule));
+    }
+    if (depFileEntries.isPresent()) {
+      depFileBuilder = sink.add(
+          depFileFactory.newDepFileKeyBuilder(
+              (SupportsDependencyFileRuleKey) rule,
+              depFileEntries.get()));
+    }
+    if (manifest) {
+      manifestBuilder =
+          sink.add(depFileFactory.newManifestKeyBuilder((SupportsDependencyFileRuleKey) rule));
+    }
+    fieldLoader.get().setFields(rule, sink);
+
+    Keys keys = new Keys();
+    if (inputBasedBuilder != null) {
+      InputBasedRuleKeyFactory.Builder<HashCode> builder = inputBasedBuilder;
+      keys.inputBasedKey = sink.finish(builder, () -> inputBasedFactory.build(rule, builder));
+    }
+    if (depFileBuilder != null) {
+      DefaultDependencyFileRuleKeyFactory.Builder<HashCode> builder = depFileBuilder;
+      keys.depFileKey = sink.finish(builder, () -> depFileFactory.build(builder));
+    }
+    if (manifestBuilder != null) {
+      DefaultDependencyFileRuleKeyFactory.Builder<HashCode> builder = manifestBuilder;
+      keys.manifestKey = sink.finish(builder, () -> depFileFactory.build(builder));
+    }
+    return keys;
+  }
+
+  /**
+   * Keys can only be computed together by the default factories, and only if they agree on how to
+   * extract a rule's fields.
+   */
+  private Optional<RuleKeyFieldLoader> getSharedRuleKeyFieldLoader() {
+    if (!(inputBasedRuleKeyFactory instanceof InputBasedRuleKeyFactory) ||
+        !(depFileRuleKeyFactory instanceof DefaultDependencyFileRuleKeyFactory)) {
+      return Optional.empty();
+    }
+    RuleKeyFieldLoader fieldLoader =
+        ((InputBasedRuleKeyFactory) inputBasedRuleKeyFactory).getRuleKeyFieldLoader();
+    if (fieldLoader !=
+        ((DefaultDependencyFileRuleKeyFactory) depFileRuleKeyFactory).getRuleKeyFieldLoader()) {
+      return Optional.empty();
+    }
+    return Optional.of(fieldLoader);
+  }
+
+  private Keys buildSeparately(
+      BuildRule rule,
+      boolean inputBased,
+      Optional<ImmutableList<DependencyFileEntry>> depFileEntries,
+      boolean manifest) {
+    Keys keys = new Keys();
+    if (inputBased) {
+      keys.inputBasedKey = Outcome.of(() -> inputBasedRuleKeyFactory.build(rule));
+    }
+    if (depFileEntries.isPresent()) {
+      keys.depFileKey = Outcome.of(
+          () -> depFileRuleKeyFactory.build(
+              (SupportsDependencyFileRuleKey) rule,
+              depFileEntries.get()));
+    }
+    if (manifest) {
+      keys.manifestKey = Outcome.of(
+          () -> depFileRuleKeyFactory.buildManifestKey((SupportsDependencyFileRuleKey) rule));
+    }
+    return keys;
+  }
+
+  /** The keys computed for a rule. Keys that weren't asked for are absent. */
+  public static class Keys {
+    @Nullable
+    private Outcome<RuleKey> inputBasedKey;
+    @Nullable
+    private Outcome<RuleKeyAndInputs> depFileKey;
+    @Nullable
+    private Outcome<RuleKeyAndInputs> manifestKey;
+
+    private Keys() {
+    }
+
+    /** @throws SizeLimiter.SizeLimitException if the rule's inputs are over the size limit. */
+    public Optional<RuleKey> getInputBasedRuleKey() {
+      if (inputBasedKey == null) {
+        return Optional.empty();
+      }
+      try {
+        return Optional.of(inputBasedKey.get());
+      } catch (IOException | RuntimeException e) {
+        // Size limit failures may be wrapped, e.g. when hit computing the key of an appendable.
+        Throwables.getCausalChain(e).stream()
+            .filter(t -> t instanceof SizeLimiter.SizeLimitException)
+            .findFirst()
+            .ifPresent(Throwables::throwIfUnchecked);
+        Throwables.throwIfUnchecked(e);
+        throw new RuntimeException(e);
+      }
+    }
+
+    public Optional<RuleKeyAndInputs> getDepFileRuleKey() throws IOException {
+      return depFileKey == null ? Optional.empty() : Optional.of(depFileKey.get());
+    }
+
+    public Optional<RuleKeyAndInputs> getManifestKey() throws IOException {
+      return manifestKey == null ? Optional.empty() : Optional.of(manifestKey.get());
+    }
+  }
+
+  private interface KeyCalculation<T> {
+    T calculate() throws IOException;
+  }
+
+  /** Either a key or the exception thrown computing it. */
+  private static class Outcome<T> {
+    @Nullable
+    private final T key;
+    private final Optional<Throwable> failure;
+
+    private Outcome(@Nullable T key, Optional<Throwable> failure) {
+      this.key = key;
+      this.failure = failure;
+    }
+
+    static <T> Outcome<T> of(KeyCalculation<T> calculation) {
+      try {
+        return new Outcome<>(calculation.calculate(), Optional.empty());
+      } catch (IOException | RuntimeException e) {
+        return failed(e);
+      }
+    }
+
+    static <T> Outcome<T> failed(Throwable failure) {
+      return new Outcome<>(null, Optional.of(failure));
+    }
+
+    T get() throws IOException {
+      if (failure.isPresent()) {
+        Throwables.throwIfInstanceOf(failure.get(), IOException.class);
+        Throwables.throwIfUnchecked(failure.get());
+        throw new RuntimeException(failure.get());
+      }
+      return Preconditions.checkNotNull(key);
+    }
+  }
+
+  /**
+   * Hands each field to several builders. Once a builder fails, it stops getting fields, and the
+   * failure becomes the outcome of its key.
+   */
+  private static class TeeSink implements RuleKeyObjectSink {
+    private final List<RuleKeyBuilder<?>> builders = new ArrayList<>();
+    private final List<Optional<Throwable>> failures = new ArrayList<>();
+
+    <B extends RuleKeyBuilder<?>> B add(B builder) {
+      builders.add(builder);
+      failures.add(Optional.empty());
+      return builder;
+    }
+
+    <T> Outcome<T> finish(RuleKeyBuilder<?> builder, KeyCalculation<T> calculation) {
+      Optional<Throwable> failure = failures.get(builders.indexOf(builder));
+      if (failure.isPresent()) {
+        return Outcome.failed(failure.get());
+      }
+      return Outcome.of(calculation);
+    }
+
+    @Override
+    public RuleKeyObjectSink setReflectively(String key, @Nullable Object val) {
+      for (int i = 0; i < builders.size(); i++) {
+        if (!failures.get(i).isPresent()) {
+          try {
+            builders.get(i).setReflectively(key, val);
+          } catch (RuntimeException e) {
+            failures.set(i, Optional.of(e));
+          }
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public RuleKeyObjectSink setReflectively(
+        String key,
+        @Nullable Object val,
+        RuleKeyFieldCategory category) {
+      for (int i = 0; i < builders.size(); i++) {
+        if (!failures.get(i).isPresent()) {
+          try {
+            builders.get(i).setReflectively(key, val, category);
+          } catch (RuntimeException e) {
+            failures.set(i, Optional.of(e));
+          }
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public RuleKeyObjectSink setPath(Path absolutePath, Path ideallyRelative) {
+      for (int i = 0; i < builders.size(); i++) {
+        if (!failures.get(i).isPresent()) {
+          try {
+            builders.get(i).setPath(absolutePath, ideallyRelative);
+          } catch (IOException | RuntimeException e) {
+            failures.set(i, Optional.of(e));
+          }
+        }
+      }
+      return this;
+    }
+  }
+}
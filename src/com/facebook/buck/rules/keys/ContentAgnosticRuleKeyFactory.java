@@ -72,13 +72,13 @@ public class ContentAgnosticRuleKeyFactory implements RuleKeyFactory<RuleKey> {
   }
 
   private RuleKey calculateBuildRuleKey(BuildRule buildRule) {
-    Builder<HashCode> builder = new Builder<>(RuleKeyBuilder.createDefaultHasher());
+    Builder<HashCode> builder = new Builder<>(ruleKeyFieldLoader.createHasher());
     ruleKeyFieldLoader.setFields(buildRule, builder);
     return builder.build(RuleKey::new);
   }
 
   private RuleKey calculateAppendableKey(RuleKeyAppendable appendable) {
-    Builder<HashCode> subKeyBuilder = new Builder<>(RuleKeyBuilder.createDefaultHasher());
+    Builder<HashCode> subKeyBuilder = new Builder<>(ruleKeyFieldLoader.createHasher());
     appendable.appendToRuleKey(subKeyBuilder);
     return subKeyBuilder.build(RuleKey::new);
   }
@@ -71,6 +71,10 @@ public final class DefaultDependencyFileRuleKeyFactory implements DependencyFile
     this(ruleKeyFieldLoader, hashLoader, pathResolver, ruleFinder, Long.MAX_VALUE);
   }
 
+  RuleKeyFieldLoader getRuleKeyFieldLoader() {
+    return ruleKeyFieldLoader;
+  }
+
   @Override
   public RuleKeyAndInputs build(
       SupportsDependencyFileRuleKey rule,
@@ -91,20 +95,47 @@ public final class DefaultDependencyFileRuleKeyFactory implements DependencyFile
       SupportsDependencyFileRuleKey rule,
       KeyType keyType,
       ImmutableList<DependencyFileEntry> depFileEntries) throws IOException {
-    Builder<HashCode> builder = new Builder<>(
+    Builder<HashCode> builder = newBuilder(rule, keyType, depFileEntries);
+    ruleKeyFieldLoader.setFields(rule, builder);
+    return build(builder);
+  }
+
+  /**
+   * Starts the dep-file key of a rule whose fields are set by the caller, e.g. alongside other keys
+   * by {@link CombinedRuleKeyFactory}. Finish it with {@link #build(Builder)}.
+   */
+  Builder<HashCode> newDepFileKeyBuilder(
+      SupportsDependencyFileRuleKey rule,
+      ImmutableList<DependencyFileEntry> depFileEntries) {
+    return newBuilder(rule, KeyType.DEP_FILE, depFileEntries);
+  }
+
+  /** Like {@link #newDepFileKeyBuilder}, but for the manifest key. */
+  Builder<HashCode> newManifestKeyBuilder(SupportsDependencyFileRuleKey rule) {
+    return newBuilder(rule, KeyType.MANIFEST, ImmutableList.of());
+  }
+
+  /** Finishes a key once all the rule's fields have been set on the builder. */
+  RuleKeyAndInputs build(Builder<HashCode> builder) throws IOException {
+    builder.setReflectively("buck.key_type", builder.keyType);
+    Result<RuleKey> result = builder.buildResult(RuleKey::new);
+    return RuleKeyAndInputs.of(result.getRuleKey(), result.getSourcePaths());
+  }
+
+  private Builder<HashCode> newBuilder(
+      SupportsDependencyFileRuleKey rule,
+      KeyType keyType,
+      ImmutableList<DependencyFileEntry> depFileEntries) {
+    return new Builder<>(
         rule,
         keyType,
         depFileEntries,
         rule.getCoveredByDepFilePredicate(),
         rule.getExistenceOfInterestPredicate(),
-        RuleKeyBuilder.createDefaultHasher());
-    ruleKeyFieldLoader.setFields(rule, builder);
-    builder.setReflectively("buck.key_type", keyType);
-    Result<RuleKey> result = builder.buildResult(RuleKey::new);
-    return RuleKeyAndInputs.of(result.getRuleKey(), result.getSourcePaths());
+        ruleKeyFieldLoader.createHasher());
   }
 
-  private class Builder<RULE_KEY> extends RuleKeyBuilder<RULE_KEY> {
+  /* package */ class Builder<RULE_KEY> extends RuleKeyBuilder<RULE_KEY> {
 
     private final SupportsDependencyFileRuleKey rule;
     private final KeyType keyType;
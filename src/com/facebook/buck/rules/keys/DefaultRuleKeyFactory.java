@@ -31,6 +31,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
 
 import java.io.IOException;
+import java.util.Optional;
 import java.util.function.Function;
 
 /**
@@ -95,23 +96,49 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
     return builder;
   }
 
+  private Builder<HashCode> newProfiledBuilder(BuildRule buildRule, RuleKeyProfiler profiler) {
+    Builder<HashCode> builder = new Builder<>(ruleKeyFieldLoader.createHasher());
+    RuleKeyObjectSink sink = profiler.profileFields(buildRule, builder);
+    ruleKeyFieldLoader.setFields(buildRule, sink);
+    addDepsToRuleKey(buildRule, sink);
+    return builder;
+  }
+
   @VisibleForTesting
   public Builder<HashCode> newBuilderForTesting(BuildRule buildRule) {
-    return newPopulatedBuilder(buildRule, RuleKeyBuilder.createDefaultHasher());
+    return newPopulatedBuilder(buildRule, ruleKeyFieldLoader.createHasher());
   }
 
   @Override
   public RuleKey build(BuildRule buildRule) {
+    Optional<RuleKeyProfiler> profiler = ruleKeyFieldLoader.getProfiler();
+    if (profiler.isPresent()) {
+      return buildProfiled(buildRule, profiler.get());
+    }
     return ruleKeyCache.get(
         buildRule,
-        rule -> newPopulatedBuilder(rule, RuleKeyBuilder.createDefaultHasher())
+        rule -> newPopulatedBuilder(rule, ruleKeyFieldLoader.createHasher())
             .buildResult(RuleKey::new));
   }
 
+  private RuleKey buildProfiled(BuildRule buildRule, RuleKeyProfiler profiler) {
+    boolean[] computed = {false};
+    RuleKey ruleKey = ruleKeyCache.get(
+        buildRule,
+        rule -> {
+          computed[0] = true;
+          try (RuleKeyProfiler.Scope scope = profiler.startKey(rule)) {
+            return newProfiledBuilder(rule, profiler).buildResult(RuleKey::new);
+          }
+        });
+    profiler.recordLookup(buildRule, !computed[0]);
+    return ruleKey;
+  }
+
   private RuleKey buildAppendableKey(RuleKeyAppendable appendable) {
     return ruleKeyCache.get(
         appendable,
-        app -> newPopulatedBuilder(app, RuleKeyBuilder.createDefaultHasher())
+        app -> newPopulatedBuilder(app, ruleKeyFieldLoader.createHasher())
             .buildResult(RuleKey::new)
     );
   }
@@ -35,25 +35,128 @@ import java.util.regex.Pattern;
 
 /**
  * An implementation of {@link RuleKeyHasher} that wraps Guava's {@link Hasher}.
+ *
+ * Rule keys are made of many tiny writes (type tags, lengths, short strings), and feeding each of
+ * them to the underlying {@link Hasher} separately is both slow and allocation heavy. Instead, they
+ * are staged in a reusable buffer, in exactly the byte order the {@link Hasher} would have seen
+ * them, and flushed in bulk. Strings are encoded straight into that buffer rather than through
+ * {@link String#getBytes}.
  */
 public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
+  private static final int BUFFER_SIZE = 512;
 
   private final Hasher hasher;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int position = 0;
 
   public GuavaRuleKeyHasher(Hasher hasher) {
     this.hasher = hasher;
   }
 
+  private void flush() {
+    if (position > 0) {
+      hasher.putBytes(buffer, 0, position);
+      position = 0;
+    }
+  }
+
+  /** Makes room for {@code length} bytes in the buffer, returning false if they can't fit. */
+  private boolean reserve(int length) {
+    if (position + length <= BUFFER_SIZE) {
+      return true;
+    }
+    flush();
+    return length <= BUFFER_SIZE;
+  }
+
+  private void bufferByte(byte val) {
+    reserve(1);
+    buffer[position++] = val;
+  }
+
+  // Guava's hashers put multi-byte primitives in little-endian order.
+  private void bufferInt(int val) {
+    reserve(4);
+    for (int i = 0; i < 4; i++) {
+      buffer[position++] = (byte) (val >>> (i * 8));
+    }
+  }
+
+  private void bufferLong(long val) {
+    reserve(8);
+    for (int i = 0; i < 8; i++) {
+      buffer[position++] = (byte) (val >>> (i * 8));
+    }
+  }
+
   private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes) {
-    hasher.putBytes(bytes);
-    hasher.putInt(bytes.length);
-    hasher.putByte(type);
+    if (reserve(bytes.length)) {
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    } else {
+      hasher.putBytes(bytes);
+    }
+    bufferInt(bytes.length);
+    bufferByte(type);
+    return this;
+  }
+
+  private GuavaRuleKeyHasher putHashCode(byte type, HashCode hash) {
+    int length = hash.bits() / Byte.SIZE;
+    if (!reserve(length)) {
+      return putBytes(type, hash.asBytes());
+    }
+    position += hash.writeBytesTo(buffer, position, length);
+    bufferInt(length);
+    bufferByte(type);
     return this;
   }
 
   private GuavaRuleKeyHasher putStringified(byte type, String val) {
-    return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    // Each char takes at most three bytes in UTF-8 (a surrogate pair takes four for two chars).
+    if (!reserve(val.length() * 3)) {
+      return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    }
+    int start = position;
+    encodeUtf8(val);
+    bufferInt(position - start);
+    bufferByte(type);
+    return this;
+  }
+
+  /**
+   * Encodes the string into the buffer, which must have room for it. Produces the same bytes as
+   * {@code val.getBytes(StandardCharsets.UTF_8)}, including replacing unpaired surrogates with '?'.
+   */
+  private void encodeUtf8(String val) {
+    byte[] buffer = this.buffer;
+    int position = this.position;
+    int length = val.length();
+    for (int i = 0; i < length; i++) {
+      char c = val.charAt(i);
+      if (c < 0x80) {
+        buffer[position++] = (byte) c;
+      } else if (c < 0x800) {
+        buffer[position++] = (byte) (0xc0 | (c >> 6));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (!Character.isSurrogate(c)) {
+        buffer[position++] = (byte) (0xe0 | (c >> 12));
+        buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) &&
+          i + 1 < length &&
+          Character.isLowSurrogate(val.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, val.charAt(++i));
+        buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else {
+        buffer[position++] = '?';
+      }
+    }
+    this.position = position;
   }
 
   private GuavaRuleKeyHasher putBuildTarget(byte type, BuildTarget target) {
@@ -73,36 +176,38 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putNull() {
-    hasher.putByte(RuleKeyHasherTypes.NULL);
+    bufferByte(RuleKeyHasherTypes.NULL);
     return this;
   }
 
   @Override
   public GuavaRuleKeyHasher putBoolean(boolean val) {
-    hasher.putByte(val ? RuleKeyHasherTypes.TRUE : RuleKeyHasherTypes.FALSE);
+    bufferByte(val ? RuleKeyHasherTypes.TRUE : RuleKeyHasherTypes.FALSE);
     return this;
   }
 
   @Override
   public GuavaRuleKeyHasher putNumber(Number val) {
     if (val instanceof Integer) { // most common, so test first
-      hasher.putInt((Integer) val);
-      hasher.putByte(RuleKeyHasherTypes.INTEGER);
+      bufferInt((Integer) val);
+      bufferByte(RuleKeyHasherTypes.INTEGER);
     } else if (val instanceof Long) {
-      hasher.putLong((Long) val);
-      hasher.putByte(RuleKeyHasherTypes.LONG);
+      bufferLong((Long) val);
+      bufferByte(RuleKeyHasherTypes.LONG);
     } else if (val instanceof Short) {
-      hasher.putShort((Short) val);
-      hasher.putByte(RuleKeyHasherTypes.SHORT);
+      short shortVal = (Short) val;
+      bufferByte((byte) shortVal);
+      bufferByte((byte) (shortVal >>> 8));
+      bufferByte(RuleKeyHasherTypes.SHORT);
     } else if (val instanceof Byte) {
-      hasher.putByte((Byte) val);
-      hasher.putByte(RuleKeyHasherTypes.BYTE);
+      bufferByte((Byte) val);
+      bufferByte(RuleKeyHasherTypes.BYTE);
     } else if (val instanceof Float) {
-      hasher.putFloat((Float) val);
-      hasher.putByte(RuleKeyHasherTypes.FLOAT);
+      bufferInt(Float.floatToRawIntBits((Float) val));
+      bufferByte(RuleKeyHasherTypes.FLOAT);
     } else if (val instanceof Double) {
-      hasher.putDouble((Double) val);
-      hasher.putByte(RuleKeyHasherTypes.DOUBLE);
+      bufferLong(Double.doubleToRawLongBits((Double) val));
+      bufferByte(RuleKeyHasherTypes.DOUBLE);
     } else {
       throw new UnsupportedOperationException(("Unsupported Number type: " + val.getClass()));
     }
@@ -126,22 +231,23 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putSha1(Sha1HashCode sha1) {
+    flush();
     sha1.update(hasher);
-    hasher.putByte(RuleKeyHasherTypes.SHA1);
+    bufferByte(RuleKeyHasherTypes.SHA1);
     return this;
   }
 
   @Override
   public GuavaRuleKeyHasher putPath(Path path, HashCode hash) {
     this.putStringified(RuleKeyHasherTypes.PATH, path.toString());
-    this.putBytes(RuleKeyHasherTypes.PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.PATH, hash);
     return this;
   }
 
   @Override
   public GuavaRuleKeyHasher putArchiveMemberPath(ArchiveMemberPath path, HashCode hash) {
     this.putStringified(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, path.toString());
-    this.putBytes(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash);
     return this;
   }
 
@@ -157,7 +263,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putRuleKey(RuleKey ruleKey) {
-    return this.putBytes(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode().asBytes());
+    return this.putHashCode(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode());
   }
 
   @Override
@@ -188,21 +294,22 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putContainer(Container container, int length) {
-    hasher.putByte(RuleKeyHasherTypes.containerSubType(container));
-    hasher.putInt(length);
-    hasher.putByte(RuleKeyHasherTypes.CONTAINER);
+    bufferByte(RuleKeyHasherTypes.containerSubType(container));
+    bufferInt(length);
+    bufferByte(RuleKeyHasherTypes.CONTAINER);
     return this;
   }
 
   @Override
   public GuavaRuleKeyHasher putWrapper(Wrapper wrapper) {
-    hasher.putByte(RuleKeyHasherTypes.wrapperSubType(wrapper));
-    hasher.putByte(RuleKeyHasherTypes.WRAPPER);
+    bufferByte(RuleKeyHasherTypes.wrapperSubType(wrapper));
+    bufferByte(RuleKeyHasherTypes.WRAPPER);
     return this;
   }
 
   @Override
   public HashCode hash() {
+    flush();
     return hasher.hash();
   }
 }
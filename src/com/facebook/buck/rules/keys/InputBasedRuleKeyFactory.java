@@ -76,14 +76,36 @@ public final class InputBasedRuleKeyFactory implements RuleKeyFactory<RuleKey> {
     this(new RuleKeyFieldLoader(seed), hashLoader, pathResolver, ruleFinder, Long.MAX_VALUE);
   }
 
+  RuleKeyFieldLoader getRuleKeyFieldLoader() {
+    return ruleKeyFieldLoader;
+  }
+
   private Result<RuleKey> calculateBuildRuleKey(BuildRule buildRule) {
     Builder<HashCode> builder = newVerifyingBuilder(buildRule);
     ruleKeyFieldLoader.setFields(buildRule, builder);
     return builder.buildResult(RuleKey::new);
   }
 
+  /**
+   * Starts the key of a rule whose fields are set by the caller, e.g. alongside other keys by
+   * {@link CombinedRuleKeyFactory}. Finish it with {@link #build(BuildRule, Builder)}.
+   */
+  Builder<HashCode> newRuleKeyBuilder(BuildRule buildRule) {
+    return newVerifyingBuilder(buildRule);
+  }
+
+  /** Finishes a key started with {@link #newRuleKeyBuilder}, caching it as {@link #build} does. */
+  RuleKey build(BuildRule buildRule, Builder<HashCode> builder) {
+    try {
+      return ruleKeyCache.get(buildRule, rule -> builder.buildResult(RuleKey::new)).getRuleKey();
+    } catch (RuntimeException e) {
+      propagateIfSizeLimitException(e);
+      throw e;
+    }
+  }
+
   private Result<RuleKey> calculateRuleKeyAppendableKey(RuleKeyAppendable appendable) {
-    Builder<HashCode> subKeyBuilder = new Builder<>(RuleKeyBuilder.createDefaultHasher());
+    Builder<HashCode> subKeyBuilder = new Builder<>(ruleKeyFieldLoader.createHasher());
     appendable.appendToRuleKey(subKeyBuilder);
     return subKeyBuilder.buildResult(RuleKey::new);
   }
@@ -115,7 +137,7 @@ public final class InputBasedRuleKeyFactory implements RuleKeyFactory<RuleKey> {
   private Builder<HashCode> newVerifyingBuilder(final BuildRule rule) {
     final Iterable<DependencyAggregation> aggregatedRules =
         Iterables.filter(rule.getBuildDeps(), DependencyAggregation.class);
-    return new Builder<HashCode>(RuleKeyBuilder.createDefaultHasher()) {
+    return new Builder<HashCode>(ruleKeyFieldLoader.createHasher()) {
       private boolean hasEffectiveDirectDep(BuildRule dep) {
         for (BuildRule aggregationRule : aggregatedRules) {
           if (aggregationRule.getBuildDeps().contains(dep)) {
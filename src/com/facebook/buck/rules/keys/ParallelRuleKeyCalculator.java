@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.BuildRule;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the rule keys of {@link BuildRule}s and all their transitive deps up front, bottom-up,
+ * on a caller-provided executor.
+ *
+ * <p>A rule's key is only computed once the keys of all its deps have been, so the factory finds
+ * them in its cache rather than recursing down long dependency chains on a single thread, and
+ * every rule whose deps are done can be computed in parallel, up to the limits of the executor.
+ */
+public class ParallelRuleKeyCalculator<RULE_KEY> {
+
+  private static final Logger LOG = Logger.get(ParallelRuleKeyCalculator.class);
+
+  private final RuleKeyFactory<RULE_KEY> ruleKeyFactory;
+  private final Executor executor;
+
+  public ParallelRuleKeyCalculator(RuleKeyFactory<RULE_KEY> ruleKeyFactory, Executor executor) {
+    this.ruleKeyFactory = ruleKeyFactory;
+    this.executor = executor;
+  }
+
+  /**
+   * Computes the rule keys of {@code rules} and their transitive deps, seeding the cache of the
+   * rule key factory.  Rules whose keys fail to compute are skipped, so that the failure is
+   * reported when the build gets to them.
+   *
+   * @return the number of rules whose keys were computed.
+   */
+  public int calculate(Iterable<? extends BuildRule> rules) throws InterruptedException {
+    Map<BuildRule, Node> nodes = getNodes(rules);
+    CountDownLatch done = new CountDownLatch(nodes.size());
+    for (Node node : nodes.values()) {
+      if (node.pendingDeps.get() == 0) {
+        schedule(node, done);
+      }
+    }
+    done.await();
+    return nodes.size();
+  }
+
+  private void schedule(Node node, CountDownLatch done) {
+    try {
+      executor.execute(() -> calculate(node, done));
+    } catch (RejectedExecutionException e) {
+      // The executor is shutting down, so the build won't get to use the keys either.
+      LOG.debug(e, "Stopped computing rule keys ahead of the build.");
+      while (done.getCount() > 0) {
+        done.countDown();
+      }
+    }
+  }
+
+  private void calculate(Node node, CountDownLatch done) {
+    try {
+      ruleKeyFactory.build(node.rule);
+    } catch (RuntimeException e) {
+      LOG.debug(e, "Failed to compute the rule key of %s ahead of the build.", node.rule);
+    } finally {
+      // Schedule the dependents that were only waiting on this rule as tasks of their own, so
+      // long dependency chains don't nest on the stack.
+      for (Node dependent : node.dependents) {
+        if (dependent.pendingDeps.decrementAndGet() == 0) {
+          schedule(dependent, done);
+        }
+      }
+      done.countDown();
+    }
+  }
+
+  private static Map<BuildRule, Node> getNodes(Iterable<? extends BuildRule> rules) {
+    Map<BuildRule, Node> nodes = new HashMap<>();
+    Deque<BuildRule> toVisit = new ArrayDeque<>();
+    for (BuildRule rule : rules) {
+      if (!nodes.containsKey(rule)) {
+        nodes.put(rule, new Node(rule));
+        toVisit.add(rule);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      Node node = nodes.get(toVisit.remove());
+      for (BuildRule dep : node.rule.getBuildDeps()) {
+        Node depNode = nodes.get(dep);
+        if (depNode == null) {
+          depNode = new Node(dep);
+          nodes.put(dep, depNode);
+          toVisit.add(dep);
+        }
+        depNode.dependents.add(node);
+        node.pendingDeps.incrementAndGet();
+      }
+    }
+    return nodes;
+  }
+
+  private static class Node {
+    private final BuildRule rule;
+    private final List<Node> dependents = new ArrayList<>();
+    private final AtomicInteger pendingDeps = new AtomicInteger();
+
+    Node(BuildRule rule) {
+      this.rule = rule;
+    }
+  }
+}
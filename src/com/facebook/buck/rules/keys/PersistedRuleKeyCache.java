@@ -0,0 +1,548 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.graph.TopologicalSort;
+import com.facebook.buck.hashing.FileHashLoader;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.ActionGraph;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyAppendable;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TargetNode;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link RuleKeyCache} which also saves the rule keys of {@link BuildRule}s to a
+ * {@link RuleKeyStore}, so that a new daemon can reuse the rule keys computed by a previous one.
+ *
+ * <p>Each rule key is stored under the rule's target, along with:
+ * <ul>
+ *   <li>a structural hash of the target node the rule was created from, which covers the node's
+ *       attributes, those of its transitive deps, and the settings of the build,</li>
+ *   <li>the hashes of the input files the rule key was computed from, and</li>
+ *   <li>the rule keys of the other rules it was computed from.</li>
+ * </ul>
+ * A stored rule key is only reused if all three still match, checking the input files against the
+ * file hash cache.  Rules which aren't created from a target node, or which read inputs from
+ * filesystems this cache doesn't know about, are never stored.
+ *
+ * <p>Rule keys are otherwise served from, and invalidated in, an in-memory
+ * {@link DefaultRuleKeyCache}, so stored entries are only read on in-memory misses.
+ */
+public class PersistedRuleKeyCache implements RuleKeyCache<RuleKey>, AutoCloseable {
+
+  private static final Logger LOG = Logger.get(PersistedRuleKeyCache.class);
+
+  // Bump to ignore the entries written by previous versions of this class.
+  private static final int FORMAT_VERSION = 1;
+
+  private final DefaultRuleKeyCache<RuleKey> delegate = new DefaultRuleKeyCache<>();
+  private final RuleKeyStore store;
+  private final FileHashLoader hashLoader;
+  private final ImmutableMap<String, ProjectFilesystem> filesystems;
+
+  /**
+   * The inputs and rule deps of every cached {@link RuleKeyAppendable}, which get folded into the
+   * stored entries of the rules using them.  These never go stale, as they don't include hashes.
+   */
+  private final ConcurrentMap<RuleKeyAppendable, AppendableInputs> appendableInputs =
+      new MapMaker().weakKeys().makeMap();
+
+  @Nullable
+  private volatile BuildState buildState = null;
+
+  /**
+   * @param hashLoader the file hash cache to validate the stored input hashes against.
+   * @param filesystems the filesystems whose inputs may be stored, as their changes are tracked.
+   */
+  public PersistedRuleKeyCache(
+      RuleKeyStore store,
+      FileHashLoader hashLoader,
+      ImmutableSet<ProjectFilesystem> filesystems) {
+    this.store = store;
+    this.hashLoader = hashLoader;
+    ImmutableMap.Builder<String, ProjectFilesystem> filesystemsByRoot = ImmutableMap.builder();
+    for (ProjectFilesystem filesystem : filesystems) {
+      filesystemsByRoot.put(filesystem.getRootPath().toString(), filesystem);
+    }
+    this.filesystems = filesystemsByRoot.build();
+  }
+
+  @Override
+  public void prepare(RuleKeyCacheRecycler.SettingsAffectingCache settings) {
+    buildState = settings.getTargetGraph()
+        .map(
+            targetGraph -> new BuildState(
+                settings.getActionGraph(),
+                targetGraph,
+                settings.getEnvironmentHash().get()))
+        .orElse(null);
+  }
+
+  @Override
+  public RuleKey get(BuildRule rule, Function<? super BuildRule, RuleKeyResult<RuleKey>> create) {
+    BuildState state = buildState;
+    if (state == null) {
+      return delegate.get(rule, create);
+    }
+    RuleKey ruleKey = delegate.get(
+        rule,
+        r -> {
+          Optional<RuleKeyResult<RuleKey>> stored = state.load(r);
+          if (stored.isPresent()) {
+            return stored.get();
+          }
+          RuleKeyResult<RuleKey> result = create.apply(r);
+          state.store(r, result);
+          return result;
+        });
+    state.ruleKeys.put(rule.getBuildTarget(), ruleKey);
+    return ruleKey;
+  }
+
+  @Override
+  public RuleKey get(
+      RuleKeyAppendable appendable,
+      Function<? super RuleKeyAppendable, RuleKeyResult<RuleKey>> create) {
+    return delegate.get(
+        appendable,
+        a -> {
+          RuleKeyResult<RuleKey> result = create.apply(a);
+          appendableInputs.put(a, new AppendableInputs(result));
+          return result;
+        });
+  }
+
+  @Override
+  public ImmutableList<Map.Entry<BuildRule, RuleKey>> getCachedBuildRules() {
+    return delegate.getCachedBuildRules();
+  }
+
+  @Override
+  public void invalidateInputs(Iterable<RuleKeyInput> inputs) {
+    delegate.invalidateInputs(inputs);
+    forgetBuildStateKeys();
+  }
+
+  @Override
+  public void invalidateInputsMatchingRelativePath(Path path) {
+    delegate.invalidateInputsMatchingRelativePath(path);
+    forgetBuildStateKeys();
+  }
+
+  @Override
+  public void invalidateAllExceptFilesystems(ImmutableSet<ProjectFilesystem> filesystems) {
+    delegate.invalidateAllExceptFilesystems(filesystems);
+    forgetBuildStateKeys();
+  }
+
+  @Override
+  public void invalidateFilesystem(ProjectFilesystem filesystem) {
+    delegate.invalidateFilesystem(filesystem);
+    forgetBuildStateKeys();
+  }
+
+  @Override
+  public void invalidateAll() {
+    delegate.invalidateAll();
+    appendableInputs.clear();
+    forgetBuildStateKeys();
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return delegate.getStats();
+  }
+
+  @Override
+  public void close() {
+    store.close();
+  }
+
+  private void forgetBuildStateKeys() {
+    BuildState state = buildState;
+    if (state != null) {
+      state.ruleKeys.clear();
+      state.validatedRuleKeys.clear();
+    }
+  }
+
+  private static String getStoreKey(BuildTarget target) {
+    return target.getCellPath() + "\0" + target.getFullyQualifiedName();
+  }
+
+  /**
+   * @return the structural hash of every node of {@code targetGraph}, covering the node's
+   *     attributes, the structural hashes of its deps, and {@code environmentHash}.
+   */
+  static ImmutableMap<BuildTarget, HashCode> getStructuralHashes(
+      TargetGraph targetGraph,
+      HashCode environmentHash) {
+    Map<TargetNode<?, ?>, HashCode> hashes = new HashMap<>();
+    ImmutableMap.Builder<BuildTarget, HashCode> byTarget = ImmutableMap.builder();
+    for (TargetNode<?, ?> node : TopologicalSort.sort(targetGraph)) {
+      Hasher hasher = Hashing.sha1().newHasher();
+      hasher.putInt(FORMAT_VERSION);
+      hasher.putBytes(environmentHash.asBytes());
+      hasher.putUnencodedChars(getStoreKey(node.getBuildTarget()));
+      hasher.putBytes(node.getRawInputsHashCode().asBytes());
+      // Sort the deps, so that their order is stable across target graphs.
+      for (TargetNode<?, ?> dep :
+           targetGraph.getAll(ImmutableSortedSet.copyOf(node.getParseDeps()))) {
+        hasher.putBytes(hashes.get(dep).asBytes());
+      }
+      HashCode hash = hasher.hash();
+      hashes.put(node, hash);
+      byTarget.put(node.getBuildTarget(), hash);
+    }
+    return byTarget.build();
+  }
+
+  /**
+   * The inputs and rule deps of a {@link RuleKeyAppendable}, including those of the appendables it
+   * depends on.
+   */
+  private class AppendableInputs {
+    private final ImmutableSet<RuleKeyInput> inputs;
+    private final ImmutableSet<BuildRule> ruleDeps;
+    private final boolean complete;
+
+    AppendableInputs(RuleKeyResult<RuleKey> result) {
+      Set<RuleKeyInput> inputs = new LinkedHashSet<>();
+      Set<BuildRule> ruleDeps = new LinkedHashSet<>();
+      this.complete = collectInputs(result, inputs, ruleDeps);
+      this.inputs = ImmutableSet.copyOf(inputs);
+      this.ruleDeps = ImmutableSet.copyOf(ruleDeps);
+    }
+  }
+
+  /**
+   * Adds the inputs and rule deps of {@code result} to the given sets, looking through the
+   * appendables it depends on.
+   *
+   * @return whether the inputs of every appendable were known.
+   */
+  private boolean collectInputs(
+      RuleKeyResult<RuleKey> result,
+      Set<RuleKeyInput> inputs,
+      Set<BuildRule> ruleDeps) {
+    boolean complete = true;
+    for (RuleKeyInput input : result.inputs) {
+      inputs.add(input);
+    }
+    for (Object dep : result.deps) {
+      if (dep instanceof BuildRule) {
+        ruleDeps.add((BuildRule) dep);
+      } else {
+        AppendableInputs depInputs = appendableInputs.get(dep);
+        if (depInputs == null || !depInputs.complete) {
+          complete = false;
+        } else {
+          inputs.addAll(depInputs.inputs);
+          ruleDeps.addAll(depInputs.ruleDeps);
+        }
+      }
+    }
+    return complete;
+  }
+
+  /**
+   * The state of the cache for a single build, which has a target graph to get structural hashes
+   * from.
+   */
+  private class BuildState {
+
+    private final ActionGraph actionGraph;
+    private final Supplier<ImmutableMap<BuildTarget, HashCode>> structuralHashes;
+    private final Supplier<ImmutableMap<String, BuildRule>> rulesByStoreKey;
+
+    /** The rule keys served during this build, which entries are stored with. */
+    private final ConcurrentMap<BuildTarget, RuleKey> ruleKeys = new ConcurrentHashMap<>();
+
+    /** The outcome of validating the stored entries of rules during this build. */
+    private final ConcurrentMap<BuildTarget, Optional<RuleKey>> validatedRuleKeys =
+        new ConcurrentHashMap<>();
+
+    BuildState(ActionGraph actionGraph, TargetGraph targetGraph, HashCode environmentHash) {
+      this.actionGraph = actionGraph;
+      this.structuralHashes =
+          Suppliers.memoize(() -> getStructuralHashes(targetGraph, environmentHash));
+      this.rulesByStoreKey = Suppliers.memoize(
+          () -> {
+            Map<String, BuildRule> rules = new HashMap<>();
+            for (BuildRule rule : this.actionGraph.getNodes()) {
+              rules.put(getStoreKey(rule.getBuildTarget()), rule);
+            }
+            return ImmutableMap.copyOf(rules);
+          });
+    }
+
+    /**
+     * @return the structural hash of the node {@code target} was created from.  Flavored rules
+     *     which have no node of their own are created from the node of their unflavored target.
+     */
+    private Optional<HashCode> getStructuralHash(BuildTarget target) {
+      HashCode hash = structuralHashes.get().get(target);
+      if (hash == null) {
+        hash = structuralHashes.get().get(BuildTarget.of(target.getUnflavoredBuildTarget()));
+      }
+      return Optional.ofNullable(hash);
+    }
+
+    /**
+     * @return the stored result for {@code rule}, if it is still valid.
+     */
+    Optional<RuleKeyResult<RuleKey>> load(BuildRule rule) {
+      Optional<Entry> entry = readValidEntry(rule);
+      if (!entry.isPresent()) {
+        return Optional.empty();
+      }
+      ImmutableList.Builder<BuildRule> deps = ImmutableList.builder();
+      for (String depKey : entry.get().ruleDeps.keySet()) {
+        deps.add(rulesByStoreKey.get().get(depKey));
+      }
+      ImmutableList.Builder<RuleKeyInput> inputs = ImmutableList.builder();
+      for (Entry.Input input : entry.get().inputs) {
+        inputs.add(RuleKeyInput.of(filesystems.get(input.filesystemRoot), input.path));
+      }
+      LOG.verbose("reusing stored rule key for %s", rule);
+      return Optional.of(new RuleKeyResult<>(entry.get().ruleKey, deps.build(), inputs.build()));
+    }
+
+    /**
+     * @return the current rule key of {@code rule}, if it was served or has a valid stored entry.
+     */
+    private Optional<RuleKey> getValidRuleKey(BuildRule rule) {
+      // Rule keys already served during this build are current.
+      RuleKey servedRuleKey = ruleKeys.get(rule.getBuildTarget());
+      if (servedRuleKey != null) {
+        return Optional.of(servedRuleKey);
+      }
+      Optional<RuleKey> ruleKey = validatedRuleKeys.get(rule.getBuildTarget());
+      if (ruleKey == null) {
+        ruleKey = readValidEntry(rule).map(entry -> entry.ruleKey);
+        validatedRuleKeys.put(rule.getBuildTarget(), ruleKey);
+      }
+      return ruleKey;
+    }
+
+    private Optional<Entry> readValidEntry(BuildRule rule) {
+      Optional<HashCode> structuralHash = getStructuralHash(rule.getBuildTarget());
+      if (!structuralHash.isPresent()) {
+        return Optional.empty();
+      }
+      Optional<Entry> entry;
+      try {
+        Optional<byte[]> bytes = store.read(getStoreKey(rule.getBuildTarget()));
+        entry = bytes.isPresent() ? Optional.of(Entry.deserialize(bytes.get())) : Optional.empty();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to read the stored rule key of %s.", rule);
+        return Optional.empty();
+      }
+      if (!entry.isPresent() || !entry.get().structuralHash.equals(structuralHash.get())) {
+        return Optional.empty();
+      }
+      for (Entry.Input input : entry.get().inputs) {
+        ProjectFilesystem filesystem = filesystems.get(input.filesystemRoot);
+        try {
+          if (filesystem == null || !hashLoader.get(filesystem, input.path).equals(input.hash)) {
+            return Optional.empty();
+          }
+        } catch (IOException e) {
+          return Optional.empty();
+        }
+      }
+      for (Map.Entry<String, RuleKey> dep : entry.get().ruleDeps.entrySet()) {
+        BuildRule depRule = rulesByStoreKey.get().get(dep.getKey());
+        if (depRule == null || !getValidRuleKey(depRule).equals(Optional.of(dep.getValue()))) {
+          return Optional.empty();
+        }
+      }
+      return entry;
+    }
+
+    /**
+     * Stores the freshly computed {@code result} of {@code rule}, if it can be validated later.
+     */
+    void store(BuildRule rule, RuleKeyResult<RuleKey> result) {
+      Optional<HashCode> structuralHash = getStructuralHash(rule.getBuildTarget());
+      if (!structuralHash.isPresent()) {
+        return;
+      }
+      Set<RuleKeyInput> inputs = new LinkedHashSet<>();
+      Set<BuildRule> ruleDeps = new LinkedHashSet<>();
+      if (!collectInputs(result, inputs, ruleDeps)) {
+        return;
+      }
+
+      List<Entry.Input> storedInputs = new ArrayList<>(inputs.size());
+      for (RuleKeyInput input : inputs) {
+        String root = input.getFilesystem().getRootPath().toString();
+        if (filesystems.get(root) != input.getFilesystem()) {
+          return;
+        }
+        try {
+          storedInputs.add(
+              new Entry.Input(
+                  root,
+                  input.getPath(),
+                  hashLoader.get(input.getFilesystem(), input.getPath())));
+        } catch (IOException e) {
+          return;
+        }
+      }
+      ImmutableMap.Builder<String, RuleKey> storedRuleDeps = ImmutableMap.builder();
+      for (BuildRule dep : ruleDeps) {
+        RuleKey depRuleKey = ruleKeys.get(dep.getBuildTarget());
+        if (depRuleKey == null) {
+          return;
+        }
+        storedRuleDeps.put(getStoreKey(dep.getBuildTarget()), depRuleKey);
+      }
+
+      Entry entry = new Entry(
+          structuralHash.get(),
+          result.result,
+          ImmutableList.copyOf(storedInputs),
+          storedRuleDeps.build());
+      try {
+        store.write(getStoreKey(rule.getBuildTarget()), entry.serialize());
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to store the rule key of %s.", rule);
+      }
+    }
+  }
+
+  /**
+   * A rule key as stored in the {@link RuleKeyStore}.
+   */
+  private static class Entry {
+
+    private static class Input {
+      private final String filesystemRoot;
+      private final Path path;
+      private final HashCode hash;
+
+      Input(String filesystemRoot, Path path, HashCode hash) {
+        this.filesystemRoot = filesystemRoot;
+        this.path = path;
+        this.hash = hash;
+      }
+    }
+
+    private final HashCode structuralHash;
+    private final RuleKey ruleKey;
+    private final ImmutableList<Input> inputs;
+    private final ImmutableMap<String, RuleKey> ruleDeps;
+
+    Entry(
+        HashCode structuralHash,
+        RuleKey ruleKey,
+        ImmutableList<Input> inputs,
+        ImmutableMap<String, RuleKey> ruleDeps) {
+      this.structuralHash = structuralHash;
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+      this.ruleDeps = ruleDeps;
+    }
+
+    byte[] serialize() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        writeHashCode(out, structuralHash);
+        writeHashCode(out, ruleKey.getHashCode());
+        out.writeInt(inputs.size());
+        for (Input input : inputs) {
+          out.writeUTF(input.filesystemRoot);
+          out.writeUTF(input.path.toString());
+          writeHashCode(out, input.hash);
+        }
+        out.writeInt(ruleDeps.size());
+        for (Map.Entry<String, RuleKey> dep : ruleDeps.entrySet()) {
+          out.writeUTF(dep.getKey());
+          writeHashCode(out, dep.getValue().getHashCode());
+        }
+      }
+      return bytes.toByteArray();
+    }
+
+    static Entry deserialize(byte[] bytes) throws IOException {
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+        HashCode structuralHash = readHashCode(in);
+        RuleKey ruleKey = new RuleKey(readHashCode(in));
+        int inputCount = in.readInt();
+        ImmutableList.Builder<Input> inputs = ImmutableList.builder();
+        for (int i = 0; i < inputCount; i++) {
+          inputs.add(new Input(in.readUTF(), Paths.get(in.readUTF()), readHashCode(in)));
+        }
+        int depCount = in.readInt();
+        ImmutableMap.Builder<String, RuleKey> ruleDeps = ImmutableMap.builder();
+        for (int i = 0; i < depCount; i++) {
+          ruleDeps.put(in.readUTF(), new RuleKey(readHashCode(in)));
+        }
+        return new Entry(structuralHash, ruleKey, inputs.build(), ruleDeps.build());
+      }
+    }
+
+    private static void writeHashCode(DataOutputStream out, HashCode hashCode)
+        throws IOException {
+      byte[] bytes = hashCode.asBytes();
+      out.writeByte(bytes.length);
+      out.write(bytes);
+    }
+
+    private static HashCode readHashCode(DataInputStream in) throws IOException {
+      byte[] bytes = new byte[in.readUnsignedByte()];
+      in.readFully(bytes);
+      return HashCode.fromBytes(bytes);
+    }
+  }
+}
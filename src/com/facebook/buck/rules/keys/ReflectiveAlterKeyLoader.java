@@ -17,8 +17,6 @@
 package com.facebook.buck.rules.keys;
 
 import com.facebook.buck.rules.AddToRuleKey;
-import com.facebook.buck.rules.BuildRule;
-import com.google.common.cache.CacheLoader;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
@@ -26,8 +24,13 @@ import com.google.common.collect.ImmutableSortedMap;
 import java.lang.reflect.Field;
 import java.util.Comparator;
 
-class ReflectiveAlterKeyLoader
-    extends CacheLoader<Class<? extends BuildRule>, ImmutableCollection<AlterRuleKey>> {
+/**
+ * Looks up the fields each class of rule adds to its rule key.
+ *
+ * <p>The fields are stored with the class itself, which a {@link ClassValue} allows without keeping
+ * the class alive: the only path from the class to its fields goes through the class.
+ */
+class ReflectiveAlterKeyLoader extends ClassValue<ImmutableCollection<AlterRuleKey>> {
 
   private static final Comparator<ValueExtractor> COMPARATOR = (o1, o2) -> {
     String name1 = o1.getFullyQualifiedName();
@@ -36,16 +39,15 @@ class ReflectiveAlterKeyLoader
   };
 
   @Override
-  public ImmutableCollection<AlterRuleKey> load(Class<? extends BuildRule> key)
-      throws Exception {
+  protected ImmutableCollection<AlterRuleKey> computeValue(Class<?> key) {
     ImmutableList.Builder<AlterRuleKey> builder = ImmutableList.builder();
     for (Class<?> current = key; !Object.class.equals(current); current = current.getSuperclass()) {
       ImmutableSortedMap.Builder<ValueExtractor, AlterRuleKey> sortedExtractors =
           ImmutableSortedMap.orderedBy(COMPARATOR);
       for (final Field field : current.getDeclaredFields()) {
-        field.setAccessible(true);
         final AddToRuleKey annotation = field.getAnnotation(AddToRuleKey.class);
         if (annotation != null) {
+          field.setAccessible(true);
           ValueExtractor valueExtractor = new FieldValueExtractor(field);
           sortedExtractors.put(valueExtractor, createAlterRuleKey(valueExtractor, annotation));
         }
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.io.ProjectFilesystem;
+
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * A {@link RuleKeyStore} backed by a RocksDB database in {@code buck-out}.
+ */
+public class RocksDBRuleKeyStore implements RuleKeyStore {
+
+  private final RocksDB db;
+
+  public RocksDBRuleKeyStore(ProjectFilesystem filesystem) throws IOException {
+    RocksDB.loadLibrary();
+    Path pathToDB = filesystem.resolve(filesystem.getBuckPaths().getRuleKeyCacheDir());
+    filesystem.mkdirs(filesystem.getBuckPaths().getBuckOut());
+    try (Options options = new Options()) {
+      options.setCreateIfMissing(true);
+      db = RocksDB.open(options, pathToDB.toString());
+    } catch (RocksDBException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public Optional<byte[]> read(String key) throws IOException {
+    try {
+      return Optional.ofNullable(db.get(key.getBytes(StandardCharsets.UTF_8)));
+    } catch (RocksDBException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void write(String key, byte[] entry) throws IOException {
+    try {
+      db.put(key.getBytes(StandardCharsets.UTF_8), entry);
+    } catch (RocksDBException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    db.close();
+  }
+}
@@ -22,6 +22,7 @@ import static com.facebook.buck.rules.keys.RuleKeyScopedHasher.ContainerScope;
 import static com.facebook.buck.rules.keys.RuleKeyScopedHasher.Scope;
 
 import com.facebook.buck.hashing.FileHashLoader;
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
@@ -49,7 +50,6 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -114,7 +114,12 @@ public abstract class RuleKeyBuilder<RULE_KEY> implements RuleKeyObjectSink {
   }
 
   public static RuleKeyHasher<HashCode> createDefaultHasher() {
-    RuleKeyHasher<HashCode> hasher = new GuavaRuleKeyHasher(Hashing.sha1().newHasher());
+    return createDefaultHasher(HashFunctionType.SHA1);
+  }
+
+  public static RuleKeyHasher<HashCode> createDefaultHasher(HashFunctionType hashFunction) {
+    RuleKeyHasher<HashCode> hasher =
+        new GuavaRuleKeyHasher(hashFunction.getHashFunction().newHasher());
     if (logger.isVerboseEnabled()) {
       hasher = new ForwardingRuleKeyHasher<HashCode, String>(hasher, new StringRuleKeyHasher()) {
         @Override
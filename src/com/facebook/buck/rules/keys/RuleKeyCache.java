@@ -44,6 +44,14 @@ public interface RuleKeyCache<V> {
    */
   V get(RuleKeyAppendable appendable, Function<? super RuleKeyAppendable, RuleKeyResult<V>> create);
 
+  /**
+   * Called by a {@link RuleKeyCacheRecycler} before the cache is used for a build with the given
+   * settings, after any invalidation they caused.
+   */
+  @SuppressWarnings("unused") // Only caches which persist rule keys need the settings.
+  default void prepare(RuleKeyCacheRecycler.SettingsAffectingCache settings) {
+  }
+
   /**
    * @return the contents of the {@link RuleKeyCache}.
    */
@@ -23,14 +23,17 @@ import com.facebook.buck.io.WatchEvents;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.TargetGraph;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
 
 import java.nio.file.Path;
 import java.nio.file.WatchEvent;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -133,6 +136,7 @@ public class RuleKeyCacheRecycler<V> {
 
         // Record the current settings for next time.
         previousSettings = currentSettings;
+        cache.prepare(currentSettings);
       }
 
       // Cache cleanup which is run after the caller is finished using the cache, at the conclusion
@@ -191,10 +195,45 @@ public class RuleKeyCacheRecycler<V> {
 
     private final int ruleKeySeed;
     private final ActionGraph actionGraph;
+    private final Optional<TargetGraph> targetGraph;
+    private final Optional<HashCode> environmentHash;
 
     public SettingsAffectingCache(int ruleKeySeed, ActionGraph actionGraph) {
       this.ruleKeySeed = ruleKeySeed;
       this.actionGraph = actionGraph;
+      this.targetGraph = Optional.empty();
+      this.environmentHash = Optional.empty();
+    }
+
+    /**
+     * Settings of a build whose rule keys may be persisted by the cache.
+     *
+     * @param targetGraph the target graph {@code actionGraph} was created from, by the default
+     *     transformation of target nodes into build rules.
+     * @param environmentHash a hash of everything besides the target graph which affects how the
+     *     build rules are created, such as the configuration and the version of Buck.
+     */
+    public SettingsAffectingCache(
+        int ruleKeySeed,
+        ActionGraph actionGraph,
+        TargetGraph targetGraph,
+        HashCode environmentHash) {
+      this.ruleKeySeed = ruleKeySeed;
+      this.actionGraph = actionGraph;
+      this.targetGraph = Optional.of(targetGraph);
+      this.environmentHash = Optional.of(environmentHash);
+    }
+
+    ActionGraph getActionGraph() {
+      return actionGraph;
+    }
+
+    Optional<TargetGraph> getTargetGraph() {
+      return targetGraph;
+    }
+
+    Optional<HashCode> getEnvironmentHash() {
+      return environmentHash;
     }
 
     private static boolean areIdentical(
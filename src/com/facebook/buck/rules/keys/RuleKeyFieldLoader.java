@@ -16,25 +16,66 @@
 
 package com.facebook.buck.rules.keys;
 
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.RuleKeyAppendable;
 import com.facebook.buck.rules.RuleKeyObjectSink;
 import com.google.common.base.Preconditions;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.LoadingCache;
-import com.google.common.collect.ImmutableCollection;
+import com.google.common.hash.HashCode;
 
 import java.nio.file.Path;
+import java.util.Optional;
 
 public class RuleKeyFieldLoader {
 
+  /**
+   * The fields each class of rule adds to its rule key. Shared by all loaders, so that they are
+   * only looked up once per daemon rather than once per build.
+   */
+  private static final ReflectiveAlterKeyLoader ALTER_RULE_KEYS = new ReflectiveAlterKeyLoader();
+
   private final int seed;
-  private final LoadingCache<Class<? extends BuildRule>, ImmutableCollection<AlterRuleKey>> cache;
+  private final HashFunctionType hashFunction;
+  private final Optional<RuleKeyProfiler> profiler;
 
   public RuleKeyFieldLoader(int seed) {
+    this(seed, HashFunctionType.SHA1);
+  }
+
+  /**
+   * @param hashFunction the hash function rule keys are computed with. Anything other than
+   *     {@link HashFunctionType#SHA1} produces keys that other machines won't agree with.
+   */
+  public RuleKeyFieldLoader(int seed, HashFunctionType hashFunction) {
+    this(seed, hashFunction, Optional.empty());
+  }
+
+  /**
+   * @param profiler if present, records the cost of the rule keys built with this loader.
+   */
+  public RuleKeyFieldLoader(
+      int seed,
+      HashFunctionType hashFunction,
+      Optional<RuleKeyProfiler> profiler) {
     this.seed = seed;
-    this.cache = CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
+    this.hashFunction = hashFunction;
+    this.profiler = profiler;
+  }
+
+  Optional<RuleKeyProfiler> getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * @return a new hasher for a rule key, using the configured hash function.
+   */
+  public RuleKeyHasher<HashCode> createHasher() {
+    if (profiler.isPresent()) {
+      return new GuavaRuleKeyHasher(
+          profiler.get().countBytes(hashFunction.getHashFunction().newHasher()));
+    }
+    return RuleKeyBuilder.createDefaultHasher(hashFunction);
   }
 
   public void setFields(BuildRule buildRule, RuleKeyObjectSink builder) {
@@ -58,7 +99,7 @@ public class RuleKeyFieldLoader {
     // error out if we see the `RuleKeyAppendable` being used improperly.
     Preconditions.checkArgument(!(builder instanceof RuleKeyAppendable));
 
-    for (AlterRuleKey alterRuleKey : cache.getUnchecked(buildRule.getClass())) {
+    for (AlterRuleKey alterRuleKey : ALTER_RULE_KEYS.get(buildRule.getClass())) {
       alterRuleKey.amendKey(builder, buildRule);
     }
   }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.EventKey;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Posted at the end of a build with the rule key profile recorded by a {@link RuleKeyProfiler}.
+ */
+public class RuleKeyProfileEvent extends AbstractBuckEvent {
+
+  private final ImmutableList<RuleKeyTypeProfile> profile;
+
+  private RuleKeyProfileEvent(
+      EventKey eventKey,
+      ImmutableList<RuleKeyTypeProfile> profile) {
+    super(eventKey);
+    this.profile = profile;
+  }
+
+  public static RuleKeyProfileEvent create(ImmutableList<RuleKeyTypeProfile> profile) {
+    return new RuleKeyProfileEvent(EventKey.unique(), profile);
+  }
+
+  @Override
+  public String getEventName() {
+    return getClass().getSimpleName();
+  }
+
+  @Override
+  protected String getValueString() {
+    return "";
+  }
+
+  /**
+   * @return the profile of each rule type, most expensive first.
+   */
+  public ImmutableList<RuleKeyTypeProfile> getProfile() {
+    return profile;
+  }
+
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.RuleKeyFieldCategory;
+import com.facebook.buck.rules.RuleKeyObjectSink;
+import com.facebook.buck.util.MoreCollectors;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.Nullable;
+
+/**
+ * Aggregates where the time goes when computing default rule keys: per rule type and per
+ * top-level field, the time spent, the bytes fed to the hash function and how often the rule key
+ * cache already had the key. Used to find rules that are pathologically expensive to key, like a
+ * `genrule` with a giant `srcs` list.
+ *
+ * Costs are attributed exclusively: when a rule key needs the key of a dep, computing the dep's
+ * key is charged to the dep's rule type rather than to the field that referenced it. This relies
+ * on each rule key being built on a single thread, which is how the rule key factories work.
+ */
+public class RuleKeyProfiler {
+
+  private final ConcurrentMap<String, TypeCounters> types = new ConcurrentHashMap<>();
+  private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+
+  /**
+   * @return a {@link Hasher} that forwards to {@code delegate}, counting the bytes it is fed.
+   */
+  public Hasher countBytes(Hasher delegate) {
+    return new ByteCountingHasher(delegate);
+  }
+
+  /**
+   * Records looking up the rule key of {@code rule} in the rule key cache.
+   */
+  public void recordLookup(BuildRule rule, boolean hit) {
+    TypeCounters counters = getCounters(rule);
+    counters.lookups.increment();
+    if (hit) {
+      counters.hits.increment();
+    }
+  }
+
+  /**
+   * Starts profiling the computation of the rule key of {@code rule}. The returned scope must be
+   * closed on the same thread once the key is built.
+   */
+  public Scope startKey(BuildRule rule) {
+    return threadState.get().push(getCounters(rule).total, true);
+  }
+
+  /**
+   * @return a sink which forwards to {@code sink}, profiling each field set on it as a field of
+   *     {@code rule}'s rule key.
+   */
+  public RuleKeyObjectSink profileFields(BuildRule rule, RuleKeyObjectSink sink) {
+    return new ProfilingSink(getCounters(rule), sink);
+  }
+
+  /**
+   * @return what has been recorded so far, most expensive rule type first.
+   */
+  public ImmutableList<RuleKeyTypeProfile> getProfile() {
+    return types.entrySet().stream()
+        .map(type -> RuleKeyTypeProfile.builder()
+            .setRuleType(type.getKey())
+            .setLookups(type.getValue().lookups.sum())
+            .setCacheHits(type.getValue().hits.sum())
+            .setKeysComputed(type.getValue().total.count.sum())
+            .setNanos(type.getValue().total.nanos.sum())
+            .setBytes(type.getValue().total.bytes.sum())
+            .setFields(
+                type.getValue().fields.entrySet().stream()
+                    .map(field -> RuleKeyFieldProfile.builder()
+                        .setField(field.getKey())
+                        .setCount(field.getValue().count.sum())
+                        .setNanos(field.getValue().nanos.sum())
+                        .setBytes(field.getValue().bytes.sum())
+                        .build())
+                    .sorted(Comparator.comparingLong(RuleKeyFieldProfile::getNanos).reversed())
+                    .collect(MoreCollectors.toImmutableList()))
+            .build())
+        .sorted(Comparator.comparingLong(RuleKeyTypeProfile::getNanos).reversed())
+        .collect(MoreCollectors.toImmutableList());
+  }
+
+  /**
+   * Writes a human readable report of {@link #getProfile()}.
+   */
+  public void writeReport(PrintWriter out) {
+    List<RuleKeyTypeProfile> profile = getProfile();
+    long keys = 0;
+    long nanos = 0;
+    long bytes = 0;
+    for (RuleKeyTypeProfile type : profile) {
+      keys += type.getKeysComputed();
+      nanos += type.getNanos();
+      bytes += type.getBytes();
+    }
+    out.printf(
+        "Computed %d rule keys in %.1f ms, hashing %d bytes.%n%n",
+        keys,
+        toMillis(nanos),
+        bytes);
+    out.printf(
+        "%-48s %10s %8s %10s %12s %14s%n",
+        "rule type / field",
+        "lookups",
+        "hits",
+        "count",
+        "time (ms)",
+        "bytes");
+    for (RuleKeyTypeProfile type : profile) {
+      out.printf(
+          "%-48s %10d %7.1f%% %10d %12.1f %14d%n",
+          type.getRuleType(),
+          type.getLookups(),
+          type.getCacheHitRate() * 100,
+          type.getKeysComputed(),
+          toMillis(type.getNanos()),
+          type.getBytes());
+      for (RuleKeyFieldProfile field : type.getFields()) {
+        out.printf(
+            "  %-46s %10s %8s %10d %12.1f %14d%n",
+            field.getField(),
+            "",
+            "",
+            field.getCount(),
+            toMillis(field.getNanos()),
+            field.getBytes());
+      }
+    }
+    out.flush();
+  }
+
+  private static double toMillis(long nanos) {
+    return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private TypeCounters getCounters(BuildRule rule) {
+    return types.computeIfAbsent(rule.getType(), type -> new TypeCounters());
+  }
+
+  /**
+   * A profiled span of work, which must be closed on the thread that opened it.
+   */
+  public interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static class Counters {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    private void record(long elapsedNanos, long hashedBytes) {
+      count.increment();
+      nanos.add(elapsedNanos);
+      bytes.add(hashedBytes);
+    }
+  }
+
+  private static class TypeCounters {
+    private final Counters total = new Counters();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final ConcurrentMap<String, Counters> fields = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * The bytes hashed on a thread and the spans currently open on it.
+   */
+  private static class ThreadState {
+    private long bytes;
+    @Nullable
+    private Frame top;
+
+    private Frame push(Counters counters, boolean isKey) {
+      top = new Frame(this, top, counters, isKey);
+      return top;
+    }
+  }
+
+  private static class Frame implements Scope {
+    private final ThreadState state;
+    @Nullable
+    private final Frame parent;
+    private final Counters counters;
+    private final boolean isKey;
+    private final long startNanos;
+    private final long startBytes;
+    // The cost of the rule keys computed while this frame was open, which belongs to their rules.
+    private long excludedNanos;
+    private long excludedBytes;
+
+    private Frame(ThreadState state, @Nullable Frame parent, Counters counters, boolean isKey) {
+      this.state = state;
+      this.parent = parent;
+      this.counters = counters;
+      this.isKey = isKey;
+      this.startBytes = state.bytes;
+      this.startNanos = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+      long nanos = System.nanoTime() - startNanos;
+      long bytes = state.bytes - startBytes;
+      counters.record(nanos - excludedNanos, bytes - excludedBytes);
+      if (parent != null) {
+        // A nested rule key is excluded from everything enclosing it, whereas a field is only
+        // part of the cost of the rule key it belongs to.
+        parent.excludedNanos += isKey ? nanos : excludedNanos;
+        parent.excludedBytes += isKey ? bytes : excludedBytes;
+      }
+      state.top = parent;
+    }
+  }
+
+  private class ProfilingSink implements RuleKeyObjectSink {
+    private final TypeCounters counters;
+    private final RuleKeyObjectSink delegate;
+
+    private ProfilingSink(TypeCounters counters, RuleKeyObjectSink delegate) {
+      this.counters = counters;
+      this.delegate = delegate;
+    }
+
+    private Scope startField(String key) {
+      return threadState.get().push(
+          counters.fields.computeIfAbsent(key, field -> new Counters()),
+          false);
+    }
+
+    @Override
+    public RuleKeyObjectSink setReflectively(String key, @Nullable Object val) {
+      try (Scope scope = startField(key)) {
+        delegate.setReflectively(key, val);
+      }
+      return this;
+    }
+
+    @Override
+    public RuleKeyObjectSink setReflectively(
+        String key,
+        @Nullable Object val,
+        RuleKeyFieldCategory cat) {
+      try (Scope scope = startField(key)) {
+        delegate.setReflectively(key, val, cat);
+      }
+      return this;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public RuleKeyObjectSink setPath(Path absolutePath, Path ideallyRelative) throws IOException {
+      delegate.setPath(absolutePath, ideallyRelative);
+      return this;
+    }
+  }
+
+  private class ByteCountingHasher implements Hasher {
+    private final Hasher delegate;
+
+    private ByteCountingHasher(Hasher delegate) {
+      this.delegate = delegate;
+    }
+
+    private Hasher count(long bytes) {
+      threadState.get().bytes += bytes;
+      return this;
+    }
+
+    @Override
+    public Hasher putByte(byte b) {
+      delegate.putByte(b);
+      return count(Byte.BYTES);
+    }
+
+    @Override
+    public Hasher putBytes(byte[] bytes) {
+      delegate.putBytes(bytes);
+      return count(bytes.length);
+    }
+
+    @Override
+    public Hasher putBytes(byte[] bytes, int off, int len) {
+      delegate.putBytes(bytes, off, len);
+      return count(len);
+    }
+
+    @Override
+    public Hasher putShort(short s) {
+      delegate.putShort(s);
+      return count(Short.BYTES);
+    }
+
+    @Override
+    public Hasher putInt(int i) {
+      delegate.putInt(i);
+      return count(Integer.BYTES);
+    }
+
+    @Override
+    public Hasher putLong(long l) {
+      delegate.putLong(l);
+      return count(Long.BYTES);
+    }
+
+    @Override
+    public Hasher putFloat(float f) {
+      delegate.putFloat(f);
+      return count(Float.BYTES);
+    }
+
+    @Override
+    public Hasher putDouble(double d) {
+      delegate.putDouble(d);
+      return count(Double.BYTES);
+    }
+
+    @Override
+    public Hasher putBoolean(boolean b) {
+      delegate.putBoolean(b);
+      return count(Byte.BYTES);
+    }
+
+    @Override
+    public Hasher putChar(char c) {
+      delegate.putChar(c);
+      return count(Character.BYTES);
+    }
+
+    @Override
+    public Hasher putUnencodedChars(CharSequence charSequence) {
+      delegate.putUnencodedChars(charSequence);
+      return count((long) charSequence.length() * Character.BYTES);
+    }
+
+    @Override
+    public Hasher putString(CharSequence charSequence, Charset charset) {
+      return putBytes(charSequence.toString().getBytes(charset));
+    }
+
+    @Override
+    public <T> Hasher putObject(T instance, Funnel<? super T> funnel) {
+      funnel.funnel(instance, this);
+      return this;
+    }
+
+    @Override
+    public HashCode hash() {
+      return delegate.hash();
+    }
+  }
+
+}
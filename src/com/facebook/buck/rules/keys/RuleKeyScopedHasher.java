@@ -16,16 +16,43 @@
 
 package com.facebook.buck.rules.keys;
 
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
 /**
  * A wrapper of {@link RuleKeyHasher} that provides scoped hashing facilities.
  *
  * Important: Container, wrapper and key signatures only get hashed if their scope was non-empty.
  * I.e. if at least one thing gets hashed under their scope. This is to support rule key builders
  * that ignore some fields.
+ *
+ * Scopes are closed in the reverse order they were opened (they are meant to be used with
+ * try-with-resources), so their state is kept on a stack and the scope objects themselves are
+ * reused. Opening a scope does not allocate once the stack has grown to the nesting depth of the
+ * values being hashed.
  */
 public class RuleKeyScopedHasher<HASH> {
+  private static final int INITIAL_DEPTH = 16;
+
   private final CountingRuleKeyHasher<HASH> hasher;
 
+  /** The one scope returned for keys, wrappers and elements; closes the innermost open one. */
+  private final Scope scope = this::closeScope;
+
+  /** The hasher count when each open scope was opened. */
+  private long[] scopeCounts = new long[INITIAL_DEPTH];
+  /** What each open scope hashes on close: a key, a {@link RuleKeyHasher.Wrapper}, or a count. */
+  private Object[] scopeOwners = new Object[INITIAL_DEPTH];
+  private int scopeDepth = 0;
+
+  private final List<ContainerScope> containerScopes = new ArrayList<>();
+  private int containerDepth = 0;
+
   public RuleKeyScopedHasher(CountingRuleKeyHasher<HASH> hasher) {
     this.hasher = hasher;
   }
@@ -36,22 +63,12 @@ public class RuleKeyScopedHasher<HASH> {
 
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   public Scope keyScope(final String key) {
-    final long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKey(key);
-      }
-    };
+    return openScope(key);
   }
 
   /** Hashes the wrapper iff non-empty (i.e. if any element gets hashed during its scope). */
   public Scope wrapperScope(final RuleKeyHasher.Wrapper wrapper) {
-    final long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putWrapper(wrapper);
-      }
-    };
+    return openScope(wrapper);
   }
 
   /**
@@ -60,35 +77,71 @@ public class RuleKeyScopedHasher<HASH> {
    * Note that an element scope needs to be created for each element!
    */
   public ContainerScope containerScope(final RuleKeyHasher.Container container) {
-    return new ContainerScope(hasher, container);
+    if (containerDepth == containerScopes.size()) {
+      containerScopes.add(new ContainerScope(this));
+    }
+    ContainerScope containerScope = containerScopes.get(containerDepth++);
+    containerScope.open(container);
+    return containerScope;
+  }
+
+  private Scope openScope(Object owner) {
+    if (scopeDepth == scopeCounts.length) {
+      scopeCounts = Arrays.copyOf(scopeCounts, scopeDepth * 2);
+      scopeOwners = Arrays.copyOf(scopeOwners, scopeDepth * 2);
+    }
+    scopeCounts[scopeDepth] = hasher.getCount();
+    scopeOwners[scopeDepth] = owner;
+    scopeDepth++;
+    return scope;
+  }
+
+  private void closeScope() {
+    Preconditions.checkState(scopeDepth > 0, "No scope is open.");
+    scopeDepth--;
+    Object owner = scopeOwners[scopeDepth];
+    scopeOwners[scopeDepth] = null;
+    if (hasher.getCount() <= scopeCounts[scopeDepth]) {
+      return;
+    }
+    if (owner instanceof ContainerScope) {
+      ((ContainerScope) owner).elementCount++;
+    } else if (owner instanceof RuleKeyHasher.Wrapper) {
+      hasher.putWrapper((RuleKeyHasher.Wrapper) owner);
+    } else {
+      hasher.putKey((String) owner);
+    }
   }
 
   public static class ContainerScope implements AutoCloseable {
-    private final CountingRuleKeyHasher<?> hasher;
-    private final RuleKeyHasher.Container container;
-    private int elementCount = 0;
+    private final RuleKeyScopedHasher<?> scopedHasher;
+    @Nullable
+    private RuleKeyHasher.Container container;
+    private int elementCount;
+
+    private ContainerScope(RuleKeyScopedHasher<?> scopedHasher) {
+      this.scopedHasher = scopedHasher;
+    }
 
-    private ContainerScope(CountingRuleKeyHasher<?> hasher, RuleKeyHasher.Container container) {
-      this.hasher = hasher;
+    private void open(RuleKeyHasher.Container container) {
       this.container = container;
+      this.elementCount = 0;
     }
 
     /** Increases element count if anything gets hashed during the element scope. */
     public Scope elementScope() {
-      final long hasherCount = hasher.getCount();
-      return () -> {
-        if (hasher.getCount() > hasherCount) {
-          elementCount++;
-        }
-      };
+      return scopedHasher.openScope(this);
     }
 
     /** Hashes the container iff non-empty (i.e. if any element gets hashed during this scope). */
     @Override
     public void close() {
+      Preconditions.checkState(container != null, "Container scope is not open.");
       if (elementCount > 0) {
-        hasher.putContainer(container, elementCount);
+        scopedHasher.hasher.putContainer(container, elementCount);
       }
+      container = null;
+      scopedHasher.containerDepth--;
     }
   }
 
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * On-disk storage for the entries of a {@link PersistedRuleKeyCache}, so that rule keys outlive
+ * the daemon that computed them.
+ */
+public interface RuleKeyStore extends Closeable {
+
+  /**
+   * @return the entry stored under {@code key}, if any.
+   */
+  Optional<byte[]> read(String key) throws IOException;
+
+  void write(String key, byte[] entry) throws IOException;
+
+  @Override
+  void close();
+}
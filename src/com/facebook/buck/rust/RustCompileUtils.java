@@ -243,31 +243,27 @@ public class RustCompileUtils {
   ) throws NoSuchBuildTargetException {
     BuildTarget target = getCompileBuildTarget(params.getBuildTarget(), cxxPlatform, crateType);
 
-    // If this rule has already been generated, return it.
-    Optional<RustCompileRule> existing =
-        resolver.getRuleOptionalWithType(target, RustCompileRule.class);
-    if (existing.isPresent()) {
-      return existing.get();
-    }
-
-    return createBuild(
+    // Create the rule unless it has already been generated.
+    return resolver.computeIfAbsentThrowing(
         target,
-        crateName,
-        params,
-        resolver,
-        pathResolver,
-        ruleFinder,
-        cxxPlatform,
-        rustConfig,
-        extraFlags,
-        extraLinkerFlags,
-        linkerInputs,
-        crateType,
-        depType,
-        true,
-        sources,
-        rootModule
-    );
+        RustCompileRule.class,
+        compileTarget -> createBuild(
+            compileTarget,
+            crateName,
+            params,
+            resolver,
+            pathResolver,
+            ruleFinder,
+            cxxPlatform,
+            rustConfig,
+            extraFlags,
+            extraLinkerFlags,
+            linkerInputs,
+            crateType,
+            depType,
+            true,
+            sources,
+            rootModule));
   }
 
   public static Linker.LinkableDepType getLinkStyle(
@@ -26,6 +26,7 @@ public class BuckConstant {
   public static final String RULE_KEY_LOGGER_FILE_NAME = "rule_key_logger.tsv";
   public static final String RULE_KEY_DIAG_KEYS_FILE_NAME = "rule_key_diag_keys.txt";
   public static final String RULE_KEY_DIAG_GRAPH_FILE_NAME = "rule_key_diag_graph.txt";
+  public static final String RULE_KEY_PROFILE_FILE_NAME = "rule_key_profile.txt";
 
   private static final Path BUCK_OUTPUT_PATH_DEFAULT = Paths.get("buck-out");
 
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Predicate;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The hashes and sizes of the paths in a {@link DefaultFileHashCache}, packed into parallel arrays
+ * so that a daemon caching millions of files does not hold several objects per file.
+ *
+ * <p>Paths are kept in an open-addressed table with linear probing, and the hash, size and type of
+ * the path in each bucket are stored at the same index of primitive arrays. Only entries that
+ * carry more than a hash of the expected length (the children of directories and the contents of
+ * archives) are kept as {@link HashCodeAndFileType} objects, which are far fewer than files.
+ *
+ * <p>Lookups are optimistic reads of a {@link StampedLock} and so don't contend with each other.
+ */
+class CompactFileHashTable {
+
+  private static final byte NO_HASH = 0;
+  private static final byte FILE_HASH = 1;
+  private static final byte STRUCTURED_HASH = 2;
+
+  private static final long NO_SIZE = -1;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final int hashBytes;
+  private final StampedLock lock = new StampedLock();
+  private final ConcurrentMap<Path, HashCodeAndFileType> structuredEntries =
+      new ConcurrentHashMap<>();
+
+  @GuardedBy("lock")
+  private Path[] paths;
+  @GuardedBy("lock")
+  private byte[] types;
+  @GuardedBy("lock")
+  private byte[] hashes;
+  @GuardedBy("lock")
+  private long[] sizes;
+  @GuardedBy("lock")
+  private int count;
+
+  /**
+   * @param hashBits the length of the hashes of files, which are stored without any per-entry
+   *     overhead.
+   */
+  CompactFileHashTable(int hashBits) {
+    Preconditions.checkArgument(hashBits % Byte.SIZE == 0);
+    this.hashBytes = hashBits / Byte.SIZE;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /** @return the cached hash of {@code path}, or null if it has none. */
+  @Nullable
+  HashCode getHashCode(Path path) {
+    return read(path, this::readHashCode);
+  }
+
+  /** @return the cached hash and type of {@code path}, or null if it has none. */
+  @Nullable
+  HashCodeAndFileType get(Path path) {
+    return read(
+        path,
+        slot -> {
+          if (types[slot] == STRUCTURED_HASH) {
+            return structuredEntries.get(path);
+          }
+          HashCode hashCode = readHashCode(slot);
+          return hashCode == null ? null : HashCodeAndFileType.ofFile(hashCode);
+        });
+  }
+
+  /** @return the cached size of {@code path}, or null if it has none. */
+  @Nullable
+  Long getSize(Path path) {
+    return read(path, slot -> sizes[slot] == NO_SIZE ? null : sizes[slot]);
+  }
+
+  void put(Path path, HashCodeAndFileType value) {
+    HashCode hashCode = value.getHashCode();
+    boolean compact =
+        value.getType() == HashCodeAndFileType.Type.FILE && hashCode.bits() == hashBytes * 8;
+    long stamp = lock.writeLock();
+    try {
+      int slot = findOrInsert(path);
+      if (compact) {
+        structuredEntries.remove(path);
+        hashCode.writeBytesTo(hashes, slot * hashBytes, hashBytes);
+        types[slot] = FILE_HASH;
+      } else {
+        structuredEntries.put(path, value);
+        types[slot] = STRUCTURED_HASH;
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  void putSize(Path path, long size) {
+    Preconditions.checkArgument(size >= 0);
+    long stamp = lock.writeLock();
+    try {
+      // Find the slot first, as inserting may replace the arrays.
+      int slot = findOrInsert(path);
+      sizes[slot] = size;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /** Removes both the hash and size of {@code path}. */
+  void remove(Path path) {
+    long stamp = lock.writeLock();
+    try {
+      int slot = find(path);
+      if (slot >= 0) {
+        structuredEntries.remove(path);
+        delete(slot);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  void clear() {
+    long stamp = lock.writeLock();
+    try {
+      structuredEntries.clear();
+      allocate(INITIAL_CAPACITY);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /** @return the paths that have a cached hash, a cached size, or both. */
+  ImmutableList<Path> getPaths() {
+    return getPaths(path -> true);
+  }
+
+  /** @return the paths matching {@code predicate} that have a cached hash, size, or both. */
+  ImmutableList<Path> getPaths(Predicate<Path> predicate) {
+    long stamp = lock.readLock();
+    try {
+      ImmutableList.Builder<Path> builder = ImmutableList.builder();
+      for (Path path : paths) {
+        if (path != null && predicate.test(path)) {
+          builder.add(path);
+        }
+      }
+      return builder.build();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  int size() {
+    long stamp = lock.readLock();
+    try {
+      return count;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  private interface SlotReader<T> {
+    @Nullable
+    T read(int slot);
+  }
+
+  @Nullable
+  private <T> T read(Path path, SlotReader<T> reader) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int slot = find(path);
+        T result = slot < 0 ? null : reader.read(slot);
+        if (lock.validate(stamp)) {
+          return result;
+        }
+      } catch (RuntimeException e) {
+        // A concurrent write left the arrays inconsistent, so retry under the lock.
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      int slot = find(path);
+      return slot < 0 ? null : reader.read(slot);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Nullable
+  private HashCode readHashCode(int slot) {
+    switch (types[slot]) {
+      case FILE_HASH:
+        int offset = slot * hashBytes;
+        return HashCode.fromBytes(Arrays.copyOfRange(hashes, offset, offset + hashBytes));
+      case STRUCTURED_HASH:
+        HashCodeAndFileType value = structuredEntries.get(paths[slot]);
+        return value == null ? null : value.getHashCode();
+      default:
+        return null;
+    }
+  }
+
+  private static int bucket(Path path, int mask) {
+    int hash = path.hashCode();
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  /** @return the slot holding {@code path}, or -1 if it has none. */
+  private int find(Path path) {
+    Path[] paths = this.paths;
+    int mask = paths.length - 1;
+    // Bounded, as a racing optimistic read may see a table that is being rebuilt.
+    for (int i = bucket(path, mask), probes = 0;
+         probes < paths.length;
+         i = (i + 1) & mask, probes++) {
+      Path candidate = paths[i];
+      if (candidate == null) {
+        return -1;
+      }
+      if (candidate.equals(path)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @GuardedBy("lock")
+  private int findOrInsert(Path path) {
+    int slot = find(path);
+    if (slot >= 0) {
+      return slot;
+    }
+    if ((count + 1) * 4L > paths.length * 3L) {
+      resize(paths.length * 2);
+    }
+    int mask = paths.length - 1;
+    slot = bucket(path, mask);
+    while (paths[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+    paths[slot] = path;
+    types[slot] = NO_HASH;
+    sizes[slot] = NO_SIZE;
+    count++;
+    return slot;
+  }
+
+  /** Empties {@code slot}, shifting back the entries probed past it so they can still be found. */
+  @GuardedBy("lock")
+  private void delete(int slot) {
+    int mask = paths.length - 1;
+    int hole = slot;
+    for (int i = (slot + 1) & mask; paths[i] != null; i = (i + 1) & mask) {
+      int home = bucket(paths[i], mask);
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        move(i, hole);
+        hole = i;
+      }
+    }
+    paths[hole] = null;
+    types[hole] = NO_HASH;
+    sizes[hole] = NO_SIZE;
+    count--;
+  }
+
+  @GuardedBy("lock")
+  private void move(int from, int to) {
+    paths[to] = paths[from];
+    types[to] = types[from];
+    sizes[to] = sizes[from];
+    System.arraycopy(hashes, from * hashBytes, hashes, to * hashBytes, hashBytes);
+  }
+
+  @GuardedBy("lock")
+  private void resize(int capacity) {
+    Path[] oldPaths = paths;
+    byte[] oldTypes = types;
+    byte[] oldHashes = hashes;
+    long[] oldSizes = sizes;
+    allocate(capacity);
+    int mask = capacity - 1;
+    for (int from = 0; from < oldPaths.length; from++) {
+      if (oldPaths[from] == null) {
+        continue;
+      }
+      int to = bucket(oldPaths[from], mask);
+      while (paths[to] != null) {
+        to = (to + 1) & mask;
+      }
+      paths[to] = oldPaths[from];
+      types[to] = oldTypes[from];
+      sizes[to] = oldSizes[from];
+      System.arraycopy(oldHashes, from * hashBytes, hashes, to * hashBytes, hashBytes);
+      count++;
+    }
+  }
+
+  @GuardedBy("lock")
+  private void allocate(int capacity) {
+    paths = new Path[capacity];
+    types = new byte[capacity];
+    hashes = new byte[capacity * hashBytes];
+    sizes = new long[capacity];
+    Arrays.fill(sizes, NO_SIZE);
+    count = 0;
+  }
+}
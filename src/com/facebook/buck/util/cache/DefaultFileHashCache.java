@@ -16,6 +16,7 @@
 
 package com.facebook.buck.util.cache;
 
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.hashing.PathHashing;
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.ProjectFilesystem;
@@ -23,77 +24,103 @@ import com.facebook.buck.util.MoreCollectors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileSystems;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutionException;
-
-import javax.annotation.Nonnull;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private static final boolean SHOULD_CHECK_IGNORED_PATHS =
       Boolean.getBoolean("buck.DefaultFileHashCache.check_ignored_paths");
 
+  /** Directories with more files than this have their files hashed in parallel. */
+  private static final int PARALLEL_DIR_HASHING_BATCH_SIZE = 16;
+
+  /** Shared by all caches, its worker threads are daemon threads that exit when idle. */
+  private static final ForkJoinPool DIR_HASHING_POOL =
+      new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
   private final ProjectFilesystem projectFilesystem;
   private final Optional<Path> buckOutPath;
+  private final HashFunctionType hashFunction;
+  private final Optional<PersistentFileHashStore> persistentStore;
 
   @VisibleForTesting
-  final LoadingCache<Path, HashCodeAndFileType> loadingCache;
+  final CompactFileHashTable entries;
 
-  @VisibleForTesting
-  final LoadingCache<Path, Long> sizeCache;
+  /** Hashes being computed, so that concurrent requests for the same path only hash it once. */
+  private final ConcurrentMap<Path, CompletableFuture<HashCodeAndFileType>> pendingLoads =
+      new ConcurrentHashMap<>();
 
   @VisibleForTesting
   DefaultFileHashCache(
       ProjectFilesystem projectFilesystem,
       Optional<Path> buckOutPath) {
+    this(projectFilesystem, buckOutPath, HashFunctionType.SHA1, Optional.empty());
+  }
+
+  DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Optional<Path> buckOutPath,
+      HashFunctionType hashFunction,
+      Optional<PersistentFileHashStore> persistentStore) {
+    Preconditions.checkArgument(
+        !persistentStore.isPresent() || persistentStore.get().getHashFunction() == hashFunction);
     this.projectFilesystem = projectFilesystem;
     this.buckOutPath = buckOutPath;
-
-    this.loadingCache =
-        CacheBuilder.newBuilder().build(
-            new CacheLoader<Path, HashCodeAndFileType>() {
-              @Override
-              public HashCodeAndFileType load(@Nonnull Path path) throws Exception {
-                return getHashCodeAndFileType(path);
-              }
-            });
-
-    this.sizeCache =
-        CacheBuilder.newBuilder().build(
-            new CacheLoader<Path, Long>() {
-              @Override
-              public Long load(@Nonnull Path path) throws Exception {
-                return getPathSize(path);
-              }
-            });
+    this.hashFunction = hashFunction;
+    this.persistentStore = persistentStore;
+    this.entries = new CompactFileHashTable(hashFunction.getHashFunction().bits());
   }
 
   public static DefaultFileHashCache createBuckOutFileHashCache(
       ProjectFilesystem projectFilesystem,
       Path buckOutPath) {
-    return new DefaultFileHashCache(projectFilesystem, Optional.of(buckOutPath));
+    return createBuckOutFileHashCache(projectFilesystem, buckOutPath, HashFunctionType.SHA1);
+  }
+
+  public static DefaultFileHashCache createBuckOutFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Path buckOutPath,
+      HashFunctionType hashFunction) {
+    return new DefaultFileHashCache(
+        projectFilesystem,
+        Optional.of(buckOutPath),
+        hashFunction,
+        Optional.empty());
   }
 
   public static DefaultFileHashCache createDefaultFileHashCache(
       ProjectFilesystem projectFilesystem) {
-    return new DefaultFileHashCache(projectFilesystem, Optional.empty());
+    return createDefaultFileHashCache(projectFilesystem, HashFunctionType.SHA1);
+  }
+
+  public static DefaultFileHashCache createDefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      HashFunctionType hashFunction) {
+    return new DefaultFileHashCache(
+        projectFilesystem,
+        Optional.empty(),
+        hashFunction,
+        Optional.empty());
   }
 
   public static ImmutableList<? extends ProjectFileHashCache> createOsRootDirectoriesCaches() {
@@ -120,27 +147,95 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return allCaches.build();
   }
 
+  /** @return the cached hash and type of {@code path}, hashing it first if it isn't cached. */
+  private HashCodeAndFileType load(Path path) throws IOException {
+    HashCodeAndFileType cached = entries.get(path);
+    if (cached != null) {
+      return cached;
+    }
+
+    CompletableFuture<HashCodeAndFileType> load = new CompletableFuture<>();
+    CompletableFuture<HashCodeAndFileType> pending = pendingLoads.putIfAbsent(path, load);
+    if (pending != null) {
+      try {
+        return pending.join();
+      } catch (CompletionException e) {
+        Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new RuntimeException(e.getCause());
+      }
+    }
+
+    try {
+      // Another thread may have finished hashing the path since it was looked up.
+      HashCodeAndFileType value = entries.get(path);
+      if (value == null) {
+        value = getHashCodeAndFileType(path, /* useStoredHashes */ true);
+        entries.put(path, value);
+      }
+      load.complete(value);
+      return value;
+    } catch (IOException | RuntimeException e) {
+      load.completeExceptionally(e);
+      throw e;
+    } finally {
+      pendingLoads.remove(path, load);
+    }
+  }
+
   private void checkNotIgnored(Path relativePath) {
     if (SHOULD_CHECK_IGNORED_PATHS) {
       Preconditions.checkArgument(!projectFilesystem.isIgnored(relativePath));
     }
   }
 
-  private HashCodeAndFileType getHashCodeAndFileType(Path path) throws IOException {
+  private HashCodeAndFileType getHashCodeAndFileType(
+      Path path,
+      boolean useStoredHashes) throws IOException {
     if (projectFilesystem.isDirectory(path)) {
       return getDirHashCode(path);
     } else if (path.toString().endsWith(".jar")) {
       return HashCodeAndFileType.ofArchive(
-          getFileHashCode(path),
+          getFileHashCode(path, useStoredHashes),
           projectFilesystem,
           path);
     }
 
-    return HashCodeAndFileType.ofFile(getFileHashCode(path));
+    return HashCodeAndFileType.ofFile(getFileHashCode(path, useStoredHashes));
   }
 
-  private HashCode getFileHashCode(Path path) throws IOException {
-    return projectFilesystem.computeSha1(path).asHashCode();
+  private HashCode getFileHashCode(Path path, boolean useStoredHashes) throws IOException {
+    if (!persistentStore.isPresent()) {
+      return computeFileHashCode(path);
+    }
+
+    // Stamp the file before hashing it, so that a write racing with the hashing leaves a stamp
+    // that no longer matches.
+    Optional<PersistentFileHashStore.FileStamp> stamp = persistentStore.get().stamp(path);
+    if (useStoredHashes && stamp.isPresent()) {
+      Optional<HashCode> stored = persistentStore.get().get(path, stamp.get());
+      if (stored.isPresent()) {
+        return stored.get();
+      }
+    }
+    HashCode hashCode = computeFileHashCode(path);
+    if (stamp.isPresent()) {
+      persistentStore.get().put(path, stamp.get(), hashCode);
+    }
+    return hashCode;
+  }
+
+  private HashCode computeFileHashCode(final Path path) throws IOException {
+    if (hashFunction == HashFunctionType.SHA1) {
+      // Some filesystems (e.g. Eden) can provide the SHA-1 of a file without reading it.
+      return projectFilesystem.computeSha1(path).asHashCode();
+    }
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return projectFilesystem.newFileInputStream(path);
+      }
+    }.hash(hashFunction.getHashFunction());
   }
 
   private long getPathSize(Path path) throws IOException {
@@ -152,17 +247,52 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   }
 
   private HashCodeAndFileType getDirHashCode(Path path) throws IOException {
-    Hasher hasher = Hashing.sha1().newHasher();
-    ImmutableSet<Path> children =
-        PathHashing.hashPath(hasher, this, projectFilesystem, path);
+    ImmutableSortedSet<Path> files =
+        ImmutableSortedSet.copyOf(projectFilesystem.getFilesUnderPath(path));
+    if (files.size() > PARALLEL_DIR_HASHING_BATCH_SIZE) {
+      DIR_HASHING_POOL.invoke(new HashFilesAction(files.asList()));
+    }
+    Hasher hasher = hashFunction.getHashFunction().newHasher();
+    ImmutableSet<Path> children = PathHashing.hashPath(hasher, this, path, files);
     return HashCodeAndFileType.ofDirectory(hasher.hash(), children);
   }
 
+  /**
+   * Loads the hashes of a slice of the files in a directory into the cache, splitting the slice
+   * between the pool's threads. Failures are ignored, as they are rethrown when the directory's
+   * hash is computed from the loaded hashes.
+   */
+  private class HashFilesAction extends RecursiveAction {
+    private final List<Path> files;
+
+    private HashFilesAction(List<Path> files) {
+      this.files = files;
+    }
+
+    @Override
+    protected void compute() {
+      if (files.size() > PARALLEL_DIR_HASHING_BATCH_SIZE) {
+        int middle = files.size() / 2;
+        invokeAll(
+            new HashFilesAction(files.subList(0, middle)),
+            new HashFilesAction(files.subList(middle, files.size())));
+        return;
+      }
+      for (Path file : files) {
+        try {
+          load(file);
+        } catch (IOException | RuntimeException e) {
+          // Rethrown by the serial pass over the directory.
+        }
+      }
+    }
+  }
+
   @Override
   public boolean willGet(Path relativePath) {
     Preconditions.checkState(!relativePath.isAbsolute());
     checkNotIgnored(relativePath);
-    return loadingCache.getIfPresent(relativePath) != null ||
+    return entries.getHashCode(relativePath) != null ||
         (projectFilesystem.exists(relativePath) && !isIgnored(relativePath));
   }
 
@@ -180,28 +310,22 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     return willGet(archiveMemberPath.getArchivePath());
   }
 
-  private void invalidateImmediate(Path path) {
-    loadingCache.invalidate(path);
-    sizeCache.invalidate(path);
-  }
-
   @Override
   public void invalidate(Path relativePath) {
     Preconditions.checkArgument(!relativePath.isAbsolute());
     checkNotIgnored(relativePath);
-    HashCodeAndFileType cached = loadingCache.getIfPresent(relativePath);
-    invalidateImmediate(relativePath);
+    HashCodeAndFileType cached = entries.get(relativePath);
+    entries.remove(relativePath);
     if (cached != null) {
       for (Path child : cached.getChildren()) {
-        invalidateImmediate(relativePath.resolve(child));
+        entries.remove(relativePath.resolve(child));
       }
     }
   }
 
   @Override
   public void invalidateAll() {
-    loadingCache.invalidateAll();
-    sizeCache.invalidateAll();
+    entries.clear();
   }
 
   /**
@@ -211,26 +335,25 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   public HashCode get(Path relativePath) throws IOException {
     Preconditions.checkArgument(!relativePath.isAbsolute());
     checkNotIgnored(relativePath);
-    HashCode sha1;
-    try {
-      sha1 = loadingCache.get(relativePath.normalize()).getHashCode();
-    } catch (ExecutionException e) {
-      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
-      throw new RuntimeException(e.getCause());
+    Path path = relativePath.normalize();
+    HashCode hashCode = entries.getHashCode(path);
+    if (hashCode == null) {
+      hashCode = load(path).getHashCode();
     }
-    return Preconditions.checkNotNull(sha1, "Failed to find a HashCode for %s.", relativePath);
+    return Preconditions.checkNotNull(hashCode, "Failed to find a HashCode for %s.", relativePath);
   }
 
   @Override
   public long getSize(Path relativePath) throws IOException {
     Preconditions.checkArgument(!relativePath.isAbsolute());
     checkNotIgnored(relativePath);
-    try {
-      return sizeCache.get(relativePath.normalize());
-    } catch (ExecutionException e) {
-      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
-      throw new RuntimeException(e.getCause());
+    Path path = relativePath.normalize();
+    Long size = entries.getSize(path);
+    if (size == null) {
+      size = getPathSize(path);
+      entries.putSize(path, size);
     }
+    return size;
   }
 
   @Override
@@ -240,21 +363,16 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
     Path relativeFilePath = archiveMemberPath.getArchivePath().normalize();
 
-    try {
-      HashCodeAndFileType fileHashCodeAndFileType = loadingCache.get(relativeFilePath);
-
-      Path memberPath = archiveMemberPath.getMemberPath();
-      HashCodeAndFileType memberHashCodeAndFileType =
-          fileHashCodeAndFileType.getContents().get(memberPath);
-      if (memberHashCodeAndFileType == null) {
-        throw new NoSuchFileException(archiveMemberPath.toString());
-      }
+    HashCodeAndFileType fileHashCodeAndFileType = load(relativeFilePath);
 
-      return memberHashCodeAndFileType.getHashCode();
-    } catch (ExecutionException e) {
-      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
-      throw new RuntimeException(e.getCause());
+    Path memberPath = archiveMemberPath.getMemberPath();
+    HashCodeAndFileType memberHashCodeAndFileType =
+        fileHashCodeAndFileType.getContents().get(memberPath);
+    if (memberHashCodeAndFileType == null) {
+      throw new NoSuchFileException(archiveMemberPath.toString());
     }
+
+    return memberHashCodeAndFileType.getHashCode();
   }
 
   @Override
@@ -285,24 +403,28 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       value = HashCodeAndFileType.ofFile(hashCode);
     }
 
-    loadingCache.put(relativePath, value);
+    entries.put(relativePath, value);
   }
 
   @Override
   public FileHashCacheVerificationResult verify() throws IOException {
     List<String> errors = new ArrayList<>();
-    ConcurrentMap<Path, HashCodeAndFileType> cacheMap = loadingCache.asMap();
-    for (Map.Entry<Path, HashCodeAndFileType> entry : cacheMap.entrySet()) {
-      Path path = entry.getKey();
-      HashCodeAndFileType cached = entry.getValue();
-      HashCodeAndFileType current = getHashCodeAndFileType(path);
+    int filesExamined = 0;
+    for (Path path : entries.getPaths()) {
+      HashCodeAndFileType cached = entries.get(path);
+      if (cached == null) {
+        // Only its size is cached.
+        continue;
+      }
+      filesExamined++;
+      HashCodeAndFileType current = getHashCodeAndFileType(path, /* useStoredHashes */ false);
       if (!cached.equals(current)) {
         errors.add(path.toString());
       }
     }
     return FileHashCacheVerificationResult.builder()
         .setCachesExamined(1)
-        .setFilesExamined(cacheMap.size())
+        .setFilesExamined(filesExamined)
         .addAllVerificationErrors(errors)
         .build();
   }
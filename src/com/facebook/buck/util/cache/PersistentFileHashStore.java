@@ -0,0 +1,281 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.hashing.HashFunctionType;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * File hashes that outlive the daemon, so that a freshly started daemon does not have to rehash
+ * every unchanged source file.
+ *
+ * <p>Each hash is stored along with the modification time, size and file key (the inode, where the
+ * filesystem has one) the file had when it was hashed, and is only handed out again while the file
+ * still has those same attributes. As with git's index, hashes of files modified too close to when
+ * they were hashed are not recorded, since a second write within the filesystem's timestamp
+ * granularity would go unnoticed.
+ */
+public class PersistentFileHashStore {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashStore.class);
+
+  private static final int MAGIC = 0x42464843; // "BFHC"
+  private static final int VERSION = 2;
+
+  /** Files modified this recently when they are hashed are not recorded. */
+  @VisibleForTesting
+  static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private final ProjectFilesystem projectFilesystem;
+  private final Path storePath;
+  private final HashFunctionType hashFunction;
+  private final ConcurrentMap<Path, Entry> entries;
+  private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+  private PersistentFileHashStore(
+      ProjectFilesystem projectFilesystem,
+      Path storePath,
+      HashFunctionType hashFunction,
+      ConcurrentMap<Path, Entry> entries) {
+    this.projectFilesystem = projectFilesystem;
+    this.storePath = storePath;
+    this.hashFunction = hashFunction;
+    this.entries = entries;
+  }
+
+  /**
+   * Loads the hashes previously saved to {@code storePath}, a path relative to the root of
+   * {@code projectFilesystem}. Starts out empty if there are none, if they can't be read, or if
+   * they were computed with a hash function other than {@code hashFunction}.
+   */
+  public static PersistentFileHashStore load(
+      ProjectFilesystem projectFilesystem,
+      Path storePath,
+      HashFunctionType hashFunction) {
+    ConcurrentMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    Path absoluteStorePath = projectFilesystem.resolve(storePath);
+    if (Files.exists(absoluteStorePath)) {
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(Files.newInputStream(absoluteStorePath)))) {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          LOG.info("Ignoring file hashes in unknown format at %s.", absoluteStorePath);
+        } else if (!in.readUTF().equals(hashFunction.name())) {
+          LOG.info("Ignoring file hashes from another hash function at %s.", absoluteStorePath);
+        } else {
+          int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            Path path = Paths.get(in.readUTF());
+            long lastModifiedMillis = in.readLong();
+            long size = in.readLong();
+            String fileKey = in.readUTF();
+            byte[] hash = new byte[in.readUnsignedShort()];
+            in.readFully(hash);
+            entries.put(
+                path,
+                new Entry(
+                    new FileStamp(lastModifiedMillis, size, fileKey),
+                    HashCode.fromBytes(hash)));
+          }
+        }
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to read file hashes from %s, rehashing.", absoluteStorePath);
+        entries.clear();
+      }
+    }
+    LOG.debug("Loaded %d file hashes from %s.", entries.size(), absoluteStorePath);
+    return new PersistentFileHashStore(projectFilesystem, storePath, hashFunction, entries);
+  }
+
+  public HashFunctionType getHashFunction() {
+    return hashFunction;
+  }
+
+  /**
+   * @return the attributes of {@code relativePath} that a stored hash is checked against, or
+   *     {@link Optional#empty()} if the file isn't a regular file.
+   */
+  public Optional<FileStamp> stamp(Path relativePath) throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = projectFilesystem.readAttributes(
+          relativePath,
+          BasicFileAttributes.class,
+          LinkOption.NOFOLLOW_LINKS);
+    } catch (NoSuchFileException e) {
+      return Optional.empty();
+    }
+    if (!attributes.isRegularFile()) {
+      return Optional.empty();
+    }
+    Object fileKey = attributes.fileKey();
+    return Optional.of(
+        new FileStamp(
+            attributes.lastModifiedTime().toMillis(),
+            attributes.size(),
+            fileKey == null ? "" : fileKey.toString()));
+  }
+
+  /**
+   * @return the stored hash of {@code relativePath} if it was recorded with the given stamp.
+   */
+  public Optional<HashCode> get(Path relativePath, FileStamp stamp) {
+    Entry entry = entries.get(relativePath);
+    if (entry == null || !entry.stamp.equals(stamp)) {
+      return Optional.empty();
+    }
+    return Optional.of(entry.hashCode);
+  }
+
+  /**
+   * Records the hash of {@code relativePath}, where {@code stamp} was taken before hashing it.
+   */
+  public void put(Path relativePath, FileStamp stamp, HashCode hashCode) {
+    if (stamp.lastModifiedMillis + RACY_MODIFICATION_WINDOW_MILLIS > System.currentTimeMillis()) {
+      remove(relativePath);
+      return;
+    }
+    Entry previous = entries.put(relativePath, new Entry(stamp, hashCode));
+    if (previous == null ||
+        !previous.stamp.equals(stamp) ||
+        !previous.hashCode.equals(hashCode)) {
+      dirty.set(true);
+    }
+  }
+
+  public void remove(Path relativePath) {
+    if (entries.remove(relativePath) != null) {
+      dirty.set(true);
+    }
+  }
+
+  /** Removes the stored hashes of {@code relativePath} and everything under it. */
+  public void removeAllUnder(Path relativePath) {
+    if (entries.keySet().removeIf(path -> path.startsWith(relativePath))) {
+      dirty.set(true);
+    }
+  }
+
+  @VisibleForTesting
+  int size() {
+    return entries.size();
+  }
+
+  /** Writes the stored hashes out, if they changed since they were loaded or last saved. */
+  public void save() throws IOException {
+    if (!dirty.getAndSet(false)) {
+      return;
+    }
+    Path absoluteStorePath = projectFilesystem.resolve(storePath);
+    Files.createDirectories(absoluteStorePath.getParent());
+    Path tmp = Files.createTempFile(
+        absoluteStorePath.getParent(),
+        absoluteStorePath.getFileName().toString(),
+        ".tmp");
+    try {
+      Map<Path, Entry> snapshot = new HashMap<>(entries);
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(hashFunction.name());
+        out.writeInt(snapshot.size());
+        for (Map.Entry<Path, Entry> entry : snapshot.entrySet()) {
+          byte[] hash = entry.getValue().hashCode.asBytes();
+          out.writeUTF(entry.getKey().toString());
+          out.writeLong(entry.getValue().stamp.lastModifiedMillis);
+          out.writeLong(entry.getValue().stamp.size);
+          out.writeUTF(entry.getValue().stamp.fileKey);
+          out.writeShort(hash.length);
+          out.write(hash);
+        }
+      }
+      Files.move(tmp, absoluteStorePath, StandardCopyOption.REPLACE_EXISTING);
+      LOG.debug("Saved %d file hashes to %s.", snapshot.size(), absoluteStorePath);
+    } catch (IOException e) {
+      dirty.set(true);
+      throw e;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /** The attributes of a file that tell whether it changed since it was hashed. */
+  public static final class FileStamp {
+    private final long lastModifiedMillis;
+    private final long size;
+    private final String fileKey;
+
+    @VisibleForTesting
+    FileStamp(long lastModifiedMillis, long size, String fileKey) {
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.size = size;
+      this.fileKey = fileKey;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof FileStamp)) {
+        return false;
+      }
+      FileStamp that = (FileStamp) other;
+      return lastModifiedMillis == that.lastModifiedMillis &&
+          size == that.size &&
+          fileKey.equals(that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(lastModifiedMillis, size, fileKey);
+    }
+  }
+
+  private static final class Entry {
+    private final FileStamp stamp;
+    private final HashCode hashCode;
+
+    private Entry(FileStamp stamp, HashCode hashCode) {
+      this.stamp = stamp;
+      this.hashCode = hashCode;
+    }
+  }
+}
@@ -16,13 +16,14 @@
 
 package com.facebook.buck.util.cache;
 
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.io.WatchEvents;
 import com.facebook.buck.log.Logger;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.WatchEvent;
 import java.util.Optional;
@@ -31,8 +32,31 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
 
   private static final Logger LOG = Logger.get(WatchedFileHashCache.class);
 
+  private final Optional<PersistentFileHashStore> persistentStore;
+
   public WatchedFileHashCache(ProjectFilesystem projectFilesystem) {
-    super(projectFilesystem, Optional.empty());
+    this(projectFilesystem, HashFunctionType.SHA1, Optional.empty());
+  }
+
+  /**
+   * @param persistentStore hashes of unchanged files carried over from previous daemons, which
+   *     this cache keeps up to date. Must hold hashes computed with {@code hashFunction}.
+   */
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      HashFunctionType hashFunction,
+      Optional<PersistentFileHashStore> persistentStore) {
+    super(projectFilesystem, Optional.empty(), hashFunction, persistentStore);
+    this.persistentStore = persistentStore;
+  }
+
+  /**
+   * Saves the hashes in the persistent store, if there is one, for the next daemon to start from.
+   */
+  public void persist() throws IOException {
+    if (persistentStore.isPresent()) {
+      persistentStore.get().save();
+    }
   }
 
   /**
@@ -47,8 +71,7 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
       final Path path = ((Path) event.context()).normalize();
       LOG.verbose("Invalidating %s", path);
       Iterable<Path> pathsToInvalidate =
-          Maps.filterEntries(
-              loadingCache.asMap(),
+          entries.getPaths(
               entry -> {
                 Preconditions.checkNotNull(entry);
 
@@ -58,20 +81,22 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
                 // we do support some limited flows that use them to point to read-only storage
                 // (e.g. the `project.read_only_paths`).  For these limited flows to work correctly,
                 // we invalidate.
-                if (entry.getKey().startsWith(path)) {
+                if (entry.startsWith(path)) {
                   return true;
                 }
 
                 // Otherwise, we want to invalidate the entry if the path matches it.  We also
                 // invalidate any directories that contain this entry, so use the following
                 // comparison to capture both these scenarios.
-                if (path.startsWith(entry.getKey())) {
+                if (path.startsWith(entry)) {
                   return true;
                 }
 
                 return false;
-              }
-          ).keySet();
+              });
+      if (persistentStore.isPresent()) {
+        persistentStore.get().removeAllUnder(path);
+      }
       LOG.verbose("Paths to invalidate: %s", pathsToInvalidate);
       for (Path pathToInvalidate : pathsToInvalidate) {
         invalidate(pathToInvalidate);
@@ -18,6 +18,8 @@ package com.facebook.buck.util.concurrent;
 
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.Either;
+import com.facebook.buck.timing.Clock;
+import com.facebook.buck.timing.DefaultClock;
 import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
@@ -27,12 +29,17 @@ import com.google.common.util.concurrent.SettableFuture;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
@@ -55,12 +62,22 @@ import javax.annotation.concurrent.GuardedBy;
  * errors when "using" a resource it is assumed to be defective, will be retired
  * and a new resource will be requested from the supplier. The Future associated with the failed
  * attempt to use the resource will contain the relevant exception.
+ *
+ * Optionally, the pool can size itself to its load: additional resources are only created while
+ * the queued work would keep the existing ones busy for longer than a new one takes to start,
+ * resources that stay parked for too long are retired whenever a resource is requested, returned or
+ * reclaimed, and the total number of resources can be capped across several pools with a
+ * {@link SharedResourceLimit}.
  */
 public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
   private static final Logger LOG = Logger.get(ResourcePool.class);
 
   private final int maxResources;
   private final ResourceUsageErrorPolicy resourceUsageErrorPolicy;
+  private final Optional<SharedResourceLimit> sharedLimit;
+  private final boolean adaptiveGrowth;
+  private final Optional<Long> idleTimeoutNanos;
+  private final Clock clock;
   @GuardedBy("this")
   private final Supplier<R> resourceSupplier;
   @GuardedBy("this")
@@ -74,6 +91,23 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
   private @Nullable ListenableFuture<Void> shutdownFuture;
   @GuardedBy("this")
   private final Set<ListenableFuture<?>> pendingWork;
+  @GuardedBy("this")
+  private final Deque<SettableFuture<Void>> sharedLimitRequests;
+  @GuardedBy("this")
+  private final Map<R, Long> parkedSinceNanos;
+  @GuardedBy("this")
+  private final Set<R> usedResources;
+
+  // Durations of the first operation of each resource, which include starting it, and of the
+  // operations after that.
+  @GuardedBy("this")
+  private long firstUses;
+  @GuardedBy("this")
+  private long firstUseNanos;
+  @GuardedBy("this")
+  private long laterUses;
+  @GuardedBy("this")
+  private long laterUseNanos;
 
   /**
    * @param maxResources maximum number of resources to use concurrently.
@@ -85,10 +119,39 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
       int maxResources,
       ResourceUsageErrorPolicy resourceUsageErrorPolicy,
       Supplier<R> resourceSupplier) {
+    this(
+        maxResources,
+        resourceUsageErrorPolicy,
+        resourceSupplier,
+        Optional.empty(),
+        /* adaptiveGrowth */ false,
+        /* idleTimeoutMillis */ Optional.empty(),
+        new DefaultClock());
+  }
+
+  /**
+   * @param sharedLimit caps the number of resources created by this and other pools.
+   * @param adaptiveGrowth whether to only create additional resources when the queued work would
+   *                       keep the existing ones busy for longer than it takes to start a new one,
+   *                       as observed from earlier operations.
+   * @param idleTimeoutMillis how long a resource may stay parked before it is retired.
+   */
+  public ResourcePool(
+      int maxResources,
+      ResourceUsageErrorPolicy resourceUsageErrorPolicy,
+      Supplier<R> resourceSupplier,
+      Optional<SharedResourceLimit> sharedLimit,
+      boolean adaptiveGrowth,
+      Optional<Long> idleTimeoutMillis,
+      Clock clock) {
     Preconditions.checkArgument(maxResources > 0);
 
     this.maxResources = maxResources;
     this.resourceUsageErrorPolicy = resourceUsageErrorPolicy;
+    this.sharedLimit = sharedLimit;
+    this.adaptiveGrowth = adaptiveGrowth;
+    this.idleTimeoutNanos = idleTimeoutMillis.map(TimeUnit.MILLISECONDS::toNanos);
+    this.clock = clock;
     this.resourceSupplier = resourceSupplier;
     this.createdResources = new ArrayList<>();
     this.parkedResources = new ArrayDeque<>();
@@ -96,6 +159,10 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
     this.closing = new AtomicBoolean(false);
     this.shutdownFuture = null;
     this.pendingWork = new HashSet<>();
+    this.sharedLimitRequests = new ArrayDeque<>();
+    this.parkedSinceNanos = new IdentityHashMap<>();
+    this.usedResources = Collections.newSetFromMap(new IdentityHashMap<>());
+    sharedLimit.ifPresent(limit -> limit.register(this));
   }
 
   /**
@@ -115,9 +182,13 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
           @Override
           public ListenableFuture<T> apply(Void input) throws Exception {
             Either<R, ListenableFuture<Void>> resourceRequest = requestResource();
+            // Only check once we have taken the resource we're about to use, so that it's not
+            // retired just because nothing needed it for a while.
+            releaseShared(retireIdleResources());
             if (resourceRequest.isLeft()) {
               R resource = resourceRequest.getLeft();
               boolean resourceIsDefunct = false;
+              long startNanos = clock.nanoTime();
               try {
                 return Futures.immediateFuture(withResource.apply(resource));
               } catch (Exception e) {
@@ -125,9 +196,14 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
                     (resourceUsageErrorPolicy == ResourceUsageErrorPolicy.RETIRE);
                 throw e;
               } finally {
-                returnResource(resource, resourceIsDefunct);
+                releaseShared(
+                    returnResource(resource, resourceIsDefunct, clock.nanoTime() - startNanos));
               }
             } else {
+              if (sharedLimit.isPresent() && hasNoResources()) {
+                // Only another pool can free up capacity for our first resource.
+                sharedLimit.get().reclaimIdleResource(ResourcePool.this);
+              }
               return Futures.transformAsync(resourceRequest.getRight(), this, executorService);
             }
           }
@@ -165,9 +241,20 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
     if (resource.isPresent()) {
       return Either.ofLeft(resource.get());
     }
+    if (sharedLimit.isPresent() && createdResources.isEmpty() && !closing.get()) {
+      // None of our own resources will come back, so wait for another pool to give one up.
+      sharedLimitRequests.removeIf(Future::isDone);
+      SettableFuture<Void> request = sharedLimit.get().awaitRelease();
+      sharedLimitRequests.add(request);
+      return Either.ofRight(request);
+    }
     return Either.ofRight(scheduleNewResourceRequest());
   }
 
+  private synchronized boolean hasNoResources() {
+    return createdResources.isEmpty();
+  }
+
   private synchronized ListenableFuture<Void> scheduleNewResourceRequest() {
     if (closing.get()) {
       return Futures.immediateCancelledFuture();
@@ -181,25 +268,100 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
     if (closing.get()) {
       return Optional.empty();
     }
-    R resource = parkedResources.pollFirst();
+    // Reuse the most recently parked resource, so that the others can go idle and be retired.
+    R resource = parkedResources.pollLast();
     if (resource != null) {
+      parkedSinceNanos.remove(resource);
       return Optional.of(resource);
     }
     return createIfAllowed();
   }
 
-  private synchronized void returnResource(R resource, boolean resourceIsDefunct) {
+  /**
+   * @return the number of resources retired, which have to be given back to the shared limit.
+   */
+  private synchronized int returnResource(R resource, boolean resourceIsDefunct, long usedNanos) {
+    if (usedResources.add(resource)) {
+      firstUses++;
+      firstUseNanos += usedNanos;
+    } else {
+      laterUses++;
+      laterUseNanos += usedNanos;
+    }
+
+    int retired = 0;
     if (resourceIsDefunct) {
-      createdResources.remove(resource);
-      try {
-        resource.close();
-      } catch (Exception e) {
-        LOG.info(e, "Error shutting down a defunct resource.");
-      }
+      retireResource(resource, "defunct");
+      retired++;
+    } else if (sharedLimit.isPresent() &&
+        sharedLimit.get().hasWaiters() &&
+        (createdResources.size() > 1 || resourceRequests.isEmpty())) {
+      // Another pool has no resources at all, so hand our capacity over.
+      retireResource(resource, "surplus");
+      retired++;
     } else {
       parkedResources.add(resource);
+      parkedSinceNanos.put(resource, clock.nanoTime());
     }
+    retired += retireIdleResources();
     scheduleNextRequest();
+    return retired;
+  }
+
+  private synchronized int retireIdleResources() {
+    if (!idleTimeoutNanos.isPresent()) {
+      return 0;
+    }
+    int retired = 0;
+    long now = clock.nanoTime();
+    while (!parkedResources.isEmpty() &&
+        now - parkedSinceNanos.get(parkedResources.peekFirst()) >= idleTimeoutNanos.get()) {
+      retireResource(parkedResources.pollFirst(), "idle");
+      retired++;
+    }
+    return retired;
+  }
+
+  @GuardedBy("this")
+  private void retireResource(R resource, String reason) {
+    createdResources.remove(resource);
+    parkedSinceNanos.remove(resource);
+    usedResources.remove(resource);
+    try {
+      resource.close();
+    } catch (Exception e) {
+      LOG.info(e, "Error shutting down a %s resource.", reason);
+    }
+  }
+
+  /**
+   * Retires the resources that have been parked for too long, or else one parked resource, so that
+   * another pool sharing our limit can use their capacity.
+   *
+   * @return whether a resource was retired.
+   */
+  boolean retireIdleResource() {
+    int retired;
+    synchronized (this) {
+      if (closing.get() || parkedResources.isEmpty()) {
+        return false;
+      }
+      retired = retireIdleResources();
+      if (retired == 0) {
+        retireResource(parkedResources.pollFirst(), "reclaimed");
+        retired = 1;
+      }
+    }
+    releaseShared(retired);
+    return true;
+  }
+
+  private void releaseShared(int count) {
+    if (sharedLimit.isPresent()) {
+      for (int i = 0; i < count; i++) {
+        sharedLimit.get().release();
+      }
+    }
   }
 
   private synchronized void scheduleNextRequest() {
@@ -217,14 +379,36 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
   }
 
   private synchronized boolean allowedToCreateResource() {
-    return !closing.get() && (createdResources.size() < maxResources);
+    return !closing.get() &&
+        (createdResources.size() < maxResources) &&
+        (createdResources.isEmpty() || isWorthCreatingResource());
+  }
+
+  @GuardedBy("this")
+  private boolean isWorthCreatingResource() {
+    if (!adaptiveGrowth || firstUses == 0 || laterUses == 0) {
+      return true;
+    }
+    long averageUseNanos = laterUseNanos / laterUses;
+    long startupNanos = firstUseNanos / firstUses - averageUseNanos;
+    long queuedNanos = (resourceRequests.size() + 1) * averageUseNanos / createdResources.size();
+    return queuedNanos >= startupNanos;
   }
 
   private synchronized Optional<R> createIfAllowed() {
     if (!allowedToCreateResource()) {
       return Optional.empty();
     }
-    R resource = Preconditions.checkNotNull(resourceSupplier.get());
+    if (sharedLimit.isPresent() && !sharedLimit.get().tryAcquire()) {
+      return Optional.empty();
+    }
+    R resource;
+    try {
+      resource = Preconditions.checkNotNull(resourceSupplier.get());
+    } catch (RuntimeException e) {
+      releaseShared(1);
+      throw e;
+    }
     createdResources.add(resource);
     return Optional.of(resource);
   }
@@ -247,6 +431,10 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
       request.set(null);
     }
     resourceRequests.clear();
+    for (SettableFuture<Void> request : sharedLimitRequests) {
+      request.set(null);
+    }
+    sharedLimitRequests.clear();
 
     // Any processing that is currently taking place will be allowed to complete (as it won't notice
     // `closing` is true.
@@ -270,6 +458,7 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
         new AsyncFunction<List<Object>, Void>() {
           @Override
           public ListenableFuture<Void> apply(List<Object> input) throws Exception {
+            int closedResources;
             synchronized (ResourcePool.this) {
               if (parkedResources.size() != createdResources.size()) {
                 LOG.error("Whoops! Some resource are still in use during shutdown.");
@@ -278,11 +467,16 @@ public class ResourcePool<R extends AutoCloseable> implements AutoCloseable {
               for (R resource : createdResources) {
                 resource.close();
               }
+              closedResources = createdResources.size();
               if (!resourceRequests.isEmpty()) {
                 LOG.error("Error shutting down ResourcePool: " +
                     "there should be no enqueued resource requests.");
               }
             }
+            if (sharedLimit.isPresent()) {
+              sharedLimit.get().unregister(ResourcePool.this);
+              releaseShared(closedResources);
+            }
             executorService.shutdown();
             return Futures.immediateFuture(null);
           }
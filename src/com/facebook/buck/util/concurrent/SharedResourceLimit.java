@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.util.concurrent;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Caps the total number of resources created by a group of {@link ResourcePool}s, for example the
+ * parser pools of all cells in a build.
+ *
+ * A pool that is refused its first resource waits for another pool to give one back, and can ask
+ * the other pools to retire their idle resources in the meantime.
+ */
+public class SharedResourceLimit {
+
+  private final int maxResources;
+
+  @GuardedBy("this")
+  private int usedResources;
+  @GuardedBy("this")
+  private final Set<ResourcePool<?>> pools = new LinkedHashSet<>();
+  @GuardedBy("this")
+  private final List<SettableFuture<Void>> waiters = new ArrayList<>();
+
+  public SharedResourceLimit(int maxResources) {
+    Preconditions.checkArgument(maxResources > 0);
+    this.maxResources = maxResources;
+  }
+
+  public int getMaxResources() {
+    return maxResources;
+  }
+
+  synchronized int getUsedResources() {
+    return usedResources;
+  }
+
+  synchronized void register(ResourcePool<?> pool) {
+    pools.add(pool);
+  }
+
+  synchronized void unregister(ResourcePool<?> pool) {
+    pools.remove(pool);
+  }
+
+  synchronized boolean tryAcquire() {
+    if (usedResources >= maxResources) {
+      return false;
+    }
+    usedResources++;
+    return true;
+  }
+
+  synchronized boolean hasWaiters() {
+    return !waiters.isEmpty();
+  }
+
+  /**
+   * @return a future completed the next time a resource is given back, or straight away if one
+   *     was given back since it was last refused.
+   */
+  synchronized SettableFuture<Void> awaitRelease() {
+    SettableFuture<Void> waiter = SettableFuture.create();
+    if (usedResources < maxResources) {
+      waiter.set(null);
+    } else {
+      waiters.add(waiter);
+    }
+    return waiter;
+  }
+
+  /**
+   * Gives back a resource and wakes up all waiting pools, which will race for it. Must not be
+   * called while holding the lock of a pool.
+   */
+  void release() {
+    ImmutableList<SettableFuture<Void>> toWake;
+    synchronized (this) {
+      Preconditions.checkState(usedResources > 0);
+      usedResources--;
+      toWake = ImmutableList.copyOf(waiters);
+      waiters.clear();
+    }
+    toWake.forEach(waiter -> waiter.set(null));
+  }
+
+  /**
+   * Asks the pools other than {@code requester} to retire one of their idle resources. Must not be
+   * called while holding the lock of a pool.
+   */
+  void reclaimIdleResource(ResourcePool<?> requester) {
+    ImmutableList<ResourcePool<?>> others;
+    synchronized (this) {
+      others = ImmutableList.copyOf(pools);
+    }
+    for (ResourcePool<?> pool : others) {
+      if (pool != requester && pool.retireIdleResource()) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A zip archive that was extracted into a staging directory by {@link Unzip#stageZipStream}, so
+ * that it can be moved to its destination only once the archive is known to be intact.
+ */
+public class StagedZip {
+
+  private final ProjectFilesystem stagingFilesystem;
+  private final ImmutableList<Path> files;
+  private final ImmutableList<String> entryNames;
+
+  StagedZip(
+      ProjectFilesystem stagingFilesystem,
+      ImmutableList<Path> files,
+      ImmutableList<String> entryNames) {
+    this.stagingFilesystem = stagingFilesystem;
+    this.files = files;
+    this.entryNames = entryNames;
+  }
+
+  /**
+   * @return the filesystem rooted at the staging directory.
+   */
+  public ProjectFilesystem getStagingFilesystem() {
+    return stagingFilesystem;
+  }
+
+  /**
+   * @return the extracted files, relative to the staging directory.
+   */
+  public ImmutableList<Path> getFiles() {
+    return files;
+  }
+
+  /**
+   * Moves the extracted files from the staging directory into {@code filesystem}, treating existing
+   * files as {@link Unzip#extractZipStream} would have, and returns their new paths.
+   */
+  public ImmutableList<Path> moveInto(
+      ProjectFilesystem filesystem,
+      Unzip.ExistingFileMode existingFileMode) throws IOException {
+    ImmutableList.Builder<Path> filesMoved = ImmutableList.builder();
+    // Everything moved so far, along with its parent directories, none of which may be cleaned by
+    // later entries.
+    Set<Path> movedPaths = new HashSet<>();
+    for (String entryName : entryNames) {
+      Path target = filesystem.getPath(entryName);
+      if (existingFileMode == Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES &&
+          !movedPaths.contains(target)) {
+        filesystem.deleteRecursivelyIfExists(target);
+      }
+      for (Path path = target; path != null && movedPaths.add(path); ) {
+        path = path.getParent();
+      }
+
+      if (entryName.endsWith("/")) {
+        filesystem.mkdirs(target);
+      } else {
+        Path source = stagingFilesystem.resolve(entryName);
+        // A file listed twice has already been moved for its first entry.
+        if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+          continue;
+        }
+        filesystem.createParentDirs(target);
+        Files.move(source, filesystem.resolve(target), StandardCopyOption.REPLACE_EXISTING);
+        filesMoved.add(target);
+      }
+    }
+    return filesMoved.build();
+  }
+}
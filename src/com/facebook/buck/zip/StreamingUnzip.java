@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.io.MorePosixFilePermissions;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Extracts a zip archive while it is being read from a stream, without storing the archive first.
+ *
+ * <p>Entries are written out as soon as they have been read. File permissions and symlinks are only
+ * recorded in the central directory at the end of the archive, so the tail of the stream is kept
+ * in memory and they are applied once the whole archive has been read. The tail grows with the
+ * number of entries, since the central directory holds a record for each of them.
+ *
+ * <p>When cleaning directories, each entry is cleaned right before it is extracted rather than all
+ * of them up front. This matches {@link Unzip#extractZipFile} as long as directory entries come
+ * before their contents, as they do in the zips Buck creates.
+ */
+class StreamingUnzip {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+  private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+  private static final int CENTRAL_DIRECTORY_FILE_HEADER_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_DIRECTORY_FILE_HEADER_SIZE = 46;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+
+  // The end of central directory records, including the largest possible archive comment.
+  private static final int MIN_TAIL_SIZE =
+      END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE +
+      ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE + ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE;
+
+  // Allowance for central directory extra fields that are larger than the local ones.
+  private static final int EXTRA_FIELD_SLACK = 32;
+
+  private static final int UNIX_SYMLINK_MODE = 0120000;
+
+  /** Utility class: do not instantiate. */
+  private StreamingUnzip() {}
+
+  static ImmutableList<Path> extract(
+      InputStream zipStream,
+      ProjectFilesystem filesystem,
+      Path relativePath,
+      Unzip.ExistingFileMode existingFileMode) throws IOException {
+    return extract(zipStream, filesystem, relativePath, existingFileMode, new ArrayList<>());
+  }
+
+  /**
+   * Extracts the archive into the empty directory {@code stagingDirectory}, from where it can be
+   * moved into place later.
+   */
+  static StagedZip stage(InputStream zipStream, Path stagingDirectory) throws IOException {
+    ProjectFilesystem stagingFilesystem = new ProjectFilesystem(stagingDirectory);
+    List<String> entryNames = new ArrayList<>();
+    ImmutableList<Path> files = extract(
+        zipStream,
+        stagingFilesystem,
+        stagingFilesystem.getPath(""),
+        Unzip.ExistingFileMode.OVERWRITE,
+        entryNames);
+    return new StagedZip(stagingFilesystem, files, ImmutableList.copyOf(entryNames));
+  }
+
+  private static ImmutableList<Path> extract(
+      InputStream zipStream,
+      ProjectFilesystem filesystem,
+      Path relativePath,
+      Unzip.ExistingFileMode existingFileMode,
+      List<String> entryNames) throws IOException {
+    TailRecordingInputStream recordingStream =
+        new TailRecordingInputStream(zipStream, MIN_TAIL_SIZE);
+    Map<String, Path> filesWritten = new LinkedHashMap<>();
+    // Everything extracted so far, along with its parent directories, none of which may be
+    // cleaned by later entries.
+    Set<Path> extractedPaths = new HashSet<>();
+
+    // The caller owns the stream, so it must stay open.
+    FilterInputStream nonClosingStream = new FilterInputStream(recordingStream) {
+      @Override
+      public void close() {}
+    };
+    try (ZipArchiveInputStream zip =
+             new ZipArchiveInputStream(
+                 nonClosingStream,
+                 Charsets.UTF_8.name(),
+                 /* useUnicodeExtraFields */ true,
+                 /* allowStoredEntriesWithDataDescriptor */ true)) {
+      ZipArchiveEntry entry;
+      while ((entry = zip.getNextZipEntry()) != null) {
+        recordingStream.reserve(
+            CENTRAL_DIRECTORY_FILE_HEADER_SIZE +
+            entry.getRawName().length +
+            entry.getLocalFileDataExtra().length +
+            EXTRA_FIELD_SLACK);
+
+        String fileName = entry.getName();
+        entryNames.add(fileName);
+        Path target = relativePath.resolve(fileName);
+        if (existingFileMode == Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES &&
+            !extractedPaths.contains(target)) {
+          filesystem.deleteRecursivelyIfExists(target);
+        }
+        for (Path path = target; path != null && extractedPaths.add(path); ) {
+          path = path.getParent();
+        }
+
+        if (entry.isDirectory()) {
+          filesystem.mkdirs(target);
+        } else {
+          filesystem.createParentDirs(target);
+          try (OutputStream out = filesystem.newFileOutputStream(target)) {
+            ByteStreams.copy(zip, out);
+          }
+          filesystem.resolve(target).toFile().setLastModified(entry.getTime());
+          filesWritten.put(fileName, target);
+        }
+      }
+      // Read the central directory, which the zip stream stops short of.
+      ByteStreams.exhaust(recordingStream);
+    }
+
+    applyCentralDirectory(
+        recordingStream.getTail(),
+        recordingStream.getTotalBytes(),
+        filesWritten,
+        filesystem);
+    return ImmutableList.copyOf(filesWritten.values());
+  }
+
+  /**
+   * Restores the executable bits and symlinks recorded in the central directory, mirroring what
+   * {@link Unzip#extractZipFile} does for each entry.
+   */
+  private static void applyCentralDirectory(
+      byte[] tail,
+      long totalBytes,
+      Map<String, Path> filesWritten,
+      ProjectFilesystem filesystem) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+    long tailOffset = totalBytes - tail.length;
+    try {
+      int endOfCentralDirectory = findEndOfCentralDirectory(buffer);
+      long entries = buffer.getShort(endOfCentralDirectory + 10) & 0xffff;
+      long centralDirectoryOffset = buffer.getInt(endOfCentralDirectory + 16) & 0xffffffffL;
+
+      int locator = endOfCentralDirectory - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE;
+      if (locator >= 0 &&
+          buffer.getInt(locator) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE) {
+        int zip64EndOfCentralDirectory =
+            toTailPosition(buffer.getLong(locator + 8), tailOffset, tail.length);
+        entries = buffer.getLong(zip64EndOfCentralDirectory + 32);
+        centralDirectoryOffset = buffer.getLong(zip64EndOfCentralDirectory + 48);
+      }
+
+      int position = toTailPosition(centralDirectoryOffset, tailOffset, tail.length);
+      for (long i = 0; i < entries; i++) {
+        if (buffer.getInt(position) != CENTRAL_DIRECTORY_FILE_HEADER_SIGNATURE) {
+          throw new IOException("Malformed central directory in zip stream.");
+        }
+        int versionMadeBy = buffer.getShort(position + 4) & 0xffff;
+        int nameLength = buffer.getShort(position + 28) & 0xffff;
+        int extraLength = buffer.getShort(position + 30) & 0xffff;
+        int commentLength = buffer.getShort(position + 32) & 0xffff;
+        long externalAttributes = buffer.getInt(position + 38) & 0xffffffffL;
+        String fileName = new String(
+            tail,
+            position + CENTRAL_DIRECTORY_FILE_HEADER_SIZE,
+            nameLength,
+            Charsets.UTF_8);
+        position += CENTRAL_DIRECTORY_FILE_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+        Path target = filesWritten.get(fileName);
+        if (target == null) {
+          continue;
+        }
+        int mode = (int) (externalAttributes >> 16);
+        boolean isUnix = (versionMadeBy >> 8) == ZipArchiveEntry.PLATFORM_UNIX;
+        if (isUnix && (mode & UNIX_SYMLINK_MODE) == UNIX_SYMLINK_MODE) {
+          String linkTarget =
+              new String(Files.readAllBytes(filesystem.resolve(target)), Charsets.UTF_8);
+          filesystem.createSymLink(target, filesystem.getPath(linkTarget), /* force */ true);
+        } else if (MorePosixFilePermissions.fromMode(mode)
+            .contains(PosixFilePermission.OWNER_EXECUTE)) {
+          MoreFiles.makeExecutable(filesystem.resolve(target));
+        }
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Central directory of zip stream was not fully recorded.", e);
+    }
+  }
+
+  private static int findEndOfCentralDirectory(ByteBuffer buffer) throws IOException {
+    int last = buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+    for (int position = last; position >= 0 && position >= last - MAX_COMMENT_SIZE; position--) {
+      if (buffer.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE &&
+          (buffer.getShort(position + 20) & 0xffff) == last - position) {
+        return position;
+      }
+    }
+    throw new IOException("Could not find the end of the central directory in zip stream.");
+  }
+
+  private static int toTailPosition(long offset, long tailOffset, int tailLength)
+      throws IOException {
+    if (offset < tailOffset || offset >= tailOffset + tailLength) {
+      throw new IOException("Central directory of zip stream was not fully recorded.");
+    }
+    return (int) (offset - tailOffset);
+  }
+
+  /**
+   * Passes a stream through while keeping its last {@code tailSize} bytes in memory.
+   */
+  private static class TailRecordingInputStream extends FilterInputStream {
+    private byte[] buffer;
+    private int length = 0;
+    private int tailSize;
+    private long totalBytes = 0;
+
+    private TailRecordingInputStream(InputStream in, int tailSize) {
+      super(in);
+      this.tailSize = tailSize;
+      this.buffer = new byte[2 * tailSize];
+    }
+
+    /** Grows the number of trailing bytes kept by {@code bytes}. */
+    private void reserve(int bytes) {
+      tailSize += bytes;
+    }
+
+    private byte[] getTail() {
+      int size = Math.min(length, tailSize);
+      return Arrays.copyOfRange(buffer, length - size, length);
+    }
+
+    private long getTotalBytes() {
+      return totalBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      int read = read(single, 0, 1);
+      return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int count) throws IOException {
+      int read = in.read(bytes, offset, count);
+      if (read > 0) {
+        record(bytes, offset, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+      // Skipped bytes still need to be recorded.
+      byte[] skipped = new byte[(int) Math.min(count, 8192)];
+      int read = read(skipped, 0, skipped.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {}
+
+    @Override
+    public synchronized void reset() throws IOException {
+      throw new IOException("mark/reset not supported");
+    }
+
+    private void record(byte[] bytes, int offset, int count) {
+      totalBytes += count;
+      if (length + count > buffer.length) {
+        // Drop the bytes that have fallen out of the tail.
+        int keep = Math.max(0, Math.min(length, tailSize - count));
+        System.arraycopy(buffer, length - keep, buffer, 0, keep);
+        length = keep;
+        if (length + count > buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.max(2 * tailSize, length + count));
+        }
+      }
+      System.arraycopy(bytes, offset, buffer, length, count);
+      length += count;
+    }
+  }
+}
@@ -213,6 +213,32 @@ public class Unzip {
         .collect(MoreCollectors.toImmutableList());
   }
 
+  /**
+   * Unzips an archive as it is read from {@code zipStream}, without storing it in a file first, and
+   * returns the paths of the written files. The stream is read to its end, but not closed.
+   */
+  public static ImmutableList<Path> extractZipStream(
+      InputStream zipStream,
+      ProjectFilesystem filesystem,
+      ExistingFileMode existingFileMode) throws IOException {
+    return StreamingUnzip.extract(
+        zipStream,
+        filesystem,
+        filesystem.getPath(""),
+        existingFileMode);
+  }
+
+  /**
+   * Like {@link #extractZipStream}, but extracts the archive into the empty directory
+   * {@code stagingDirectory}. Nothing is written to its final destination until
+   * {@link StagedZip#moveInto} is called, e.g. once the integrity of the stream has been verified.
+   */
+  public static StagedZip stageZipStream(
+      InputStream zipStream,
+      Path stagingDirectory) throws IOException {
+    return StreamingUnzip.stage(zipStream, stagingDirectory);
+  }
+
   public static ImmutableCollection<Path> getZipMembers(Path archiveAbsolutePath)
       throws IOException {
     try (ZipFile zip = new ZipFile(archiveAbsolutePath.toFile())) {
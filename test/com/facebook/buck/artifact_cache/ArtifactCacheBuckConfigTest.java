@@ -19,6 +19,7 @@ package com.facebook.buck.artifact_cache;
 import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.cli.BuckConfigTestUtils;
+import com.facebook.buck.hashing.HashFunctionType;
 import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
@@ -407,6 +408,34 @@ public class ArtifactCacheBuckConfigTest {
     assertThat(cache.getErrorMessageFormat(), Matchers.equalTo(testText));
   }
 
+  @Test
+  public void testArtifactCompressionLevel() throws IOException {
+    assertThat(createFromText().getArtifactCompressionLevel(), Matchers.equalTo(6));
+    assertThat(
+        createFromText("[cache]", "artifact_compression_level = 0").getArtifactCompressionLevel(),
+        Matchers.equalTo(0));
+  }
+
+  @Test(expected = HumanReadableException.class)
+  public void testArtifactCompressionLevelOutOfRange() throws IOException {
+    createFromText("[cache]", "artifact_compression_level = 10").getArtifactCompressionLevel();
+  }
+
+  @Test
+  public void testLocalHashFunction() throws IOException {
+    assertThat(createFromText().getLocalHashFunction(), Matchers.equalTo(HashFunctionType.SHA1));
+    assertThat(
+        createFromText("[cache]", "mode = dir", "local_hash_function = murmur3_128")
+            .getLocalHashFunction(),
+        Matchers.equalTo(HashFunctionType.MURMUR3_128));
+  }
+
+  @Test(expected = HumanReadableException.class)
+  public void testLocalHashFunctionRequiresSha1WithSharedCaches() throws IOException {
+    createFromText("[cache]", "mode = dir, http", "local_hash_function = murmur3_128")
+        .getLocalHashFunction();
+  }
+
   public static ArtifactCacheBuckConfig createFromText(String... lines) throws IOException {
     ProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
     StringReader reader = new StringReader(Joiner.on('\n').join(lines));
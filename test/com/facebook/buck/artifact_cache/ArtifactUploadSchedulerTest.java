@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.util.concurrent.FakeListeningExecutorService;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class ArtifactUploadSchedulerTest {
+
+  private List<Runnable> submittedTasks;
+  private List<String> uploaded;
+  private List<String> dropped;
+  private FakeListeningExecutorService executorService;
+
+  @Before
+  public void setUp() {
+    submittedTasks = new ArrayList<>();
+    uploaded = new ArrayList<>();
+    dropped = new ArrayList<>();
+    executorService = new FakeListeningExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        submittedTasks.add(command);
+      }
+    };
+  }
+
+  @Test
+  public void testSmallestPendingUploadsRunFirst() {
+    ArtifactUploadScheduler scheduler =
+        new ArtifactUploadScheduler(executorService, Optional.empty());
+    schedule(scheduler, "large", 100);
+    schedule(scheduler, "small", 1);
+    schedule(scheduler, "medium", 10);
+    schedule(scheduler, "other_small", 1);
+    assertEquals(112, scheduler.getOutstandingBytes());
+
+    runSubmittedTasks();
+
+    assertEquals(ImmutableList.of("small", "other_small", "medium", "large"), uploaded);
+    assertEquals(ImmutableList.of(), dropped);
+    assertEquals(0, scheduler.getOutstandingBytes());
+  }
+
+  @Test
+  public void testLargerPendingUploadsAreDroppedForSmallerOnes() throws Exception {
+    ArtifactUploadScheduler scheduler =
+        new ArtifactUploadScheduler(executorService, Optional.of(100L));
+    ListenableFuture<Void> large = schedule(scheduler, "large", 60);
+    schedule(scheduler, "medium", 30);
+    schedule(scheduler, "small", 20);
+
+    assertEquals(ImmutableList.of("large"), dropped);
+    assertTrue(large.isDone());
+    large.get();
+    assertEquals(50, scheduler.getOutstandingBytes());
+
+    runSubmittedTasks();
+
+    assertEquals(ImmutableList.of("small", "medium"), uploaded);
+    assertEquals(0, scheduler.getOutstandingBytes());
+  }
+
+  @Test
+  public void testNewUploadIsDroppedWhenNoLargerUploadsArePending() {
+    ArtifactUploadScheduler scheduler =
+        new ArtifactUploadScheduler(executorService, Optional.of(100L));
+    schedule(scheduler, "first", 50);
+    schedule(scheduler, "second", 40);
+    ListenableFuture<Void> third = schedule(scheduler, "third", 50);
+    ListenableFuture<Void> tooLarge = schedule(scheduler, "too_large", 101);
+
+    assertEquals(ImmutableList.of("third", "too_large"), dropped);
+    assertTrue(third.isDone());
+    assertTrue(tooLarge.isDone());
+    assertEquals(90, scheduler.getOutstandingBytes());
+
+    runSubmittedTasks();
+
+    assertEquals(ImmutableList.of("second", "first"), uploaded);
+  }
+
+  @Test
+  public void testRunningUploadsCountTowardsTheBudget() {
+    ArtifactUploadScheduler scheduler =
+        new ArtifactUploadScheduler(executorService, Optional.of(100L));
+    ListenableFuture<Void> running = scheduler.schedule(
+        80,
+        new ArtifactUploadScheduler.Upload() {
+          @Override
+          public void run() {
+            // While this upload runs, a smaller one can't evict it.
+            schedule(scheduler, "while_running", 30);
+            uploaded.add("running");
+          }
+
+          @Override
+          public void drop() {
+            dropped.add("running");
+          }
+        });
+
+    runSubmittedTasks();
+
+    assertTrue(running.isDone());
+    assertEquals(ImmutableList.of("running"), uploaded);
+    assertEquals(ImmutableList.of("while_running"), dropped);
+    assertEquals(0, scheduler.getOutstandingBytes());
+  }
+
+  @Test
+  public void testPendingUploadIsNotRunBeforeItsTaskIsExecuted() {
+    ArtifactUploadScheduler scheduler =
+        new ArtifactUploadScheduler(executorService, Optional.of(100L));
+    ListenableFuture<Void> future = schedule(scheduler, "pending", 10);
+
+    assertFalse(future.isDone());
+    assertEquals(1, submittedTasks.size());
+  }
+
+  private ListenableFuture<Void> schedule(
+      ArtifactUploadScheduler scheduler,
+      final String name,
+      long sizeBytes) {
+    return scheduler.schedule(
+        sizeBytes,
+        new ArtifactUploadScheduler.Upload() {
+          @Override
+          public void run() {
+            uploaded.add(name);
+          }
+
+          @Override
+          public void drop() {
+            dropped.add(name);
+          }
+        });
+  }
+
+  private void runSubmittedTasks() {
+    while (!submittedTasks.isEmpty()) {
+      submittedTasks.remove(0).run();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class DirArtifactCacheIndexTest {
+  @Rule
+  public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private Path journalPath;
+
+  @Before
+  public void setUp() {
+    journalPath = tmpDir.getRoot().resolve(DirArtifactCacheIndex.JOURNAL_FILE_NAME);
+  }
+
+  @Test
+  public void replayingTheJournalRestoresAccessOrderAndSizes() throws IOException {
+    try (DirArtifactCacheIndex index =
+             DirArtifactCacheIndex.create(journalPath, ImmutableMap.of("a", 1L, "b", 2L))) {
+      index.recordStore("c", 4L);
+      index.recordAccess("a");
+      index.recordStore("b", 8L);
+    }
+
+    try (DirArtifactCacheIndex index = DirArtifactCacheIndex.load(journalPath)) {
+      assertEquals(ImmutableList.of("c", "a", "b"), index.getKeysInAccessOrder());
+      assertEquals(13L, index.getTotalSizeBytes());
+    }
+  }
+
+  @Test
+  public void evictRemovesLeastRecentlyUsedEntries() throws IOException {
+    try (DirArtifactCacheIndex index =
+             DirArtifactCacheIndex.create(
+                 journalPath,
+                 ImmutableMap.of("a", 2L, "b", 2L, "c", 2L))) {
+      index.recordAccess("a");
+
+      // Nothing is evicted while the cache is within its limit.
+      assertEquals(ImmutableList.of(), index.evict(6L, 2L));
+
+      assertEquals(ImmutableList.of("b", "c"), index.evict(5L, 3L));
+      assertEquals(ImmutableList.of("a"), index.getKeysInAccessOrder());
+      assertEquals(2L, index.getTotalSizeBytes());
+    }
+
+    try (DirArtifactCacheIndex index = DirArtifactCacheIndex.load(journalPath)) {
+      assertEquals(ImmutableList.of("a"), index.getKeysInAccessOrder());
+    }
+  }
+
+  @Test
+  public void blobsAreCountedOnceAndDeletedWithTheirLastEntry() throws IOException {
+    Path blob = tmpDir.getRoot().resolve("blob");
+    Files.write(blob, "contents".getBytes(UTF_8));
+
+    try (DirArtifactCacheIndex index =
+             DirArtifactCacheIndex.create(journalPath, ImmutableMap.of())) {
+      index.recordLinkedStore("a", 1L, "blob", 8L, () -> true);
+      index.recordLinkedStore("b", 2L, "blob", 8L, () -> true);
+      index.recordStore("c", 4L);
+      assertEquals(15L, index.getTotalSizeBytes());
+
+      // Evicting "a" does not free the blob, which "b" still links to.
+      assertEquals(ImmutableList.of("a"), index.evict(14L, 14L));
+      assertEquals(14L, index.getTotalSizeBytes());
+      assertTrue(Files.exists(blob));
+
+      assertEquals(ImmutableList.of("b"), index.evict(13L, 13L));
+      assertEquals(4L, index.getTotalSizeBytes());
+      assertFalse(Files.exists(blob));
+    }
+
+    try (DirArtifactCacheIndex index = DirArtifactCacheIndex.load(journalPath)) {
+      assertEquals(ImmutableList.of("c"), index.getKeysInAccessOrder());
+      assertEquals(4L, index.getTotalSizeBytes());
+    }
+  }
+
+  @Test
+  public void copiesOfBlobsAreCountedWithTheirEntry() throws IOException {
+    Path blob = tmpDir.getRoot().resolve("blob");
+    Files.write(blob, "contents".getBytes(UTF_8));
+
+    try (DirArtifactCacheIndex index =
+             DirArtifactCacheIndex.create(journalPath, ImmutableMap.of())) {
+      index.recordLinkedStore("a", 1L, "blob", 8L, () -> false);
+      assertEquals(9L, index.getTotalSizeBytes());
+      assertFalse("No entry links to the blob", Files.exists(blob));
+    }
+  }
+
+  @Test
+  public void malformedRecordsAreIgnored() throws IOException {
+    Files.write(journalPath, "S\t1\ta\nS\tnotanumber\tb\nX\nS\t3".getBytes(UTF_8));
+
+    try (DirArtifactCacheIndex index = DirArtifactCacheIndex.load(journalPath)) {
+      assertEquals(ImmutableList.of("a"), index.getKeysInAccessOrder());
+      assertEquals(1L, index.getTotalSizeBytes());
+    }
+  }
+
+  @Test
+  public void tornRecordsDoNotCorruptLaterAppends() throws IOException {
+    Files.write(journalPath, "S\t1\ta\nS\t2".getBytes(UTF_8));
+
+    try (DirArtifactCacheIndex index = DirArtifactCacheIndex.load(journalPath)) {
+      index.recordStore("b", 4L);
+    }
+
+    try (DirArtifactCacheIndex index = DirArtifactCacheIndex.load(journalPath)) {
+      assertEquals(ImmutableList.of("a", "b"), index.getKeysInAccessOrder());
+      assertEquals(5L, index.getTotalSizeBytes());
+    }
+  }
+
+  @Test
+  public void indexesSharingAJournalSeeEachOthersRecords() throws IOException {
+    try (DirArtifactCacheIndex first =
+             DirArtifactCacheIndex.create(journalPath, ImmutableMap.of("a", 1L));
+         DirArtifactCacheIndex second = DirArtifactCacheIndex.load(journalPath)) {
+      first.recordStore("b", 2L);
+      second.recordStore("c", 4L);
+      second.recordAccess("a");
+
+      assertEquals(ImmutableList.of("b", "c", "a"), first.getKeysInAccessOrder());
+      assertEquals(7L, first.getTotalSizeBytes());
+
+      assertEquals(ImmutableList.of("b"), first.evict(6L, 5L));
+      assertEquals(ImmutableList.of("c", "a"), second.getKeysInAccessOrder());
+    }
+  }
+
+  @Test
+  public void journalIsCompactedWhileInUse() throws IOException {
+    try (DirArtifactCacheIndex first =
+             DirArtifactCacheIndex.create(journalPath, ImmutableMap.of("a", 1L, "b", 2L));
+         DirArtifactCacheIndex second = DirArtifactCacheIndex.load(journalPath)) {
+      for (int i = 0; i < 10003; i++) {
+        first.recordAccess(i % 2 == 0 ? "a" : "b");
+      }
+      assertTrue(first.getJournalRecords() < 10);
+      assertTrue(Files.readAllLines(journalPath, UTF_8).size() < 10);
+
+      // The other index reloads the compacted journal instead of missing or replaying records.
+      second.recordStore("c", 4L);
+      assertEquals(ImmutableList.of("b", "a", "c"), second.getKeysInAccessOrder());
+      assertEquals(ImmutableList.of("b", "a", "c"), first.getKeysInAccessOrder());
+      assertEquals(7L, first.getTotalSizeBytes());
+    }
+  }
+}
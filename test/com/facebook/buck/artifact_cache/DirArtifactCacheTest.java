@@ -50,12 +50,14 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
 
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -167,6 +169,42 @@ public class DirArtifactCacheTest {
     assertEquals(inputRuleX, new BuildRuleForTest(fileX));
   }
 
+  @Test
+  public void testCacheStoreAndFetchStreamingHit() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Files.write(fileX, "x".getBytes(UTF_8));
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        Paths.get("."),
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.empty());
+
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    dirArtifactCache.store(
+        ArtifactInfo.builder()
+            .addRuleKeys(ruleKey)
+            .setMetadata(ImmutableMap.of("some", "metadata"))
+            .build(),
+        BorrowablePath.notBorrowablePath(fileX));
+
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    CacheResult result =
+        dirArtifactCache.fetchStreaming(ruleKey, input -> ByteStreams.copy(input, payload));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(ImmutableMap.of("some", "metadata"), result.getMetadata());
+    assertEquals("x", new String(payload.toByteArray(), UTF_8));
+
+    assertEquals(
+        CacheResultType.MISS,
+        dirArtifactCache.fetchStreaming(
+            new RuleKey("00000000000000000000000000000001"),
+            input -> ByteStreams.copy(input, payload))
+            .getType());
+  }
+
   @Test
   public void testCacheStoreOverwrite() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -561,6 +599,44 @@ public class DirArtifactCacheTest {
     assertTrue(pathSelector.comparePaths(fakePathStats(20, 10), fakePathStats(10, 10)) > 0);
   }
 
+  @Test
+  public void testDirectoryCleanerNeverSelectsTheIndex() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Files.write(fileX, "x".getBytes(UTF_8));
+    fileHashCache = new FakeFileHashCache(ImmutableMap.of(fileX, HashCode.fromInt(0)));
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(1024L));
+
+    BuildRule inputRuleX = new BuildRuleForTest(fileX);
+    BuildRuleResolver ruleResolver = new BuildRuleResolver(
+        TargetGraph.EMPTY,
+        new DefaultTargetNodeToBuildRuleTransformer());
+    ruleResolver.addToIndex(inputRuleX);
+    SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(ruleResolver);
+    SourcePathResolver resolver = new SourcePathResolver(ruleFinder);
+    RuleKey ruleKeyX =
+        new DefaultRuleKeyFactory(0, fileHashCache, resolver, ruleFinder).build(inputRuleX);
+
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyX).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    assertTrue(Files.exists(cacheDir.resolve(DirArtifactCacheIndex.JOURNAL_FILE_NAME)));
+
+    Iterable<Path> candidates =
+        dirArtifactCache.getDirectoryCleanerPathSelector().getCandidatesToDelete(cacheDir);
+    assertEquals(
+        ImmutableSet.of(
+            dirArtifactCache.getPathForRuleKey(ruleKeyX, Optional.empty()),
+            dirArtifactCache.getPathForRuleKey(ruleKeyX, Optional.of(".metadata"))),
+        ImmutableSet.copyOf(candidates));
+  }
+
   @Test
   public void testDeleteAfterStoreIfFull() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -658,6 +734,139 @@ public class DirArtifactCacheTest {
             LazyPath.ofInstance(fileZ)).getType());
   }
 
+  @Test
+  public void testDeduplicatedStoreSharesIdenticalArtifacts() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Path fileY = tmpDir.newFile("y");
+    Files.write(fileX, "same contents".getBytes(UTF_8));
+    Files.write(fileY, "same contents".getBytes(UTF_8));
+
+    // Each entry is 4 bytes of metadata plus their shared 13 byte blob, which is counted once, so
+    // both entries fit.
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(30L),
+        /* deduplicate */ true);
+
+    RuleKey ruleKeyX = new RuleKey("aaaa0000000000000000000000000000");
+    RuleKey ruleKeyY = new RuleKey("bbbb0000000000000000000000000000");
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyX).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyY).build(),
+        BorrowablePath.borrowablePath(fileY));
+
+    Path artifactX = dirArtifactCache.getPathForRuleKey(ruleKeyX, Optional.empty());
+    Path artifactY = dirArtifactCache.getPathForRuleKey(ruleKeyY, Optional.empty());
+    Path blob = dirArtifactCache.getPathForBlob(
+        new ProjectFilesystem(cacheDir).computeSha1(artifactX));
+    assertTrue(Files.isSameFile(artifactX, blob));
+    assertTrue(Files.isSameFile(artifactY, blob));
+
+    Path fetched = tmpDir.getRoot().resolve("fetched");
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeyY, LazyPath.ofInstance(fetched)).getType());
+    assertEquals("same contents", new String(Files.readAllBytes(fetched), UTF_8));
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeyX, LazyPath.ofInstance(fetched)).getType());
+
+    // Rule key entries are not the blobs themselves.
+    assertEquals(4, dirArtifactCache.getAllFilesInCache().size());
+  }
+
+  @Test
+  public void testDeduplicatedBlobIsDeletedWithItsLastReference() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Path fileY = tmpDir.newFile("y");
+    Path fileZ = tmpDir.newFile("z");
+    Files.write(fileX, "same contents".getBytes(UTF_8));
+    Files.write(fileY, "same contents".getBytes(UTF_8));
+    Files.write(fileZ, "different contents!!".getBytes(UTF_8));
+
+    // Each entry is 4 bytes of metadata plus its blob: X and Y take 21 bytes together, Z 24.
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(40L),
+        /* deduplicate */ true);
+
+    RuleKey ruleKeyX = new RuleKey("aaaa0000000000000000000000000000");
+    RuleKey ruleKeyY = new RuleKey("bbbb0000000000000000000000000000");
+    RuleKey ruleKeyZ = new RuleKey("cccc0000000000000000000000000000");
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyX).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyY).build(),
+        BorrowablePath.notBorrowablePath(fileY));
+    Path blob = dirArtifactCache.getPathForBlob(new ProjectFilesystem(cacheDir).computeSha1(fileX));
+    assertTrue(Files.exists(blob));
+
+    // Storing Z evicts both X and Y, which drops the last reference to their shared blob.
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyZ).build(),
+        BorrowablePath.notBorrowablePath(fileZ));
+    assertFalse(Files.exists(blob));
+    assertEquals(
+        CacheResultType.MISS,
+        dirArtifactCache.fetch(ruleKeyX, LazyPath.ofInstance(fileX)).getType());
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeyZ, LazyPath.ofInstance(fileZ)).getType());
+  }
+
+  @Test
+  public void testExistingBlobIsDeletedWithTheEntriesLinkedToIt() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileY = tmpDir.newFile("y");
+    Path fileZ = tmpDir.newFile("z");
+    Files.write(fileY, "contents of y".getBytes(UTF_8));
+    Files.write(fileZ, "different contents!!".getBytes(UTF_8));
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        new ProjectFilesystem(cacheDir),
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(40L),
+        /* deduplicate */ true);
+
+    // A blob that no entry links to, as left behind by a process that died before recording it.
+    Path existingBlob = dirArtifactCache.getPathForBlob(
+        new ProjectFilesystem(cacheDir).computeSha1(fileY));
+    Files.createDirectories(existingBlob.getParent());
+    Files.copy(fileY, existingBlob);
+
+    RuleKey ruleKeyY = new RuleKey("bbbb0000000000000000000000000000");
+    RuleKey ruleKeyZ = new RuleKey("cccc0000000000000000000000000000");
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyY).build(),
+        BorrowablePath.notBorrowablePath(fileY));
+    assertTrue(
+        Files.isSameFile(
+            dirArtifactCache.getPathForRuleKey(ruleKeyY, Optional.empty()),
+            existingBlob));
+
+    // Storing Z evicts Y, the only entry linked to the blob.
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKeyZ).build(),
+        BorrowablePath.notBorrowablePath(fileZ));
+    assertFalse(Files.exists(existingBlob));
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.fetch(ruleKeyZ, LazyPath.ofInstance(fileZ)).getType());
+  }
+
   @Test
   public void testCacheStoreMultipleKeys() throws IOException {
     Path cacheDir = tmpDir.newFolder();
@@ -144,6 +144,25 @@ public class HttpArtifactCacheBinaryProtocolTest {
     }
   }
 
+  @Test
+  public void testReadFetchResponseVerifiesPayloadNotFullyConsumed() throws IOException {
+    final String base64EncodedData =
+        "AAAALgAAAAEAIDAwMDAwMDAwMDEwMDAwMDAwMDAwMDA4MDAwMDAwMDAwAAAAANcwdr5kYXRh";
+
+    byte[] consumed = new byte[2];
+    try (DataInputStream inputStream =
+             new DataInputStream(
+                 new ByteArrayInputStream(BaseEncoding.base64().decode(base64EncodedData)))) {
+      FetchResponseReadResult result = HttpArtifactCacheBinaryProtocol.readFetchResponse(
+          inputStream,
+          payload -> ByteStreams.readFully(payload, consumed));
+      assertThat(consumed, Matchers.equalTo("da".getBytes(Charsets.UTF_8)));
+      assertThat(result.getActualHashCode(), Matchers.equalTo(HashCode.fromString("d73076be")));
+      assertThat(result.getExpectedHashCode(), Matchers.equalTo(HashCode.fromString("d73076be")));
+      assertThat(result.getResponseSizeBytes(), Matchers.equalTo(4L));
+    }
+  }
+
   @Test
   public void testMassiveMetadataHeaderWrite() throws IOException {
     ImmutableMap.Builder<String, String> metadataBuilder = ImmutableMap.builder();
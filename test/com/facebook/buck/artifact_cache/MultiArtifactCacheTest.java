@@ -19,6 +19,7 @@ package com.facebook.buck.artifact_cache;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.LazyPath;
@@ -95,6 +96,36 @@ public class MultiArtifactCacheTest {
     multiArtifactCache.close();
   }
 
+  @Test
+  public void testCacheMultiFetch() throws IOException {
+    RuleKey ruleKey1 = new RuleKey("aaaa");
+    RuleKey ruleKey2 = new RuleKey("bbbb");
+    RuleKey ruleKey3 = new RuleKey("cccc");
+    InMemoryArtifactCache inMemoryArtifactCache1 = new InMemoryArtifactCache();
+    InMemoryArtifactCache inMemoryArtifactCache2 = new InMemoryArtifactCache();
+    inMemoryArtifactCache1.store(ArtifactInfo.builder().addRuleKeys(ruleKey3).build(), new byte[0]);
+    inMemoryArtifactCache2.store(ArtifactInfo.builder().addRuleKeys(ruleKey1).build(), new byte[0]);
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(ImmutableList.of(
+        inMemoryArtifactCache1,
+        inMemoryArtifactCache2));
+
+    ImmutableMap<RuleKey, CacheResult> results = multiArtifactCache.multiFetch(
+        ImmutableMap.of(
+            ruleKey1, LazyPath.ofInstance(tmp.newFile("1")),
+            ruleKey2, LazyPath.ofInstance(tmp.newFile("2")),
+            ruleKey3, LazyPath.ofInstance(tmp.newFile("3"))));
+
+    assertEquals(ImmutableList.of(ruleKey1, ruleKey2, ruleKey3), results.keySet().asList());
+    assertEquals(CacheResultType.HIT, results.get(ruleKey1).getType());
+    assertEquals(CacheResultType.MISS, results.get(ruleKey2).getType());
+    assertEquals(CacheResultType.HIT, results.get(ruleKey3).getType());
+    assertTrue(
+        "Hits from the second cache should be propagated to the first cache",
+        inMemoryArtifactCache1.hasArtifact(ruleKey1));
+
+    multiArtifactCache.close();
+  }
+
   @Test
   public void testCacheStore() throws InterruptedException, IOException {
     DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
@@ -50,6 +50,7 @@ import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.testutil.integration.TestDataHelper;
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSortedSet;
@@ -58,9 +59,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.TreeMap;
 import org.hamcrest.CustomTypeSafeMatcher;
@@ -584,4 +591,52 @@ public class CxxPrecompiledHeaderRuleTest {
     assertNotEquals(pchHashA, pchHashC);
   }
 
+  @Test
+  public void libsSharingPchCreateItConcurrentlyOnlyOnce() throws Exception {
+    assumeTrue(platformOkForPCHTests());
+
+    final BuildTarget pchTarget = newTarget("//test:pch");
+    ruleResolver.addToIndex(newPCH(pchTarget));
+
+    // Compile rules of libraries using the same PCH with the same flags are created concurrently,
+    // as with build.action_graph_parallelism > 1, and must all end up sharing one PCH rule.
+    final int libCount = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(libCount);
+    try {
+      List<Future<CxxPreprocessAndCompile>> futures = new ArrayList<>();
+      for (int i = 0; i < libCount; i++) {
+        final String name = "lib" + i;
+        futures.add(executor.submit(() -> {
+          CxxSourceRuleFactory factory =
+              newFactoryBuilder(newParams(newTarget("//test:" + name)), "-frtti")
+                  .setPrecompiledHeader(new DefaultBuildTargetSourcePath(pchTarget))
+                  .build();
+          start.await();
+          return factory.createPreprocessAndCompileBuildRule(
+              name + ".cpp",
+              newSource(name + ".cpp"));
+        }));
+      }
+      start.countDown();
+
+      Set<BuildRule> pchRules = new HashSet<>();
+      for (Future<CxxPreprocessAndCompile> future : futures) {
+        for (BuildRule dep : future.get().getBuildDeps()) {
+          if (dep instanceof CxxPrecompiledHeader) {
+            pchRules.add(dep);
+          }
+        }
+      }
+      assertEquals(1, pchRules.size());
+      assertEquals(
+          pchRules,
+          FluentIterable.from(ruleResolver.getBuildRules())
+              .filter(CxxPrecompiledHeader.class)
+              .toSet());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
 }
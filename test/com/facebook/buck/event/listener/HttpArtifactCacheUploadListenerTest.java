@@ -17,6 +17,7 @@
 package com.facebook.buck.event.listener;
 
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
+import com.facebook.buck.counters.CounterSnapshot;
 import com.facebook.buck.counters.CountersSnapshotEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.DefaultBuckEventBus;
@@ -93,6 +94,31 @@ public class HttpArtifactCacheUploadListenerTest {
     Assert.assertEquals(0, events.size());
   }
 
+  @Test
+  public void testDroppedUploadsAreCountedSeparately() throws IOException {
+    HttpArtifactCacheUploadListener listener = new HttpArtifactCacheUploadListener(
+        eventBus, NUMBER_OF_THREADS);
+    listener.onArtifactUploadStart(createUploadStartedEvent(0));
+    listener.onArtifactUploadFinish(createUploadFinishedEvent(1));
+    listener.onArtifactUploadStart(createUploadStartedEvent(2));
+    HttpArtifactCacheEvent.Finished.Builder droppedBuilder =
+        HttpArtifactCacheEvent.newFinishedEventBuilder(lastStartedEvent);
+    droppedBuilder.getStoreBuilder()
+        .setArtifactSizeBytes(42L)
+        .setWasStoreSuccessful(false)
+        .setWasStoreDropped(true);
+    HttpArtifactCacheEvent.Finished dropped = droppedBuilder.build();
+    dropped.configure(3, 0, 0, 0, buildId);
+    listener.onArtifactUploadFinish(dropped);
+    listener.onBuildFinished(createBuildFinishedEvent(4));
+
+    Assert.assertEquals(1, events.size());
+    CounterSnapshot snapshot = events.get(0).getSnapshots().get(0);
+    Assert.assertEquals(Long.valueOf(1), snapshot.getValues().get("artifact_count"));
+    Assert.assertEquals(Long.valueOf(1), snapshot.getValues().get("dropped_artifact_count"));
+    Assert.assertEquals(Long.valueOf(42), snapshot.getValues().get("total_dropped_bytes"));
+  }
+
   private BuildEvent.Finished createBuildFinishedEvent(int timeMillis) {
     BuildEvent.Started startedEvent = BuildEvent.started(Lists.newArrayList());
     startedEvent.configure(timeMillis, 0, 0, 0, buildId);
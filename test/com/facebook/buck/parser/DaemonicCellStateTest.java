@@ -18,6 +18,7 @@ package com.facebook.buck.parser;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.cli.BuckConfig;
 import com.facebook.buck.cli.FakeBuckConfig;
@@ -29,8 +30,10 @@ import com.facebook.buck.parser.PipelineNodeCache.Cache;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -38,6 +41,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
 import java.util.Optional;
 
 public class DaemonicCellStateTest {
@@ -113,8 +118,9 @@ public class DaemonicCellStateTest {
                 "name", "target")),
         ImmutableSet.of(),
         ImmutableMap.of(),
-        ImmutableMap.of());
-    assertEquals("One raw node should be invalidated", 1, state.invalidatePath(targetPath));
+        ImmutableMap.of(),
+        Optional.empty());
+    assertEquals("One raw node should be invalidated", 1, state.invalidatePath(targetPath, false));
     assertEquals(
         "Cell-named target should not have been removed",
         Optional.of(true),
@@ -147,12 +153,132 @@ public class DaemonicCellStateTest {
                 "name", "target")),
         ImmutableSet.of(),
         ImmutableMap.of(),
-        ImmutableMap.of());
-    assertEquals("Still only one invalidated node", 1, state.invalidatePath(targetPath));
+        ImmutableMap.of(),
+        Optional.empty());
+    assertEquals("Still only one invalidated node", 1, state.invalidatePath(targetPath, false));
     assertEquals(
         "Cell-named target should still be invalidated",
         Optional.empty(),
         cache.lookupComputedNode(cell, target));
   }
 
+  @Test
+  public void unchangedTargetsKeepTheirNodesWithFineGrainedInvalidation()
+      throws BuildTargetException, IOException, InterruptedException {
+    DaemonicCellState state = newFineGrainedState();
+    Cache<BuildTarget, Boolean> cache = state.getOrCreateCache(Boolean.class);
+    Path buildFile = cell.getRoot().resolve("path/to/BUCK");
+    BuildTarget unchanged = BuildTargetFactory.newInstance(filesystem, "//path/to:unchanged");
+    BuildTarget changed = BuildTargetFactory.newInstance(filesystem, "//path/to:changed");
+
+    putRawNodes(state, buildFile, rawNode("unchanged", "a"), rawNode("changed", "a"));
+    cache.putComputedNodeIfNotPresent(cell, unchanged, true);
+    cache.putComputedNodeIfNotPresent(cell, changed, true);
+
+    assertEquals(2, state.invalidatePath(buildFile, true));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(cell, unchanged));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(cell, changed));
+
+    putRawNodes(state, buildFile, rawNode("unchanged", "a"), rawNode("changed", "b"));
+    assertEquals(Optional.of(true), cache.lookupComputedNode(cell, unchanged));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(cell, changed));
+  }
+
+  @Test
+  public void nodesAreNotKeptWhenInvalidatedUnconditionally()
+      throws BuildTargetException, IOException, InterruptedException {
+    DaemonicCellState state = newFineGrainedState();
+    Cache<BuildTarget, Boolean> cache = state.getOrCreateCache(Boolean.class);
+    Path buildFile = cell.getRoot().resolve("path/to/BUCK");
+    BuildTarget target = BuildTargetFactory.newInstance(filesystem, "//path/to:target");
+
+    putRawNodes(state, buildFile, rawNode("target", "a"));
+    cache.putComputedNodeIfNotPresent(cell, target, true);
+    state.invalidatePath(buildFile, true);
+    state.invalidatePath(buildFile, false);
+
+    putRawNodes(state, buildFile, rawNode("target", "a"));
+    assertEquals(Optional.empty(), cache.lookupComputedNode(cell, target));
+  }
+
+  @Test
+  public void onlyBuildFilesWithMatchingGlobsAreAffectedByAddedFiles()
+      throws BuildTargetException, IOException, InterruptedException {
+    DaemonicCellState state = newFineGrainedState();
+    Path buildFile = cell.getRoot().resolve("path/to/BUCK");
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        ImmutableSet.of(rawNode("target", "a")),
+        ImmutableSet.of(),
+        ImmutableMap.of(),
+        ImmutableMap.of(),
+        Optional.of(ImmutableSetMultimap.of(Paths.get("path/to"), "**/*.java")));
+
+    assertTrue(state.isAffectedByAddingOrRemoving(buildFile, Paths.get("path/to/sub/A.java")));
+    assertFalse(state.isAffectedByAddingOrRemoving(buildFile, Paths.get("path/to/README")));
+    assertTrue(
+        "Build files that were not parsed yet are always affected",
+        state.isAffectedByAddingOrRemoving(
+            cell.getRoot().resolve("other/BUCK"),
+            Paths.get("other/README")));
+  }
+
+  @Test
+  public void buildFilesNamingADeletedFileLiterallyAreAffected()
+      throws BuildTargetException, IOException, InterruptedException {
+    DaemonicCellState state = newFineGrainedState();
+    Path buildFile = cell.getRoot().resolve("path/to/BUCK");
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        ImmutableSet.of(rawNode("target", "sub/A.java")),
+        ImmutableSet.of(),
+        ImmutableMap.of(),
+        ImmutableMap.of(),
+        Optional.of(ImmutableSetMultimap.of(Paths.get("path/to"), "*.txt")));
+
+    assertTrue(
+        "A file listed in srcs is not matched by any glob, but must still invalidate",
+        state.isAffectedByAddingOrRemoving(buildFile, Paths.get("path/to/sub/A.java")));
+    assertFalse(state.isAffectedByAddingOrRemoving(buildFile, Paths.get("path/to/sub/B.java")));
+    assertFalse(state.isAffectedByAddingOrRemoving(buildFile, Paths.get("path/to/A.java")));
+
+    // Parsing again yields the same raw node, so its computed node must not be restored.
+    assertTrue(state.isNamedByRawNodes(buildFile, Paths.get("path/to/sub/A.java")));
+    assertFalse(state.isNamedByRawNodes(buildFile, Paths.get("path/to/notes.txt")));
+  }
+
+  private DaemonicCellState newFineGrainedState() throws IOException, InterruptedException {
+    BuckConfig config = FakeBuckConfig.builder()
+        .setFilesystem(filesystem)
+        .setSections(
+            "[project]",
+            "fine_grained_invalidation = true")
+        .build();
+    cell = new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(config)
+        .build();
+    return new DaemonicCellState(cell, 1);
+  }
+
+  @SafeVarargs
+  private static void putRawNodes(
+      DaemonicCellState state,
+      Path buildFile,
+      Map<String, Object>... rawNodes) {
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        ImmutableSet.copyOf(rawNodes),
+        ImmutableSet.of(),
+        ImmutableMap.of(),
+        ImmutableMap.of(),
+        Optional.empty());
+  }
+
+  private static Map<String, Object> rawNode(String name, String src) {
+    return ImmutableMap.of(
+        "buck.base_path", "path/to",
+        "name", name,
+        "srcs", ImmutableList.of(src));
+  }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+public class DaemonicGlobCacheTest {
+
+  @Rule
+  public TemporaryPaths tempDir = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private DaemonicGlobCache cache;
+  private Path searchBase;
+
+  @Before
+  public void setUp() throws IOException, InterruptedException {
+    filesystem = new ProjectFilesystem(tempDir.getRoot().toRealPath());
+    cache = new DaemonicGlobCache(filesystem);
+    filesystem.mkdirs(Paths.get("foo/bar"));
+    filesystem.writeContentsToPath("", Paths.get("foo/a.c"));
+    filesystem.writeContentsToPath("", Paths.get("foo/b.h"));
+    filesystem.writeContentsToPath("", Paths.get("foo/.hidden.c"));
+    filesystem.writeContentsToPath("", Paths.get("foo/bar/c.c"));
+    searchBase = filesystem.resolve("foo");
+  }
+
+  @Test
+  public void matchesFilesInTheSearchBase() throws IOException {
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c")),
+        glob(ImmutableList.of("*.c"), ImmutableList.of(), false));
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c", "b.h")),
+        glob(ImmutableList.of("?.[ch]"), ImmutableList.of(), false));
+  }
+
+  @Test
+  public void recursiveWildcardMatchesAnyNumberOfDirectories() throws IOException {
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c", "bar/c.c")),
+        glob(ImmutableList.of("**/*.c"), ImmutableList.of(), false));
+  }
+
+  @Test
+  public void mayMatchPathsAndDirectoriesThatCouldHoldMatches() {
+    Path foo = Paths.get("foo");
+    assertTrue(cache.mayMatch(foo, "*.c", Paths.get("foo/new.c")));
+    assertFalse(cache.mayMatch(foo, "*.c", Paths.get("foo/new.h")));
+    assertFalse(cache.mayMatch(foo, "*.c", Paths.get("foo/bar/new.c")));
+    assertFalse(cache.mayMatch(foo, "*.c", Paths.get("other/new.c")));
+    assertTrue(cache.mayMatch(foo, "**/*.c", Paths.get("foo/bar/baz/new.c")));
+    assertFalse(cache.mayMatch(foo, "**/*.c", Paths.get("foo/README")));
+    assertTrue(cache.mayMatch(foo, "bar/*.c", Paths.get("foo/bar")));
+    assertFalse(cache.mayMatch(foo, "baz/*.c", Paths.get("foo/bar")));
+    assertTrue(cache.mayMatch(foo, "../*.c", Paths.get("foo/new.h")));
+  }
+
+  @Test
+  public void dotfilesAreOnlyMatchedWhenRequested() throws IOException {
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of(".hidden.c", "a.c")),
+        glob(ImmutableList.of("*.c"), ImmutableList.of(), true));
+  }
+
+  @Test
+  public void excludesRemoveMatches() throws IOException {
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("bar/c.c")),
+        glob(ImmutableList.of("**/*.c"), ImmutableList.of("a.c"), false));
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c")),
+        glob(ImmutableList.of("**/*.c"), ImmutableList.of("bar/**"), false));
+  }
+
+  @Test
+  public void resultsAreMemoizedUntilTheDirectoryChanges() throws IOException {
+    glob(ImmutableList.of("*.c"), ImmutableList.of(), false);
+    filesystem.writeContentsToPath("", Paths.get("foo/d.c"));
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c")),
+        glob(ImmutableList.of("*.c"), ImmutableList.of(), false));
+
+    cache.invalidatePath(Paths.get("foo/d.c"));
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c", "d.c")),
+        glob(ImmutableList.of("*.c"), ImmutableList.of(), false));
+  }
+
+  @Test
+  public void changesInUnlistedDirectoriesDoNotInvalidate() throws IOException {
+    glob(ImmutableList.of("*.c"), ImmutableList.of(), false);
+    filesystem.writeContentsToPath("", Paths.get("foo/d.c"));
+    cache.invalidatePath(Paths.get("foo/bar/e.c"));
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c")),
+        glob(ImmutableList.of("*.c"), ImmutableList.of(), false));
+  }
+
+  @Test
+  public void filesInNewDirectoriesInvalidateRecursiveGlobs() throws IOException {
+    glob(ImmutableList.of("**/*.c"), ImmutableList.of(), false);
+    filesystem.mkdirs(Paths.get("foo/new/dir"));
+    filesystem.writeContentsToPath("", Paths.get("foo/new/dir/d.c"));
+    cache.invalidatePath(Paths.get("foo/new/dir/d.c"));
+    assertEquals(
+        Optional.of(ImmutableSortedSet.of("a.c", "bar/c.c", "new/dir/d.c")),
+        glob(ImmutableList.of("**/*.c"), ImmutableList.of(), false));
+  }
+
+  @Test
+  public void globsReachingOutsideOfTheSearchBaseAreDeclined() throws IOException {
+    assertFalse(glob(ImmutableList.of("../*.c"), ImmutableList.of(), false).isPresent());
+    assertFalse(glob(ImmutableList.of("/*.c"), ImmutableList.of(), false).isPresent());
+  }
+
+  @Test
+  public void globsThroughSymlinkedDirectoriesAreDeclined() throws IOException {
+    filesystem.createSymLink(
+        filesystem.resolve("foo/link"),
+        filesystem.resolve("foo/bar"),
+        false);
+    assertFalse(glob(ImmutableList.of("**/*.c"), ImmutableList.of(), false).isPresent());
+  }
+
+  private Optional<ImmutableSortedSet<String>> glob(
+      ImmutableList<String> includes,
+      ImmutableList<String> excludes,
+      boolean includeDotfiles) throws IOException {
+    return cache.glob(searchBase, includes, excludes, includeDotfiles);
+  }
+}
@@ -46,6 +46,7 @@ import java.io.Reader;
 import java.io.StringReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Optional;
 
 public class ParserConfigTest {
 
@@ -182,6 +183,35 @@ public class ParserConfigTest {
     assertEquals(1, parserConfig.getNumParsingThreads());
   }
 
+  @Test
+  public void adaptiveParserLimitFitsParsersInHalfOfMemory() {
+    ParserConfig parserConfig = FakeBuckConfig.builder()
+        .setSections(
+            "[build]",
+            "threads = 48",
+            "[project]",
+            "parser_memory_mb = 100")
+        .build()
+        .getView(ParserConfig.class);
+
+    long gigabyte = 1024L * 1024 * 1024;
+    assertEquals(10, parserConfig.getMaxAdaptiveParsers(Optional.of(2 * gigabyte)));
+    assertEquals(48, parserConfig.getMaxAdaptiveParsers(Optional.of(64 * gigabyte)));
+    assertEquals(48, parserConfig.getMaxAdaptiveParsers(Optional.empty()));
+  }
+
+  @Test
+  public void adaptiveParserLimitCanBeConfigured() {
+    ParserConfig parserConfig = FakeBuckConfig.builder()
+        .setSections(
+            "[project]",
+            "max_parsers = 3")
+        .build()
+        .getView(ParserConfig.class);
+
+    assertEquals(3, parserConfig.getMaxAdaptiveParsers(Optional.of(1024L * 1024 * 1024)));
+  }
+
   @Test
   public void shouldGetReadOnlyDirs() throws IOException {
     String existingPath1 = "tmp/tmp-file";
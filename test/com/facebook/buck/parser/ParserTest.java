@@ -1561,6 +1561,54 @@ public class ParserTest {
     assertNotEquals(originalHash, updatedHash);
   }
 
+  @Test
+  public void deletingLiteralSourceFileInvalidatesTargetWithFineGrainedInvalidation()
+      throws Exception {
+    BuckConfig config = FakeBuckConfig.builder()
+        .setFilesystem(filesystem)
+        .setSections(
+            "[project]",
+            "fine_grained_invalidation = true")
+        .build();
+    cell = new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(config)
+        .build();
+    parser = new Parser(
+        new BroadcastEventListener(),
+        cell.getBuckConfig().getView(ParserConfig.class),
+        typeCoercerFactory,
+        coercedTypeCache,
+        new ConstructorArgMarshaller(coercedTypeCache));
+
+    tempDir.newFolder("foo");
+    Path testFooBuckFile = tempDir.newFile("foo/BUCK");
+    Files.write(
+        testFooBuckFile,
+        "java_library(name = 'lib', srcs=['Foo.java'] + glob(['*.txt']))\n".getBytes(UTF_8));
+    Path testFooJavaFile = tempDir.newFile("foo/Foo.java");
+    BuildTarget fooLibTarget = BuildTarget.builder(cellRoot, "//foo", "lib").build();
+    parser.buildTargetGraph(
+        eventBus,
+        cell,
+        false,
+        executorService,
+        ImmutableList.of(fooLibTarget));
+
+    // No glob matches the deleted file, but the rule names it.
+    Files.delete(testFooJavaFile);
+    parser.onFileSystemChange(
+        createPathEvent(Paths.get("foo/Foo.java"), StandardWatchEventKinds.ENTRY_DELETE));
+
+    thrown.expectMessage("no such file or directory");
+    parser.buildTargetGraph(
+        eventBus,
+        cell,
+        false,
+        executorService,
+        ImmutableList.of(fooLibTarget));
+  }
+
   @Test
   public void renamingSourceFileChangesHash() throws Exception {
     tempDir.newFolder("foo");
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.cli.BuckConfig;
+import com.facebook.buck.cli.FakeBuckConfig;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+public class PersistedRawNodeCacheTest {
+
+  @Rule
+  public TemporaryPaths tempDir = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Cell cell;
+  private Path buildFile;
+  private Path defs;
+
+  @Before
+  public void setUp() throws IOException, InterruptedException {
+    filesystem = new ProjectFilesystem(tempDir.getRoot().toRealPath());
+    cell = createCell("value");
+    filesystem.mkdirs(Paths.get("foo"));
+    filesystem.writeContentsToPath("genrule(name = 'rule')", Paths.get("foo/BUCK"));
+    filesystem.writeContentsToPath("", Paths.get("foo/a.c"));
+    filesystem.writeContentsToPath("DEFS = 1", Paths.get("DEFS"));
+    buildFile = filesystem.resolve("foo/BUCK");
+    defs = filesystem.resolve("DEFS");
+    // Inputs modified just before a parse are never persisted.
+    FileTime past = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+    for (String path : ImmutableList.of("foo/BUCK", "foo/a.c", "foo", "DEFS")) {
+      filesystem.setLastModifiedTime(Paths.get(path), past);
+    }
+  }
+
+  @Test
+  public void storedNodesAreReturnedWhileInputsAreUnchanged() {
+    ImmutableSet<Map<String, Object>> rawNodes = createRawNodes(true);
+    store(new PersistedRawNodeCache(false), rawNodes);
+    assertEquals(
+        Optional.of(rawNodes),
+        new PersistedRawNodeCache(false).lookup(cell, buildFile));
+  }
+
+  @Test
+  public void editingAnIncludeInvalidatesTheEntry() throws IOException {
+    store(new PersistedRawNodeCache(false), createRawNodes(true));
+    filesystem.writeContentsToPath("DEFS = 2", Paths.get("DEFS"));
+    assertFalse(new PersistedRawNodeCache(false).lookup(cell, buildFile).isPresent());
+  }
+
+  @Test
+  public void addingAFileToASearchedDirectoryInvalidatesTheEntry() throws IOException {
+    store(new PersistedRawNodeCache(false), createRawNodes(true));
+    filesystem.writeContentsToPath("", Paths.get("foo/b.c"));
+    assertFalse(new PersistedRawNodeCache(false).lookup(cell, buildFile).isPresent());
+  }
+
+  @Test
+  public void addingAFileBelowTheGlobDepthDoesNotInvalidateTheEntry() throws IOException {
+    ImmutableSet<Map<String, Object>> rawNodes = createRawNodes(true);
+    store(new PersistedRawNodeCache(false), rawNodes);
+    filesystem.mkdirs(Paths.get("foo/sub"));
+    filesystem.writeContentsToPath("", Paths.get("foo/sub/b.c"));
+    assertEquals(
+        Optional.of(rawNodes),
+        new PersistedRawNodeCache(false).lookup(cell, buildFile));
+  }
+
+  @Test
+  public void changingAReadConfigValueInvalidatesTheEntry()
+      throws IOException, InterruptedException {
+    store(new PersistedRawNodeCache(false), createRawNodes(true));
+    assertFalse(
+        new PersistedRawNodeCache(false).lookup(createCell("other"), buildFile).isPresent());
+  }
+
+  @Test
+  public void parsesWithoutGlobInformationAreNotPersisted() {
+    store(new PersistedRawNodeCache(false), createRawNodes(false));
+    assertFalse(new PersistedRawNodeCache(false).lookup(cell, buildFile).isPresent());
+  }
+
+  @Test
+  public void inputsModifiedWhileParsingAreNotPersisted() throws IOException {
+    PersistedRawNodeCache cache = new PersistedRawNodeCache(false);
+    long parseStartMillis = cache.prepareToParse(cell, buildFile);
+    filesystem.writeContentsToPath("DEFS = 2", Paths.get("DEFS"));
+    cache.store(cell, buildFile, parseStartMillis, createRawNodes(true));
+    assertFalse(new PersistedRawNodeCache(false).lookup(cell, buildFile).isPresent());
+  }
+
+  @Test
+  public void buildFilesModifiedAfterBeingHashedAreNotPersisted() throws IOException {
+    PersistedRawNodeCache cache = new PersistedRawNodeCache(false);
+    long parseStartMillis = cache.prepareToParse(cell, buildFile);
+    filesystem.writeContentsToPath("genrule(name = 'other')", Paths.get("foo/BUCK"));
+    cache.store(cell, buildFile, parseStartMillis, createRawNodes(true));
+    filesystem.writeContentsToPath("genrule(name = 'rule')", Paths.get("foo/BUCK"));
+    assertFalse(new PersistedRawNodeCache(false).lookup(cell, buildFile).isPresent());
+  }
+
+  @Test
+  public void entriesForUnusedParserSettingsArePruned() throws IOException {
+    Path parseCacheDir = filesystem.getBuckPaths().getParseCacheDir();
+    Path recentlyUsed = parseCacheDir.resolve("recent");
+    Path longUnused = parseCacheDir.resolve("old");
+    filesystem.mkdirs(recentlyUsed);
+    filesystem.mkdirs(longUnused);
+    filesystem.writeContentsToPath("", longUnused.resolve("entry"));
+    filesystem.setLastModifiedTime(
+        longUnused,
+        FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30)));
+
+    ImmutableSet<Map<String, Object>> rawNodes = createRawNodes(true);
+    store(new PersistedRawNodeCache(false), rawNodes);
+
+    assertTrue(filesystem.isDirectory(recentlyUsed));
+    assertFalse(filesystem.exists(longUnused));
+    assertEquals(
+        Optional.of(rawNodes),
+        new PersistedRawNodeCache(false).lookup(cell, buildFile));
+  }
+
+  private void store(PersistedRawNodeCache cache, ImmutableSet<Map<String, Object>> rawNodes) {
+    cache.store(cell, buildFile, cache.prepareToParse(cell, buildFile), rawNodes);
+  }
+
+  private Cell createCell(String value) throws IOException, InterruptedException {
+    BuckConfig config = FakeBuckConfig.builder()
+        .setFilesystem(filesystem)
+        .setSections("[section]", "field = " + value)
+        .build();
+    return new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(config)
+        .build();
+  }
+
+  private ImmutableSet<Map<String, Object>> createRawNodes(boolean includeGlobs) {
+    ImmutableSet.Builder<Map<String, Object>> rawNodes = ImmutableSet.builder();
+    rawNodes.add(
+        ImmutableMap.of(
+            "buck.base_path", "foo",
+            "buck.type", "genrule",
+            "name", "rule",
+            "srcs", ImmutableList.of("a.c")));
+    rawNodes.add(
+        ImmutableMap.of(
+            DaemonicParserState.INCLUDES_META_RULE,
+            ImmutableList.of(buildFile.toString(), defs.toString())));
+    rawNodes.add(
+        ImmutableMap.of(
+            DaemonicParserState.CONFIGS_META_RULE,
+            ImmutableMap.of("section", ImmutableMap.of("field", "value"))));
+    rawNodes.add(ImmutableMap.of(DaemonicParserState.ENV_META_RULE, ImmutableMap.of()));
+    if (includeGlobs) {
+      rawNodes.add(
+          ImmutableMap.of(
+              DaemonicParserState.GLOBS_META_RULE,
+              ImmutableList.of(
+                  ImmutableMap.of(
+                      "search_base", filesystem.resolve("foo").toString(),
+                      "includes", ImmutableList.of("*.c")))));
+    }
+    return rawNodes.build();
+  }
+}
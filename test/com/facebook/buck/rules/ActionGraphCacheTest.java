@@ -18,8 +18,11 @@ package com.facebook.buck.rules;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.event.ActionGraphEvent;
 import com.facebook.buck.event.BuckEvent;
@@ -29,14 +32,18 @@ import com.facebook.buck.event.listener.BroadcastEventListener;
 import com.facebook.buck.jvm.java.JavaLibraryBuilder;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.InternalFlavor;
 import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyFactory;
 import com.facebook.buck.rules.keys.RuleKeyFieldLoader;
 import com.facebook.buck.testutil.TargetGraphFactory;
 import com.facebook.buck.testutil.WatchEventsForTests;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.timing.IncrementingFakeClock;
+import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.WatchmanWatcher;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.eventbus.Subscribe;
 
 import org.hamcrest.Matchers;
@@ -50,6 +57,7 @@ import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -132,6 +140,25 @@ public class ActionGraphCacheTest {
     assertThat(resultRun1RuleKeys, Matchers.equalTo(resultRun2RuleKeys));
   }
 
+  @Test
+  public void equalTargetGraphInstanceHitsCache() {
+    ActionGraphCache cache = new ActionGraphCache(broadcastEventListener);
+
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, targetGraph, keySeed);
+    // A distinct but equal graph is found without going through the target graph hash.
+    ActionGraphAndResolver resultRun2 = cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        false,
+        TargetGraphFactory.newInstance(nodeA, nodeB),
+        keySeed);
+
+    assertEquals(1, countEventsOf(ActionGraphEvent.Cache.Hit.class));
+    assertEquals(1, countEventsOf(ActionGraphEvent.Cache.Miss.class));
+    assertSame(resultRun1, resultRun2);
+  }
+
   @Test
   public void missOnCache() {
     ActionGraphCache cache = new ActionGraphCache(broadcastEventListener);
@@ -181,6 +208,262 @@ public class ActionGraphCacheTest {
     assertThat(resultRun1RuleKeys, Matchers.equalTo(resultRun3RuleKeys));
   }
 
+  @Test
+  public void multipleEntriesAreCachedUntilEvicted() {
+    ActionGraphCache cache =
+        new ActionGraphCache(broadcastEventListener, /* maxEntries */ 2, Long.MAX_VALUE, false, 1);
+    TargetGraph subgraphB = targetGraph.getSubgraph(ImmutableSet.of(nodeB));
+    TargetNode<?, ?> nodeC = createTargetNode("C");
+    TargetGraph graphC = TargetGraphFactory.newInstance(nodeC);
+
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, targetGraph, keySeed);
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, subgraphB, keySeed);
+    assertEquals(2, cache.getNumberOfCachedEntries());
+    assertEquals(0, countEventsOf(ActionGraphEvent.Cache.Eviction.class));
+
+    // Alternating between the two cached graphs should only hit.
+    cache.getActionGraph(eventBus, CHECK_GRAPHS, false, targetGraph, keySeed);
+    cache.getActionGraph(eventBus, CHECK_GRAPHS, false, subgraphB, keySeed);
+    assertEquals(2, countEventsOf(ActionGraphEvent.Cache.Hit.class));
+    assertEquals(2, countEventsOf(ActionGraphEvent.Cache.Miss.class));
+
+    // A third graph evicts the least recently used one, which is the full target graph.
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, graphC, keySeed);
+    assertEquals(2, cache.getNumberOfCachedEntries());
+    assertEquals(1, countEventsOf(ActionGraphEvent.Cache.Eviction.class));
+
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, subgraphB, keySeed);
+    assertEquals(3, countEventsOf(ActionGraphEvent.Cache.Hit.class));
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, targetGraph, keySeed);
+    assertEquals(4, countEventsOf(ActionGraphEvent.Cache.Miss.class));
+  }
+
+  @Test
+  public void entriesAreEvictedWhenEstimatedSizeExceedsBudget() {
+    ActionGraphCache cache = new ActionGraphCache(
+        broadcastEventListener,
+        /* maxEntries */ 10,
+        /* maxEstimatedBytes */ 2 * ActionGraphCache.ESTIMATED_BYTES_PER_BUILD_RULE,
+        /* incrementalActionGraph */ false,
+        /* parallelism */ 1);
+
+    // The full graph has two rules, so it fills the whole budget.
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, targetGraph, keySeed);
+    assertEquals(1, cache.getNumberOfCachedEntries());
+
+    cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        false,
+        targetGraph.getSubgraph(ImmutableSet.of(nodeB)),
+        keySeed);
+    assertEquals(1, cache.getNumberOfCachedEntries());
+    assertEquals(1, countEventsOf(ActionGraphEvent.Cache.Eviction.class));
+  }
+
+  @Test
+  public void incrementalActionGraphReusesRulesOfUnchangedNodes() {
+    ActionGraphCache cache = new ActionGraphCache(
+        broadcastEventListener,
+        /* maxEntries */ 1,
+        Long.MAX_VALUE,
+        /* incrementalActionGraph */ true,
+        /* parallelism */ 1);
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, targetGraph, keySeed);
+    BuildRule ruleA = resultRun1.getResolver().getRule(nodeA.getBuildTarget());
+    BuildRule ruleB = resultRun1.getResolver().getRule(nodeB.getBuildTarget());
+
+    // Replace A with a fresh node, as if its build file had been re-parsed.
+    TargetGraph newTargetGraph =
+        TargetGraphFactory.newInstance(createTargetNode("A", nodeB), nodeB);
+    ActionGraphAndResolver resultRun2 =
+        cache.getActionGraph(eventBus, CHECK_GRAPHS, false, newTargetGraph, keySeed);
+    assertEquals(2, countEventsOf(ActionGraphEvent.Cache.Miss.class));
+
+    assertSame(ruleB, resultRun2.getResolver().getRule(nodeB.getBuildTarget()));
+    assertNotSame(ruleA, resultRun2.getResolver().getRule(nodeA.getBuildTarget()));
+
+    // B still holds the first resolver, which now answers from the new action graph.
+    assertTrue(resultRun1.getResolver().isForwarded());
+    assertSame(
+        resultRun2.getResolver().getRule(nodeA.getBuildTarget()),
+        resultRun1.getResolver().getRule(nodeA.getBuildTarget()));
+    assertEquals(1, cache.getNumberOfCachedEntries());
+
+    // The incrementally built graph should be identical to a freshly built one.
+    ActionGraphAndResolver freshResult =
+        ActionGraphCache.getFreshActionGraph(eventBus, newTargetGraph);
+    assertThat(
+        getRuleKeysFromBuildRules(
+            resultRun2.getActionGraph().getNodes(),
+            resultRun2.getResolver()).values(),
+        Matchers.containsInAnyOrder(
+            getRuleKeysFromBuildRules(
+                freshResult.getActionGraph().getNodes(),
+                freshResult.getResolver()).values().toArray()));
+
+    // Rules lazily added through the first resolver end up in the new action graph.
+    BuildTarget flavoredB = nodeB.getBuildTarget().withFlavors(InternalFlavor.of("lazy"));
+    BuildRule lazyRule = resultRun1.getResolver().addToIndex(new FakeBuildRule(
+        flavoredB,
+        new SourcePathResolver(new SourcePathRuleFinder(resultRun1.getResolver()))));
+    assertSame(lazyRule, resultRun2.getResolver().getRule(flavoredB));
+  }
+
+  @Test
+  public void failedIncrementalConstructionDropsTheDonorEntry() {
+    ActionGraphCache cache = new ActionGraphCache(
+        broadcastEventListener,
+        /* maxEntries */ 1,
+        Long.MAX_VALUE,
+        /* incrementalActionGraph */ true,
+        /* parallelism */ 1);
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, targetGraph, keySeed);
+
+    // B is reused, but creating the rule for the new node C fails afterwards.
+    BuildTarget targetC = BuildTargetFactory.newInstance("//foo:C");
+    TargetNode<?, ?> brokenNodeC = FakeTargetNodeBuilder
+        .newBuilder(
+            new FakeTargetNodeBuilder.FakeDescription(null) {
+              @Override
+              public <A extends FakeTargetNodeBuilder.Arg> BuildRule createBuildRule(
+                  TargetGraph targetGraph,
+                  BuildRuleParams params,
+                  BuildRuleResolver resolver,
+                  CellPathResolver cellRoots,
+                  A args) {
+                throw new HumanReadableException("Broken build file.");
+              }
+            },
+            targetC)
+        .build();
+    try {
+      cache.getActionGraph(
+          eventBus,
+          NOT_CHECK_GRAPHS,
+          false,
+          TargetGraphFactory.newInstance(nodeB, brokenNodeC),
+          keySeed);
+      fail("Expected the broken node to fail the action graph construction.");
+    } catch (HumanReadableException e) {
+      assertEquals("Broken build file.", e.getHumanReadableErrorMessage());
+    }
+    assertTrue(resultRun1.getResolver().isForwarded());
+    assertTrue(cache.isCacheEmpty());
+
+    // Going back to the original graph builds it again instead of returning the abandoned one.
+    ActionGraphAndResolver resultRun3 =
+        cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, targetGraph, keySeed);
+    assertEquals(3, countEventsOf(ActionGraphEvent.Cache.Miss.class));
+    assertEquals(2, Iterables.size(resultRun3.getActionGraph().getNodes()));
+  }
+
+  @Test
+  public void incrementalActionGraphKeepsEntriesThatShareFewRules() {
+    ActionGraphCache cache = new ActionGraphCache(
+        broadcastEventListener,
+        /* maxEntries */ 2,
+        Long.MAX_VALUE,
+        /* incrementalActionGraph */ true,
+        /* parallelism */ 1);
+    TargetNode<?, ?> nodeC = createTargetNode("C");
+    TargetNode<?, ?> nodeD = createTargetNode("D");
+    TargetGraph largeGraph = TargetGraphFactory.newInstance(nodeA, nodeB, nodeC, nodeD);
+    ActionGraphAndResolver resultRun1 =
+        cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, largeGraph, keySeed);
+
+    // Only B, one of the four rules, could be reused, so the large graph stays cached instead.
+    ActionGraphAndResolver resultRun2 = cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        false,
+        TargetGraphFactory.newInstance(nodeB, createTargetNode("E")),
+        keySeed);
+    assertFalse(resultRun1.getResolver().isForwarded());
+    assertNotSame(
+        resultRun1.getResolver().getRule(nodeB.getBuildTarget()),
+        resultRun2.getResolver().getRule(nodeB.getBuildTarget()));
+    assertEquals(2, cache.getNumberOfCachedEntries());
+
+    cache.getActionGraph(eventBus, CHECK_GRAPHS, false, largeGraph, keySeed);
+    assertEquals(1, countEventsOf(ActionGraphEvent.Cache.Hit.class));
+  }
+
+  @Test
+  public void parallelActionGraphMatchesSequentialOne() {
+    // Creates a diamond so that B and C can be transformed concurrently:
+    //      A
+    //     / \
+    //    B   C
+    //     \ /
+    //      D
+    TargetNode<?, ?> nodeD = createTargetNode("D");
+    TargetNode<?, ?> nodeC = createTargetNode("C", nodeD);
+    TargetNode<?, ?> nodeB = createTargetNode("B", nodeD);
+    TargetNode<?, ?> nodeA = createTargetNode("A", nodeB, nodeC);
+    TargetGraph diamondGraph = TargetGraphFactory.newInstance(nodeA, nodeB, nodeC, nodeD);
+
+    ActionGraphCache parallelCache = new ActionGraphCache(
+        broadcastEventListener,
+        /* maxEntries */ 1,
+        Long.MAX_VALUE,
+        /* incrementalActionGraph */ false,
+        /* parallelism */ 4);
+    ActionGraphAndResolver parallelResult =
+        parallelCache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, false, diamondGraph, keySeed);
+    ActionGraphAndResolver sequentialResult =
+        ActionGraphCache.getFreshActionGraph(eventBus, diamondGraph);
+
+    assertThat(
+        getRuleKeysFromBuildRules(
+            parallelResult.getActionGraph().getNodes(),
+            parallelResult.getResolver()).values(),
+        Matchers.containsInAnyOrder(
+            getRuleKeysFromBuildRules(
+                sequentialResult.getActionGraph().getNodes(),
+                sequentialResult.getResolver()).values().toArray()));
+  }
+
+  @Test
+  public void streamedActionGraphMatchesSequentialOne() {
+    TargetNode<?, ?> nodeD = createTargetNode("D");
+    TargetNode<?, ?> nodeC = createTargetNode("C", nodeD);
+    TargetNode<?, ?> nodeB = createTargetNode("B", nodeD);
+    TargetNode<?, ?> nodeA = createTargetNode("A", nodeB, nodeC);
+    TargetGraph diamondGraph = TargetGraphFactory.newInstance(nodeA, nodeB, nodeC, nodeD);
+
+    ActionGraphCache cache = new ActionGraphCache(broadcastEventListener);
+    ActionGraphAndResolver streamedResult;
+    try (StreamingActionGraphBuilder streamingBuilder = new StreamingActionGraphBuilder(
+        eventBus,
+        new DefaultTargetNodeToBuildRuleTransformer(),
+        /* minBatchSize */ 1)) {
+      for (TargetNode<?, ?> node : ImmutableList.of(nodeD, nodeB, nodeC, nodeA)) {
+        streamingBuilder.onTargetNode(node);
+      }
+      streamedResult = cache.getActionGraph(
+          eventBus,
+          NOT_CHECK_GRAPHS,
+          false,
+          diamondGraph,
+          keySeed,
+          Optional.of(streamingBuilder));
+    }
+    ActionGraphAndResolver sequentialResult =
+        ActionGraphCache.getFreshActionGraph(eventBus, diamondGraph);
+
+    assertThat(
+        getRuleKeysFromBuildRules(
+            streamedResult.getActionGraph().getNodes(),
+            streamedResult.getResolver()).values(),
+        Matchers.containsInAnyOrder(
+            getRuleKeysFromBuildRules(
+                sequentialResult.getActionGraph().getNodes(),
+                sequentialResult.getResolver()).values().toArray()));
+  }
+
   @Test
   public void missWithTargetGraphHashMatch() {
     ActionGraphCache cache = new ActionGraphCache(broadcastEventListener);
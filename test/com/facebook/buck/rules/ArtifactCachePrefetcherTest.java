@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ArtifactCachePrefetcherTest {
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey RULE_KEY_1 = new RuleKey("aaaa");
+  private static final RuleKey RULE_KEY_2 = new RuleKey("bbbb");
+
+  private ListeningExecutorService executorService;
+  private InMemoryArtifactCache artifactCache;
+
+  @Before
+  public void setUp() {
+    executorService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    artifactCache = new InMemoryArtifactCache();
+    artifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(RULE_KEY_1, RULE_KEY_2).build(),
+        "artifact".getBytes());
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void takenPrefetchHoldsTheDownloadedArtifact() throws Exception {
+    try (ArtifactCachePrefetcher prefetcher =
+             new ArtifactCachePrefetcher(executorService, 1, Optional.empty())) {
+      Path output = tmp.newFile();
+
+      prefetcher.prefetch(artifactCache, RULE_KEY_1, LazyPath.ofInstance(output));
+      Optional<ArtifactCachePrefetcher.Prefetch> prefetch = prefetcher.take(RULE_KEY_1);
+
+      assertTrue(prefetch.isPresent());
+      assertEquals(CacheResultType.HIT, prefetch.get().getResult().get().getType());
+      assertEquals(output, prefetch.get().getOutput().get());
+      assertArrayEquals("artifact".getBytes(), Files.readAllBytes(output));
+      assertFalse("A prefetch can only be taken once.", prefetcher.take(RULE_KEY_1).isPresent());
+    }
+  }
+
+  @Test
+  public void prefetchesThatHaveNotStartedAreDroppedWhenTaken() throws Exception {
+    CountDownLatch executorBlocked = new CountDownLatch(1);
+    executorService.submit(() -> {
+      executorBlocked.await();
+      return null;
+    });
+    try (ArtifactCachePrefetcher prefetcher =
+             new ArtifactCachePrefetcher(executorService, 1, Optional.empty())) {
+      prefetcher.prefetch(artifactCache, RULE_KEY_1, LazyPath.ofInstance(tmp.newFile()));
+      prefetcher.prefetch(artifactCache, RULE_KEY_2, LazyPath.ofInstance(tmp.newFile()));
+
+      // Only one prefetch may run at a time, so the second one is still queued.
+      assertFalse(prefetcher.take(RULE_KEY_2).isPresent());
+      executorBlocked.countDown();
+      Optional<ArtifactCachePrefetcher.Prefetch> prefetch = prefetcher.take(RULE_KEY_1);
+      assertTrue(prefetch.isPresent());
+      assertEquals(CacheResultType.HIT, prefetch.get().getResult().get().getType());
+    }
+  }
+
+  @Test
+  public void prefetchingStopsOnceTheSizeLimitIsReached() throws Exception {
+    try (ArtifactCachePrefetcher prefetcher =
+             new ArtifactCachePrefetcher(executorService, 1, Optional.of(1L))) {
+      prefetcher.prefetch(artifactCache, RULE_KEY_1, LazyPath.ofInstance(tmp.newFile()));
+      prefetcher.prefetch(artifactCache, RULE_KEY_2, LazyPath.ofInstance(tmp.newFile()));
+
+      Optional<ArtifactCachePrefetcher.Prefetch> prefetch = prefetcher.take(RULE_KEY_1);
+      assertTrue(prefetch.isPresent());
+      assertEquals(CacheResultType.HIT, prefetch.get().getResult().get().getType());
+      assertFalse(prefetcher.take(RULE_KEY_2).isPresent());
+    }
+  }
+
+  @Test
+  public void closeDeletesArtifactsThatWereNotTaken() throws Exception {
+    ArtifactCachePrefetcher prefetcher =
+        new ArtifactCachePrefetcher(executorService, 1, Optional.empty());
+    Path output = tmp.newFile();
+
+    prefetcher.prefetch(artifactCache, RULE_KEY_1, LazyPath.ofInstance(output));
+    prefetcher.close();
+    executorService.shutdown();
+    executorService.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertFalse(Files.exists(output));
+  }
+}
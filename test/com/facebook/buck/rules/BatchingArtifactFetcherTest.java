@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+public class BatchingArtifactFetcherTest {
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ListeningExecutorService executorService;
+  private CountDownLatch executorBlocked;
+
+  @Before
+  public void setUp() {
+    executorService = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+    // Keep the only thread busy so that all fetches are queued before any of them runs.
+    executorBlocked = new CountDownLatch(1);
+    executorService.submit(() -> {
+      executorBlocked.await();
+      return null;
+    });
+  }
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void queuedFetchesAreCombinedUpToTheMaximumBatchSize() throws Exception {
+    RecordingArtifactCache artifactCache = new RecordingArtifactCache();
+    RuleKey hitKey = new RuleKey("aaaa");
+    artifactCache.store(ArtifactInfo.builder().addRuleKeys(hitKey).build(), new byte[0]);
+    BatchingArtifactFetcher fetcher = new BatchingArtifactFetcher(executorService, 2);
+
+    List<ListenableFuture<CacheResult>> results = new ArrayList<>();
+    results.add(fetcher.fetch(artifactCache, hitKey, LazyPath.ofInstance(tmp.newFile())));
+    results.add(
+        fetcher.fetch(artifactCache, new RuleKey("bbbb"), LazyPath.ofInstance(tmp.newFile())));
+    results.add(
+        fetcher.fetch(artifactCache, new RuleKey("cccc"), LazyPath.ofInstance(tmp.newFile())));
+    executorBlocked.countDown();
+
+    assertEquals(CacheResultType.HIT, results.get(0).get().getType());
+    assertEquals(CacheResultType.MISS, results.get(1).get().getType());
+    assertEquals(CacheResultType.MISS, results.get(2).get().getType());
+    assertEquals(ImmutableList.of(2), artifactCache.multiFetchSizes);
+    assertEquals(1, artifactCache.singleFetches);
+  }
+
+  @Test
+  public void fetchesOfTheSameRuleKeyAreNotCombined() throws Exception {
+    RecordingArtifactCache artifactCache = new RecordingArtifactCache();
+    RuleKey ruleKey = new RuleKey("aaaa");
+    BatchingArtifactFetcher fetcher = new BatchingArtifactFetcher(executorService, 8);
+
+    ListenableFuture<CacheResult> first =
+        fetcher.fetch(artifactCache, ruleKey, LazyPath.ofInstance(tmp.newFile()));
+    ListenableFuture<CacheResult> second =
+        fetcher.fetch(artifactCache, ruleKey, LazyPath.ofInstance(tmp.newFile()));
+    executorBlocked.countDown();
+
+    assertEquals(CacheResultType.MISS, first.get().getType());
+    assertEquals(CacheResultType.MISS, second.get().getType());
+    assertEquals(ImmutableList.of(), artifactCache.multiFetchSizes);
+    assertEquals(2, artifactCache.singleFetches);
+  }
+
+  private static class RecordingArtifactCache extends InMemoryArtifactCache {
+    private final List<Integer> multiFetchSizes = new ArrayList<>();
+    private int singleFetches = 0;
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+      singleFetches++;
+      return super.fetch(ruleKey, output);
+    }
+
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+      multiFetchSizes.add(outputs.size());
+      ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+      for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+        results.put(entry.getKey(), super.fetch(entry.getKey(), entry.getValue()));
+      }
+      return results.build();
+    }
+  }
+}
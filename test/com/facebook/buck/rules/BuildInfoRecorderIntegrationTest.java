@@ -28,6 +28,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.timing.DefaultClock;
+import com.facebook.buck.zip.ZipCompressionLevel;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -53,7 +54,8 @@ public class BuildInfoRecorderIntegrationTest {
             @Override
             public void createZip(
                 Collection<Path> pathsToIncludeInZip,
-                Path out) throws IOException {
+                Path out,
+                int compressionLevel) throws IOException {
               // For this test, nothing really cares about the content, so just write out the name.
               writeBytesToPath(out.toString().getBytes(), out);
             }
@@ -64,7 +66,8 @@ public class BuildInfoRecorderIntegrationTest {
     buildInfoRecorder.performUploadToArtifactCache(
         ImmutableSet.of(new RuleKey(RULE_KEY)),
         artifactCache,
-        new DefaultBuckEventBus(new DefaultClock(), new BuildId()));
+        new DefaultBuckEventBus(new DefaultClock(), new BuildId()),
+        ZipCompressionLevel.DEFAULT_COMPRESSION_LEVEL.getValue());
     assertTrue(
         cacheDir.resolve(
             DirArtifactCacheTestUtil
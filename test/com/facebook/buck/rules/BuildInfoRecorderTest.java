@@ -26,7 +26,9 @@ import static org.junit.Assert.assertTrue;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
+import com.facebook.buck.event.ArtifactCompressionEvent;
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.event.DefaultBuckEventBus;
 import com.facebook.buck.io.BorrowablePath;
 import com.facebook.buck.io.MorePathsForTests;
@@ -43,11 +45,15 @@ import com.facebook.buck.timing.FakeClock;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.cache.StackedFileHashCache;
+import com.facebook.buck.zip.ZipCompressionLevel;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
@@ -57,9 +63,17 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class BuildInfoRecorderTest {
 
@@ -230,10 +244,68 @@ public class BuildInfoRecorderTest {
           }
         };
 
-    buildInfoRecorder.performUploadToArtifactCache(ImmutableSet.of(new RuleKey("aa")), cache, bus);
+    buildInfoRecorder.performUploadToArtifactCache(
+        ImmutableSet.of(new RuleKey("aa")),
+        cache,
+        bus,
+        ZipCompressionLevel.DEFAULT_COMPRESSION_LEVEL.getValue());
     assertTrue(stored.get());
   }
 
+  @Test
+  public void testPerformUploadToArtifactCacheWithoutCompression() throws IOException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    BuildInfoRecorder buildInfoRecorder = createBuildInfoRecorder(filesystem);
+    BuckEventBus bus = BuckEventBusFactory.newInstance(new FakeClock(0));
+    List<ArtifactCompressionEvent.Finished> compressionEvents = new ArrayList<>();
+    bus.register(new Object() {
+      @Subscribe
+      public void onCompressionFinished(ArtifactCompressionEvent.Finished event) {
+        compressionEvents.add(event);
+      }
+    });
+
+    byte[] contents = "contents".getBytes();
+    Path file = Paths.get("file");
+    filesystem.writeBytesToPath(contents, file);
+    buildInfoRecorder.recordArtifact(file);
+
+    AtomicLong storedSize = new AtomicLong();
+    ArtifactCache cache =
+        new NoopArtifactCache() {
+          @Override
+          public boolean isStoreSupported() {
+            return true;
+          }
+          @Override
+          public ListenableFuture<Void> store(
+              ArtifactInfo info,
+              BorrowablePath output) {
+            try (ZipFile zip = new ZipFile(output.getPath().toFile())) {
+              ZipEntry entry = zip.getEntry("file");
+              assertEquals(ZipEntry.STORED, entry.getMethod());
+              try (InputStream input = zip.getInputStream(entry)) {
+                assertArrayEquals(contents, ByteStreams.toByteArray(input));
+              }
+              storedSize.set(Files.size(output.getPath()));
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+            return Futures.immediateFuture(null);
+          }
+        };
+
+    buildInfoRecorder.performUploadToArtifactCache(
+        ImmutableSet.of(new RuleKey("aa")),
+        cache,
+        bus,
+        ZipCompressionLevel.MIN_COMPRESSION_LEVEL.getValue());
+
+    ArtifactCompressionEvent.Finished finished = Iterables.getOnlyElement(compressionEvents);
+    assertEquals(Optional.of((long) contents.length), finished.getUncompressedSizeBytes());
+    assertEquals(Optional.of(storedSize.get()), finished.getCompressedSizeBytes());
+  }
+
   @Test
   public void testGetOutputSize() throws IOException {
     FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
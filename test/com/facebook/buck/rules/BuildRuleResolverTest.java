@@ -21,12 +21,15 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import com.facebook.buck.jvm.java.JavaBinary;
 import com.facebook.buck.jvm.java.JavaLibraryBuilder;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.testutil.TargetGraphFactory;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.collect.ImmutableSortedSet;
@@ -36,6 +39,14 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class BuildRuleResolverTest {
 
   @Rule
@@ -147,4 +158,71 @@ public class BuildRuleResolverTest {
     resolver.getRuleWithType(BuildTargetFactory.newInstance("//foo:bar"), JavaBinary.class);
   }
 
+  @Test
+  public void computeIfAbsentCreatesRuleOnceWhenCalledConcurrently() throws Exception {
+    final BuildRuleResolver resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    final SourcePathResolver pathResolver =
+        new SourcePathResolver(new SourcePathRuleFinder(resolver));
+    final BuildTarget target = BuildTargetFactory.newInstance("//foo:shared");
+    final AtomicInteger createdRules = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<FakeBuildRule>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(executor.submit(() -> {
+          start.await();
+          return resolver.computeIfAbsent(
+              target,
+              FakeBuildRule.class,
+              ruleTarget -> {
+                createdRules.incrementAndGet();
+                return new FakeBuildRule(ruleTarget, pathResolver);
+              });
+        }));
+      }
+      start.countDown();
+
+      List<FakeBuildRule> rules = new ArrayList<>();
+      for (Future<FakeBuildRule> future : futures) {
+        rules.add(future.get());
+      }
+      FakeBuildRule rule = resolver.getRuleWithType(target, FakeBuildRule.class);
+      for (FakeBuildRule returnedRule : rules) {
+        assertSame(rule, returnedRule);
+      }
+      assertEquals(1, createdRules.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void computeIfAbsentThrowingDoesNotIndexRuleWhenCreatorFails() throws Exception {
+    BuildRuleResolver resolver =
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer());
+    SourcePathResolver pathResolver = new SourcePathResolver(new SourcePathRuleFinder(resolver));
+    BuildTarget target = BuildTargetFactory.newInstance("//foo:shared");
+    BuildTarget missing = BuildTargetFactory.newInstance("//foo:missing");
+
+    try {
+      resolver.computeIfAbsentThrowing(
+          target,
+          ruleTarget -> {
+            throw new NoSuchBuildTargetException(missing);
+          });
+      fail("Expected the creator's exception to propagate.");
+    } catch (NoSuchBuildTargetException e) {
+      assertThat(e.getMessage(), Matchers.containsString("//foo:missing"));
+    }
+    assertFalse(resolver.getRuleOptional(target).isPresent());
+
+    BuildRule rule = resolver.computeIfAbsentThrowing(
+        target,
+        ruleTarget -> new FakeBuildRule(ruleTarget, pathResolver));
+    assertSame(rule, resolver.getRule(target));
+  }
+
 }
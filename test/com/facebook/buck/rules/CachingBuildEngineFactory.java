@@ -40,6 +40,9 @@ public class CachingBuildEngineFactory {
   private CachingBuildEngine.DepFiles depFiles = CachingBuildEngine.DepFiles.ENABLED;
   private long maxDepFileCacheEntries = 256L;
   private Optional<Long> artifactCacheSizeLimit = Optional.empty();
+  private int artifactCacheFetchBatchSize = 1;
+  private int artifactCachePrefetchConcurrency = 0;
+  private boolean artifactCacheStreamingFetch = false;
   private long inputFileSizeLimit = Long.MAX_VALUE;
   private Optional<RuleKeyFactories> ruleKeyFactories = Optional.empty();
   private CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -76,6 +79,24 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setArtifactCacheFetchBatchSize(
+      int artifactCacheFetchBatchSize) {
+    this.artifactCacheFetchBatchSize = artifactCacheFetchBatchSize;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setArtifactCachePrefetchConcurrency(
+      int artifactCachePrefetchConcurrency) {
+    this.artifactCachePrefetchConcurrency = artifactCachePrefetchConcurrency;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setArtifactCacheStreamingFetch(
+      boolean artifactCacheStreamingFetch) {
+    this.artifactCacheStreamingFetch = artifactCacheStreamingFetch;
+    return this;
+  }
+
   public CachingBuildEngineFactory setCachingBuildEngineDelegate(
       CachingBuildEngineDelegate cachingBuildEngineDelegate) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
@@ -128,6 +149,10 @@ public class CachingBuildEngineFactory {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        artifactCacheFetchBatchSize,
+        artifactCachePrefetchConcurrency,
+        /* artifactCachePrefetchSizeLimit */ Optional.empty(),
+        artifactCacheStreamingFetch,
         buildRuleResolver,
         resourceAwareSchedulingInfo,
         RuleKeyFactories.of(
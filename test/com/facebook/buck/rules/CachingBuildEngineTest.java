@@ -26,11 +26,13 @@ import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.ArtifactPayloadConsumer;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
@@ -477,6 +479,99 @@ public class CachingBuildEngineTest {
           filesystem.exists(Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar")));
     }
 
+    @Test
+    public void streamedArtifactIsMovedIntoPlaceOnceVerified() throws Exception {
+      ProjectFilesystem realFilesystem = new ProjectFilesystem(tmp.getRoot());
+      BuildRule buildRule = createRule(
+          realFilesystem,
+          resolver,
+          pathResolver,
+          /* deps */ ImmutableSet.of(),
+          /* buildSteps */ ImmutableList.of(),
+          /* postBuildSteps */ ImmutableList.of(),
+          /* pathToOutputFile */ null);
+      ArtifactCache artifactCache =
+          new FakeArtifactCacheThatWritesAZipFile(createZipEntries(buildRule, realFilesystem));
+
+      BuildResult result = buildWithStreamingFetch(buildRule, artifactCache);
+
+      assertEquals(BuildRuleSuccessType.FETCHED_FROM_CACHE, result.getSuccess());
+      assertTrue(realFilesystem.exists(Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar")));
+      assertTrue(
+          "The staging directory should have been deleted.",
+          realFilesystem.getDirectoryContents(realFilesystem.getBuckPaths().getTmpDir()).isEmpty());
+    }
+
+    @Test
+    public void corruptStreamedArtifactIsNotMovedIntoPlace() throws Exception {
+      ProjectFilesystem realFilesystem = new ProjectFilesystem(tmp.getRoot());
+      BuildRule buildRule = createRule(
+          realFilesystem,
+          resolver,
+          pathResolver,
+          /* deps */ ImmutableSet.of(),
+          /* buildSteps */ ImmutableList.of(),
+          /* postBuildSteps */ ImmutableList.of(),
+          /* pathToOutputFile */ null);
+      ArtifactCache artifactCache =
+          new FakeArtifactCacheThatWritesAZipFile(createZipEntries(buildRule, realFilesystem)) {
+            @Override
+            public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactPayloadConsumer consumer) {
+              // Hand out the whole payload, then fail to verify it like a corrupt download.
+              try {
+                Path zip = tmp.newFile("artifact.zip");
+                fetch(ruleKey, LazyPath.ofInstance(zip));
+                try (InputStream payload = Files.newInputStream(zip)) {
+                  consumer.consume(payload);
+                }
+              } catch (IOException e) {
+                throw new RuntimeException(e);
+              }
+              return CacheResult.error("dir", "Artifact hash mismatch");
+            }
+
+            @Override
+            public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+              return Futures.immediateFuture(null);
+            }
+
+            @Override
+            public boolean isStoreSupported() {
+              return false;
+            }
+          };
+
+      BuildResult result = buildWithStreamingFetch(buildRule, artifactCache);
+
+      assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      assertFalse(
+          "Nothing from the corrupt artifact should be extracted.",
+          realFilesystem.exists(Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar")));
+      assertTrue(
+          realFilesystem.getDirectoryContents(realFilesystem.getBuckPaths().getTmpDir()).isEmpty());
+    }
+
+    private Map<Path, String> createZipEntries(BuildRule buildRule, ProjectFilesystem filesystem)
+        throws IOException {
+      return ImmutableMap.of(
+          Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar"),
+          "Imagine this is the contents of a valid JAR file.",
+          BuildInfo.getPathToMetadataDirectory(buildRule.getBuildTarget(), filesystem)
+              .resolve(BuildInfo.MetadataKey.RECORDED_PATHS),
+          ObjectMappers.WRITER.writeValueAsString(ImmutableList.of()));
+    }
+
+    private BuildResult buildWithStreamingFetch(BuildRule buildRule, ArtifactCache artifactCache)
+        throws Exception {
+      BuildEngineBuildContext buildContext = this.buildContext.withArtifactCache(artifactCache);
+      CachingBuildEngine cachingBuildEngine = cachingBuildEngineFactory()
+          .setArtifactCacheStreamingFetch(true)
+          .build();
+      return cachingBuildEngine
+          .build(buildContext, TestExecutionContext.newInstance(), buildRule)
+          .get();
+    }
+
     @Test
     public void testArtifactFetchedFromCacheStillRunsPostBuildSteps()
         throws InterruptedException, ExecutionException, IOException {
@@ -34,6 +34,10 @@ public class FakeTargetNodeBuilder extends AbstractNodeBuilder<
     return new FakeTargetNodeBuilder(new FakeDescription(rule), rule.getBuildTarget());
   }
 
+  public static FakeTargetNodeBuilder newBuilder(FakeDescription description, BuildTarget target) {
+    return new FakeTargetNodeBuilder(description, target);
+  }
+
   public static TargetNode<Arg, FakeDescription> build(BuildRule rule) {
     return newBuilder(rule).build();
   }
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.InternalFlavor;
+import com.facebook.buck.parser.NoSuchBuildTargetException;
+import com.facebook.buck.testutil.TargetGraphFactory;
+import com.google.common.collect.Iterables;
+
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StreamingActionGraphBuilderTest {
+
+  private BuckEventBus eventBus;
+  private TargetNode<?, ?> nodeA;
+  private TargetNode<?, ?> nodeB;
+  private TargetGraph targetGraph;
+
+  @Before
+  public void setUp() {
+    eventBus = BuckEventBusFactory.newInstance();
+    nodeB = createTargetNode("B");
+    nodeA = createTargetNode("A", nodeB);
+    targetGraph = TargetGraphFactory.newInstance(nodeA, nodeB);
+  }
+
+  @Test
+  public void streamedRulesAreAddedToTheResolver() {
+    BuildRuleResolver resolver = newResolver(targetGraph);
+    try (StreamingActionGraphBuilder builder = newBuilder(/* minBatchSize */ 1)) {
+      builder.onTargetNode(nodeB);
+      builder.onTargetNode(nodeA);
+      assertEquals(2, builder.populateResolver(targetGraph, resolver));
+    }
+
+    BuildRule ruleA = resolver.getRule(nodeA.getBuildTarget());
+    BuildRule ruleB = resolver.getRule(nodeB.getBuildTarget());
+    assertThat(ruleA.getBuildDeps(), Matchers.contains(ruleB));
+  }
+
+  @Test
+  public void nodesNotFillingABatchAreLeftToTheCaller() {
+    BuildRuleResolver resolver = newResolver(targetGraph);
+    try (StreamingActionGraphBuilder builder = newBuilder(/* minBatchSize */ 2)) {
+      builder.onTargetNode(nodeB);
+      assertEquals(0, builder.populateResolver(targetGraph, resolver));
+    }
+    assertFalse(resolver.getRuleOptional(nodeB.getBuildTarget()).isPresent());
+  }
+
+  @Test
+  public void rulesAreDiscardedIfTheFinalGraphHasDifferentNodes() {
+    // Replace A with a fresh node, as if its build file had been re-parsed.
+    TargetGraph newTargetGraph =
+        TargetGraphFactory.newInstance(createTargetNode("A", nodeB), nodeB);
+    BuildRuleResolver resolver = newResolver(newTargetGraph);
+    try (StreamingActionGraphBuilder builder = newBuilder(/* minBatchSize */ 1)) {
+      builder.onTargetNode(nodeB);
+      builder.onTargetNode(nodeA);
+      assertEquals(0, builder.populateResolver(newTargetGraph, resolver));
+    }
+    assertEquals(0, Iterables.size(resolver.getBuildRules()));
+  }
+
+  @Test
+  public void streamingStopsIfNodesAreNotReportedInPostOrder() {
+    BuildRuleResolver resolver = newResolver(targetGraph);
+    try (StreamingActionGraphBuilder builder = newBuilder(/* minBatchSize */ 1)) {
+      builder.onTargetNode(nodeA);
+      builder.onTargetNode(nodeB);
+      assertEquals(0, builder.populateResolver(targetGraph, resolver));
+    }
+    assertEquals(0, Iterables.size(resolver.getBuildRules()));
+  }
+
+  @Test
+  public void batchResolversForwardToTheFinalResolver() {
+    List<BuildRuleResolver> batchResolvers = new ArrayList<>();
+    TargetNodeToBuildRuleTransformer transformer = new TargetNodeToBuildRuleTransformer() {
+      @Override
+      public <T, U extends Description<T>> BuildRule transform(
+          TargetGraph targetGraph,
+          BuildRuleResolver ruleResolver,
+          TargetNode<T, U> targetNode) throws NoSuchBuildTargetException {
+        batchResolvers.add(ruleResolver);
+        return new DefaultTargetNodeToBuildRuleTransformer()
+            .transform(targetGraph, ruleResolver, targetNode);
+      }
+    };
+    BuildRuleResolver resolver = newResolver(targetGraph);
+    try (StreamingActionGraphBuilder builder =
+             new StreamingActionGraphBuilder(eventBus, transformer, /* minBatchSize */ 1)) {
+      builder.onTargetNode(nodeB);
+      builder.onTargetNode(nodeA);
+      assertEquals(2, builder.populateResolver(targetGraph, resolver));
+    }
+
+    assertEquals(2, batchResolvers.size());
+    BuildRule ruleA = resolver.getRule(nodeA.getBuildTarget());
+    for (BuildRuleResolver batchResolver : batchResolvers) {
+      assertTrue(batchResolver.isForwarded());
+      assertSame(ruleA, batchResolver.getRule(nodeA.getBuildTarget()));
+    }
+  }
+
+  @Test
+  public void unflavoredNodesOfFlavoredTargetsAreIndexed() {
+    TargetNode<?, ?> unflavoredNode = createTargetNode("C");
+    BuildTarget flavoredTarget =
+        unflavoredNode.getBuildTarget().withFlavors(InternalFlavor.of("flavor"));
+    TargetNode<?, ?> flavoredNode = JavaLibraryBuilder.createBuilder(flavoredTarget).build();
+    TargetNodeToBuildRuleTransformer transformer = new TargetNodeToBuildRuleTransformer() {
+      @Override
+      public <T, U extends Description<T>> BuildRule transform(
+          TargetGraph targetGraph,
+          BuildRuleResolver ruleResolver,
+          TargetNode<T, U> targetNode) throws NoSuchBuildTargetException {
+        // Fails for the flavored node unless its unflavored node is in the snapshot's index.
+        targetGraph.get(BuildTarget.of(targetNode.getBuildTarget().getUnflavoredBuildTarget()));
+        return new DefaultTargetNodeToBuildRuleTransformer()
+            .transform(targetGraph, ruleResolver, targetNode);
+      }
+    };
+    TargetGraph graph = TargetGraphFactory.newInstance(flavoredNode, unflavoredNode);
+    BuildRuleResolver resolver = newResolver(graph);
+    try (StreamingActionGraphBuilder builder =
+             new StreamingActionGraphBuilder(eventBus, transformer, /* minBatchSize */ 1)) {
+      builder.onUnflavoredTargetNode(unflavoredNode);
+      builder.onTargetNode(flavoredNode);
+      assertEquals(1, builder.populateResolver(graph, resolver));
+    }
+    assertTrue(resolver.getRuleOptional(flavoredTarget).isPresent());
+  }
+
+  private StreamingActionGraphBuilder newBuilder(int minBatchSize) {
+    return new StreamingActionGraphBuilder(
+        eventBus,
+        new DefaultTargetNodeToBuildRuleTransformer(),
+        minBatchSize);
+  }
+
+  private BuildRuleResolver newResolver(TargetGraph graph) {
+    return new BuildRuleResolver(graph, new DefaultTargetNodeToBuildRuleTransformer(), eventBus);
+  }
+
+  private static TargetNode<?, ?> createTargetNode(String name, TargetNode<?, ?>... deps) {
+    BuildTarget buildTarget = BuildTargetFactory.newInstance("//foo:" + name);
+    JavaLibraryBuilder targetNodeBuilder = JavaLibraryBuilder.createBuilder(buildTarget);
+    for (TargetNode<?, ?> dep : deps) {
+      targetNodeBuilder.addDep(dep.getBuildTarget());
+    }
+    return targetNodeBuilder.build();
+  }
+}
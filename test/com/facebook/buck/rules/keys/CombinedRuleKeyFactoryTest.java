@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeDepFileBuildRule;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKeyAppendable;
+import com.facebook.buck.rules.RuleKeyObjectSink;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+public class CombinedRuleKeyFactoryTest {
+
+  private SourcePathResolver pathResolver;
+  private SourcePathRuleFinder ruleFinder;
+  private FakeFileHashCache hashCache;
+  private SourcePath usedSource;
+  private SourcePath unusedSource;
+  private SourcePath uncoveredSource;
+  private FakeDepFileBuildRule rule;
+
+  @Before
+  public void setUp() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    ruleFinder = new SourcePathRuleFinder(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    pathResolver = new SourcePathResolver(ruleFinder);
+    usedSource = new PathSourcePath(filesystem, Paths.get("used.h"));
+    unusedSource = new PathSourcePath(filesystem, Paths.get("unused.h"));
+    uncoveredSource = new PathSourcePath(filesystem, Paths.get("source.cpp"));
+    hashCache = new FakeFileHashCache(
+        ImmutableMap.of(
+            pathResolver.getAbsolutePath(usedSource), HashCode.fromInt(1),
+            pathResolver.getAbsolutePath(unusedSource), HashCode.fromInt(2),
+            pathResolver.getAbsolutePath(uncoveredSource), HashCode.fromInt(3)),
+        true,
+        ImmutableMap.of());
+    rule = new FakeDepFileBuildRule("//:rule") {
+      @AddToRuleKey
+      final ImmutableList<SourcePath> headers = ImmutableList.of(usedSource, unusedSource);
+      @AddToRuleKey
+      final SourcePath source = uncoveredSource;
+      @AddToRuleKey
+      final Appendable flags = new Appendable("-O2");
+    };
+    rule.setCoveredByDepFilePredicate(ImmutableSet.of(usedSource, unusedSource)::contains);
+  }
+
+  @Test
+  public void combinedKeysMatchTheKeysOfTheIndividualFactories() throws Exception {
+    ImmutableList<DependencyFileEntry> depFileEntries =
+        ImmutableList.of(DependencyFileEntry.fromSourcePath(usedSource, pathResolver));
+
+    RuleKeyFactories separate = newRuleKeyFactories();
+    CombinedRuleKeyFactory.Keys combined = newRuleKeyFactories().getCombinedRuleKeyFactory()
+        .build(rule, true, Optional.of(depFileEntries), true);
+
+    assertEquals(
+        Optional.of(separate.getInputBasedRuleKeyFactory().build(rule)),
+        combined.getInputBasedRuleKey());
+    assertEquals(
+        Optional.of(separate.getDepFileRuleKeyFactory().build(rule, depFileEntries)),
+        combined.getDepFileRuleKey());
+    assertEquals(
+        Optional.of(separate.getDepFileRuleKeyFactory().buildManifestKey(rule)),
+        combined.getManifestKey());
+  }
+
+  @Test
+  public void onlyRequestedKeysAreCalculated() throws Exception {
+    CombinedRuleKeyFactory.Keys keys = newRuleKeyFactories().getCombinedRuleKeyFactory()
+        .build(rule, false, Optional.empty(), true);
+
+    assertFalse(keys.getInputBasedRuleKey().isPresent());
+    assertFalse(keys.getDepFileRuleKey().isPresent());
+    assertEquals(
+        Optional.of(newRuleKeyFactories().getDepFileRuleKeyFactory().buildManifestKey(rule)),
+        keys.getManifestKey());
+  }
+
+  @Test
+  public void failureOfOneKeyDoesNotAffectTheOthers() throws Exception {
+    // The dep file refers to an input the rule no longer has, so there is no dep-file key.
+    ImmutableList<DependencyFileEntry> depFileEntries = ImmutableList.of(
+        DependencyFileEntry.fromSourcePath(
+            new PathSourcePath(new FakeProjectFilesystem(), Paths.get("removed.h")),
+            pathResolver));
+
+    RuleKeyFactories separate = newRuleKeyFactories();
+    CombinedRuleKeyFactory.Keys combined = newRuleKeyFactories().getCombinedRuleKeyFactory()
+        .build(rule, true, Optional.of(depFileEntries), true);
+
+    try {
+      combined.getDepFileRuleKey();
+      fail("Expected the dep-file key to fail.");
+    } catch (NoSuchFileException e) {
+      // Expected.
+    }
+    assertEquals(
+        Optional.of(separate.getInputBasedRuleKeyFactory().build(rule)),
+        combined.getInputBasedRuleKey());
+    assertEquals(
+        Optional.of(separate.getDepFileRuleKeyFactory().buildManifestKey(rule)),
+        combined.getManifestKey());
+  }
+
+  private RuleKeyFactories newRuleKeyFactories() {
+    RuleKeyFieldLoader fieldLoader = new RuleKeyFieldLoader(0);
+    return RuleKeyFactories.of(
+        new DefaultRuleKeyFactory(fieldLoader, hashCache, pathResolver, ruleFinder),
+        new InputBasedRuleKeyFactory(
+            fieldLoader,
+            hashCache,
+            pathResolver,
+            ruleFinder,
+            Long.MAX_VALUE),
+        new DefaultDependencyFileRuleKeyFactory(fieldLoader, hashCache, pathResolver, ruleFinder));
+  }
+
+  private static class Appendable implements RuleKeyAppendable {
+    private final String flag;
+
+    private Appendable(String flag) {
+      this.flag = flag;
+    }
+
+    @Override
+    public void appendToRuleKey(RuleKeyObjectSink sink) {
+      sink.setReflectively("flag", flag);
+    }
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+public class FieldValueExtractorTest {
+
+  @SuppressWarnings("unused")
+  private static class Fields {
+    private static final String STATIC_VALUE = "static";
+
+    private final String value = "value";
+    private final int primitive = 42;
+    private final Object nothing = null;
+  }
+
+  @Test
+  public void readsPrivateFields() throws Exception {
+    assertEquals("value", extractor("value").getValue(new Fields()));
+    assertNull(extractor("nothing").getValue(new Fields()));
+  }
+
+  @Test
+  public void readsPrimitiveFieldsBoxed() throws Exception {
+    assertEquals(42, extractor("primitive").getValue(new Fields()));
+  }
+
+  @Test
+  public void readsStaticFields() throws Exception {
+    assertEquals("static", extractor("STATIC_VALUE").getValue(new Fields()));
+  }
+
+  @Test
+  public void describesTheField() throws Exception {
+    FieldValueExtractor extractor = extractor("value");
+    assertEquals("value", extractor.getName());
+    assertEquals(Fields.class + ".value", extractor.getFullyQualifiedName());
+  }
+
+  private static FieldValueExtractor extractor(String name) throws NoSuchFieldException {
+    Field field = Fields.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return new FieldValueExtractor(field);
+  }
+}
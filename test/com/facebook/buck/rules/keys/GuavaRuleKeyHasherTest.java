@@ -16,9 +16,19 @@
 
 package com.facebook.buck.rules.keys;
 
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.sha1.Sha1HashCode;
+import com.google.common.base.Strings;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
 @SuppressWarnings("PMD.TestClassWithoutTestCases")
 public class GuavaRuleKeyHasherTest extends AbstractRuleKeyHasherTest<HashCode> {
 
@@ -26,4 +36,72 @@ public class GuavaRuleKeyHasherTest extends AbstractRuleKeyHasherTest<HashCode>
   protected GuavaRuleKeyHasher newHasher() {
     return new GuavaRuleKeyHasher(Hashing.sha1().newHasher());
   }
+
+  @Test
+  public void stringsHashTheirUtf8Bytes() {
+    String[] strings = {
+        "",
+        "ascii",
+        "héllo wörld ☃",
+        "😀 pair",
+        "unpaired \ud800 high",
+        "unpaired \udc00 low",
+        "trailing \ud800",
+        Strings.repeat("long", 1000),
+        Strings.repeat("☃", 1000),
+    };
+    for (String string : strings) {
+      Hasher expected = Hashing.sha1().newHasher();
+      putBytes(expected, RuleKeyHasherTypes.STRING, string.getBytes(StandardCharsets.UTF_8));
+      assertEquals(string, expected.hash(), newHasher().putString(string).hash());
+    }
+  }
+
+  @Test
+  public void bufferedWritesMatchWritingToTheHasherDirectly() {
+    RuleKey ruleKey = new RuleKey("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+    Sha1HashCode sha1 = Sha1HashCode.of("b67816b13867c32ac52ca002b39af204cdfaa5fd");
+
+    Hasher expected = Hashing.sha1().newHasher();
+    GuavaRuleKeyHasher actual = newHasher();
+    // Enough writes to cross the buffer boundary several times.
+    for (int i = 0; i < 200; i++) {
+      expected.putInt(i).putByte(RuleKeyHasherTypes.INTEGER);
+      actual.putNumber(i);
+      expected.putLong(i * 31L).putByte(RuleKeyHasherTypes.LONG);
+      actual.putNumber(i * 31L);
+      expected.putShort((short) i).putByte(RuleKeyHasherTypes.SHORT);
+      actual.putNumber((short) i);
+      expected.putByte((byte) i).putByte(RuleKeyHasherTypes.BYTE);
+      actual.putNumber((byte) i);
+      expected.putFloat(i / 3f).putByte(RuleKeyHasherTypes.FLOAT);
+      actual.putNumber(i / 3f);
+      expected.putDouble(i / 7d).putByte(RuleKeyHasherTypes.DOUBLE);
+      actual.putNumber(i / 7d);
+      expected.putByte(i % 2 == 0 ? RuleKeyHasherTypes.TRUE : RuleKeyHasherTypes.FALSE);
+      actual.putBoolean(i % 2 == 0);
+      putBytes(expected, RuleKeyHasherTypes.KEY, ("key" + i).getBytes(StandardCharsets.UTF_8));
+      actual.putKey("key" + i);
+      putBytes(expected, RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode().asBytes());
+      actual.putRuleKey(ruleKey);
+      sha1.update(expected).putByte(RuleKeyHasherTypes.SHA1);
+      actual.putSha1(sha1);
+      expected
+          .putByte(RuleKeyHasherTypes.containerSubType(RuleKeyHasher.Container.LIST))
+          .putInt(i)
+          .putByte(RuleKeyHasherTypes.CONTAINER);
+      actual.putContainer(RuleKeyHasher.Container.LIST, i);
+    }
+    byte[] large = new byte[1000];
+    putBytes(expected, RuleKeyHasherTypes.BYTE_ARRAY, large);
+    actual.putBytes(large);
+    expected.putByte(RuleKeyHasherTypes.NULL);
+    actual.putNull();
+
+    assertEquals(expected.hash(), actual.hash());
+  }
+
+  private static void putBytes(Hasher hasher, byte type, byte[] bytes) {
+    hasher.putBytes(bytes).putInt(bytes.length).putByte(type);
+  }
 }
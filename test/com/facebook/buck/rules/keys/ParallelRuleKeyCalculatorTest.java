@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ParallelRuleKeyCalculatorTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  private final Set<BuildRule> calculated = ConcurrentHashMap.newKeySet();
+  private final Set<BuildRule> calculatedBeforeDeps = ConcurrentHashMap.newKeySet();
+
+  private final RuleKeyFactory<String> factory = rule -> {
+    if (!calculated.containsAll(rule.getBuildDeps())) {
+      calculatedBeforeDeps.add(rule);
+    }
+    calculated.add(rule);
+    if (rule.getBuildTarget().getShortName().startsWith("broken")) {
+      throw new IllegalStateException();
+    }
+    return rule.getBuildTarget().toString();
+  };
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void calculatesDepsBeforeTheirDependents() throws InterruptedException {
+    BuildRule leaf = new FakeBuildRule("//:leaf");
+    BuildRule left = new FakeBuildRule("//:left", leaf);
+    BuildRule right = new FakeBuildRule("//:right", leaf);
+    BuildRule top = new FakeBuildRule("//:top", left, right);
+    BuildRule other = new FakeBuildRule("//:other", right);
+
+    int count = new ParallelRuleKeyCalculator<>(factory, executor)
+        .calculate(ImmutableList.of(top, other));
+
+    assertEquals(5, count);
+    assertEquals(ImmutableSet.of(leaf, left, right, top, other), calculated);
+    assertEquals(ImmutableSet.of(), calculatedBeforeDeps);
+  }
+
+  @Test
+  public void calculatesLongDependencyChains() throws InterruptedException {
+    List<BuildRule> chain = new ArrayList<>();
+    BuildRule previous = new FakeBuildRule("//:rule0");
+    chain.add(previous);
+    for (int i = 1; i < 10000; i++) {
+      previous = new FakeBuildRule("//:rule" + i, previous);
+      chain.add(previous);
+    }
+
+    new ParallelRuleKeyCalculator<>(factory, executor).calculate(ImmutableList.of(previous));
+
+    assertEquals(ImmutableSet.copyOf(chain), calculated);
+    assertEquals(ImmutableSet.of(), calculatedBeforeDeps);
+  }
+
+  @Test
+  public void failuresDoNotStopTheirDependents() throws InterruptedException {
+    BuildRule broken = new FakeBuildRule("//:broken");
+    BuildRule top = new FakeBuildRule("//:top", broken);
+
+    new ParallelRuleKeyCalculator<>(factory, executor).calculate(ImmutableList.of(top));
+
+    assertTrue(calculated.contains(top));
+  }
+}
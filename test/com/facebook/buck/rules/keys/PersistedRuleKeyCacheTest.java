@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.ActionGraph;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.FakeTargetNodeBuilder;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyAppendable;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TargetGraphFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PersistedRuleKeyCacheTest {
+
+  private static final ProjectFilesystem FILESYSTEM = new FakeProjectFilesystem();
+  private static final HashCode ENVIRONMENT_HASH = HashCode.fromInt(1);
+
+  private final Map<String, byte[]> storedEntries = new HashMap<>();
+  private final Map<Path, HashCode> fileHashes = new HashMap<>();
+  private final AtomicInteger computations = new AtomicInteger();
+
+  private BuildRule dep;
+  private BuildRule rule;
+  private ActionGraph actionGraph;
+  private TargetGraph targetGraph;
+  private RuleKeyInput depInput;
+  private RuleKeyInput appendableInput;
+
+  @Before
+  public void setUp() {
+    SourcePathResolver pathResolver = new SourcePathResolver(
+        new SourcePathRuleFinder(
+            new BuildRuleResolver(
+                TargetGraph.EMPTY,
+                new DefaultTargetNodeToBuildRuleTransformer())));
+    dep = new FakeBuildRule(BuildTargetFactory.newInstance("//:dep"), pathResolver);
+    rule = new FakeBuildRule(BuildTargetFactory.newInstance("//:rule"), pathResolver);
+    actionGraph = new ActionGraph(ImmutableList.of(dep, rule));
+    targetGraph = TargetGraphFactory.newInstance(
+        FakeTargetNodeBuilder.build(dep),
+        FakeTargetNodeBuilder.build(rule));
+    depInput = RuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("dep.txt"));
+    appendableInput = RuleKeyInput.of(FILESYSTEM, FILESYSTEM.getPath("appendable.txt"));
+    fileHashes.put(FILESYSTEM.resolve(depInput.getPath()), HashCode.fromInt(10));
+    fileHashes.put(FILESYSTEM.resolve(appendableInput.getPath()), HashCode.fromInt(20));
+  }
+
+  @Test
+  public void newCacheReusesStoredRuleKeys() {
+    RuleKey ruleKey = build(newCache(), ENVIRONMENT_HASH);
+    assertEquals(3, computations.get());
+
+    assertEquals(ruleKey, build(newCache(), ENVIRONMENT_HASH));
+    assertEquals(3, computations.get());
+  }
+
+  @Test
+  public void changedDepInputInvalidatesStoredRuleKeys() {
+    RuleKey ruleKey = build(newCache(), ENVIRONMENT_HASH);
+    fileHashes.put(FILESYSTEM.resolve(depInput.getPath()), HashCode.fromInt(11));
+
+    assertNotEquals(ruleKey, build(newCache(), ENVIRONMENT_HASH));
+    assertEquals(6, computations.get());
+  }
+
+  @Test
+  public void changedAppendableInputInvalidatesStoredRuleKey() {
+    RuleKey ruleKey = build(newCache(), ENVIRONMENT_HASH);
+    fileHashes.put(FILESYSTEM.resolve(appendableInput.getPath()), HashCode.fromInt(21));
+
+    // The dep's stored rule key is still valid, the rule and its appendable are recomputed.
+    assertNotEquals(ruleKey, build(newCache(), ENVIRONMENT_HASH));
+    assertEquals(5, computations.get());
+  }
+
+  @Test
+  public void changedEnvironmentInvalidatesStoredRuleKeys() {
+    build(newCache(), ENVIRONMENT_HASH);
+    build(newCache(), HashCode.fromInt(2));
+    assertEquals(6, computations.get());
+  }
+
+  @Test
+  public void ruleKeysAreNotStoredWithoutTargetGraph() {
+    PersistedRuleKeyCache cache = newCache();
+    cache.prepare(new RuleKeyCacheRecycler.SettingsAffectingCache(0, actionGraph));
+    cache.get(rule, r -> computeRuleKey("rule", ImmutableList.of(), ImmutableList.of()));
+    assertEquals(ImmutableSet.of(), storedEntries.keySet());
+  }
+
+  private PersistedRuleKeyCache newCache() {
+    return new PersistedRuleKeyCache(
+        new RuleKeyStore() {
+          @Override
+          public Optional<byte[]> read(String key) {
+            return Optional.ofNullable(storedEntries.get(key));
+          }
+
+          @Override
+          public void write(String key, byte[] entry) {
+            storedEntries.put(key, entry);
+          }
+
+          @Override
+          public void close() {
+          }
+        },
+        new FakeFileHashCache(fileHashes),
+        ImmutableSet.of(FILESYSTEM));
+  }
+
+  /**
+   * Mimics a rule key factory: the rule key of {@code rule} is computed from that of {@code dep}
+   * and of an appendable, each with an input.
+   */
+  private RuleKey build(PersistedRuleKeyCache cache, HashCode environmentHash) {
+    cache.prepare(
+        new RuleKeyCacheRecycler.SettingsAffectingCache(
+            0,
+            actionGraph,
+            targetGraph,
+            environmentHash));
+    RuleKeyAppendable appendable = sink -> {};
+    return cache.get(
+        rule,
+        r -> {
+          RuleKey depKey = cache.get(
+              dep,
+              d -> computeRuleKey("dep", ImmutableList.of(), ImmutableList.of(depInput)));
+          RuleKey appendableKey = cache.get(
+              appendable,
+              a -> computeRuleKey("appendable", ImmutableList.of(), ImmutableList.of(
+                  appendableInput)));
+          return computeRuleKey(
+              depKey.toString() + appendableKey.toString(),
+              ImmutableList.of(dep, appendable),
+              ImmutableList.of());
+        });
+  }
+
+  private RuleKeyResult<RuleKey> computeRuleKey(
+      String name,
+      ImmutableList<Object> deps,
+      ImmutableList<RuleKeyInput> inputs) {
+    computations.incrementAndGet();
+    StringBuilder key = new StringBuilder(name);
+    for (RuleKeyInput input : inputs) {
+      key.append(fileHashes.get(FILESYSTEM.resolve(input.getPath())));
+    }
+    return new RuleKeyResult<>(
+        new RuleKey(HashCode.fromInt(key.toString().hashCode())),
+        deps,
+        inputs);
+  }
+}
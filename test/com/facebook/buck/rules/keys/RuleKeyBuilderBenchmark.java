@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.hashing.FileHashLoader;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Measures building the default rule key of a rule with a typical mix of fields: sources, flags,
+ * an environment map and a handful of scalars. Run with the allocation instrument to see the
+ * garbage produced per key.
+ */
+public class RuleKeyBuilderBenchmark {
+  @Param({"10", "100", "1000"})
+  private int elementCount = 10;
+
+  private SourcePathRuleFinder ruleFinder;
+  private SourcePathResolver pathResolver;
+  private FileHashLoader hashLoader;
+  private BuildRule rule;
+
+  @Before
+  public void setUpTest() {
+    elementCount = 10;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    ruleFinder = new SourcePathRuleFinder(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    pathResolver = new SourcePathResolver(ruleFinder);
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    ImmutableMap.Builder<Path, HashCode> hashes = ImmutableMap.builder();
+    ImmutableList.Builder<SourcePath> srcs = ImmutableList.builder();
+    ImmutableList.Builder<String> flags = ImmutableList.builder();
+    ImmutableSortedMap.Builder<String, String> env = ImmutableSortedMap.naturalOrder();
+    for (int i = 0; i < elementCount; i++) {
+      Path src = Paths.get(String.format("java/com/example/lib%d/Source%d.java", i % 10, i));
+      hashes.put(filesystem.resolve(src), HashCode.fromInt(i));
+      srcs.add(new PathSourcePath(filesystem, src));
+      flags.add("-Dexample.flag" + i + "=" + i);
+      env.put("EXAMPLE_VAR_" + i, "value-" + i);
+    }
+    hashLoader = new FakeFileHashCache(hashes.build());
+    rule = new BenchmarkRule(
+        BuildTargetFactory.newInstance("//example:rule"),
+        filesystem,
+        pathResolver,
+        srcs.build(),
+        flags.build(),
+        env.build());
+  }
+
+  @Test
+  public void buildRuleKeyCorrectness() {
+    assertEquals(buildRuleKey(), buildRuleKey());
+  }
+
+  @Benchmark
+  public RuleKey buildRuleKey() {
+    // A new factory every time, so that the key isn't just served from its rule key cache.
+    return new DefaultRuleKeyFactory(0, hashLoader, pathResolver, ruleFinder).build(rule);
+  }
+
+  @SuppressWarnings("unused")
+  private static class BenchmarkRule extends FakeBuildRule {
+    @AddToRuleKey
+    private final ImmutableList<SourcePath> srcs;
+    @AddToRuleKey
+    private final ImmutableList<String> flags;
+    @AddToRuleKey
+    private final ImmutableSortedMap<String, String> env;
+    @AddToRuleKey
+    private final Optional<String> mainClass = Optional.of("com.example.Main");
+    @AddToRuleKey
+    private final int version = 1000;
+    @AddToRuleKey
+    private final long timeout = 60_000L;
+    @AddToRuleKey
+    private final boolean debug = true;
+
+    private BenchmarkRule(
+        BuildTarget target,
+        ProjectFilesystem filesystem,
+        SourcePathResolver resolver,
+        ImmutableList<SourcePath> srcs,
+        ImmutableList<String> flags,
+        ImmutableSortedMap<String, String> env) {
+      super(target, filesystem, resolver);
+      this.srcs = srcs;
+      this.flags = flags;
+      this.env = env;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.keys;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.hashing.HashFunctionType;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Optional;
+
+public class RuleKeyProfilerTest {
+
+  private SourcePathResolver pathResolver;
+  private SourcePathRuleFinder ruleFinder;
+  private BigRule big;
+  private SmallRule small;
+
+  @Before
+  public void setUp() {
+    ruleFinder = new SourcePathRuleFinder(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    pathResolver = new SourcePathResolver(ruleFinder);
+    big = new BigRule(pathResolver, ImmutableList.copyOf(Collections.nCopies(10000, "src.c")));
+    small = new SmallRule(pathResolver, big);
+  }
+
+  @Test
+  public void profilingDoesNotChangeRuleKeys() {
+    assertEquals(
+        newRuleKeyFactory(Optional.empty()).build(small),
+        newRuleKeyFactory(Optional.of(new RuleKeyProfiler())).build(small));
+  }
+
+  @Test
+  public void costOfDepsIsChargedToTheirRuleType() {
+    RuleKeyProfiler profiler = new RuleKeyProfiler();
+    newRuleKeyFactory(Optional.of(profiler)).build(small);
+
+    RuleKeyTypeProfile bigProfile = getProfile(profiler, "big_rule");
+    RuleKeyTypeProfile smallProfile = getProfile(profiler, "small_rule");
+    assertEquals(1, bigProfile.getKeysComputed());
+    assertEquals(1, smallProfile.getKeysComputed());
+
+    RuleKeyFieldProfile srcs = bigProfile.getFields().get(0);
+    assertEquals("srcs", srcs.getField());
+    assertThat(srcs.getBytes(), greaterThan(50000L));
+    assertThat(bigProfile.getBytes(), greaterThan(srcs.getBytes()));
+
+    // The small rule only hashes its dep's key, not everything that went into it.
+    assertThat(smallProfile.getBytes(), lessThan(1000L));
+    for (RuleKeyFieldProfile field : smallProfile.getFields()) {
+      assertThat(field.getBytes(), lessThan(smallProfile.getBytes()));
+    }
+  }
+
+  @Test
+  public void cacheHitsAreCounted() {
+    RuleKeyProfiler profiler = new RuleKeyProfiler();
+    DefaultRuleKeyFactory factory = newRuleKeyFactory(Optional.of(profiler));
+    factory.build(small);
+    factory.build(small);
+
+    RuleKeyTypeProfile smallProfile = getProfile(profiler, "small_rule");
+    assertEquals(2, smallProfile.getLookups());
+    assertEquals(1, smallProfile.getCacheHits());
+    assertEquals(1, smallProfile.getKeysComputed());
+    assertEquals(0.5, smallProfile.getCacheHitRate(), 0.0);
+  }
+
+  @Test
+  public void reportListsRuleTypesAndFields() {
+    RuleKeyProfiler profiler = new RuleKeyProfiler();
+    newRuleKeyFactory(Optional.of(profiler)).build(small);
+
+    StringWriter report = new StringWriter();
+    profiler.writeReport(new PrintWriter(report));
+    assertThat(report.toString(), containsString("Computed 2 rule keys"));
+    assertThat(report.toString(), containsString("big_rule"));
+    assertThat(report.toString(), containsString("  srcs"));
+  }
+
+  private DefaultRuleKeyFactory newRuleKeyFactory(Optional<RuleKeyProfiler> profiler) {
+    return new DefaultRuleKeyFactory(
+        new RuleKeyFieldLoader(0, HashFunctionType.SHA1, profiler),
+        new FakeFileHashCache(ImmutableMap.of()),
+        pathResolver,
+        ruleFinder);
+  }
+
+  private static RuleKeyTypeProfile getProfile(RuleKeyProfiler profiler, String ruleType) {
+    return profiler.getProfile().stream()
+        .filter(profile -> profile.getRuleType().equals(ruleType))
+        .findFirst()
+        .get();
+  }
+
+  private static class BigRule extends FakeBuildRule {
+    @AddToRuleKey
+    private final ImmutableList<String> srcs;
+
+    private BigRule(SourcePathResolver resolver, ImmutableList<String> srcs) {
+      super("//:big", resolver);
+      this.srcs = srcs;
+    }
+  }
+
+  private static class SmallRule extends FakeBuildRule {
+    @AddToRuleKey
+    private final String cmd = "true";
+
+    private SmallRule(SourcePathResolver resolver, BuildRule dep) {
+      super("//:small", resolver, dep);
+    }
+  }
+
+}
@@ -150,6 +150,44 @@ public class RuleKeyScopedHasherTest {
     assertEquals(newGuavaHasher().hash(), countHasher.hash());
   }
 
+  @Test
+  public void testDeeplyNestedScopes() {
+    CountingRuleKeyHasher<HashCode> countHasher = newCountHasher();
+    RuleKeyScopedHasher<HashCode> containerHasher = new RuleKeyScopedHasher<>(countHasher);
+    nestLists(containerHasher, countHasher, 40);
+    RuleKeyHasher<HashCode> expected = newGuavaHasher().putString("val").putKey("key");
+    for (int i = 0; i < 40; i++) {
+      expected
+          .putContainer(RuleKeyHasher.Container.LIST, 1)
+          .putWrapper(RuleKeyHasher.Wrapper.OPTIONAL);
+    }
+    assertEquals(expected.hash(), countHasher.hash());
+  }
+
+  private void nestLists(
+      RuleKeyScopedHasher<HashCode> containerHasher,
+      CountingRuleKeyHasher<HashCode> countHasher,
+      int depth) {
+    if (depth == 0) {
+      try (RuleKeyScopedHasher.Scope keyScope = containerHasher.keyScope("key")) {
+        countHasher.putString("val");
+      }
+      return;
+    }
+    try (RuleKeyScopedHasher.Scope wrapperScope =
+             containerHasher.wrapperScope(RuleKeyHasher.Wrapper.OPTIONAL)) {
+      try (RuleKeyScopedHasher.ContainerScope containerScope =
+               containerHasher.containerScope(RuleKeyHasher.Container.LIST)) {
+        try (RuleKeyScopedHasher.Scope elementScope = containerScope.elementScope()) { // NOPMD
+          // Empty elements are not counted.
+        }
+        try (RuleKeyScopedHasher.Scope elementScope = containerScope.elementScope()) {
+          nestLists(containerHasher, countHasher, depth - 1);
+        }
+      }
+    }
+  }
+
   private CountingRuleKeyHasher<HashCode> newCountHasher() {
     return new CountingRuleKeyHasher<>(newGuavaHasher());
   }
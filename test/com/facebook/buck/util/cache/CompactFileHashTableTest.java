@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+public class CompactFileHashTableTest {
+
+  private static final int HASH_BITS = Hashing.sha1().bits();
+
+  @Test
+  public void hashesAndSizesAreStoredIndependently() {
+    CompactFileHashTable table = new CompactFileHashTable(HASH_BITS);
+    Path path = Paths.get("foo/bar.txt");
+    HashCode hashCode = Hashing.sha1().hashInt(42);
+
+    table.putSize(path, 12);
+    assertNull(table.getHashCode(path));
+    assertEquals(Long.valueOf(12), table.getSize(path));
+
+    table.put(path, HashCodeAndFileType.ofFile(hashCode));
+    assertEquals(hashCode, table.getHashCode(path));
+    assertEquals(HashCodeAndFileType.ofFile(hashCode), table.get(path));
+    assertEquals(Long.valueOf(12), table.getSize(path));
+
+    table.remove(path);
+    assertNull(table.get(path));
+    assertNull(table.getSize(path));
+    assertEquals(0, table.size());
+  }
+
+  @Test
+  public void entriesThatDoNotFitAreKeptWhole() {
+    CompactFileHashTable table = new CompactFileHashTable(HASH_BITS);
+    Path dir = Paths.get("dir");
+    HashCodeAndFileType directory = HashCodeAndFileType.ofDirectory(
+        Hashing.sha1().hashInt(1),
+        ImmutableSet.of(Paths.get("child")));
+    Path shortHash = Paths.get("short");
+
+    table.put(dir, directory);
+    table.put(shortHash, HashCodeAndFileType.ofFile(HashCode.fromInt(7)));
+
+    assertEquals(directory, table.get(dir));
+    assertEquals(directory.getHashCode(), table.getHashCode(dir));
+    assertEquals(HashCode.fromInt(7), table.getHashCode(shortHash));
+
+    table.put(dir, HashCodeAndFileType.ofFile(Hashing.sha1().hashInt(2)));
+    assertEquals(HashCodeAndFileType.ofFile(Hashing.sha1().hashInt(2)), table.get(dir));
+  }
+
+  @Test
+  public void matchesAMapThroughGrowthAndRemovals() {
+    CompactFileHashTable table = new CompactFileHashTable(HASH_BITS);
+    Map<Path, HashCode> expectedHashes = new HashMap<>();
+    Map<Path, Long> expectedSizes = new HashMap<>();
+    Random random = new Random(0);
+
+    for (int i = 0; i < 20000; i++) {
+      Path path = Paths.get("dir" + random.nextInt(50), "file" + random.nextInt(100));
+      switch (random.nextInt(4)) {
+        case 0:
+        case 1:
+          HashCode hashCode = Hashing.sha1().hashInt(i);
+          table.put(path, HashCodeAndFileType.ofFile(hashCode));
+          expectedHashes.put(path, hashCode);
+          break;
+        case 2:
+          table.putSize(path, i);
+          expectedSizes.put(path, (long) i);
+          break;
+        default:
+          table.remove(path);
+          expectedHashes.remove(path);
+          expectedSizes.remove(path);
+          break;
+      }
+    }
+
+    HashSet<Path> expectedPaths = new HashSet<>(expectedHashes.keySet());
+    expectedPaths.addAll(expectedSizes.keySet());
+    assertEquals(expectedPaths, new HashSet<>(table.getPaths()));
+    assertEquals(expectedPaths.size(), table.size());
+    for (int dir = 0; dir < 50; dir++) {
+      for (int file = 0; file < 100; file++) {
+        Path path = Paths.get("dir" + dir, "file" + file);
+        assertEquals(expectedHashes.get(path), table.getHashCode(path));
+        assertEquals(expectedSizes.get(path), table.getSize(path));
+      }
+    }
+
+    table.clear();
+    assertEquals(0, table.size());
+    assertNull(table.getHashCode(expectedPaths.iterator().next()));
+  }
+}
@@ -18,16 +18,21 @@ package com.facebook.buck.util.cache;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.hashing.HashFunctionType;
+import com.facebook.buck.hashing.PathHashing;
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.HashingDeterministicJarWriter;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 
 import org.hamcrest.Matchers;
@@ -61,7 +66,7 @@ public class DefaultFileHashCacheTest {
     DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
     Path path = new File("SomeClass.java").toPath();
     HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-    cache.loadingCache.put(path, value);
+    cache.entries.put(path, value);
     assertTrue("Cache should contain path", cache.willGet(path));
   }
 
@@ -71,20 +76,37 @@ public class DefaultFileHashCacheTest {
     DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
     Path path = new File("SomeClass.java").toPath();
     HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-    cache.loadingCache.put(path, value);
+    cache.entries.put(path, value);
     assertEquals(
         "Cache should contain hash",
         value.getHashCode(),
         cache.get(path));
   }
 
+  @Test
+  public void filesAreHashedWithTheConfiguredHashFunction() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    Path path = Paths.get("SomeClass.java");
+    filesystem.writeContentsToPath("class SomeClass {}", path);
+    byte[] contents = "class SomeClass {}".getBytes(StandardCharsets.UTF_8);
+
+    assertEquals(
+        Hashing.sha1().hashBytes(contents),
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, HashFunctionType.SHA1)
+            .get(path));
+    assertEquals(
+        Hashing.murmur3_128().hashBytes(contents),
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem, HashFunctionType.MURMUR3_128)
+            .get(path));
+  }
+
   @Test
   public void whenPathIsPutThenInvalidatedCacheDoesNotContainPath() {
     ProjectFilesystem filesystem = new FakeProjectFilesystem();
     DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
     Path path = new File("SomeClass.java").toPath();
     HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-    cache.loadingCache.put(path, value);
+    cache.entries.put(path, value);
     assertTrue("Cache should contain path", cache.willGet(path));
     cache.invalidate(path);
     assertFalse("Cache should not contain pain", cache.willGet(path));
@@ -124,10 +146,10 @@ public class DefaultFileHashCacheTest {
     assertTrue(cache.willGet(path2));
 
     // Verify that `invalidateAll` clears everything from the cache.
-    assertFalse(cache.loadingCache.asMap().isEmpty());
+    assertNotEquals(0, cache.entries.size());
     cache.invalidateAll();
 
-    assertTrue(cache.loadingCache.asMap().isEmpty());
+    assertEquals(0, cache.entries.size());
   }
 
   @Test
@@ -149,9 +171,32 @@ public class DefaultFileHashCacheTest {
     assertTrue(cache.willGet(child2));
 
     cache.invalidate(dir);
-    assertNull(cache.loadingCache.getIfPresent(dir));
-    assertNull(cache.loadingCache.getIfPresent(child1));
-    assertNull(cache.loadingCache.getIfPresent(child2));
+    assertNull(cache.entries.get(dir));
+    assertNull(cache.entries.get(child1));
+    assertNull(cache.entries.get(child2));
+  }
+
+  @Test
+  public void largeDirectoriesHashTheSameAsWhenHashedSerially() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    Path dir = Paths.get("dir");
+    filesystem.mkdirs(dir.resolve("sub"));
+    for (int i = 0; i < 100; i++) {
+      filesystem.writeContentsToPath(
+          "file " + i,
+          dir.resolve(i % 2 == 0 ? "sub" : "").resolve("file" + i));
+    }
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
+
+    Hasher expected = Hashing.sha1().newHasher();
+    PathHashing.hashPath(
+        expected,
+        DefaultFileHashCache.createDefaultFileHashCache(filesystem),
+        filesystem,
+        dir);
+    assertEquals(expected.hash(), cache.get(dir));
+    assertEquals(100, cache.entries.get(dir).getChildren().size());
+    assertNotNull(cache.entries.get(dir.resolve("sub").resolve("file42")));
   }
 
   @Test
@@ -279,7 +324,7 @@ public class DefaultFileHashCacheTest {
     DefaultFileHashCache cache = new DefaultFileHashCache(filesystem, Optional.empty());
     cache.getSize(input);
     cache.invalidate(input);
-    assertNull(cache.sizeCache.getIfPresent(input));
+    assertNull(cache.entries.getSize(input));
   }
 
   @Test
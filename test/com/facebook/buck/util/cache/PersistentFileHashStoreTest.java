@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static com.facebook.buck.testutil.WatchEventsForTests.createOverflowEvent;
+import static com.facebook.buck.testutil.WatchEventsForTests.createPathEvent;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.hashing.HashFunctionType;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+public class PersistentFileHashStoreTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path storePath;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    storePath = filesystem.getBuckPaths().getFileHashCacheFile();
+  }
+
+  @Test
+  public void hashesSurviveSaveAndLoad() throws IOException {
+    Path file = writeOldFile("foo.txt", "Hello world");
+    PersistentFileHashStore store = loadStore(HashFunctionType.SHA1);
+    PersistentFileHashStore.FileStamp stamp = store.stamp(file).get();
+    store.put(file, stamp, HashCode.fromInt(42));
+    store.save();
+
+    PersistentFileHashStore reloaded = loadStore(HashFunctionType.SHA1);
+    assertEquals(
+        Optional.of(HashCode.fromInt(42)),
+        reloaded.get(file, reloaded.stamp(file).get()));
+  }
+
+  @Test
+  public void hashIsNotReturnedOnceTheFileChanges() throws IOException {
+    Path file = writeOldFile("foo.txt", "Hello world");
+    PersistentFileHashStore store = loadStore(HashFunctionType.SHA1);
+    store.put(file, store.stamp(file).get(), HashCode.fromInt(42));
+
+    writeOldFile("foo.txt", "Goodbye world");
+    assertEquals(Optional.empty(), store.get(file, store.stamp(file).get()));
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotRecorded() throws IOException {
+    Path file = Paths.get("foo.txt");
+    Files.write(filesystem.resolve(file), "Hello world".getBytes(Charsets.UTF_8));
+    PersistentFileHashStore store = loadStore(HashFunctionType.SHA1);
+    store.put(file, store.stamp(file).get(), HashCode.fromInt(42));
+
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void hashesFromAnotherHashFunctionAreIgnored() throws IOException {
+    Path file = writeOldFile("foo.txt", "Hello world");
+    PersistentFileHashStore store = loadStore(HashFunctionType.SHA1);
+    store.put(file, store.stamp(file).get(), HashCode.fromInt(42));
+    store.save();
+
+    assertEquals(1, loadStore(HashFunctionType.SHA1).size());
+    assertEquals(0, loadStore(HashFunctionType.MURMUR3_128).size());
+  }
+
+  @Test
+  public void corruptStoreIsIgnored() throws IOException {
+    filesystem.mkdirs(storePath.getParent());
+    filesystem.writeContentsToPath("not a file hash store", storePath);
+
+    assertEquals(0, loadStore(HashFunctionType.SHA1).size());
+  }
+
+  @Test
+  public void watchedCacheReusesPersistedHashesAndForgetsChangedFiles() throws IOException {
+    Path file = writeOldFile("foo.txt", "Hello world");
+    WatchedFileHashCache cache = new WatchedFileHashCache(
+        filesystem,
+        HashFunctionType.SHA1,
+        Optional.of(loadStore(HashFunctionType.SHA1)));
+    HashCode hash = cache.get(file);
+    cache.persist();
+
+    // A new daemon reads the hash from the store rather than from the file.
+    PersistentFileHashStore store = loadStore(HashFunctionType.SHA1);
+    store.put(file, store.stamp(file).get(), HashCode.fromInt(42));
+    WatchedFileHashCache newCache =
+        new WatchedFileHashCache(filesystem, HashFunctionType.SHA1, Optional.of(store));
+    assertEquals(HashCode.fromInt(42), newCache.get(file));
+
+    // Overflows don't make the store forget anything, as hashes are checked against the file.
+    newCache.onFileSystemChange(createOverflowEvent());
+    assertEquals(1, store.size());
+
+    newCache.onFileSystemChange(createPathEvent(file, StandardWatchEventKinds.ENTRY_MODIFY));
+    assertEquals(0, store.size());
+    assertEquals(hash, newCache.get(file));
+    assertEquals(Optional.of(hash), store.get(file, store.stamp(file).get()));
+  }
+
+  private PersistentFileHashStore loadStore(HashFunctionType hashFunction) {
+    return PersistentFileHashStore.load(filesystem, storePath, hashFunction);
+  }
+
+  private Path writeOldFile(String name, String contents) throws IOException {
+    Path file = Paths.get(name);
+    Path absolute = filesystem.resolve(file);
+    Files.write(absolute, contents.getBytes(Charsets.UTF_8));
+    Files.setLastModifiedTime(
+        absolute,
+        FileTime.fromMillis(
+            System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1) + contents.length()));
+    return file;
+  }
+}
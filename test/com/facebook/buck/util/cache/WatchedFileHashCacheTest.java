@@ -57,11 +57,11 @@ public class WatchedFileHashCacheTest {
         new FakeProjectFilesystem());
     Path path = new File("SomeClass.java").toPath();
     HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-    cache.loadingCache.put(path, value);
-    cache.sizeCache.put(path, 1234L);
+    cache.entries.put(path, value);
+    cache.entries.putSize(path, 1234L);
     cache.onFileSystemChange(createOverflowEvent());
     assertFalse("Cache should not contain path", cache.willGet(path));
-    assertThat("Cache should not contain path", cache.sizeCache.getIfPresent(path), nullValue());
+    assertThat("Cache should not contain path", cache.entries.getSize(path), nullValue());
   }
 
   @Test
@@ -70,11 +70,11 @@ public class WatchedFileHashCacheTest {
         new FakeProjectFilesystem());
     Path path = Paths.get("SomeClass.java");
     HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-    cache.loadingCache.put(path, value);
-    cache.sizeCache.put(path, 1234L);
+    cache.entries.put(path, value);
+    cache.entries.putSize(path, 1234L);
     cache.onFileSystemChange(createPathEvent(path, StandardWatchEventKinds.ENTRY_CREATE));
     assertFalse("Cache should not contain path", cache.willGet(path));
-    assertThat("Cache should not contain path", cache.sizeCache.getIfPresent(path), nullValue());
+    assertThat("Cache should not contain path", cache.entries.getSize(path), nullValue());
   }
 
   @Test
@@ -83,11 +83,11 @@ public class WatchedFileHashCacheTest {
         new WatchedFileHashCache(new FakeProjectFilesystem());
     Path path = Paths.get("SomeClass.java");
     HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-    cache.loadingCache.put(path, value);
-    cache.sizeCache.put(path, 1234L);
+    cache.entries.put(path, value);
+    cache.entries.putSize(path, 1234L);
     cache.onFileSystemChange(createPathEvent(path, StandardWatchEventKinds.ENTRY_MODIFY));
     assertFalse("Cache should not contain path", cache.willGet(path));
-    assertThat("Cache should not contain path", cache.sizeCache.getIfPresent(path), nullValue());
+    assertThat("Cache should not contain path", cache.entries.getSize(path), nullValue());
   }
 
   @Test
@@ -96,11 +96,11 @@ public class WatchedFileHashCacheTest {
         new WatchedFileHashCache(new FakeProjectFilesystem());
     Path path = Paths.get("SomeClass.java");
     HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-    cache.loadingCache.put(path, value);
-    cache.sizeCache.put(path, 1234L);
+    cache.entries.put(path, value);
+    cache.entries.putSize(path, 1234L);
     cache.onFileSystemChange(createPathEvent(path, StandardWatchEventKinds.ENTRY_DELETE));
     assertFalse("Cache should not contain path", cache.willGet(path));
-    assertThat("Cache should not contain path", cache.sizeCache.getIfPresent(path), nullValue());
+    assertThat("Cache should not contain path", cache.entries.getSize(path), nullValue());
   }
 
   @Test
@@ -129,14 +129,14 @@ public class WatchedFileHashCacheTest {
     Path dir = Paths.get("foo/bar/baz");
     HashCodeAndFileType value =
         HashCodeAndFileType.ofDirectory(HashCode.fromInt(42), ImmutableSet.of());
-    cache.loadingCache.put(dir, value);
-    cache.sizeCache.put(dir, 1234L);
+    cache.entries.put(dir, value);
+    cache.entries.putSize(dir, 1234L);
     cache.onFileSystemChange(
         createPathEvent(
             dir.resolve("blech"),
             StandardWatchEventKinds.ENTRY_CREATE));
     assertFalse("Cache should not contain path", cache.willGet(dir));
-    assertThat("Cache should not contain path", cache.sizeCache.getIfPresent(dir), nullValue());
+    assertThat("Cache should not contain path", cache.entries.getSize(dir), nullValue());
   }
 
   @Test
@@ -160,9 +160,9 @@ public class WatchedFileHashCacheTest {
     // Trigger an event on the directory.
     cache.onFileSystemChange(createPathEvent(dir, StandardWatchEventKinds.ENTRY_MODIFY));
 
-    assertNull(cache.loadingCache.getIfPresent(dir));
-    assertNull(cache.loadingCache.getIfPresent(child1));
-    assertNull(cache.loadingCache.getIfPresent(child2));
+    assertNull(cache.entries.get(dir));
+    assertNull(cache.entries.get(child1));
+    assertNull(cache.entries.get(child2));
   }
 
   @Test
@@ -172,11 +172,11 @@ public class WatchedFileHashCacheTest {
     Path parent = filesystem.getPath("directory");
       Path path = parent.resolve("SomeClass.java");
       HashCodeAndFileType value = HashCodeAndFileType.ofFile(HashCode.fromInt(42));
-      cache.loadingCache.put(path, value);
-      cache.sizeCache.put(path, 1234L);
+      cache.entries.put(path, value);
+      cache.entries.putSize(path, 1234L);
       cache.onFileSystemChange(createPathEvent(parent, StandardWatchEventKinds.ENTRY_MODIFY));
       assertFalse("Cache should not contain path", cache.willGet(path));
-      assertThat("Cache should not contain path", cache.sizeCache.getIfPresent(path), nullValue());
+      assertThat("Cache should not contain path", cache.entries.getSize(path), nullValue());
     }
 
 }
@@ -20,6 +20,10 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
+import com.facebook.buck.timing.Clock;
+import com.facebook.buck.timing.DefaultClock;
+import com.facebook.buck.timing.SettableFakeClock;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -33,6 +37,7 @@ import org.junit.rules.ExpectedException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
@@ -153,6 +158,237 @@ public class ResourcePoolTest {
     }
   }
 
+  @Test
+  public void sharedLimitReclaimsIdleResourcesOfOtherPools() throws Exception {
+    ListeningExecutorService executorService = MoreExecutors.newDirectExecutorService();
+    SharedResourceLimit limit = new SharedResourceLimit(1);
+    Set<Integer> closed = new HashSet<>();
+    AtomicInteger created = new AtomicInteger(0);
+    ResourcePool<TestResource> first =
+        createPool(2, limit, false, Optional.empty(), new DefaultClock(), created, closed);
+    ResourcePool<TestResource> second =
+        createPool(2, limit, false, Optional.empty(), new DefaultClock(), created, closed);
+
+    assertThat(
+        first.scheduleOperationWithResource(r -> r, executorService).get().getTestResourceId(),
+        equalTo(0));
+    // The first pool's parked resource has to be retired before the second pool can create one.
+    assertThat(
+        second.scheduleOperationWithResource(r -> r, executorService).get().getTestResourceId(),
+        equalTo(1));
+    assertThat(closed, equalTo(ImmutableSet.of(0)));
+    assertThat(limit.getUsedResources(), equalTo(1));
+
+    first.close();
+    second.close();
+    second.getShutdownFullyCompleteFuture().get(1, TimeUnit.SECONDS);
+    assertThat(limit.getUsedResources(), equalTo(0));
+  }
+
+  @Test
+  public void adaptiveGrowthOnlyCreatesResourcesWorthTheirStartupTime() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, 0);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    AtomicInteger created = new AtomicInteger(0);
+    ResourcePool<TestResource> pool = createPool(
+        4,
+        new SharedResourceLimit(4),
+        true,
+        Optional.empty(),
+        clock,
+        created,
+        new HashSet<>());
+
+    // Starting a resource takes 90ms on top of the 10ms each operation takes.
+    pool.scheduleOperationWithResource(
+        r -> {
+          clock.advanceTimeNanos(TimeUnit.MILLISECONDS.toNanos(100));
+          return r;
+        },
+        executorService).get();
+    pool.scheduleOperationWithResource(
+        r -> {
+          clock.advanceTimeNanos(TimeUnit.MILLISECONDS.toNanos(10));
+          return r;
+        },
+        executorService).get();
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch unblock = new CountDownLatch(1);
+    List<ListenableFuture<TestResource>> futures = new ArrayList<>();
+    futures.add(
+        pool.scheduleOperationWithResource(
+            r -> {
+              started.countDown();
+              unblock.await();
+              return r;
+            },
+            executorService));
+    started.await();
+    // A few 10ms operations don't justify waiting 90ms for a new resource.
+    for (int i = 0; i < 3; i++) {
+      futures.add(pool.scheduleOperationWithResource(r -> r, executorService));
+    }
+    assertThat(created.get(), equalTo(1));
+
+    unblock.countDown();
+    Futures.allAsList(futures).get();
+    assertThat(created.get(), equalTo(1));
+    pool.close();
+    pool.getShutdownFullyCompleteFuture().get(1, TimeUnit.SECONDS);
+    executorService.shutdown();
+  }
+
+  @Test
+  public void idleResourcesAreRetired() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, 0);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+    Set<Integer> closed = new HashSet<>();
+    ResourcePool<TestResource> pool = createPool(
+        2,
+        new SharedResourceLimit(2),
+        false,
+        Optional.of(1000L),
+        clock,
+        new AtomicInteger(0),
+        closed);
+
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    List<ListenableFuture<TestResource>> futures = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      futures.add(
+          pool.scheduleOperationWithResource(
+              r -> {
+                bothStarted.countDown();
+                bothStarted.await();
+                return r;
+              },
+              executorService));
+    }
+    Futures.allAsList(futures).get();
+    assertThat(closed, Matchers.empty());
+
+    clock.advanceTimeNanos(TimeUnit.SECONDS.toNanos(2));
+    TestResource used = pool.scheduleOperationWithResource(r -> r, executorService).get();
+    assertThat(closed, equalTo(ImmutableSet.of(1 - used.getTestResourceId())));
+
+    pool.close();
+    pool.getShutdownFullyCompleteFuture().get(1, TimeUnit.SECONDS);
+    executorService.shutdown();
+  }
+
+  @Test
+  public void idleResourcesAreRetiredWhenAnotherIsAcquired() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, 0);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+    Set<Integer> closed = new HashSet<>();
+    ResourcePool<TestResource> pool = createPool(
+        2,
+        new SharedResourceLimit(2),
+        false,
+        Optional.of(1000L),
+        clock,
+        new AtomicInteger(0),
+        closed);
+
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    List<ListenableFuture<TestResource>> futures = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      futures.add(
+          pool.scheduleOperationWithResource(
+              r -> {
+                bothStarted.countDown();
+                bothStarted.await();
+                return r;
+              },
+              executorService));
+    }
+    Futures.allAsList(futures).get();
+
+    clock.advanceTimeNanos(TimeUnit.SECONDS.toNanos(2));
+    // The resource that went idle is retired before the operation is done with the other one.
+    Set<Integer> closedWhileInUse = pool.scheduleOperationWithResource(
+        r -> {
+          synchronized (closed) {
+            assertThat(closed, equalTo(ImmutableSet.of(1 - r.getTestResourceId())));
+            return ImmutableSet.copyOf(closed);
+          }
+        },
+        executorService).get();
+    assertThat(closedWhileInUse.size(), equalTo(1));
+
+    pool.close();
+    pool.getShutdownFullyCompleteFuture().get(1, TimeUnit.SECONDS);
+    executorService.shutdown();
+  }
+
+  @Test
+  public void sharedLimitReclaimsAllIdleResourcesOfOtherPools() throws Exception {
+    SettableFakeClock clock = new SettableFakeClock(0, 0);
+    ListeningExecutorService executorService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+    SharedResourceLimit limit = new SharedResourceLimit(2);
+    Set<Integer> closed = new HashSet<>();
+    AtomicInteger created = new AtomicInteger(0);
+    ResourcePool<TestResource> first =
+        createPool(2, limit, false, Optional.of(1000L), clock, created, closed);
+    ResourcePool<TestResource> second =
+        createPool(2, limit, false, Optional.empty(), clock, created, closed);
+
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    List<ListenableFuture<TestResource>> futures = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      futures.add(
+          first.scheduleOperationWithResource(
+              r -> {
+                bothStarted.countDown();
+                bothStarted.await();
+                return r;
+              },
+              executorService));
+    }
+    Futures.allAsList(futures).get();
+
+    clock.advanceTimeNanos(TimeUnit.SECONDS.toNanos(2));
+    second.scheduleOperationWithResource(r -> r, executorService).get();
+    // Both of the first pool's resources had gone idle, so neither is kept.
+    assertThat(closed, equalTo(ImmutableSet.of(0, 1)));
+    assertThat(limit.getUsedResources(), equalTo(1));
+
+    first.close();
+    second.close();
+    second.getShutdownFullyCompleteFuture().get(1, TimeUnit.SECONDS);
+    executorService.shutdown();
+  }
+
+  private static ResourcePool<TestResource> createPool(
+      int maxResources,
+      SharedResourceLimit limit,
+      boolean adaptiveGrowth,
+      Optional<Long> idleTimeoutMillis,
+      Clock clock,
+      AtomicInteger created,
+      Set<Integer> closed) {
+    return new ResourcePool<>(
+        maxResources,
+        ResourcePool.ResourceUsageErrorPolicy.RETIRE,
+        () -> new TestResource(created.getAndIncrement()) {
+          @Override
+          public void close() {
+            synchronized (closed) {
+              closed.add(getTestResourceId());
+            }
+          }
+        },
+        Optional.of(limit),
+        adaptiveGrowth,
+        idleTimeoutMillis,
+        clock);
+  }
+
   private static class TestResource implements AutoCloseable {
     private final int id;
 
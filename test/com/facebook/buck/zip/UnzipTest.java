@@ -16,13 +16,16 @@
 
 package com.facebook.buck.zip;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeThat;
 
 import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.MorePosixFilePermissions;
+import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.Zip;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.util.environment.Platform;
@@ -36,10 +39,13 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.zip.ZipEntry;
 
@@ -153,4 +159,138 @@ public class UnzipTest {
     assertThat(Files.readSymbolicLink(link).toString(), Matchers.equalTo("target.txt"));
   }
 
+  @Test
+  public void testExtractZipStreamPreservesExecutePermissionsAndSymlinks() throws IOException {
+    assumeThat(Platform.detect(), Matchers.is(Matchers.not(Platform.WINDOWS)));
+
+    // Writing to a stream makes commons-compress use data descriptors, as Buck's own zips do.
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipBytes)) {
+      ZipArchiveEntry exe = new ZipArchiveEntry("bin/test.exe");
+      exe.setUnixMode((int) MorePosixFilePermissions.toMode(
+          PosixFilePermissions.fromString("r-x------")));
+      zip.putArchiveEntry(exe);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+
+      ZipArchiveEntry link = new ZipArchiveEntry("link.txt");
+      link.setUnixMode((int) MoreFiles.S_IFLNK);
+      zip.putArchiveEntry(link);
+      zip.write("target.txt".getBytes(Charsets.UTF_8));
+      zip.closeArchiveEntry();
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    ImmutableList<Path> result = Unzip.extractZipStream(
+        new ByteArrayInputStream(zipBytes.toByteArray()),
+        new ProjectFilesystem(extractFolder),
+        Unzip.ExistingFileMode.OVERWRITE);
+
+    Path exe = extractFolder.resolve("bin/test.exe");
+    assertTrue(Files.isExecutable(exe));
+    assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(exe));
+    Path link = extractFolder.resolve("link.txt");
+    assertTrue(Files.isSymbolicLink(link));
+    assertThat(Files.readSymbolicLink(link).toString(), Matchers.equalTo("target.txt"));
+    assertEquals(
+        ImmutableList.of(Paths.get("bin/test.exe"), Paths.get("link.txt")),
+        result);
+  }
+
+  @Test
+  public void testExtractZipStreamWithLargeCentralDirectory() throws IOException {
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipBytes)) {
+      ZipArchiveEntry exe = new ZipArchiveEntry("test.exe");
+      exe.setUnixMode((int) MorePosixFilePermissions.toMode(
+          PosixFilePermissions.fromString("r-x------")));
+      zip.putArchiveEntry(exe);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+
+      // Enough entries for the central directory to be far larger than its minimum recorded tail.
+      for (int i = 0; i < 3000; i++) {
+        zip.putArchiveEntry(new ZipArchiveEntry(String.format("some/nested/dir/file%04d.txt", i)));
+        zip.write(DUMMY_FILE_CONTENTS);
+        zip.closeArchiveEntry();
+      }
+    }
+
+    Path extractFolder = tmpFolder.newFolder();
+    ImmutableList<Path> result = Unzip.extractZipStream(
+        new ByteArrayInputStream(zipBytes.toByteArray()),
+        new ProjectFilesystem(extractFolder),
+        Unzip.ExistingFileMode.OVERWRITE);
+
+    assertEquals(3001, result.size());
+    assertTrue(Files.isExecutable(extractFolder.resolve("test.exe")));
+    assertArrayEquals(
+        DUMMY_FILE_CONTENTS,
+        Files.readAllBytes(extractFolder.resolve("some/nested/dir/file2999.txt")));
+  }
+
+  @Test
+  public void testExtractZipStreamCleansDirectories() throws IOException {
+    Path extractFolder = tmpFolder.newFolder();
+    Path stale = extractFolder.resolve("subdir/stale.bin");
+    Files.createDirectories(stale.getParent());
+    Files.write(stale, DUMMY_FILE_CONTENTS);
+
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipBytes)) {
+      zip.putArchiveEntry(new ZipArchiveEntry("subdir/"));
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("subdir/1.bin"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+      // Cleaning a file that was already extracted must not wipe it.
+      zip.putArchiveEntry(new ZipArchiveEntry("subdir/1.bin"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    Unzip.extractZipStream(
+        new ByteArrayInputStream(zipBytes.toByteArray()),
+        new ProjectFilesystem(extractFolder),
+        Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+
+    assertFalse(Files.exists(stale));
+    assertArrayEquals(
+        DUMMY_FILE_CONTENTS,
+        Files.readAllBytes(extractFolder.resolve("subdir/1.bin")));
+  }
+
+  @Test
+  public void testStagedZipStreamIsOnlyWrittenToDestinationWhenMoved() throws IOException {
+    Path extractFolder = tmpFolder.newFolder();
+    Path stale = extractFolder.resolve("subdir/stale.bin");
+    Files.createDirectories(stale.getParent());
+    Files.write(stale, DUMMY_FILE_CONTENTS);
+
+    ByteArrayOutputStream zipBytes = new ByteArrayOutputStream();
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipBytes)) {
+      zip.putArchiveEntry(new ZipArchiveEntry("subdir/"));
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("subdir/1.bin"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    StagedZip stagedZip = Unzip.stageZipStream(
+        new ByteArrayInputStream(zipBytes.toByteArray()),
+        tmpFolder.newFolder());
+    assertTrue(Files.exists(stale));
+    assertFalse(Files.exists(extractFolder.resolve("subdir/1.bin")));
+
+    ImmutableList<Path> result = stagedZip.moveInto(
+        new ProjectFilesystem(extractFolder),
+        Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+
+    assertEquals(ImmutableList.of(Paths.get("subdir/1.bin")), result);
+    assertFalse(Files.exists(stale));
+    assertArrayEquals(
+        DUMMY_FILE_CONTENTS,
+        Files.readAllBytes(extractFolder.resolve("subdir/1.bin")));
+  }
+
 }